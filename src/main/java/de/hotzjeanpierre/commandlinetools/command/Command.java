@@ -221,6 +221,9 @@ public abstract class Command /* implements NamingValidator */ {
         assureLoadingOfCommands(
                 "de.hotzjeanpierre.commandlinetools.command.impl.encryption.EncryptCommand",
                 "de.hotzjeanpierre.commandlinetools.command.impl.encryption.DecryptCommand",
+                "de.hotzjeanpierre.commandlinetools.command.impl.encryption.RekeyCommand",
+                "de.hotzjeanpierre.commandlinetools.command.impl.encryption.VerifyCommand",
+                "de.hotzjeanpierre.commandlinetools.command.impl.encryption.BenchCryptoCommand",
                 "de.hotzjeanpierre.commandlinetools.command.impl.files.ListFilesCommand",
                 "de.hotzjeanpierre.commandlinetools.command.impl.programming.InterpretCommand"
         );
@@ -933,6 +936,24 @@ public abstract class Command /* implements NamingValidator */ {
                     .build();
         }
 
+        /**
+         * This method starts this shell command, whereas its standard input and output are redirected
+         * as given (e.g. to {@link ProcessBuilder.Redirect#PIPE}, so its output can be read by this process)
+         * and its standard error is inherited from this process. The process is not waited for.
+         *
+         * @param input  the redirection of the standard input of the process
+         * @param output the redirection of the standard output of the process
+         * @return the process that has been started
+         * @throws IOException in case the process could not be started
+         */
+        public Process start(ProcessBuilder.Redirect input, ProcessBuilder.Redirect output) throws IOException {
+            return new ProcessBuilder(buildArguments(System.getProperty("os.name").toLowerCase(), arguments))
+                    .redirectInput(input)
+                    .redirectOutput(output)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+        }
+
         private static String[] buildArguments(String lowerOSName, String[] args) {
             boolean windows = lowerOSName.contains("window");
             int offset = (windows)? 2 : 0;
@@ -16,6 +16,13 @@
 
 package de.hotzjeanpierre.commandlinetools.command;
 
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * This class specifies a result of the execution of a command. It may indicate whether there was an
  * error during the execution of the command, whether the input of the command is supposed to be deleted from
@@ -27,16 +34,23 @@ public class CommandExecutionResult {
      * Whether the command has successfully executed.
      */
     private boolean success;
+    /**
+     * The totals of the stages the command has gone through, in the order they have been added in.
+     */
+    private List<StageTotal> stageTotals;
 
     /**
      * Private, so the Builder has to be used, which is way more comfortable anyways.
      *
      * @param success     whether the command executed succeddfully
+     * @param stageTotals the totals of the stages the command has gone through
      */
     private CommandExecutionResult(
-            boolean success
+            boolean success,
+            List<StageTotal> stageTotals
     ) {
         this.success = success;
+        this.stageTotals = stageTotals;
     }
 
     /**
@@ -46,12 +60,87 @@ public class CommandExecutionResult {
         return success;
     }
 
+    /**
+     * @return The totals of the stages the command has gone through (e.g. listing, reading or writing files);
+     * empty in case the command does not measure its stages
+     */
+    public List<StageTotal> getStageTotals() {
+        return Collections.unmodifiableList(stageTotals);
+    }
+
+    /**
+     * The total time spent in and the total number of bytes processed by a single stage of a command.
+     */
+    public static class StageTotal {
+
+        /**
+         * The name of the stage.
+         */
+        private final String name;
+        /**
+         * The total time spent in the stage in nanoseconds.
+         */
+        private final long nanos;
+        /**
+         * The total number of bytes processed by the stage.
+         */
+        private final long bytes;
+
+        /**
+         * Creates a StageTotal with the given values.
+         *
+         * @param name  the name of the stage
+         * @param nanos the total time spent in the stage in nanoseconds
+         * @param bytes the total number of bytes processed by the stage
+         */
+        public StageTotal(String name, long nanos, long bytes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The name of the stage
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The total time spent in the stage in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return The total number of bytes processed by the stage
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return StringProcessing.format(
+                    "{0}: {1} s, {2} bytes",
+                    name,
+                    String.format(Locale.ROOT, "%.3f", nanos / 1e9),
+                    bytes
+            );
+        }
+    }
+
     public static class Builder {
 
         /**
          * Whether the input of the command is supposed to be deleted.
          */
         private boolean success;
+        /**
+         * The totals of the stages the command has gone through.
+         */
+        private List<StageTotal> stageTotals;
         /**
          * Whether the {@link #build()}-method has been called on this Builder-object.
          */
@@ -62,6 +151,7 @@ public class CommandExecutionResult {
          */
         public Builder() {
             success = false;
+            stageTotals = new ArrayList<>();
             built = false;
         }
 
@@ -78,6 +168,21 @@ public class CommandExecutionResult {
             return this;
         }
 
+        /**
+         * Adds the total of a stage the command has gone through.
+         *
+         * @param name  the name of the stage
+         * @param nanos the total time spent in the stage in nanoseconds
+         * @param bytes the total number of bytes processed by the stage
+         * @return the Builder for method chaining
+         */
+        public Builder addStageTotal(String name, long nanos, long bytes) {
+            checkState();
+
+            this.stageTotals.add(new StageTotal(name, nanos, bytes));
+            return this;
+        }
+
         /**
          * This method checks the state of this Builder, and if it has already been built
          * will throw an exception
@@ -102,7 +207,8 @@ public class CommandExecutionResult {
             this.built = true;
 
             return new CommandExecutionResult(
-                    this.success
+                    this.success,
+                    this.stageTotals
             );
         }
     }
@@ -0,0 +1,360 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.impl.encryption;
+
+import de.hotzjeanpierre.commandlinetools.command.Command;
+import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
+import de.hotzjeanpierre.commandlinetools.command.parameter.CommonTypes;
+import de.hotzjeanpierre.commandlinetools.command.parameter.Parameter;
+import de.hotzjeanpierre.commandlinetools.command.parameter.ParameterValuesList;
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.CipherSuite;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.CommonFileUtilities;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.CryptoBenchmark;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+@SuppressWarnings("unused")
+public class BenchCryptoCommand extends Command {
+
+    private static final String COMMAND_NAME = "benchcrypto";
+    private static final String COMMAND_DESCRIPTION = "This command measures how fast files of synthetic data are encrypted and decrypted on this machine.\nEvery combination of size, number of threads and cipher suite is measured, and its throughput, files per second\nand median (p50) and 99th percentile (p99) latency are printed. The throughput of every cipher suite alone is printed\nas well, so a throughput far below it (times the number of threads) shows that the disk limits the throughput.";
+
+
+    private static final String PARAMETER_NAME_SIZES = "sizes";
+    private static final String PARAMETER_DESCRIPTION_SIZES = "The sizes of the files to measure, separated by commas. A size may end with 'k', 'm' or 'g' for KiB, MiB or GiB.";
+
+    private static final String PARAMETER_NAME_THREADS = "threads";
+    private static final String PARAMETER_DESCRIPTION_THREADS = "The numbers of files to en- and decrypt at once, separated by commas. Just like the 'threads'-parameter of the 'encrypt'-command, the files as well as their segments are processed on as many threads.";
+
+    private static final String PARAMETER_NAME_CIPHER = "cipher";
+    private static final String PARAMETER_DESCRIPTION_CIPHER = "The cipher suite to measure (aes-gcm, aes-ctr or chacha20-poly1305). 'all' measures every suite that is available on this machine.";
+    private static final String CIPHER_ALL = "all";
+
+    private static final String PARAMETER_NAME_DURATION = "duration";
+    private static final String PARAMETER_DESCRIPTION_DURATION = "The time in milliseconds to encrypt and to decrypt every combination for. Every file is encrypted and decrypted at least once.";
+
+    private static final String PARAMETER_NAME_FOLDER = "dir";
+    private static final String PARAMETER_DESCRIPTION_FOLDER = "The folder to write the files to. Choose a folder on the disk that is to be measured (e.g. the disk backups are written to). Every file processed at once is written encrypted and decrypted, whereas the combinations whose files do not fit into the free space of the folder are skipped.";
+
+    /**
+     * The password the secret key of the benchmark is derived from.
+     */
+    private static final String PASSWORD = "benchcrypto";
+    /**
+     * The name of the file containing the synthetic data.
+     */
+    private static final String DATA_FILE_NAME = "benchcrypto.bin";
+    /**
+     * The size of the data the cipher suites alone are measured with.
+     */
+    private static final int SUITE_DATA_SIZE = 1024 * 1024;
+
+    static {
+        Command.addSupportedCommand(
+                new BenchCryptoCommand()
+        );
+    }
+
+    private BenchCryptoCommand() {
+        super(
+                COMMAND_NAME,
+                COMMAND_DESCRIPTION,
+                new Parameter[]{
+                        new Parameter(
+                                PARAMETER_NAME_SIZES,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_SIZES,
+                                "4k,64k,1m,16m,256m,1g"
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_THREADS,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_THREADS,
+                                "1," + Runtime.getRuntime().availableProcessors()
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_CIPHER,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_CIPHER,
+                                CIPHER_ALL
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DURATION,
+                                CommonTypes.Primitives.Integer,
+                                PARAMETER_DESCRIPTION_DURATION,
+                                1000,
+                                -1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_FOLDER,
+                                CommonTypes.File,
+                                PARAMETER_DESCRIPTION_FOLDER,
+                                new File(System.getProperty("java.io.tmpdir"))
+                        )
+                },
+                false
+        );
+    }
+
+    @Override
+    protected CommandExecutionResult execute(ParameterValuesList params, PrintStream outputStream) {
+        String sizesList = (String) params.getValue(PARAMETER_NAME_SIZES);
+        String threadsList = (String) params.getValue(PARAMETER_NAME_THREADS);
+        String cipher = (String) params.getValue(PARAMETER_NAME_CIPHER);
+        int duration = (int) params.getValue(PARAMETER_NAME_DURATION);
+        File folder = (File) params.getValue(PARAMETER_NAME_FOLDER);
+
+        CommandExecutionResult.Builder syso = new CommandExecutionResult.Builder();
+
+        long[] sizes;
+        int[] threads;
+
+        try {
+            sizes = parseSizes(sizesList);
+            threads = parseThreads(threadsList);
+        } catch (IllegalArgumentException e) {
+            outputStream.println(e.getMessage());
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (duration < 0) {
+            outputStream.println("The duration may not be negative.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        List<CipherSuite> suites = new ArrayList<>();
+
+        if (cipher.equalsIgnoreCase(CIPHER_ALL)) {
+            for (CipherSuite suite : CipherSuite.values()) {
+                if (suite.isAvailable()) {
+                    suites.add(suite);
+                }
+            }
+        } else {
+            CipherSuite suite = CipherSuite.fromName(cipher);
+
+            if (suite == null || !suite.isAvailable()) {
+                outputStream.println(StringProcessing.format(
+                        "The cipher suite '{0}' is not supported on this machine.\nThe cipher suites are: {1}",
+                        cipher,
+                        CipherSuite.listNames()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+            suites.add(suite);
+        }
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            outputStream.println(StringProcessing.format(
+                    "Couldn't create folder '{0}'.",
+                    folder
+            ));
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        EncryptionService.HashingResult secretkeyresult = EncryptionService.createPrivateKey(PASSWORD);
+
+        if (!secretkeyresult.isSuccess()) {
+            outputStream.println(secretkeyresult.getErrorMessage());
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        SecretKeySpec key = secretkeyresult.getSecretKey();
+
+        // the cipher suites alone on a single thread are the upper bound of the throughput per thread
+        for (CipherSuite suite : suites) {
+            try {
+                suite.measureThroughput(SUITE_DATA_SIZE, Math.min(duration, 200));
+                outputStream.println(StringProcessing.format(
+                        "{0} alone on one thread: {1}",
+                        suite,
+                        CipherSuite.formatThroughput(suite.measureThroughput(SUITE_DATA_SIZE, Math.max(duration, 1)))
+                ));
+            } catch (GeneralSecurityException e) {
+                outputStream.println(StringProcessing.format(
+                        "{0} could not be measured:\n{1}",
+                        suite,
+                        e.getMessage()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        File data = new File(folder, DATA_FILE_NAME);
+
+        try {
+            for (long size : sizes) {
+                if (!hasSpace(folder, size, StringProcessing.format("{0} files", CommonFileUtilities.formatSize(size)), outputStream)) {
+                    continue;
+                }
+
+                CryptoBenchmark.createData(data, size);
+
+                for (CipherSuite suite : suites) {
+                    for (int threadCount : threads) {
+                        // the files written at once might not fit, e.g. big files on many threads within a small temporary folder
+                        if (!hasSpace(
+                                folder,
+                                CryptoBenchmark.estimateSpace(size, threadCount),
+                                StringProcessing.format("{0}, {1}, {2} threads", suite, CommonFileUtilities.formatSize(size), threadCount),
+                                outputStream
+                        )) {
+                            continue;
+                        }
+
+                        CryptoBenchmark.Result result = CryptoBenchmark.run(key, suite, data, folder, threadCount, duration);
+
+                        outputStream.println(StringProcessing.format(
+                                "{0}, {1}, {2} threads:\n    encrypt: {3}\n    decrypt: {4}",
+                                suite,
+                                CommonFileUtilities.formatSize(size),
+                                threadCount,
+                                result.getEncryption(),
+                                result.getDecryption()
+                        ));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            outputStream.println(StringProcessing.format(
+                    "The benchmark has been aborted:\n{0}",
+                    e.getMessage()
+            ));
+            return syso.setSuccess(false)
+                    .build();
+        } finally {
+            if (data.exists() && !data.delete()) {
+                outputStream.println(StringProcessing.format(
+                        "Couldn't delete file '{0}'. Please try deleting it manually.",
+                        data
+                ));
+            }
+        }
+
+        return syso.setSuccess(true)
+                .build();
+    }
+
+    /**
+     * This method checks whether the given number of bytes fits into the free space of the given folder,
+     * and prints that the given measurement is skipped otherwise.
+     *
+     * @param folder       the folder the files are written to
+     * @param bytes        the number of bytes that are to be written
+     * @param measurement  the description of the measurement that would be skipped
+     * @param outputStream the stream to print the message to
+     * @return whether the bytes fit into the free space of the folder
+     */
+    private static boolean hasSpace(File folder, long bytes, String measurement, PrintStream outputStream) {
+        long usable = folder.getUsableSpace();
+
+        // the usable space is 0 in case it cannot be determined, whereas the measurement is tried anyway
+        if (usable == 0 || usable >= bytes) {
+            return true;
+        }
+
+        outputStream.println(StringProcessing.format(
+                "{0}: skipped, since about {1} are needed, whereas only {2} are free within '{3}'.",
+                measurement,
+                CommonFileUtilities.formatSize(bytes),
+                CommonFileUtilities.formatSize(usable),
+                folder.getAbsolutePath()
+        ));
+        return false;
+    }
+
+    /**
+     * This method parses the given list of sizes.
+     *
+     * @param list the sizes separated by commas, each of them optionally ending with 'k', 'm' or 'g'
+     * @return the sizes in bytes
+     * @throws IllegalArgumentException in case a size is malformed or not positive
+     */
+    private static long[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        long[] sizes = new long[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim().toLowerCase(Locale.ROOT);
+            long unit = 1;
+
+            if (part.endsWith("k") || part.endsWith("m") || part.endsWith("g")) {
+                unit = part.endsWith("k") ? 1024L : part.endsWith("m") ? 1024L * 1024 : 1024L * 1024 * 1024;
+                part = part.substring(0, part.length() - 1);
+            }
+
+            try {
+                sizes[i] = Long.parseLong(part) * unit;
+            } catch (NumberFormatException e) {
+                sizes[i] = -1;
+            }
+
+            if (sizes[i] <= 0) {
+                throw new IllegalArgumentException(StringProcessing.format(
+                        "The size '{0}' is not a positive number of bytes.",
+                        parts[i].trim()
+                ));
+            }
+        }
+
+        return sizes;
+    }
+
+    /**
+     * This method parses the given list of thread counts.
+     *
+     * @param list the thread counts separated by commas
+     * @return the thread counts
+     * @throws IllegalArgumentException in case a thread count is malformed or not positive
+     */
+    private static int[] parseThreads(String list) {
+        String[] parts = list.split(",");
+        int[] threads = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                threads[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                threads[i] = -1;
+            }
+
+            if (threads[i] <= 0) {
+                throw new IllegalArgumentException(StringProcessing.format(
+                        "The number of threads '{0}' is not a positive number.",
+                        parts[i].trim()
+                ));
+            }
+        }
+
+        return threads;
+    }
+}
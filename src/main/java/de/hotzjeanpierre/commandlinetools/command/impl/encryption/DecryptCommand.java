@@ -21,12 +21,24 @@ import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
 import de.hotzjeanpierre.commandlinetools.command.parameter.CommonTypes;
 import de.hotzjeanpierre.commandlinetools.command.parameter.Parameter;
 import de.hotzjeanpierre.commandlinetools.command.parameter.ParameterValuesList;
+import de.hotzjeanpierre.commandlinetools.command.utils.ProgressReporter;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.*;
 import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
 
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 @SuppressWarnings("unused")
 public class DecryptCommand extends Command {
@@ -59,6 +71,33 @@ public class DecryptCommand extends Command {
     private static final String PARAMETER_NAME_PASSWORD = "password";
     private static final String PARAMETER_DESCRIPTION_PASSWORD = "The password to use for decrypting the files.";
 
+    private static final String PARAMETER_NAME_MEMBER = "member";
+    private static final String PARAMETER_DESCRIPTION_MEMBER = "The name of a single file to extract from packed archives. If given, only this file is extracted and the archives are neither deleted nor are any other files decrypted.";
+
+    private static final String PARAMETER_NAME_OFFSET = "offset";
+    private static final String PARAMETER_DESCRIPTION_OFFSET = "The position within every decrypted file to start decrypting at. If an offset or a length is given, only said range of every file is decrypted, whereas the encrypted files are neither deleted nor are packed archives or dedup manifests decrypted.";
+
+    private static final String PARAMETER_NAME_LENGTH = "length";
+    private static final String PARAMETER_DESCRIPTION_LENGTH = "The number of bytes to decrypt of every file starting at the offset, or -1 to decrypt up to the end of every file.";
+
+    private static final String PARAMETER_NAME_INCLUDE = "include";
+    private static final String PARAMETER_DESCRIPTION_INCLUDE = "A glob pattern (e.g. 'docs/*.pdf') of the original names of the files to restore through the catalog of the source folder. If given, only the matching files are decrypted, whereas no other file is read and the encrypted files are kept.";
+
+    private static final String PARAMETER_NAME_COMMAND = "command";
+    private static final String PARAMETER_DESCRIPTION_COMMAND = "A shell command to stream the decrypted data into instead of writing any files (e.g. to restore a dump of a database). The files are decrypted one after another into the input of the command, whereas the output of the command is printed to the console and the encrypted files are kept.";
+
+    private static final String PARAMETER_NAME_STDOUT = "stdout";
+    private static final String PARAMETER_DESCRIPTION_STDOUT = "Whether to print the decrypted data of the files one after another instead of writing any files, whereas the encrypted files are kept.";
+
+    private static final String PARAMETER_NAME_RESUME = "resume";
+    private static final String PARAMETER_DESCRIPTION_RESUME = "Whether to resume a decryption into the same output folder that has been interrupted. The files recorded in the journal of the output folder are skipped, whereas the remaining files are indexed after them. Without it, the journal of a previous decryption is discarded.";
+
+    private static final String PARAMETER_NAME_DRYRUN = "dryrun";
+    private static final String PARAMETER_DESCRIPTION_DRYRUN = "Whether to only plan the decryption without decrypting or writing any file: the names of the decrypted files are determined through the catalog of the source folder (or the headers of the files it does not list), names used for more than one file, existing files that would be overwritten and folders that would have to be created are reported, and the duration is estimated through the throughput of the cipher suite on a short sample. This does not support 'member', 'include', 'command' and 'stdout'.";
+
+    private static final String PARAMETER_NAME_PROGRESS = "progress";
+    private static final String PARAMETER_DESCRIPTION_PROGRESS = "The number of seconds between two reports of the progress (the files and bytes decrypted, the throughput and the estimated remaining time), or 0 to not report it. The progress is not reported while the decrypted data is streamed.";
+
     static {
         Command.addSupportedCommand(
                 new DecryptCommand()
@@ -117,6 +156,61 @@ public class DecryptCommand extends Command {
                                 CommonTypes.String,
                                 PARAMETER_DESCRIPTION_PASSWORD,
                                 2
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_MEMBER,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_MEMBER,
+                                ""
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_OFFSET,
+                                CommonTypes.Primitives.Long,
+                                PARAMETER_DESCRIPTION_OFFSET,
+                                0L
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_LENGTH,
+                                CommonTypes.Primitives.Long,
+                                PARAMETER_DESCRIPTION_LENGTH,
+                                -1L
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_INCLUDE,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_INCLUDE,
+                                ""
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_COMMAND,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_COMMAND,
+                                ""
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_STDOUT,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_STDOUT,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_RESUME,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_RESUME,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_PROGRESS,
+                                CommonTypes.Primitives.Integer,
+                                PARAMETER_DESCRIPTION_PROGRESS,
+                                10,
+                                -1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DRYRUN,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_DRYRUN,
+                                false
                         )
                 },
                 true
@@ -133,9 +227,63 @@ public class DecryptCommand extends Command {
         File output = (File) params.getValue(PARAMETER_NAME_OUTPUTPATH);
         FileNamingTemplate format = (FileNamingTemplate) params.getValue(PARAMETER_NAME_FORMAT);
         String password = (String) params.getValue(PARAMETER_NAME_PASSWORD);
+        String member = (String) params.getValue(PARAMETER_NAME_MEMBER);
+        long offset = (long) params.getValue(PARAMETER_NAME_OFFSET);
+        long length = (long) params.getValue(PARAMETER_NAME_LENGTH);
+        String include = (String) params.getValue(PARAMETER_NAME_INCLUDE);
+        String command = (String) params.getValue(PARAMETER_NAME_COMMAND);
+        boolean stdout = (boolean) params.getValue(PARAMETER_NAME_STDOUT);
+        boolean resume = (boolean) params.getValue(PARAMETER_NAME_RESUME);
+        int interval = (int) params.getValue(PARAMETER_NAME_PROGRESS);
+        boolean dryrun = (boolean) params.getValue(PARAMETER_NAME_DRYRUN);
 
         CommandExecutionResult.Builder syso = new CommandExecutionResult.Builder();
 
+        // only a range of every file is to be decrypted, whereas the encrypted files are kept
+        boolean ranged = offset != 0 || length != -1;
+
+        if (offset < 0 || length < -1) {
+            outputStream.println("The offset may not be negative, and the length has to be positive or -1.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (ranged && !member.isEmpty()) {
+            outputStream.println("A range cannot be decrypted from a single member of packed archives.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (!include.isEmpty() && !member.isEmpty()) {
+            outputStream.println("Files are either restored through the catalog or extracted from packed archives, whereas 'include' and 'member' cannot be combined.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if ((!command.isEmpty() || stdout) && (ranged || !member.isEmpty() || !include.isEmpty())) {
+            outputStream.println("Streamed files are decrypted as a whole, whereas 'command' and 'stdout' cannot be combined with a range, 'member' or 'include'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (!command.isEmpty() && stdout) {
+            outputStream.println("The decrypted data is either streamed into a shell command or printed, whereas 'command' and 'stdout' cannot be combined.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (interval < 0) {
+            outputStream.println("The number of seconds between two reports of the progress has to be positive, or 0 to not report it.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (resume && !member.isEmpty()) {
+            outputStream.println("A single member is extracted as a whole, whereas 'resume' cannot be combined with 'member'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+        if (dryrun && (!member.isEmpty() || !include.isEmpty() || !command.isEmpty() || stdout)) {
+            outputStream.println("A dry run plans the decrypted files within the output folder, whereas it cannot be combined with 'member', 'include', 'command' or 'stdout'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
         // create a secret key spec from the given password to use for decryption
         EncryptionService.HashingResult secretkeyresult = EncryptionService.createPrivateKey(password);
 
@@ -145,7 +293,13 @@ public class DecryptCommand extends Command {
                     .build();
         }
 
+        if (!include.isEmpty()) {
+            return syso.setSuccess(restoreFromCatalog(secretkeyresult, src, output, format, include, ranged, offset, length, outputStream))
+                    .build();
+        }
+
         File[] toDecrypt;
+        long listStart = System.nanoTime();
 
         try {
             // determine all the files to decrypt
@@ -162,67 +316,1020 @@ public class DecryptCommand extends Command {
                     .build();
         }
 
-        int index = 0;
+        long listNanos = System.nanoTime() - listStart;
+
+        // check the password against the first file, so a wrong password is rejected
+        // after reading a few bytes and before any file is written or deleted
+        // (unless the first file is being decrypted in place and may thus already be decrypted)
+        if (toDecrypt.length > 0 && !InPlaceEncryptionService.getJournalFile(toDecrypt[0]).exists()) {
+            try {
+                if (!EncryptionService.matchesKey(secretkeyresult.getSecretKey(), toDecrypt[0])) {
+                    outputStream.println(StringProcessing.format(
+                            "The password does not match the file '{0}'. No file has been decrypted.",
+                            toDecrypt[0].getAbsolutePath()
+                    ));
+                    return syso.setSuccess(false)
+                            .build();
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                // the file is malformed, which will be reported as soon as it is decrypted
+            }
+        }
+
+        if (!command.isEmpty() || stdout) {
+            return syso.setSuccess(streamFiles(secretkeyresult, toDecrypt, command, outputStream))
+                    .build();
+        }
+
+        if (dryrun) {
+            return syso.setSuccess(planDecryption(secretkeyresult, toDecrypt, src, output, format, delsrc, ranged, offset, length, resume, outputStream))
+                    .build();
+        }
+
+        // a single member is extracted without a journal, since there is nothing to resume
+        JobJournal journal = null;
+
+        if (member.isEmpty()) {
+            try {
+                journal = JobJournal.open(secretkeyresult.getSecretKey(), output, COMMAND_NAME, resume);
+            } catch (IOException | GeneralSecurityException e) {
+                outputStream.println(StringProcessing.format(
+                        "The journal '{0}' could not be opened (the password might not match it). No file has been decrypted.\n{1}",
+                        JobJournal.getFile(output, COMMAND_NAME).getAbsolutePath(),
+                        e.getMessage()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        int index = (journal != null) ? journal.getNextIndex() : 0;
+        boolean memberFound = false;
+        List<File> deleted = new ArrayList<>();
+
+        // the files deleted before the previous decryption has been interrupted are still listed in the catalog
+        if (journal != null && delsrc && !ranged) {
+            for (JobJournal.Record record : journal.getRecords()) {
+                File f = new File(src, record.getInput());
+                if (!f.exists()) {
+                    deleted.add(f);
+                }
+            }
+        }
+
+        // the output of a file is written behind, while the next file is already being decrypted
+        WriteBehindWriter writer = new WriteBehindWriter();
+        Deque<DecryptedFile> pending = new ArrayDeque<>();
+        ProgressReporter progress = new ProgressReporter(outputStream, interval);
+
+        progress.record(ProgressReporter.Stage.List, listNanos, 0);
+
+        // the lengths are only summed up in case they are reported, since that means another pass over the files
+        if (progress.isActive()) {
+            long total = 0;
+            for (File f : toDecrypt) {
+                total += f.length();
+            }
+            progress.setTotal(toDecrypt.length, total);
+        }
 
         for (File f : toDecrypt) {
-            // read from the file and decrypt it
-            EncryptionService.FileEncryptionResult result = EncryptionService.decryptFile(
-                    secretkeyresult.getSecretKey(), f
-            );
+            // journals belong to files that are being en- or decrypted in place, or to jobs that might be resumed
+            if (InPlaceEncryptionService.isJournal(f) || JobJournal.isJournal(f)) {
+                progress.skipped(f.length());
+                deleteOrphanedJournal(f, outputStream);
+                continue;
+            }
 
-            if (result.isSuccess()) {
-                // build the new files name
-                FileNamingData data = FileNamingData.Builder.build(result, index++);
-                File outFile = new File(output, format.produceFileName(data));
+            // the catalog is kept up to date with the deleted files below, whereas the manifest is kept as it is
+            if (Catalog.isCatalog(f) || SourceManifest.isManifest(f)) {
+                progress.skipped(f.length());
+                continue;
+            }
 
-                // create the files parent directories in case they don't already exist
-                if (!outFile.getParentFile().exists()) {
-                    if (!outFile.getParentFile().mkdirs()) {
-                        outputStream.println(StringProcessing.format(
-                                "Couldn't create folder '{0}'. Will abort execution of command.\nThere might already be files processed by this command.",
-                                outFile.getParentFile()
-                        ));
-                        return syso.setSuccess(false)
-                                .build();
-                    }
+            // volumes of packed archives are only extracted through the index of their archive
+            if (PackArchive.isVolume(f)) {
+                progress.skipped(f.length());
+                continue;
+            }
+
+            // chunks of a dedup store are only restored through the manifests referencing them,
+            // and are kept when the sources are deleted since they may be shared by other files
+            if (DedupStore.isChunk(f)) {
+                progress.skipped(f.length());
+                continue;
+            }
+
+            // ranges are only decrypted from files that are not part of an archive or a store
+            if (ranged && (PackArchive.isArchive(f) || DedupStore.isManifest(f))) {
+                outputStream.println(StringProcessing.format(
+                        "A range cannot be decrypted from file '{0}', since it is a packed archive or a dedup manifest. It has been skipped.",
+                        f.getAbsolutePath()
+                ));
+                progress.skipped(f.length());
+                continue;
+            }
+
+            String name = CommonFileUtilities.extractRelativePath(f, src);
+
+            // the file has been decrypted before the previous decryption has been interrupted,
+            // whereas it might not have been deleted yet
+            if (journal != null && journal.isCompleted(name)) {
+                long sourceLength = f.length();
+
+                if (delsrc && !ranged) {
+                    deleteCompletedSource(secretkeyresult, f, deleted, outputStream);
                 }
 
-                // try to write the (decrypted) data to the file
+                progress.skipped(sourceLength);
+                continue;
+            }
+
+            if (PackArchive.isArchive(f)) {
+                PackArchive archive;
+
+                // the files decrypted before are recorded first, so the archive is recorded after them
+                if (!finishDecryptedFiles(pending, true, deleted, journal, progress, outputStream)) {
+                    finishProgress(progress, writer, syso);
+                    finishJournal(journal, false, outputStream);
+                    return syso.setSuccess(false)
+                            .build();
+                }
+
+                long start = System.nanoTime();
+
                 try {
-                    CommonFileUtilities.writeFile(outFile, result.getData());
-                } catch (IOException e) {
+                    archive = PackArchive.open(f, secretkeyresult.getSecretKey());
+
+                    if (!member.isEmpty()) {
+                        PackArchive.Member toExtract = archive.getMember(member);
+
+                        if (toExtract != null) {
+                            archive.extract(toExtract, resolveOutputFile(output, format, toExtract.getName(), index));
+                            index++;
+                            memberFound = true;
+                        }
+
+                        progress.recordSince(ProgressReporter.Stage.Crypto, start, (toExtract != null) ? toExtract.getLength() : 0);
+                        progress.skipped(f.length());
+                        continue;
+                    }
+
+                    int[] nextIndex = {index};
+                    archive.extractAll(originalName -> resolveOutputFile(output, format, originalName, nextIndex[0]++));
+                    index = nextIndex[0];
+
+                    progress.recordSince(ProgressReporter.Stage.Crypto, start, f.length());
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
                     outputStream.println(StringProcessing.format(
-                            "Couldn't write decrypted data to file '{0}'. Will abort execution of command.\nThere might already be files processed by the command.",
-                            outFile
+                            "Archive '{0}' could not be extracted.\nFollowing error was produced in an attempt to extract said archive:\n{1}\nDid you give the correct password?\nThere might already be files processed by the command.",
+                            f.getAbsolutePath(),
+                            e.getMessage()
                     ));
+                    finishDecryptedFiles(pending, true, deleted, journal, progress, outputStream);
+                    finishProgress(progress, writer, syso);
+                    finishJournal(journal, false, outputStream);
                     return syso.setSuccess(false)
                             .build();
                 }
 
-                // Try deleting the source file in case we are supposed to do so
-                if (delsrc && !f.delete()) {
-                    outputStream.println(StringProcessing.format(
-                            "Couldn't delete file '{0}'. Please try deleting it manually.",
-                            f
-                    ));
+                if (journal != null) {
+                    try {
+                        journal.complete(name, "", index, f.length(), new byte[0]);
+
+                        if (delsrc) {
+                            journal.sync();
+                        }
+                    } catch (IOException e) {
+                        outputStream.println(StringProcessing.format(
+                                "Archive '{0}' has been extracted, but could not be recorded in the journal. Will abort execution of command.\n{1}",
+                                f.getAbsolutePath(),
+                                e.getMessage()
+                        ));
+                        finishProgress(progress, writer, syso);
+                        finishJournal(journal, false, outputStream);
+                        return syso.setSuccess(false)
+                                .build();
+                    }
+                }
+
+                long archiveLength = f.length();
+
+                // Try deleting the archive in case we are supposed to do so
+                if (delsrc) {
+                    long deleteStart = System.nanoTime();
+
+                    for (File volume : archive.getVolumeFiles()) {
+                        if (!volume.delete()) {
+                            outputStream.println(StringProcessing.format(
+                                    "Couldn't delete file '{0}'. Please try deleting it manually.",
+                                    volume
+                            ));
+                        }
+                    }
+                    if (!f.delete()) {
+                        outputStream.println(StringProcessing.format(
+                                "Couldn't delete file '{0}'. Please try deleting it manually.",
+                                f
+                        ));
+                    } else {
+                        deleted.add(f);
+                    }
+
+                    progress.recordSince(ProgressReporter.Stage.Delete, deleteStart, 0);
+                }
+
+                progress.completed(archiveLength);
+                continue;
+            }
+
+            // a single member is only extracted from archives
+            if (!member.isEmpty()) {
+                progress.skipped(f.length());
+                continue;
+            }
+
+            final int fileIndex = index;
+            File[] outFile = new File[1];
+            long sourceLength = f.length();
+
+            OutputFileResolver resolver = originalName -> outFile[0] = resolveOutputFile(output, format, originalName, fileIndex);
+
+            // files encrypted in place are decrypted in place as well in case they are not to be kept
+            boolean inplace = delsrc && !ranged && (InPlaceEncryptionService.isInPlaceFile(f)
+                    || InPlaceEncryptionService.getJournalFile(f).exists());
+
+            // read from the file and stream the decrypted data into the output file
+            // whose name is determined as soon as the original name has been decrypted
+            // (reading the file is interleaved with decrypting it, whereas it is part of this stage)
+            long start = System.nanoTime();
+            EncryptionService.FileEncryptionResult result;
+            if (ranged) {
+                result = EncryptionService.decryptFileRange(secretkeyresult.getSecretKey(), f, resolver, offset, length);
+            } else if (inplace) {
+                result = InPlaceEncryptionService.decryptFileInPlace(secretkeyresult.getSecretKey(), f, resolver, ForkJoinPool.commonPool());
+            } else if (DedupStore.isManifest(f)) {
+                result = DedupStore.restoreFile(secretkeyresult.getSecretKey(), f, resolver);
+            } else {
+                result = EncryptionService.decryptFile(secretkeyresult.getSecretKey(), f, resolver, writer);
+            }
+
+            progress.recordSince(ProgressReporter.Stage.Crypto, start, sourceLength);
+
+            if (result.isSuccess()) {
+                index++;
+
+                // the source file is only deleted as soon as its output has been written
+                pending.add(new DecryptedFile(
+                        f,
+                        name,
+                        (outFile[0] != null) ? CommonFileUtilities.extractRelativePath(outFile[0], output) : "",
+                        index,
+                        sourceLength,
+                        delsrc && !ranged,
+                        inplace,
+                        result
+                ));
+                if (!finishDecryptedFiles(pending, false, deleted, journal, progress, outputStream)) {
+                    finishProgress(progress, writer, syso);
+                    finishJournal(journal, false, outputStream);
+                    return syso.setSuccess(false)
+                            .build();
                 }
             } else {
                 // if there was an error we'll show the message and abort the command
                 outputStream.println(StringProcessing.format(
-                        "File '{0}' could not be decrypted.\nFollowing error was produced in an attempt to encrypt said file:\n{1}\nDid you give the correct password?",
+                        "File '{0}' could not be decrypted.\nFollowing error was produced in an attempt to decrypt said file:\n{1}\nDid you give the correct password?\nThere might already be files processed by the command.",
                         f.getAbsolutePath(),
                         result.getErrorMessage()
                 ));
+                finishDecryptedFiles(pending, true, deleted, journal, progress, outputStream);
+                finishProgress(progress, writer, syso);
+                finishJournal(journal, false, outputStream);
                 return syso.setSuccess(false)
                         .build();
             }
         }
 
-        if(delsrc) {
+        boolean written = finishDecryptedFiles(pending, true, deleted, journal, progress, outputStream);
+        finishProgress(progress, writer, syso);
+
+        if (!written) {
+            finishJournal(journal, false, outputStream);
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (!member.isEmpty()) {
+            if (!memberFound) {
+                outputStream.println(StringProcessing.format(
+                        "None of the archives contains the file '{0}'.",
+                        member
+                ));
+            }
+            return syso.setSuccess(memberFound)
+                    .build();
+        }
+
+        if(delsrc && !ranged) {
+            // the catalog is deleted along with the last file it lists, so the folder can be deleted as well
+            if (!deleted.isEmpty() && Catalog.getFile(src).exists()) {
+                try {
+                    Catalog catalog = Catalog.open(secretkeyresult.getSecretKey(), src);
+                    for (File f : deleted) {
+                        catalog.remove(f);
+                    }
+                    catalog.save();
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    outputStream.println(StringProcessing.format(
+                            "The catalog '{0}' could not be updated:\n{1}",
+                            Catalog.getFile(src).getAbsolutePath(),
+                            e.getMessage()
+                    ));
+                }
+            }
+
             EmptyFolderDeleter.deleteIfEmpty(src);
         }
 
+        finishJournal(journal, true, outputStream);
+
         return syso.setSuccess(true)
                 .build();
     }
+
+    /**
+     * This method plans the decryption of the given files without decrypting or writing any of them: the
+     * original names are taken from the catalog of the source folder, whereas only the headers of the files
+     * it does not list (and the indices of archives) are read. The name of every decrypted file is determined
+     * the same way it would be by the decryption, and the plan is printed along with the estimated duration.
+     *
+     * @param secretkeyresult the secret key to read the catalog, the journal and the headers with
+     * @param toDecrypt       the files to decrypt
+     * @param src             the folder of the files
+     * @param output          the folder the files would be decrypted into
+     * @param format          the template to use for the names of the decrypted files
+     * @param delsrc          whether the encrypted files would be deleted
+     * @param ranged          whether only a range of every file would be decrypted
+     * @param offset          the offset of the range
+     * @param length          the length of the range, or -1
+     * @param resume          whether the decryption would resume a previous one
+     * @param outputStream    the stream to print the plan to
+     * @return whether the decryption would not run into any problems
+     */
+    private static boolean planDecryption(
+            EncryptionService.HashingResult secretkeyresult,
+            File[] toDecrypt,
+            File src,
+            File output,
+            FileNamingTemplate format,
+            boolean delsrc,
+            boolean ranged,
+            long offset,
+            long length,
+            boolean resume,
+            PrintStream outputStream
+    ) {
+        SecretKeySpec key = secretkeyresult.getSecretKey();
+        Map<File, List<Catalog.Entry>> cataloged = new HashMap<>();
+        JobJournal journal = null;
+
+        try {
+            if (Catalog.getFile(src).exists()) {
+                Catalog catalog = Catalog.open(key, src);
+                for (Catalog.Entry entry : catalog.getEntries()) {
+                    cataloged.computeIfAbsent(catalog.getOutputFile(entry).getAbsoluteFile(), k -> new ArrayList<>()).add(entry);
+                }
+            }
+
+            // the journal is only opened in case it exists, since opening it would create it otherwise
+            if (resume && JobJournal.getFile(output, COMMAND_NAME).exists()) {
+                journal = JobJournal.open(key, output, COMMAND_NAME, true);
+                journal.close();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            outputStream.println(StringProcessing.format(
+                    "The catalog of '{0}' or the journal within '{1}' could not be opened (the password might not match it).\n{2}",
+                    src.getAbsolutePath(),
+                    output.getAbsolutePath(),
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        OutputPlan plan = new OutputPlan();
+        CipherSuite suite = null;
+        int index = (journal != null) ? journal.getNextIndex() : 0;
+
+        for (File f : toDecrypt) {
+            List<Catalog.Entry> entries = cataloged.get(f.getAbsoluteFile());
+
+            // the files listed in the catalog are neither journals nor volumes nor chunks, whereas their headers are not read
+            if (entries == null && (InPlaceEncryptionService.isJournal(f) || JobJournal.isJournal(f) || Catalog.isCatalog(f)
+                    || SourceManifest.isManifest(f) || PackArchive.isVolume(f) || DedupStore.isChunk(f))) {
+                continue;
+            }
+
+            String name = CommonFileUtilities.extractRelativePath(f, src);
+
+            if ((journal != null && journal.isCompleted(name)) || (ranged && (PackArchive.isArchive(f) || DedupStore.isManifest(f)))) {
+                plan.skip(f.length());
+                continue;
+            }
+
+            // the original names (and lengths) of the files are read from the catalog, or from their headers
+            List<String> names = new ArrayList<>();
+            List<Long> lengths = new ArrayList<>();
+
+            try {
+                if (entries != null) {
+                    for (Catalog.Entry entry : entries) {
+                        names.add(entry.getName());
+                        lengths.add(entry.getLength());
+                    }
+                } else if (PackArchive.isArchive(f)) {
+                    for (PackArchive.Member member : PackArchive.open(f, key).getMembers()) {
+                        names.add(member.getName());
+                        lengths.add(member.getLength());
+                    }
+                } else {
+                    EncryptedFileHeader header = EncryptedFileHeader.read(f, key);
+                    names.add(header.getOriginalName());
+                    lengths.add(header.getPlaintextLength());
+
+                    if (suite == null) {
+                        suite = header.getCipherSuite();
+                    }
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                plan.fail(name, e.getMessage());
+                continue;
+            }
+
+            // files encrypted in place are decrypted in place, whereas their outputs replace them
+            boolean inplace = delsrc && !ranged && InPlaceEncryptionService.isInPlaceFile(f);
+
+            for (int i = 0; i < names.size(); i++) {
+                long decrypted = ranged
+                        ? Math.max(0, Math.min(lengths.get(i) - offset, (length == -1) ? Long.MAX_VALUE : length))
+                        : lengths.get(i);
+
+                plan.add(
+                        names.get(i),
+                        new File(output, format.produceFileName(FileNamingData.Builder.build(names.get(i), index++))),
+                        decrypted,
+                        inplace
+                );
+            }
+        }
+
+        double throughput;
+
+        try {
+            throughput = OutputPlan.calibrate((suite != null) ? suite : CipherSuite.getFastest(), Runtime.getRuntime().availableProcessors());
+        } catch (GeneralSecurityException e) {
+            outputStream.println(e.getMessage());
+            return false;
+        }
+
+        plan.print(outputStream, "decrypted", output, throughput);
+        return !plan.hasProblems();
+    }
+
+    /**
+     * This method waits for the output of the decrypted files to be written, stops reporting the progress
+     * and adds the totals of its stages to the given result.
+     *
+     * @param progress the reporter of the progress
+     * @param writer   the writer the output of the decrypted files has been written through
+     * @param syso     the builder of the result of the command
+     */
+    private static void finishProgress(ProgressReporter progress, WriteBehindWriter writer, CommandExecutionResult.Builder syso) {
+        writer.close();
+
+        progress.record(ProgressReporter.Stage.Write, writer.getWriteNanos(), writer.getWrittenBytes());
+        progress.close();
+        progress.addStageTotals(syso);
+    }
+
+    /**
+     * This method deletes the source of a file that has been decrypted before the previous decryption
+     * has been interrupted, along with the volumes of a packed archive.
+     *
+     * @param secretkeyresult the secret key to open a packed archive with
+     * @param f               the source that has been decrypted
+     * @param deleted         the list to add the deleted source to
+     * @param outputStream    the stream to print messages to
+     */
+    private static void deleteCompletedSource(
+            EncryptionService.HashingResult secretkeyresult,
+            File f,
+            List<File> deleted,
+            PrintStream outputStream
+    ) {
+        if (PackArchive.isArchive(f)) {
+            try {
+                for (File volume : PackArchive.open(f, secretkeyresult.getSecretKey()).getVolumeFiles()) {
+                    if (volume.exists() && !volume.delete()) {
+                        outputStream.println(StringProcessing.format(
+                                "Couldn't delete file '{0}'. Please try deleting it manually.",
+                                volume
+                        ));
+                    }
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                outputStream.println(StringProcessing.format(
+                        "The volumes of archive '{0}' could not be determined, whereas they have to be deleted manually:\n{1}",
+                        f.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                return;
+            }
+        }
+
+        if (!f.delete()) {
+            outputStream.println(StringProcessing.format(
+                    "Couldn't delete file '{0}'. Please try deleting it manually.",
+                    f
+            ));
+        } else {
+            deleted.add(f);
+        }
+    }
+
+    /**
+     * This method deletes the given file, in case it is the journal of a file that has been decrypted in place
+     * completely (see {@link InPlaceEncryptionService#isOrphanedJournal(File)}).
+     *
+     * @param f            the file to delete
+     * @param outputStream the stream to print messages to
+     */
+    private static void deleteOrphanedJournal(File f, PrintStream outputStream) {
+        if (InPlaceEncryptionService.isOrphanedJournal(f) && !f.delete()) {
+            outputStream.println(StringProcessing.format(
+                    "Couldn't delete file '{0}'. Please try deleting it manually.",
+                    f
+            ));
+        }
+    }
+
+    /**
+     * This method finishes the given journal: it is deleted in case the job has been completed,
+     * whereas it is kept in order to resume the job otherwise.
+     *
+     * @param journal      the journal to finish, or {@code null}
+     * @param completed    whether the job has been completed
+     * @param outputStream the stream to print messages to
+     */
+    private static void finishJournal(JobJournal journal, boolean completed, PrintStream outputStream) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            if (completed) {
+                journal.delete();
+            } else {
+                journal.close();
+                outputStream.println(StringProcessing.format(
+                        "The files that have been decrypted are recorded in '{0}'. Use the parameter 'resume' to decrypt the remaining files.",
+                        journal.getFile().getAbsolutePath()
+                ));
+            }
+        } catch (IOException e) {
+            outputStream.println(StringProcessing.format(
+                    "The journal '{0}' could not be finished:\n{1}",
+                    journal.getFile().getAbsolutePath(),
+                    e.getMessage()
+            ));
+        }
+    }
+
+    /**
+     * This method finishes the decrypted files whose output has been written, in the order they have been
+     * decrypted in: they are recorded in the journal, and their sources are deleted afterwards in case we are
+     * supposed to do so. In case the output of a file could not be written (or recorded), this is reported and
+     * no further file is finished, whereas their sources are kept.
+     *
+     * @param pending      the decrypted files that have not been finished yet
+     * @param wait         whether to wait for the output of every file to be written
+     * @param deleted      the list to add the deleted sources to
+     * @param journal      the journal to record the finished files in, or {@code null}
+     * @param progress     the reporter to count the finished files in
+     * @param outputStream the stream to print messages to
+     * @return whether the output of every finished file has been written successfully
+     */
+    private static boolean finishDecryptedFiles(
+            Deque<DecryptedFile> pending,
+            boolean wait,
+            List<File> deleted,
+            JobJournal journal,
+            ProgressReporter progress,
+            PrintStream outputStream
+    ) {
+        while (!pending.isEmpty() && (wait || pending.peek().result.isWritten())) {
+            DecryptedFile decrypted = pending.poll();
+
+            try {
+                decrypted.result.awaitWritten();
+
+                if (journal != null) {
+                    journal.complete(
+                            decrypted.name,
+                            decrypted.output,
+                            decrypted.nextIndex,
+                            decrypted.length,
+                            new byte[0]
+                    );
+
+                    // the record is only forced to the disk in case the source is gone afterwards (deleted or moved)
+                    if (decrypted.deleteSource || decrypted.moved) {
+                        journal.sync();
+                    }
+                }
+            } catch (IOException e) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be decrypted.\nFollowing error was produced in an attempt to write (or record) the decrypted file:\n{1}\nThere might already be files processed by the command.",
+                        decrypted.source.getAbsolutePath(),
+                        e.getMessage()
+                ));
+
+                // the remaining files are still written, but their sources are kept
+                for (DecryptedFile remaining : pending) {
+                    try {
+                        remaining.result.awaitWritten();
+                    } catch (IOException ignored) {
+                        // the output has been deleted already
+                    }
+                }
+                pending.clear();
+                return false;
+            }
+
+            // Try deleting the source file in case we are supposed to do so (unless it has been moved)
+            long start = System.nanoTime();
+
+            if (decrypted.deleteSource && !decrypted.moved && !decrypted.source.delete()) {
+                outputStream.println(StringProcessing.format(
+                        "Couldn't delete file '{0}'. Please try deleting it manually.",
+                        decrypted.source
+                ));
+            } else if (decrypted.deleteSource) {
+                deleted.add(decrypted.source);
+            }
+
+            if (decrypted.deleteSource && !decrypted.moved) {
+                progress.recordSince(ProgressReporter.Stage.Delete, start, 0);
+            }
+            progress.completed(decrypted.length);
+        }
+
+        return true;
+    }
+
+    /**
+     * This method decrypts the given files one after another into a single stream, which is either
+     * the input of the given shell command or (in case no command is given) the given output stream.
+     * Packed archives and dedup manifests are skipped, and the encrypted files are kept.
+     *
+     * @param secretkeyresult the secret key to use for decryption
+     * @param toDecrypt       the files to decrypt
+     * @param command         the shell command to stream the decrypted data into, or an empty string
+     * @param outputStream    the stream to print the decrypted data (if no command is given) and messages to
+     * @return whether every file has been decrypted successfully and the command succeeded
+     */
+    private static boolean streamFiles(
+            EncryptionService.HashingResult secretkeyresult,
+            File[] toDecrypt,
+            String command,
+            PrintStream outputStream
+    ) {
+        Process process = null;
+        OutputStream target = outputStream;
+
+        if (!command.isEmpty()) {
+            try {
+                process = Command.parseShellCommand(command).start(ProcessBuilder.Redirect.PIPE, ProcessBuilder.Redirect.INHERIT);
+                target = new BufferedOutputStream(process.getOutputStream(), EncryptionService.STREAM_CHUNK_SIZE);
+            } catch (IOException e) {
+                outputStream.println(StringProcessing.format(
+                        "The shell command '{0}' could not be started:\n{1}",
+                        command,
+                        e.getMessage()
+                ));
+                return false;
+            }
+        }
+
+        boolean success = true;
+        int decrypted = 0;
+
+        for (File f : toDecrypt) {
+            // only files holding the encrypted data on their own are streamed
+            if (InPlaceEncryptionService.isJournal(f) || Catalog.isCatalog(f) || SourceManifest.isManifest(f)
+                    || JobJournal.isJournal(f) || PackArchive.isVolume(f) || DedupStore.isChunk(f)) {
+                continue;
+            }
+            if (PackArchive.isArchive(f) || DedupStore.isManifest(f)) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' cannot be streamed, since it is a packed archive or a dedup manifest. It has been skipped.",
+                        f.getAbsolutePath()
+                ));
+                continue;
+            }
+
+            EncryptionService.FileEncryptionResult result = StreamEncryptionService.decryptFile(
+                    secretkeyresult.getSecretKey(), f, target, ForkJoinPool.commonPool()
+            );
+
+            if (!result.isSuccess()) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be decrypted.\nFollowing error was produced in an attempt to decrypt said file:\n{1}\nThe data decrypted before the error has already been streamed.",
+                        f.getAbsolutePath(),
+                        result.getErrorMessage()
+                ));
+                success = false;
+                break;
+            }
+
+            decrypted++;
+        }
+
+        if (process == null) {
+            outputStream.flush();
+            return success;
+        }
+
+        try {
+            // closing the input of the command tells it that the data is complete
+            if (success) {
+                target.close();
+            } else {
+                process.destroy();
+            }
+
+            int exit = process.waitFor();
+            if (success && exit != 0) {
+                outputStream.println(StringProcessing.format(
+                        "The shell command '{0}' exited with code {1}.",
+                        command,
+                        exit
+                ));
+                return false;
+            }
+        } catch (IOException | InterruptedException e) {
+            process.destroy();
+            outputStream.println(StringProcessing.format(
+                    "The decrypted data could not be streamed into the shell command '{0}':\n{1}",
+                    command,
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        if (success) {
+            outputStream.println(StringProcessing.format(
+                    "Streamed {0} decrypted files into the shell command '{1}'.",
+                    decrypted,
+                    command
+            ));
+        }
+        return success;
+    }
+
+    /**
+     * This method restores the files whose original names match the given pattern through the catalog
+     * of the source folder. Every file is decrypted from the encrypted file the catalog lists it in,
+     * whereas members of packed archives are extracted on their own. No encrypted file is deleted.
+     *
+     * @param secretkeyresult the secret key to use for decryption
+     * @param src             the folder containing the catalog
+     * @param output          the folder to save the decrypted files to
+     * @param format          the template to use for the names of the decrypted files
+     * @param include         the glob pattern of the original names of the files to restore
+     * @param ranged          whether only a range of every file is to be decrypted
+     * @param offset          the position within every file to start decrypting at
+     * @param length          the number of bytes to decrypt of every file, or -1
+     * @param outputStream    the stream to print messages to
+     * @return whether any file has been restored and no error occurred
+     */
+    private static boolean restoreFromCatalog(
+            EncryptionService.HashingResult secretkeyresult,
+            File src,
+            File output,
+            FileNamingTemplate format,
+            String include,
+            boolean ranged,
+            long offset,
+            long length,
+            PrintStream outputStream
+    ) {
+        if (!Catalog.getFile(src).exists()) {
+            outputStream.println(StringProcessing.format(
+                    "The folder '{0}' does not contain a catalog. Files can only be restored selectively from folders encrypted with the parameter 'catalog'.",
+                    src.getAbsolutePath()
+            ));
+            return false;
+        }
+
+        List<Catalog.Entry> entries;
+        Catalog catalog;
+
+        try {
+            catalog = Catalog.open(secretkeyresult.getSecretKey(), src);
+            entries = catalog.find(include);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            outputStream.println(StringProcessing.format(
+                    "The catalog '{0}' could not be read.\nFollowing error was produced in an attempt to read the catalog:\n{1}\nDid you give the correct password?",
+                    Catalog.getFile(src).getAbsolutePath(),
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        // archives are only opened once, regardless of the number of members to extract from them
+        Map<File, PackArchive> archives = new HashMap<>();
+        int index = 0;
+
+        for (Catalog.Entry entry : entries) {
+            File f = catalog.getOutputFile(entry);
+            File outFile;
+
+            try {
+                outFile = resolveOutputFile(output, format, entry.getName(), index);
+
+                if (PackArchive.isArchive(f) || DedupStore.isManifest(f)) {
+                    if (ranged) {
+                        outputStream.println(StringProcessing.format(
+                                "A range cannot be decrypted from file '{0}', since it is packed into an archive or stored in a dedup store. It has been skipped.",
+                                entry.getName()
+                        ));
+                        continue;
+                    }
+
+                    if (PackArchive.isArchive(f)) {
+                        PackArchive archive = archives.get(f);
+                        if (archive == null) {
+                            archive = PackArchive.open(f, secretkeyresult.getSecretKey());
+                            archives.put(f, archive);
+                        }
+
+                        PackArchive.Member toExtract = archive.getMember(entry.getName());
+                        if (toExtract == null) {
+                            throw new IOException("The archive does not contain the file, so the catalog is outdated.");
+                        }
+                        archive.extract(toExtract, outFile);
+                        index++;
+                        continue;
+                    }
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be restored from '{1}'.\nFollowing error was produced in an attempt to restore said file:\n{2}",
+                        entry.getName(),
+                        f.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                return false;
+            }
+
+            // the encrypted file has to still contain the file listed in the catalog
+            OutputFileResolver resolver = originalName -> {
+                if (!originalName.equals(entry.getName())) {
+                    throw new IOException("The encrypted file contains another file, so the catalog is outdated.");
+                }
+                return outFile;
+            };
+
+            EncryptionService.FileEncryptionResult result;
+            if (ranged) {
+                result = EncryptionService.decryptFileRange(secretkeyresult.getSecretKey(), f, resolver, offset, length);
+            } else if (DedupStore.isManifest(f)) {
+                result = DedupStore.restoreFile(secretkeyresult.getSecretKey(), f, resolver);
+            } else {
+                result = EncryptionService.decryptFile(secretkeyresult.getSecretKey(), f, resolver);
+            }
+
+            if (!result.isSuccess()) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be restored from '{1}'.\nFollowing error was produced in an attempt to restore said file:\n{2}",
+                        entry.getName(),
+                        f.getAbsolutePath(),
+                        result.getErrorMessage()
+                ));
+                return false;
+            }
+
+            index++;
+        }
+
+        outputStream.println(StringProcessing.format(
+                "Restored {0} of {1} matching files.",
+                index,
+                entries.size()
+        ));
+
+        return !entries.isEmpty();
+    }
+
+    /**
+     * This method determines the file to write the decrypted data of the original
+     * file with given name to, and creates its parent directories if necessary.
+     *
+     * @param output       the folder to save the decrypted files to
+     * @param format       the template to use for the name of the decrypted file
+     * @param originalName the name of the original file
+     * @param index        the index of the decrypted file
+     * @return the file to write the decrypted data to
+     * @throws IOException in case the parent directories could not be created
+     */
+    private static File resolveOutputFile(File output, FileNamingTemplate format, String originalName, int index)
+            throws IOException {
+        // build the new files name
+        FileNamingData data = FileNamingData.Builder.build(originalName, index);
+        File outFile = new File(output, format.produceFileName(data));
+
+        // create the files parent directories in case they don't already exist
+        if (!outFile.getParentFile().exists()) {
+            if (!outFile.getParentFile().mkdirs()) {
+                throw new IOException(StringProcessing.format(
+                        "Couldn't create folder '{0}'.",
+                        outFile.getParentFile()
+                ));
+            }
+        }
+
+        return outFile;
+    }
+
+    /**
+     * A file that has been decrypted, whose output might still be being written.
+     */
+    private static class DecryptedFile {
+
+        /**
+         * The file that has been decrypted.
+         */
+        private final File source;
+        /**
+         * The name of the file relative to the source folder.
+         */
+        private final String name;
+        /**
+         * The path of the decrypted file relative to the output folder, or an empty string in case it is unknown.
+         */
+        private final String output;
+        /**
+         * The index following the index of the decrypted file.
+         */
+        private final int nextIndex;
+        /**
+         * The length of the file that has been decrypted.
+         */
+        private final long length;
+        /**
+         * Whether the source is to be deleted as soon as the output has been written.
+         */
+        private final boolean deleteSource;
+        /**
+         * Whether the source has been decrypted in place and thus moved.
+         */
+        private final boolean moved;
+        /**
+         * The result of the decryption.
+         */
+        private final EncryptionService.FileEncryptionResult result;
+
+        /**
+         * Creates a DecryptedFile with the given values.
+         *
+         * @param source       the file that has been decrypted
+         * @param name         the name of the file relative to the source folder
+         * @param output       the path of the decrypted file relative to the output folder, or an empty string
+         * @param nextIndex    the index following the index of the decrypted file
+         * @param length       the length of the file that has been decrypted
+         * @param deleteSource whether the source is to be deleted as soon as the output has been written
+         * @param moved        whether the source has been decrypted in place and thus moved
+         * @param result       the result of the decryption
+         */
+        private DecryptedFile(
+                File source,
+                String name,
+                String output,
+                int nextIndex,
+                long length,
+                boolean deleteSource,
+                boolean moved,
+                EncryptionService.FileEncryptionResult result
+        ) {
+            this.source = source;
+            this.name = name;
+            this.output = output;
+            this.nextIndex = nextIndex;
+            this.length = length;
+            this.deleteSource = deleteSource;
+            this.moved = moved;
+            this.result = result;
+        }
+    }
 }
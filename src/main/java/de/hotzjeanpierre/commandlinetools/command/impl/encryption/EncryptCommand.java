@@ -21,12 +21,30 @@ import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
 import de.hotzjeanpierre.commandlinetools.command.parameter.CommonTypes;
 import de.hotzjeanpierre.commandlinetools.command.parameter.Parameter;
 import de.hotzjeanpierre.commandlinetools.command.parameter.ParameterValuesList;
+import de.hotzjeanpierre.commandlinetools.command.utils.ProgressReporter;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.*;
 import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.stream.CountingInputStream;
 
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 @SuppressWarnings("unused")
 public class EncryptCommand extends Command {
@@ -59,6 +77,58 @@ public class EncryptCommand extends Command {
     private static final String PARAMETER_NAME_PASSWORD = "password";
     private static final String PARAMETER_DESCRIPTION_PASSWORD = "The password to use for encrypting the files.";
 
+    private static final String PARAMETER_NAME_COMPRESS = "compress";
+    private static final String PARAMETER_DESCRIPTION_COMPRESS = "Whether to compress the files before encrypting them. Files that are already compressed (e.g. images or archives) are detected and stored as they are. Packed archives are not compressed.";
+
+    private static final String PARAMETER_NAME_PACK = "pack";
+    private static final String PARAMETER_DESCRIPTION_PACK = "Whether to pack all the files into a single archive (named by the format) instead of encrypting every file on its own. The segments of the archive are encrypted on the given number of threads, whereas the files are counted towards the progress once the archive has been written. This does not support 'resume'.";
+
+    private static final String PARAMETER_NAME_DEDUP = "dedup";
+    private static final String PARAMETER_DESCRIPTION_DEDUP = "Whether to store the content of the files as encrypted chunks within the folder 'chunks' of the output folder, so identical content is only stored once. Every encrypted file will then only be a manifest referencing its chunks.";
+
+    private static final String PARAMETER_NAME_DELTA = "delta";
+    private static final String PARAMETER_DESCRIPTION_DELTA = "Whether to split the files into content-defined chunks (found through a rolling hash) instead of chunks of a fixed size. Implies 'dedup'. Chunks keep their boundaries when data is inserted into or removed from a file, so encrypting a changed version of a big file into the same output folder again only encrypts and writes the chunks that have changed.";
+
+    private static final String PARAMETER_NAME_CIPHER = "cipher";
+    private static final String PARAMETER_DESCRIPTION_CIPHER = "The cipher suite to encrypt the files with (aes-gcm, aes-ctr or chacha20-poly1305). 'auto' measures the throughput of every suite on this machine and uses the fastest one.";
+    private static final String CIPHER_AUTO = "auto";
+
+    private static final String PARAMETER_NAME_INPLACE = "inplace";
+    private static final String PARAMETER_DESCRIPTION_INPLACE = "Whether to encrypt the files in place and move them into the output folder afterwards, so no second copy of them is written. This requires 'delsrc' and an output folder on the same volume as the files, and does not support 'compress', 'pack' and 'dedup'. An interrupted encryption is resumed by running the command again.";
+
+    private static final String PARAMETER_NAME_CATALOG = "catalog";
+    private static final String PARAMETER_DESCRIPTION_CATALOG = "Whether to keep an encrypted catalog of the original names, lengths and SHA-256 hashes of the files within the output folder, so single files can later be restored through the 'include'-parameter of the 'decrypt'-command. Every file is hashed for it, and the catalog has to be encrypted with the same password as the files encrypted into the same folder before.";
+
+    private static final String PARAMETER_NAME_COMMAND = "command";
+    private static final String PARAMETER_DESCRIPTION_COMMAND = "A shell command whose output is encrypted instead of any files. The output is streamed into a single encrypted file (named by the format), so it is never staged within a plaintext file. The source then only determines the name the output is decrypted to, and does not have to exist. This does not support 'compress', 'pack', 'dedup' and 'inplace'.";
+
+    private static final String PARAMETER_NAME_THREADS = "threads";
+    private static final String PARAMETER_DESCRIPTION_THREADS = "The number of threads to encrypt the files (and their segments) on. The files are named in the order they are found in regardless of it.";
+
+    private static final String PARAMETER_NAME_RESUME = "resume";
+    private static final String PARAMETER_DESCRIPTION_RESUME = "Whether to resume an encryption into the same output folder that has been interrupted or has not encrypted every file. The files recorded in the journal of the output folder are skipped, whereas the remaining files are indexed after them. Without it, the journal of a previous encryption is discarded. This does not support 'pack'.";
+
+    private static final String PARAMETER_NAME_INCREMENTAL = "incremental";
+    private static final String PARAMETER_DESCRIPTION_INCREMENTAL = "Whether to keep a manifest of the length and the time of the last modification of every file within the output folder, and to only encrypt the files that are new or have changed since the previous incremental encryption into the same folder. A changed file replaces its previous encrypted file, whereas new files are indexed after the files encrypted before. This requires 'delsrc' to be false and does not support 'pack' and 'command'.";
+
+    private static final String PARAMETER_NAME_CHECKSUM = "checksum";
+    private static final String PARAMETER_DESCRIPTION_CHECKSUM = "Whether to record the SHA-256 hashes of the files within the manifest of an incremental encryption as well, so a file whose length or time of modification has changed while its content has not (e.g. since it has been copied) is not encrypted again.";
+
+    private static final String PARAMETER_NAME_DELETIONS = "deletions";
+    private static final String PARAMETER_DESCRIPTION_DELETIONS = "Whether to record the files that have been deleted from the source folder since the previous incremental encryption within its manifest. Their encrypted files are kept, so they can still be restored.";
+
+    private static final String PARAMETER_NAME_DRYRUN = "dryrun";
+    private static final String PARAMETER_DESCRIPTION_DRYRUN = "Whether to only plan the encryption without reading or writing any file: the names of the encrypted files are determined, names used for more than one file, existing files that would be overwritten and folders that would have to be created are reported, and the duration is estimated through the throughput of the cipher suite on a short sample. This does not support 'pack' and 'command'.";
+
+    private static final String PARAMETER_NAME_PROGRESS = "progress";
+    private static final String PARAMETER_DESCRIPTION_PROGRESS = "The number of seconds between two reports of the progress (the files and bytes encrypted, the throughput and the estimated remaining time), or 0 to not report it.";
+
+    /**
+     * The name of the temporary files the files are encrypted into before they are named;
+     * {0} is a token unique to an encryption, and {1} the sequence number of the file.
+     */
+    private static final String TEMPORARY_FILE_NAME = ".encrypt-{0}-{1}.part";
+
     static {
         Command.addSupportedCommand(
                 new EncryptCommand()
@@ -117,6 +187,98 @@ public class EncryptCommand extends Command {
                                 CommonTypes.String,
                                 PARAMETER_DESCRIPTION_PASSWORD,
                                 2
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_COMPRESS,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_COMPRESS,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_PACK,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_PACK,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DEDUP,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_DEDUP,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DELTA,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_DELTA,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_CIPHER,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_CIPHER,
+                                CIPHER_AUTO
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_INPLACE,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_INPLACE,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_CATALOG,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_CATALOG,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_COMMAND,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_COMMAND,
+                                ""
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_THREADS,
+                                CommonTypes.Primitives.Integer,
+                                PARAMETER_DESCRIPTION_THREADS,
+                                Runtime.getRuntime().availableProcessors(),
+                                -1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_RESUME,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_RESUME,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_INCREMENTAL,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_INCREMENTAL,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_CHECKSUM,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_CHECKSUM,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DELETIONS,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_DELETIONS,
+                                false
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_PROGRESS,
+                                CommonTypes.Primitives.Integer,
+                                PARAMETER_DESCRIPTION_PROGRESS,
+                                10,
+                                -1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_DRYRUN,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_DRYRUN,
+                                false
                         )
                 },
                 true
@@ -133,6 +295,21 @@ public class EncryptCommand extends Command {
         File output = (File) params.getValue(PARAMETER_NAME_OUTPUTPATH);
         FileNamingTemplate format = (FileNamingTemplate) params.getValue(PARAMETER_NAME_FORMAT);
         String password = (String) params.getValue(PARAMETER_NAME_PASSWORD);
+        boolean compress = (boolean) params.getValue(PARAMETER_NAME_COMPRESS);
+        boolean pack = (boolean) params.getValue(PARAMETER_NAME_PACK);
+        boolean delta = (boolean) params.getValue(PARAMETER_NAME_DELTA);
+        boolean dedup = (boolean) params.getValue(PARAMETER_NAME_DEDUP) || delta;
+        String cipher = (String) params.getValue(PARAMETER_NAME_CIPHER);
+        boolean inplace = (boolean) params.getValue(PARAMETER_NAME_INPLACE);
+        boolean catalog = (boolean) params.getValue(PARAMETER_NAME_CATALOG);
+        String command = (String) params.getValue(PARAMETER_NAME_COMMAND);
+        int threads = (int) params.getValue(PARAMETER_NAME_THREADS);
+        boolean resume = (boolean) params.getValue(PARAMETER_NAME_RESUME);
+        boolean incremental = (boolean) params.getValue(PARAMETER_NAME_INCREMENTAL);
+        boolean checksum = (boolean) params.getValue(PARAMETER_NAME_CHECKSUM);
+        boolean deletions = (boolean) params.getValue(PARAMETER_NAME_DELETIONS);
+        int interval = (int) params.getValue(PARAMETER_NAME_PROGRESS);
+        boolean dryrun = (boolean) params.getValue(PARAMETER_NAME_DRYRUN);
 
         CommandExecutionResult.Builder syso = new CommandExecutionResult.Builder();
 
@@ -145,7 +322,96 @@ public class EncryptCommand extends Command {
                     .build();
         }
 
+        if (inplace && (!delsrc || compress || pack || dedup)) {
+            outputStream.println("Encrypting the files in place replaces them, whereas it requires 'delsrc' and cannot be combined with 'compress', 'pack' or 'dedup'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (!command.isEmpty() && (compress || pack || dedup || inplace)) {
+            outputStream.println("The output of a shell command is streamed into a single encrypted file, whereas it cannot be combined with 'compress', 'pack', 'dedup' or 'inplace'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (incremental && (delsrc || pack || !command.isEmpty())) {
+            outputStream.println("An incremental encryption compares the files with the ones encrypted before, whereas it requires 'delsrc' to be false and cannot be combined with 'pack' or 'command'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (!incremental && (checksum || deletions)) {
+            outputStream.println("The parameters 'checksum' and 'deletions' only apply to incremental encryptions, whereas they require 'incremental'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (dryrun && (pack || !command.isEmpty())) {
+            outputStream.println("A dry run plans the encrypted file of every single file, whereas it cannot be combined with 'pack' or 'command'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (resume && pack) {
+            outputStream.println("A packed archive is written at once, whereas it cannot be resumed and cannot be combined with 'resume'.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (threads <= 0) {
+            outputStream.println("The number of threads has to be positive.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        if (interval < 0) {
+            outputStream.println("The number of seconds between two reports of the progress has to be positive, or 0 to not report it.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        CipherSuite suite;
+
+        if (cipher.equalsIgnoreCase(CIPHER_AUTO)) {
+            suite = CipherSuite.getFastest();
+        } else {
+            suite = CipherSuite.fromName(cipher);
+
+            if (suite == null || !suite.isAvailable()) {
+                outputStream.println(StringProcessing.format(
+                        "The cipher suite '{0}' is not supported on this machine.\nThe cipher suites are: {1}",
+                        cipher,
+                        CipherSuite.listNames()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        Catalog entries = null;
+
+        if (catalog) {
+            try {
+                entries = Catalog.open(secretkeyresult.getSecretKey(), output);
+            } catch (IOException | GeneralSecurityException e) {
+                outputStream.println(StringProcessing.format(
+                        "The catalog '{0}' could not be opened (the password might not match it). No file has been encrypted.\n{1}",
+                        Catalog.getFile(output).getAbsolutePath(),
+                        e.getMessage()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        if (!command.isEmpty()) {
+            boolean success = encryptCommandOutput(secretkeyresult, suite, command, src, output, format, entries, outputStream);
+            return syso.setSuccess(saveCatalog(entries, suite, outputStream) && success)
+                    .build();
+        }
+
         File[] toEncrypt;
+        long listStart = System.nanoTime();
 
         try {
             // determine all the files to decrypt
@@ -162,67 +428,1217 @@ public class EncryptCommand extends Command {
                     .build();
         }
 
-        int index = 0;
+        long listNanos = System.nanoTime() - listStart;
 
-        for (File f : toEncrypt) {
-            // read from the file and encrypt it
-            EncryptionService.FileEncryptionResult result = EncryptionService.encryptFile(
-                    secretkeyresult.getSecretKey(), f, src
-            );
+        if (dryrun) {
+            return syso.setSuccess(planEncryption(secretkeyresult, suite, toEncrypt, src, output, format, incremental, resume, threads, outputStream))
+                    .build();
+        }
+
+        if (pack) {
+            ProgressReporter progress = new ProgressReporter(outputStream, interval);
+            progress.record(ProgressReporter.Stage.List, listNanos, 0);
+
+            boolean success = packFiles(secretkeyresult, suite, toEncrypt, src, output, format, delsrc, entries, threads, progress, outputStream);
+            progress.close();
+            progress.addStageTotals(syso);
+
+            return syso.setSuccess(saveCatalog(entries, suite, outputStream) && success)
+                    .build();
+        }
+
+        // the files as well as their segments are encrypted in parallel on the same pool,
+        // while the output of a file is written behind by the writer
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        WriteBehindWriter writer = new WriteBehindWriter();
+
+        EncryptionOptions options = new EncryptionOptions.Builder()
+                .setCompression(compress)
+                .setCipherSuite(suite)
+                .setPool(pool)
+                .setWriter(writer)
+                .build();
+
+        DedupStore store = null;
+
+        if (dedup) {
+            try {
+                store = new DedupStore(
+                        new File(output, DedupStore.DEFAULT_FOLDER_NAME),
+                        secretkeyresult.getSecretKey(),
+                        suite,
+                        pool,
+                        delta
+                );
+            } catch (GeneralSecurityException e) {
+                pool.shutdown();
+                writer.close();
+                outputStream.println(e.getMessage());
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        SourceManifest manifest = null;
+
+        if (incremental) {
+            try {
+                manifest = SourceManifest.open(secretkeyresult.getSecretKey(), output);
+            } catch (IOException | GeneralSecurityException e) {
+                pool.shutdown();
+                writer.close();
+                outputStream.println(StringProcessing.format(
+                        "The manifest '{0}' could not be opened (the password might not match it). No file has been encrypted.\n{1}",
+                        SourceManifest.getFile(output).getAbsolutePath(),
+                        e.getMessage()
+                ));
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        JobJournal journal;
+
+        try {
+            journal = JobJournal.open(secretkeyresult.getSecretKey(), output, COMMAND_NAME, resume);
+        } catch (IOException | GeneralSecurityException e) {
+            pool.shutdown();
+            writer.close();
+            outputStream.println(StringProcessing.format(
+                    "The journal '{0}' could not be opened (the password might not match it). No file has been encrypted.\n{1}",
+                    JobJournal.getFile(output, COMMAND_NAME).getAbsolutePath(),
+                    e.getMessage()
+            ));
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        // the temporary files of an interrupted encryption are incomplete, unless they hold files encrypted in place
+        if (resume && !inplace) {
+            deleteTemporaryFiles(output);
+        }
+
+        // the catalog might not have been saved before the previous encryption has been interrupted
+        if (entries != null) {
+            for (JobJournal.Record record : journal.getRecords()) {
+                File outFile = new File(output, record.getOutput());
+                entries.remove(outFile);
+                entries.add(outFile, record.getInput(), record.getLength(), record.getHash());
+            }
+        }
+
+        int inFlightLimit = 2 * threads;
+        Deque<EncryptedFile> inFlight = new ArrayDeque<>();
+        ProgressReporter progress = new ProgressReporter(outputStream, interval);
+        Completion completion = new Completion(src, output, format, entries, manifest, journal, delsrc, inplace, progress, outputStream);
+        DedupStore finalStore = store;
+        boolean hashed = entries != null || checksum;
+        int sequence = 0;
+        int unchanged = 0;
+
+        progress.record(ProgressReporter.Stage.List, listNanos, 0);
+
+        // the lengths are only summed up in case they are reported, since that means another pass over the files
+        if (progress.isActive()) {
+            long total = 0;
+            for (File f : toEncrypt) {
+                total += f.length();
+            }
+            progress.setTotal(toEncrypt.length, total);
+        }
+
+        try {
+            for (File f : toEncrypt) {
+                // journals belong to files that are being encrypted in place, and are removed as soon as they are done
+                if (InPlaceEncryptionService.isJournal(f) || Catalog.isCatalog(f) || SourceManifest.isManifest(f) || JobJournal.isJournal(f)) {
+                    progress.skipped(f.length());
+                    continue;
+                }
+
+                if (completion.isAborted()) {
+                    break;
+                }
 
-            if (result.isSuccess()) {
-                // build the new files name
-                FileNamingData data = FileNamingData.Builder.build(result, index++);
-                File outFile = new File(output, format.produceFileName(data));
+                String name = CommonFileUtilities.extractRelativePath(f, src);
 
-                // create the files parent directories in case they don't already exist
-                if (!outFile.getParentFile().exists()) {
-                    if (!outFile.getParentFile().mkdirs()) {
+                // the file has been encrypted before the previous encryption has been interrupted,
+                // whereas it might not have been deleted yet
+                if (journal.isCompleted(name)) {
+                    if (delsrc && !inplace && !f.delete()) {
                         outputStream.println(StringProcessing.format(
-                                "Couldn't create folder '{0}'. Will abort execution of command.\nThere might already be files processed by this command.",
-                                outFile.getParentFile()
+                                "Couldn't delete file '{0}'. Please try deleting it manually.",
+                                f
                         ));
-                        return syso.setSuccess(false)
-                                .build();
                     }
+
+                    // the manifest might not have been saved before the previous encryption has been interrupted
+                    if (manifest != null) {
+                        JobJournal.Record record = journal.getRecord(name);
+                        manifest.record(new File(output, record.getOutput()), name, record.getLength(), f.lastModified(), record.getHash());
+                    }
+
+                    progress.skipped(journal.getRecord(name).getLength());
+                    continue;
                 }
 
-                // try to write the (encrypted) data to the file
-                try {
-                    CommonFileUtilities.writeFile(outFile, result.getData());
-                } catch (IOException e) {
+                // unchanged files are recognized by their length and time of modification, without reading them
+                if (manifest != null && manifest.isUnchanged(f, name)) {
+                    progress.skipped(f.length());
+                    unchanged++;
+                    continue;
+                }
+
+                // the files are encrypted into temporary files, which are named in order as soon as they are completed
+                File temporary = new File(output, StringProcessing.format(TEMPORARY_FILE_NAME, completion.getToken(), sequence++));
+
+                if (!output.isDirectory() && !output.mkdirs()) {
                     outputStream.println(StringProcessing.format(
-                            "Couldn't write encrypted data to file '{0}'. Will abort execution of command.\nThere might already be files processed by the command.",
-                            outFile
+                            "Couldn't create folder '{0}'. Will abort execution of command.\nThere might already be files processed by this command.",
+                            output
                     ));
-                    return syso.setSuccess(false)
-                            .build();
+                    completion.abort();
+                    break;
+                }
+
+                // the queue of files in flight is bounded, so the files completed later on do not pile up
+                while (inFlight.size() >= inFlightLimit) {
+                    completion.complete(inFlight.poll());
+                }
+
+                EncryptedFile encrypted = new EncryptedFile(f, temporary, name, (manifest != null) ? manifest.get(name) : null);
+                encrypted.result = pool.submit(() -> encrypted.encrypt(
+                        secretkeyresult.getSecretKey(), src, options, finalStore, inplace, hashed, progress
+                ));
+                inFlight.add(encrypted);
+
+                while (!inFlight.isEmpty() && inFlight.peek().result.isDone()) {
+                    completion.complete(inFlight.poll());
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                completion.complete(inFlight.poll());
+            }
+        } finally {
+            pool.shutdown();
+            writer.close();
+
+            progress.record(ProgressReporter.Stage.Write, writer.getWriteNanos(), writer.getWrittenBytes());
+            progress.close();
+            progress.addStageTotals(syso);
+        }
+
+        if (completion.isAborted()) {
+            saveCatalog(entries, suite, outputStream);
+            saveManifest(manifest, suite, outputStream);
+            finishJournal(journal, false, outputStream);
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        int deleted = 0;
+
+        if (manifest != null && deletions) {
+            deleted = manifest.recordDeletions(src, System.currentTimeMillis()).size();
+        }
+
+        boolean saved = saveCatalog(entries, suite, outputStream) & saveManifest(manifest, suite, outputStream);
+
+        // the journal is kept as long as there are files left to resume the encryption with
+        finishJournal(journal, saved && !completion.hasFailed(), outputStream);
+
+        if (manifest != null) {
+            outputStream.println(StringProcessing.format(
+                    "Encrypted {0} new and {1} changed files, skipped {2} unchanged files and recorded the deletion of {3} files.",
+                    completion.getAdded(),
+                    completion.getChanged(),
+                    unchanged + completion.getUnchanged(),
+                    deleted
+            ));
+        }
+
+        if(delsrc) {
+            EmptyFolderDeleter.deleteIfEmpty(src);
+        }
+
+        if (store != null) {
+            outputStream.println(StringProcessing.format(
+                    "Stored {0} new chunks and reused {1} chunks ({2} bytes) that were already stored.",
+                    store.getStoredChunks(),
+                    store.getReusedChunks(),
+                    store.getReusedBytes()
+            ));
+        }
+
+        return syso.setSuccess(saved)
+                .build();
+    }
+
+    /**
+     * This method saves the given catalog, in case there is one.
+     *
+     * @param entries      the catalog to save, or {@code null}
+     * @param suite        the cipher suite to encrypt the catalog with
+     * @param outputStream the stream to print messages to
+     * @return whether the catalog has been saved successfully
+     */
+    private boolean saveCatalog(Catalog entries, CipherSuite suite, PrintStream outputStream) {
+        if (entries == null) {
+            return true;
+        }
+
+        try {
+            entries.save(suite);
+            return true;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            outputStream.println(StringProcessing.format(
+                    "The catalog could not be saved, whereas the encrypted files are not affected by this.\nFollowing error was produced in an attempt to save the catalog:\n{0}",
+                    e.getMessage()
+            ));
+            return false;
+        }
+    }
+
+    /**
+     * This method saves the given manifest, in case there is one.
+     *
+     * @param manifest     the manifest to save, or {@code null}
+     * @param suite        the cipher suite to encrypt the manifest with
+     * @param outputStream the stream to print messages to
+     * @return whether the manifest has been saved successfully
+     */
+    private static boolean saveManifest(SourceManifest manifest, CipherSuite suite, PrintStream outputStream) {
+        if (manifest == null) {
+            return true;
+        }
+
+        try {
+            manifest.save(suite);
+            return true;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            outputStream.println(StringProcessing.format(
+                    "The manifest could not be saved, whereas the next incremental encryption will encrypt the files again.\nFollowing error was produced in an attempt to save the manifest:\n{0}",
+                    e.getMessage()
+            ));
+            return false;
+        }
+    }
+
+    /**
+     * This method deletes the temporary files an interrupted encryption has left within the given folder.
+     *
+     * @param output the folder the files have been encrypted into
+     */
+    private static void deleteTemporaryFiles(File output) {
+        String prefix = TEMPORARY_FILE_NAME.substring(0, TEMPORARY_FILE_NAME.indexOf('{'));
+        String suffix = TEMPORARY_FILE_NAME.substring(TEMPORARY_FILE_NAME.lastIndexOf('}') + 1);
+
+        File[] temporaries = output.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+
+        if (temporaries != null) {
+            for (File temporary : temporaries) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * This method finishes the given journal: it is deleted in case the job has been completed,
+     * whereas it is kept in order to resume the job otherwise.
+     *
+     * @param journal      the journal to finish
+     * @param completed    whether the job has been completed
+     * @param outputStream the stream to print messages to
+     */
+    private static void finishJournal(JobJournal journal, boolean completed, PrintStream outputStream) {
+        try {
+            if (completed) {
+                journal.delete();
+            } else {
+                journal.close();
+                outputStream.println(StringProcessing.format(
+                        "The files that have been encrypted are recorded in '{0}'. Use the parameter 'resume' to encrypt the remaining files.",
+                        journal.getFile().getAbsolutePath()
+                ));
+            }
+        } catch (IOException e) {
+            outputStream.println(StringProcessing.format(
+                    "The journal '{0}' could not be finished:\n{1}",
+                    journal.getFile().getAbsolutePath(),
+                    e.getMessage()
+            ));
+        }
+    }
+
+    /**
+     * This method runs the given shell command and streams its output into a single encrypted file,
+     * which is named by the given template (using the name of the source and the index 0).
+     * The output is hashed while it is being encrypted, so it can be cataloged like any other file.
+     *
+     * @param secretkeyresult the secret key to use for encryption
+     * @param suite           the cipher suite to use for encryption
+     * @param command         the shell command whose output is to be encrypted
+     * @param src             the source, whose name is saved as the name of the output
+     * @param output          the folder to save the encrypted file to
+     * @param format          the template to use for the name of the encrypted file
+     * @param entries         the catalog to record the output in, or {@code null}
+     * @param outputStream    the stream to print messages to
+     * @return whether the output has been encrypted successfully and the command succeeded
+     */
+    private boolean encryptCommandOutput(
+            EncryptionService.HashingResult secretkeyresult,
+            CipherSuite suite,
+            String command,
+            File src,
+            File output,
+            FileNamingTemplate format,
+            Catalog entries,
+            PrintStream outputStream
+    ) {
+        String name = File.separator + src.getName();
+        File outFile = new File(output, format.produceFileName(FileNamingData.Builder.build(name, 0)));
+
+        // create the files parent directories in case they don't already exist
+        if (!outFile.getParentFile().exists() && !outFile.getParentFile().mkdirs()) {
+            outputStream.println(StringProcessing.format(
+                    "Couldn't create folder '{0}'. Will abort execution of command.",
+                    outFile.getParentFile()
+            ));
+            return false;
+        }
+
+        MessageDigest sha256;
+        Process process;
+
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            process = Command.parseShellCommand(command).start(ProcessBuilder.Redirect.PIPE, ProcessBuilder.Redirect.PIPE);
+        } catch (IOException | GeneralSecurityException e) {
+            outputStream.println(StringProcessing.format(
+                    "The shell command '{0}' could not be started:\n{1}",
+                    command,
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        CountingInputStream counted = new CountingInputStream(process.getInputStream());
+        EncryptionService.FileEncryptionResult result;
+        int exit;
+
+        try {
+            // the command does not get any input, since the input of this program is read by the command line
+            process.getOutputStream().close();
+
+            try (InputStream in = new DigestInputStream(counted, sha256);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile), EncryptionService.STREAM_CHUNK_SIZE)) {
+                result = StreamEncryptionService.encryptStream(
+                        secretkeyresult.getSecretKey(), in, name, out,
+                        new EncryptionOptions.Builder()
+                                .setCipherSuite(suite)
+                                .build()
+                );
+            }
+
+            if (!result.isSuccess()) {
+                process.destroy();
+            }
+            exit = process.waitFor();
+        } catch (IOException | InterruptedException e) {
+            process.destroy();
+            outFile.delete();
+            outputStream.println(StringProcessing.format(
+                    "The output of the shell command '{0}' could not be encrypted:\n{1}",
+                    command,
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        if (!result.isSuccess() || exit != 0) {
+            outFile.delete();
+            outputStream.println(StringProcessing.format(
+                    "The output of the shell command '{0}' could not be encrypted.\n{1}",
+                    command,
+                    result.isSuccess()
+                            ? StringProcessing.format("The command exited with code {0}, so its output might be incomplete.", exit)
+                            : result.getErrorMessage()
+            ));
+            return false;
+        }
+
+        if (entries != null) {
+            // the output file might have been overwritten, so its previous entries are outdated
+            entries.remove(outFile);
+            entries.add(outFile, name, counted.getCount(), sha256.digest());
+        }
+
+        outputStream.println(StringProcessing.format(
+                "Encrypted {0} bytes of output into '{1}'.",
+                counted.getCount(),
+                outFile.getAbsolutePath()
+        ));
+        return true;
+    }
+
+    /**
+     * This method packs the given files into a single archive, whose index file is named
+     * by the given template (using the name of the source folder and the index 0).
+     *
+     * @param secretkeyresult the secret key to use for encryption
+     * @param suite           the cipher suite to use for encryption
+     * @param toEncrypt       the files to pack
+     * @param src             the source folder of the files
+     * @param output          the folder to save the archive to
+     * @param format          the template to use for the name of the archive
+     * @param delsrc          whether to delete the source files
+     * @param entries         the catalog to record the packed files in, or {@code null}
+     * @param threads         the number of threads to encrypt the segments of the archive on
+     * @param progress        the reporter to count the packed files towards, once the archive has been written
+     * @param outputStream    the stream to print messages to
+     * @return whether the files have been packed successfully
+     */
+    private boolean packFiles(
+            EncryptionService.HashingResult secretkeyresult,
+            CipherSuite suite,
+            File[] toEncrypt,
+            File src,
+            File output,
+            FileNamingTemplate format,
+            boolean delsrc,
+            Catalog entries,
+            int threads,
+            ProgressReporter progress,
+            PrintStream outputStream
+    ) {
+        File archive = new File(
+                output,
+                format.produceFileName(FileNamingData.Builder.build(File.separator + src.getName(), 0))
+        );
+
+        // create the archives parent directories in case they don't already exist
+        if (!archive.getParentFile().exists() && !archive.getParentFile().mkdirs()) {
+            outputStream.println(StringProcessing.format(
+                    "Couldn't create folder '{0}'. Will abort execution of command.",
+                    archive.getParentFile()
+            ));
+            return false;
+        }
+
+        // the files are hashed before they are packed, so the hashes match the packed data
+        byte[][] hashes = new byte[toEncrypt.length][];
+        long[] lengths = new long[toEncrypt.length];
+
+        long total = 0;
+
+        for (int i = 0; i < toEncrypt.length; i++) {
+            lengths[i] = toEncrypt[i].length();
+            total += lengths[i];
+        }
+
+        progress.setTotal(toEncrypt.length, total);
+
+        if (entries != null) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < toEncrypt.length; i++) {
+                try {
+                    hashes[i] = Catalog.hash(toEncrypt[i]);
+                } catch (IOException e) {
+                    hashes[i] = new byte[0];
                 }
+            }
 
-                // Try deleting the source file in case we are supposed to do so
-                if (delsrc && !f.delete()) {
+            progress.recordSince(ProgressReporter.Stage.Read, start, total);
+        }
+
+        // the segments of the volumes are encrypted in parallel, whereas the archive is written as a whole
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+
+        try {
+            PackArchive.create(
+                    secretkeyresult.getSecretKey(), toEncrypt, src, archive,
+                    PackArchive.DEFAULT_VOLUME_SIZE, PackArchive.DEFAULT_SEGMENT_SIZE, suite, pool
+            );
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            outputStream.println(StringProcessing.format(
+                    "The files could not be packed into the archive '{0}'.\nFollowing error was produced in an attempt to pack said files:\n{1}",
+                    archive.getAbsolutePath(),
+                    e.getMessage()
+            ));
+            return false;
+        } finally {
+            pool.shutdown();
+        }
+
+        progress.recordSince(ProgressReporter.Stage.Crypto, start, total);
+
+        for (long length : lengths) {
+            progress.completed(length);
+        }
+
+        if (entries != null) {
+            entries.remove(archive);
+            for (int i = 0; i < toEncrypt.length; i++) {
+                entries.add(archive, CommonFileUtilities.extractRelativePath(toEncrypt[i], src), lengths[i], hashes[i]);
+            }
+        }
+
+        if (delsrc) {
+            start = System.nanoTime();
+
+            for (File f : toEncrypt) {
+                // Try deleting the source file since it is safely packed
+                if (!f.delete()) {
                     outputStream.println(StringProcessing.format(
                             "Couldn't delete file '{0}'. Please try deleting it manually.",
                             f
                     ));
                 }
+            }
+
+            EmptyFolderDeleter.deleteIfEmpty(src);
+            progress.recordSince(ProgressReporter.Stage.Delete, start, 0);
+        }
+
+        return true;
+    }
+
+    /**
+     * This method plans the encryption of the given files without reading or writing any of them: the name of
+     * every encrypted file is determined the same way it would be by the encryption (taking a journal to resume
+     * and a manifest of an incremental encryption into account), and the plan is printed along with the
+     * estimated duration of the encryption.
+     *
+     * @param secretkeyresult the secret key to open the journal and the manifest with
+     * @param suite           the cipher suite to estimate the duration with
+     * @param toEncrypt       the files to encrypt
+     * @param src             the folder of the files
+     * @param output          the folder the files would be encrypted into
+     * @param format          the template to use for the names of the encrypted files
+     * @param incremental     whether the encryption would be incremental
+     * @param resume          whether the encryption would resume a previous one
+     * @param threads         the number of threads the files would be encrypted on
+     * @param outputStream    the stream to print the plan to
+     * @return whether the encryption would not run into any problems
+     */
+    private static boolean planEncryption(
+            EncryptionService.HashingResult secretkeyresult,
+            CipherSuite suite,
+            File[] toEncrypt,
+            File src,
+            File output,
+            FileNamingTemplate format,
+            boolean incremental,
+            boolean resume,
+            int threads,
+            PrintStream outputStream
+    ) {
+        SourceManifest manifest = null;
+        JobJournal journal = null;
+
+        try {
+            if (incremental) {
+                manifest = SourceManifest.open(secretkeyresult.getSecretKey(), output);
+            }
+
+            // the journal is only opened in case it exists, since opening it would create it otherwise
+            if (resume && JobJournal.getFile(output, COMMAND_NAME).exists()) {
+                journal = JobJournal.open(secretkeyresult.getSecretKey(), output, COMMAND_NAME, true);
+                journal.close();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            outputStream.println(StringProcessing.format(
+                    "The manifest or the journal within '{0}' could not be opened (the password might not match it).\n{1}",
+                    output.getAbsolutePath(),
+                    e.getMessage()
+            ));
+            return false;
+        }
+
+        OutputPlan plan = new OutputPlan();
+        int index = Math.max((journal != null) ? journal.getNextIndex() : 0, (manifest != null) ? manifest.getNextIndex() : 0);
+
+        for (File f : toEncrypt) {
+            // only files named like a catalog or a manifest are looked into, so no other file is read
+            boolean catalog = (f.getName().equals(Catalog.FILE_NAME) && Catalog.isCatalog(f))
+                    || (f.getName().equals(SourceManifest.FILE_NAME) && SourceManifest.isManifest(f));
+
+            if (catalog || InPlaceEncryptionService.isJournal(f) || JobJournal.isJournal(f)) {
+                continue;
+            }
+
+            String name = CommonFileUtilities.extractRelativePath(f, src);
+
+            if ((journal != null && journal.isCompleted(name)) || (manifest != null && manifest.isUnchanged(f, name))) {
+                plan.skip(f.length());
+                continue;
+            }
+
+            // a file that has changed replaces its previous encrypted file, whereas any other file uses up an index
+            SourceManifest.Entry previous = (manifest != null) ? manifest.get(name) : null;
+
+            if (previous != null) {
+                plan.add(name, manifest.getOutputFile(previous), f.length(), true);
             } else {
-                // if there was an error we'll show the message and abort the command
+                plan.add(name, new File(output, format.produceFileName(FileNamingData.Builder.build(name, index++))), f.length(), false);
+            }
+        }
+
+        double throughput;
+
+        try {
+            throughput = OutputPlan.calibrate(suite, threads);
+        } catch (GeneralSecurityException e) {
+            outputStream.println(e.getMessage());
+            return false;
+        }
+
+        plan.print(outputStream, "encrypted", output, throughput);
+        return !plan.hasProblems();
+    }
+
+    /**
+     * A file that is encrypted into a temporary file, which is named as soon as it is completed.
+     */
+    private static class EncryptedFile {
+
+        /**
+         * The file that is encrypted.
+         */
+        private final File source;
+        /**
+         * The temporary file the encrypted data is written to.
+         */
+        private final File temporary;
+        /**
+         * The name of the file relative to the source folder.
+         */
+        private final String name;
+        /**
+         * The length of the file before it has been encrypted.
+         */
+        private final long length;
+        /**
+         * The time of the last modification of the file before it has been encrypted.
+         */
+        private final long modified;
+        /**
+         * The entry of the file within the manifest of an incremental encryption, or {@code null}.
+         */
+        private final SourceManifest.Entry previous;
+        /**
+         * Whether the content of the file is the same as the one recorded in the manifest, whereas it has not been encrypted.
+         */
+        private boolean unchanged;
+        /**
+         * The hash of the file, or an empty array.
+         */
+        private byte[] hash;
+        /**
+         * The message of the error that occurred while hashing the file, or {@code null}.
+         */
+        private String hashError;
+        /**
+         * The future result of the encryption.
+         */
+        private Future<EncryptionService.FileEncryptionResult> result;
+
+        /**
+         * Creates an EncryptedFile with the given values.
+         *
+         * @param source    the file that is encrypted
+         * @param temporary the temporary file the encrypted data is written to
+         * @param name      the name of the file relative to the source folder
+         * @param previous  the entry of the file within the manifest of an incremental encryption, or {@code null}
+         */
+        private EncryptedFile(File source, File temporary, String name, SourceManifest.Entry previous) {
+            this.source = source;
+            this.temporary = temporary;
+            this.name = name;
+            this.length = source.length();
+            this.modified = source.lastModified();
+            this.previous = previous;
+            this.unchanged = false;
+            this.hash = new byte[0];
+            this.hashError = null;
+        }
+
+        /**
+         * This method hashes the file (in case it is to be cataloged) and encrypts it into its temporary file.
+         * The file is either encrypted in parallel segments, its chunks are stored and only the manifest is
+         * written into the temporary file, or it is encrypted in place and moved to the temporary file.
+         *
+         * @param key     the secret key to use for encryption
+         * @param src     the folder whose path is stripped from the name of the file
+         * @param options the options to use for the encryption
+         * @param store   the dedup store to store the chunks of the file in, or {@code null}
+         * @param inplace  whether the file is to be encrypted in place
+         * @param hashed   whether the file is to be hashed
+         * @param progress the reporter to record the time spent hashing and encrypting the file in
+         * @return the result of the encryption, or {@code null} in case the file has not changed and is thus not encrypted
+         */
+        private EncryptionService.FileEncryptionResult encrypt(
+                SecretKeySpec key,
+                File src,
+                EncryptionOptions options,
+                DedupStore store,
+                boolean inplace,
+                boolean hashed,
+                ProgressReporter progress
+        ) {
+            // the file is hashed before it is encrypted, unless it is partially encrypted in place already
+            if (hashed && !InPlaceEncryptionService.getJournalFile(source).exists()) {
+                long start = System.nanoTime();
+
+                try {
+                    hash = Catalog.hash(source);
+                } catch (IOException e) {
+                    hashError = e.getMessage();
+                }
+
+                progress.recordSince(ProgressReporter.Stage.Read, start, length);
+            }
+
+            // a file whose time of modification has changed, while its content has not, does not need to be encrypted again
+            if (previous != null && previous.getLength() == length && previous.hasHash(hash)) {
+                unchanged = true;
+                return null;
+            }
+
+            // reading the segments is interleaved with encrypting them, whereas it is part of this stage
+            long start = System.nanoTime();
+
+            try {
+                if (inplace) {
+                    return InPlaceEncryptionService.encryptFile(key, source, src, temporary, options);
+                } else if (store != null) {
+                    return store.storeFile(source, src, temporary);
+                } else {
+                    return SegmentedEncryptionService.encryptFile(key, source, src, temporary, options);
+                }
+            } finally {
+                progress.recordSince(ProgressReporter.Stage.Crypto, start, length);
+            }
+        }
+    }
+
+    /**
+     * <p>The last stage of encrypting files, which completes the encrypted files strictly in the order they
+     * have been listed in. Thus every file gets the same index (and name) as if the files were encrypted
+     * one after another: the index is only used up by a file whose output has been written successfully.</p>
+     * <p>Once the output of a file has been written, its temporary file is moved to its name, it is added
+     * to the catalog, and its source is deleted in case we are supposed to do so. As soon as the folder of
+     * a file cannot be created the encryption is aborted, whereas the files that are completed afterwards
+     * are discarded (unless they have been encrypted in place, which moved their sources).</p>
+     * <p>Every completed file is recorded in the journal before its source is deleted, so an interrupted
+     * encryption can be resumed without encrypting any file twice or reusing any index. In case of an
+     * incremental encryption, a file that has changed replaces its previous encrypted file (without
+     * using up an index), and every completed file is recorded in the manifest.</p>
+     */
+    private static class Completion {
+
+        /**
+         * The folder of the files that are encrypted.
+         */
+        private final File src;
+        /**
+         * The folder the encrypted files are saved to.
+         */
+        private final File output;
+        /**
+         * The template to name the encrypted files by.
+         */
+        private final FileNamingTemplate format;
+        /**
+         * The catalog to record the files in, or {@code null}.
+         */
+        private final Catalog entries;
+        /**
+         * The manifest to record the files in, or {@code null}.
+         */
+        private final SourceManifest manifest;
+        /**
+         * The journal to record the completed files in.
+         */
+        private final JobJournal journal;
+        /**
+         * Whether to delete the sources of the files.
+         */
+        private final boolean delsrc;
+        /**
+         * Whether the files are encrypted in place.
+         */
+        private final boolean inplace;
+        /**
+         * The reporter to count the completed files in.
+         */
+        private final ProgressReporter progress;
+        /**
+         * The stream to print messages to.
+         */
+        private final PrintStream outputStream;
+        /**
+         * The token distinguishing the temporary files of this encryption from any other file.
+         */
+        private final String token;
+        /**
+         * The index of the next file that is completed successfully.
+         */
+        private int index;
+        /**
+         * Whether the encryption has been aborted.
+         */
+        private boolean aborted;
+        /**
+         * Whether any file could not be encrypted.
+         */
+        private boolean failed;
+        /**
+         * The number of files that have been encrypted for the first time.
+         */
+        private int added;
+        /**
+         * The number of files that have been encrypted again, since they have changed.
+         */
+        private int changed;
+        /**
+         * The number of files whose content has turned out not to have changed.
+         */
+        private int unchanged;
+
+        /**
+         * Creates the Completion of files with the given values.
+         *
+         * @param src          the folder of the files that are encrypted
+         * @param output       the folder the encrypted files are saved to
+         * @param format       the template to name the encrypted files by
+         * @param entries      the catalog to record the files in, or {@code null}
+         * @param manifest     the manifest to record the files in, or {@code null}
+         * @param journal      the journal to record the completed files in
+         * @param delsrc       whether to delete the sources of the files
+         * @param inplace      whether the files are encrypted in place
+         * @param progress     the reporter to count the completed files in
+         * @param outputStream the stream to print messages to
+         */
+        private Completion(
+                File src,
+                File output,
+                FileNamingTemplate format,
+                Catalog entries,
+                SourceManifest manifest,
+                JobJournal journal,
+                boolean delsrc,
+                boolean inplace,
+                ProgressReporter progress,
+                PrintStream outputStream
+        ) {
+            this.src = src;
+            this.output = output;
+            this.format = format;
+            this.entries = entries;
+            this.manifest = manifest;
+            this.journal = journal;
+            this.delsrc = delsrc;
+            this.inplace = inplace;
+            this.progress = progress;
+            this.outputStream = outputStream;
+            this.token = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16);
+            this.index = Math.max(journal.getNextIndex(), (manifest != null) ? manifest.getNextIndex() : 0);
+            this.aborted = false;
+            this.failed = false;
+            this.added = 0;
+            this.changed = 0;
+            this.unchanged = 0;
+        }
+
+        /**
+         * @return The token distinguishing the temporary files of this encryption from any other file
+         */
+        private String getToken() {
+            return token;
+        }
+
+        /**
+         * @return Whether the encryption has been aborted
+         */
+        private boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * @return Whether any file could not be encrypted
+         */
+        private boolean hasFailed() {
+            return failed;
+        }
+
+        /**
+         * @return The number of files that have been encrypted for the first time
+         */
+        private int getAdded() {
+            return added;
+        }
+
+        /**
+         * @return The number of files that have been encrypted again, since they have changed
+         */
+        private int getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return The number of files whose content has turned out not to have changed
+         */
+        private int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * This method aborts the encryption, whereas any file completed afterwards is discarded.
+         */
+        private void abort() {
+            aborted = true;
+        }
+
+        /**
+         * This method completes the given file, and counts it towards the progress.
+         *
+         * @param encrypted the file that is to be completed
+         */
+        private void complete(EncryptedFile encrypted) {
+            if (completeFile(encrypted)) {
+                progress.completed(encrypted.length);
+            } else {
+                progress.skipped(encrypted.length);
+            }
+        }
+
+        /**
+         * This method waits for the given file to be encrypted and written, and completes it.
+         *
+         * @param encrypted the file that is to be completed
+         * @return whether the file has been encrypted and completed (rather than having failed or not having changed)
+         */
+        private boolean completeFile(EncryptedFile encrypted) {
+            EncryptionService.FileEncryptionResult result;
+
+            try {
+                result = encrypted.result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    aborted = true;
+                }
+                failed = true;
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be encrypted.\nFollowing error was produced in an attempt to encrypt said file:\n{1}",
+                        encrypted.source.getAbsolutePath(),
+                        (e.getCause() != null) ? e.getCause().getMessage() : e.getMessage()
+                ));
+                discard(encrypted);
+                return false;
+            }
+
+            if (encrypted.unchanged) {
+                completeUnchanged(encrypted);
+                return false;
+            }
+
+            if (!result.isSuccess()) {
+                // if there was an error we'll show the message and continue with the next file
                 outputStream.println(StringProcessing.format(
                         "File '{0}' could not be encrypted.\nFollowing error was produced in an attempt to encrypt said file:\n{1}",
-                        f.getAbsolutePath(),
+                        encrypted.source.getAbsolutePath(),
                         result.getErrorMessage()
                 ));
+                failed = true;
+                return false;
+            }
+
+            try {
+                result.awaitWritten();
+            } catch (IOException e) {
+                // a file that could not be written (e.g. since the disk is full) aborts the command, just as the following files would fail
+                outputStream.println(StringProcessing.format(
+                        "Couldn't write encrypted data of file '{0}'. Will abort execution of command.\nThere might already be files processed by this command.\n{1}",
+                        encrypted.source.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                aborted = true;
+                failed = true;
+                discard(encrypted);
+                return false;
+            }
+
+            if (aborted) {
+                discard(encrypted);
+                return false;
+            }
+
+            if (encrypted.hashError != null) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' could not be hashed, and will thus be cataloged without its hash:\n{1}",
+                        encrypted.source.getAbsolutePath(),
+                        encrypted.hashError
+                ));
+            }
+
+            // build the new files name, whereas a file that has changed replaces its previous encrypted file
+            File outFile = (encrypted.previous != null)
+                    ? manifest.getOutputFile(encrypted.previous)
+                    : new File(output, format.produceFileName(FileNamingData.Builder.build(encrypted.name, index)));
+
+            // create the files parent directories in case they don't already exist
+            if (!outFile.getParentFile().exists() && !outFile.getParentFile().mkdirs()) {
+                outputStream.println(StringProcessing.format(
+                        "Couldn't create folder '{0}'. Will abort execution of command.\nThere might already be files processed by this command.",
+                        outFile.getParentFile()
+                ));
+                aborted = true;
+                failed = true;
+                discard(encrypted);
+                return false;
+            }
+
+            try {
+                long start = System.nanoTime();
+                Files.move(encrypted.temporary.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                progress.recordSince(ProgressReporter.Stage.Write, start, 0);
+            } catch (IOException e) {
+                outputStream.println(StringProcessing.format(
+                        "Couldn't move the encrypted data of file '{0}' to '{1}'. Will abort execution of command.\nThere might already be files processed by this command.\n{2}",
+                        encrypted.source.getAbsolutePath(),
+                        outFile.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                aborted = true;
+                failed = true;
+                discard(encrypted);
+                return false;
+            }
+
+            if (encrypted.previous != null) {
+                changed++;
+            } else {
+                index++;
+                added++;
+            }
+
+            if (entries != null) {
+                // the output file might have been overwritten, so its previous entries are outdated
+                entries.remove(outFile);
+                entries.add(outFile, encrypted.name, encrypted.length, encrypted.hash);
+            }
+
+            if (manifest != null) {
+                manifest.record(outFile, encrypted.name, encrypted.length, encrypted.modified, encrypted.hash);
+                manifest.setNextIndex(index);
+            }
+
+            // the source is only deleted once the file has been recorded, so it is never lost by an interruption
+            try {
+                journal.complete(
+                        encrypted.name,
+                        CommonFileUtilities.extractRelativePath(outFile, output),
+                        index,
+                        encrypted.length,
+                        encrypted.hash
+                );
+
+                // the record is only forced to the disk in case the source is gone afterwards (deleted or moved)
+                if (delsrc || inplace) {
+                    journal.sync();
+                }
+            } catch (IOException e) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' has been encrypted into '{1}', but could not be recorded in the journal. Will abort execution of command.\n{2}",
+                        encrypted.source.getAbsolutePath(),
+                        outFile.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                aborted = true;
+                failed = true;
+                return false;
+            }
 
-                result.getError().printStackTrace();
+            // Try deleting the source file in case we are supposed to do so (unless it has been moved)
+            if (delsrc && !inplace) {
+                long start = System.nanoTime();
+                boolean deleted = encrypted.source.delete();
+                progress.recordSince(ProgressReporter.Stage.Delete, start, 0);
+
+                if (!deleted) {
+                    outputStream.println(StringProcessing.format(
+                            "Couldn't delete file '{0}'. Please try deleting it manually.",
+                            encrypted.source
+                    ));
+                }
             }
+
+            return true;
         }
 
-        if(delsrc) {
-            EmptyFolderDeleter.deleteIfEmpty(src);
+        /**
+         * This method completes the given file, whose content has turned out to be the one recorded in the manifest.
+         * Thus its previous encrypted file is kept, whereas only the time of its modification is recorded.
+         *
+         * @param encrypted the file that is to be completed
+         */
+        private void completeUnchanged(EncryptedFile encrypted) {
+            File outFile = manifest.getOutputFile(encrypted.previous);
+
+            try {
+                journal.complete(
+                        encrypted.name,
+                        CommonFileUtilities.extractRelativePath(outFile, output),
+                        index,
+                        encrypted.length,
+                        encrypted.hash
+                );
+            } catch (IOException e) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' has not changed, but could not be recorded in the journal. Will abort execution of command.\n{1}",
+                        encrypted.source.getAbsolutePath(),
+                        e.getMessage()
+                ));
+                aborted = true;
+                failed = true;
+                return;
+            }
+
+            manifest.record(outFile, encrypted.name, encrypted.length, encrypted.modified, encrypted.hash);
+            unchanged++;
         }
 
-        return syso.setSuccess(true)
-                .build();
+        /**
+         * This method discards the given file after waiting for its output to be written. Its temporary file
+         * is deleted, unless the file has been encrypted in place, since its source has been moved to it.
+         *
+         * @param encrypted the file that is to be discarded
+         */
+        private void discard(EncryptedFile encrypted) {
+            try {
+                EncryptionService.FileEncryptionResult result = encrypted.result.get();
+                if (result != null) {
+                    result.awaitWritten();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IOException e) {
+                // the output has not been written, whereas there is nothing to discard
+            }
+
+            if (inplace && encrypted.temporary.exists()) {
+                outputStream.println(StringProcessing.format(
+                        "File '{0}' has been encrypted in place, and has been kept as '{1}'.",
+                        encrypted.source.getAbsolutePath(),
+                        encrypted.temporary.getAbsolutePath()
+                ));
+            } else if (!inplace && encrypted.temporary.exists() && !encrypted.temporary.delete()) {
+                encrypted.temporary.deleteOnExit();
+            }
+        }
     }
 }
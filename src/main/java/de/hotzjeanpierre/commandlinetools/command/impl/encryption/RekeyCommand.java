@@ -0,0 +1,398 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.impl.encryption;
+
+import de.hotzjeanpierre.commandlinetools.command.Command;
+import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
+import de.hotzjeanpierre.commandlinetools.command.parameter.CommonTypes;
+import de.hotzjeanpierre.commandlinetools.command.parameter.Parameter;
+import de.hotzjeanpierre.commandlinetools.command.parameter.ParameterValuesList;
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptedFileHeader;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FileLister;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FilterMode;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.InPlaceEncryptionService;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.JobJournal;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+@SuppressWarnings("unused")
+public class RekeyCommand extends Command {
+
+    private static final String COMMAND_NAME = "rekey";
+    private static final String COMMAND_DESCRIPTION = "This command allows you to change the password of files encrypted with the 'encrypt'-command, without decrypting them.\nOnly the header of every file is rewritten, whereas files encrypted by older versions have to be decrypted and encrypted again.";
+
+
+    private static final String PARAMETER_NAME_SOURCE = "src";
+    private static final String PARAMETER_DESCRIPTION_SOURCE = "The folder of the files to change the password of.";
+
+    private static final String PARAMETER_NAME_OLDPASSWORD = "oldpassword";
+    private static final String PARAMETER_DESCRIPTION_OLDPASSWORD = "The password the files are currently encrypted with.";
+
+    private static final String PARAMETER_NAME_NEWPASSWORD = "newpassword";
+    private static final String PARAMETER_DESCRIPTION_NEWPASSWORD = "The password the files are to be encrypted with.";
+
+    private static final String PARAMETER_NAME_FILTER = "filter";
+    private static final String PARAMETER_DESCRIPTION_FILTER = "The filter to apply to the search of files.";
+
+    private static final String PARAMETER_NAME_FILTERMODE = "filtermode";
+    private static final String PARAMETER_DESCRIPTION_FILTERMODE = "the filter mode to apply.";
+
+    private static final String PARAMETER_NAME_SUBDIRECTORIES = "subdir";
+    private static final String PARAMETER_DESCRIPTION_SUBDIRECTORIES = "Whether to also search within sub directories for files to change the password of.";
+
+    /**
+     * The number of files whose headers are rewritten at once. Rewriting a header takes
+     * hardly any CPU time but waits for the disk, so more files than there are CPUs are processed at once.
+     */
+    private static final int PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    static {
+        Command.addSupportedCommand(
+                new RekeyCommand()
+        );
+    }
+
+    private RekeyCommand() {
+        super(
+                COMMAND_NAME,
+                COMMAND_DESCRIPTION,
+                new Parameter[]{
+                        new Parameter(
+                                PARAMETER_NAME_SOURCE,
+                                CommonTypes.File,
+                                PARAMETER_DESCRIPTION_SOURCE,
+                                0
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_OLDPASSWORD,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_OLDPASSWORD,
+                                1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_NEWPASSWORD,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_NEWPASSWORD,
+                                2
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_FILTER,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_FILTER,
+                                ""
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_FILTERMODE,
+                                CommonTypes.FilterMode,
+                                PARAMETER_DESCRIPTION_FILTERMODE,
+                                FilterMode.None
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_SUBDIRECTORIES,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_SUBDIRECTORIES,
+                                true
+                        )
+                },
+                true
+        );
+    }
+
+    @Override
+    protected CommandExecutionResult execute(ParameterValuesList params, PrintStream outputStream) {
+        File src = (File) params.getValue(PARAMETER_NAME_SOURCE);
+        String oldPassword = (String) params.getValue(PARAMETER_NAME_OLDPASSWORD);
+        String newPassword = (String) params.getValue(PARAMETER_NAME_NEWPASSWORD);
+        String filter = (String) params.getValue(PARAMETER_NAME_FILTER);
+        FilterMode filtermode = (FilterMode) params.getValue(PARAMETER_NAME_FILTERMODE);
+        boolean subdirectories = (boolean) params.getValue(PARAMETER_NAME_SUBDIRECTORIES);
+
+        CommandExecutionResult.Builder syso = new CommandExecutionResult.Builder();
+
+        // create the secret key specs from the given passwords
+        EncryptionService.HashingResult oldKeyResult = EncryptionService.createPrivateKey(oldPassword);
+        EncryptionService.HashingResult newKeyResult = EncryptionService.createPrivateKey(newPassword);
+
+        for (EncryptionService.HashingResult result : new EncryptionService.HashingResult[]{oldKeyResult, newKeyResult}) {
+            if (!result.isSuccess()) {
+                outputStream.println(result.getErrorMessage());
+                return syso.setSuccess(false)
+                        .build();
+            }
+        }
+
+        File[] toRekey;
+
+        try {
+            // determine all the files to change the password of
+            toRekey = FileLister.list(
+                    src,
+                    subdirectories,
+                    filtermode,
+                    filter,
+                    false
+            );
+        } catch (IllegalArgumentException exc) {
+            outputStream.println(exc.getMessage());
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        SecretKeySpec oldKey = oldKeyResult.getSecretKey();
+        SecretKeySpec newKey = newKeyResult.getSecretKey();
+
+        // the journals of files that have been decrypted in place completely do not belong to any interrupted job
+        toRekey = deleteOrphanedJournals(toRekey, outputStream);
+
+        // interrupted jobs are secured by the old password, so they could not be resumed once it has been changed
+        String pending = findPendingJob(src, toRekey);
+        if (pending != null) {
+            outputStream.println(pending);
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        // check the old password against the first file, so a wrong password is rejected before any file is rewritten
+        for (File f : toRekey) {
+            if (!EncryptedFileHeader.hasHeader(f)) {
+                continue;
+            }
+
+            try {
+                if (!EncryptedFileHeader.matchesKey(f, oldKey) && !EncryptedFileHeader.matchesKey(f, newKey)) {
+                    outputStream.println(StringProcessing.format(
+                            "The old password does not match the file '{0}'. No file has been changed.",
+                            f.getAbsolutePath()
+                    ));
+                    return syso.setSuccess(false)
+                            .build();
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                // the file is malformed, which will be reported as soon as it is rewritten
+            }
+            break;
+        }
+
+        // the headers of the files are rewritten in parallel, while the results are reported in order
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        List<Future<Outcome>> outcomes = new ArrayList<>();
+
+        try {
+            List<Callable<Outcome>> tasks = new ArrayList<>();
+            for (File f : toRekey) {
+                tasks.add(() -> rekey(f, oldKey, newKey));
+            }
+            outcomes = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        int rekeyed = 0;
+        int unchanged = 0;
+        int skipped = 0;
+        int failed = 0;
+
+        for (int i = 0; i < toRekey.length; i++) {
+            Outcome outcome;
+
+            try {
+                outcome = outcomes.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                outcome = new Outcome(e.getMessage());
+            }
+
+            switch (outcome.state) {
+                case Rekeyed:
+                    rekeyed++;
+                    break;
+                case Unchanged:
+                    unchanged++;
+                    break;
+                case Skipped:
+                    skipped++;
+                    outputStream.println(StringProcessing.format(
+                            "File '{0}' does not contain a header of the container format, whereas its password has not been changed. In case it has been encrypted by an older version, it has to be decrypted and encrypted again to change its password.",
+                            toRekey[i].getAbsolutePath()
+                    ));
+                    break;
+                default:
+                    failed++;
+                    outputStream.println(StringProcessing.format(
+                            "The password of file '{0}' could not be changed.\nFollowing error was produced in an attempt to change it:\n{1}",
+                            toRekey[i].getAbsolutePath(),
+                            outcome.errorMessage
+                    ));
+                    break;
+            }
+        }
+
+        outputStream.println(StringProcessing.format(
+                "Changed the password of {0} files; {1} files already had the new password, {2} files have been skipped and {3} files failed.",
+                rekeyed,
+                unchanged,
+                skipped,
+                failed
+        ));
+
+        // a skipped file might still be encrypted with the old password, thus it is not reported as success either
+        return syso.setSuccess(failed == 0 && skipped == 0)
+                .build();
+    }
+
+    /**
+     * This method looks for an interrupted job among the given files, i.e. for the journal of a bulk job
+     * or of a file that is being en- or decrypted in place. Since these journals are secured by the old
+     * password, the jobs could no longer be resumed once the password has been changed.
+     *
+     * @param src     the folder of the files to change the password of
+     * @param toRekey the files to change the password of
+     * @return the message describing the first interrupted job, or {@code null} in case there is none
+     */
+    private static String findPendingJob(File src, File[] toRekey) {
+        // the journal of a bulk job is kept within the output folder, which might be excluded by the filter
+        File[] journals = src.listFiles(JobJournal::isJournal);
+        File journal = (journals != null && journals.length > 0) ? journals[0] : null;
+
+        for (int i = 0; journal == null && i < toRekey.length; i++) {
+            if (JobJournal.isJournal(toRekey[i])) {
+                journal = toRekey[i];
+            }
+        }
+
+        if (journal != null) {
+            return StringProcessing.format(
+                    "The journal '{0}' belongs to an interrupted job, which could not be resumed once the password has been changed. Please resume the job (or delete its journal) first. No file has been changed.",
+                    journal.getAbsolutePath()
+            );
+        }
+
+        for (File f : toRekey) {
+            File inPlace = InPlaceEncryptionService.isJournal(f) ? f : InPlaceEncryptionService.getJournalFile(f);
+            if (inPlace.exists()) {
+                return StringProcessing.format(
+                        "The journal '{0}' belongs to a file that is being en- or decrypted in place, which could not be resumed once the password has been changed. Please resume the job (or delete its journal) first. No file has been changed.",
+                        inPlace.getAbsolutePath()
+                );
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * This method deletes the journals of files that have been decrypted in place completely
+     * (see {@link InPlaceEncryptionService#isOrphanedJournal(File)}).
+     *
+     * @param files        the files to delete the orphaned journals of
+     * @param outputStream the stream to print messages to
+     * @return the given files without the orphaned journals
+     */
+    private static File[] deleteOrphanedJournals(File[] files, PrintStream outputStream) {
+        List<File> remaining = new ArrayList<>(files.length);
+
+        for (File f : files) {
+            if (!InPlaceEncryptionService.isOrphanedJournal(f)) {
+                remaining.add(f);
+            } else if (!f.delete()) {
+                outputStream.println(StringProcessing.format(
+                        "Couldn't delete file '{0}'. Please try deleting it manually.",
+                        f
+                ));
+            }
+        }
+
+        return remaining.toArray(new File[0]);
+    }
+
+    /**
+     * This method changes the password of the given file, if it contains a header of the container format.
+     *
+     * @param f      the file to change the password of
+     * @param oldKey the secret key the file is currently encrypted with
+     * @param newKey the secret key the file is to be encrypted with
+     * @return the outcome of the change
+     */
+    private static Outcome rekey(File f, SecretKeySpec oldKey, SecretKeySpec newKey) {
+        // the header of a file that has been encrypted in place is kept within its trailer
+        if (!EncryptedFileHeader.hasHeader(f)) {
+            return new Outcome(State.Skipped);
+        }
+
+        try {
+            return new Outcome(EncryptedFileHeader.rekey(f, oldKey, newKey) ? State.Rekeyed : State.Unchanged);
+        } catch (IOException | GeneralSecurityException e) {
+            return new Outcome(e.getMessage());
+        }
+    }
+
+    /**
+     * The states a file may end up in after its password was to be changed.
+     */
+    private enum State {
+        Rekeyed,
+        Unchanged,
+        Skipped,
+        Failed
+    }
+
+    /**
+     * The outcome of changing the password of a single file.
+     */
+    private static class Outcome {
+
+        /**
+         * The state the file ended up in.
+         */
+        private final State state;
+        /**
+         * The message of the error that occurred, in case the password could not be changed.
+         */
+        private final String errorMessage;
+
+        /**
+         * Creates the outcome of a file whose password could be changed (or did not need to be).
+         *
+         * @param state the state the file ended up in
+         */
+        private Outcome(State state) {
+            this.state = state;
+            this.errorMessage = null;
+        }
+
+        /**
+         * Creates the outcome of a file whose password could not be changed.
+         *
+         * @param errorMessage the message of the error that occurred
+         */
+        private Outcome(String errorMessage) {
+            this.state = State.Failed;
+            this.errorMessage = errorMessage;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.impl.encryption;
+
+import de.hotzjeanpierre.commandlinetools.command.Command;
+import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
+import de.hotzjeanpierre.commandlinetools.command.parameter.CommonTypes;
+import de.hotzjeanpierre.commandlinetools.command.parameter.Parameter;
+import de.hotzjeanpierre.commandlinetools.command.parameter.ParameterValuesList;
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.CipherSuite;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.DedupStore;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptedFileHeader;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FileLister;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FilterMode;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.InPlaceEncryptionService;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.PackArchive;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+@SuppressWarnings("unused")
+public class VerifyCommand extends Command {
+
+    private static final String COMMAND_NAME = "verify";
+    private static final String COMMAND_DESCRIPTION = "This command allows you to check whether files encrypted with the 'encrypt'-command are intact, without writing any of their data.\nEvery segment of every file is authenticated, whereas the volumes of packed archives and the chunks of dedup stores are verified through their index or manifest.";
+
+
+    private static final String PARAMETER_NAME_SOURCE = "src";
+    private static final String PARAMETER_DESCRIPTION_SOURCE = "The folder of the files to verify.";
+
+    private static final String PARAMETER_NAME_PASSWORD = "password";
+    private static final String PARAMETER_DESCRIPTION_PASSWORD = "The password the files have been encrypted with.";
+
+    private static final String PARAMETER_NAME_FILTER = "filter";
+    private static final String PARAMETER_DESCRIPTION_FILTER = "The filter to apply to the search of files.";
+
+    private static final String PARAMETER_NAME_FILTERMODE = "filtermode";
+    private static final String PARAMETER_DESCRIPTION_FILTERMODE = "the filter mode to apply.";
+
+    private static final String PARAMETER_NAME_SUBDIRECTORIES = "subdir";
+    private static final String PARAMETER_DESCRIPTION_SUBDIRECTORIES = "Whether to also search within sub directories for files to verify.";
+
+    private static final String PARAMETER_NAME_SAMPLE = "sample";
+    private static final String PARAMETER_DESCRIPTION_SAMPLE = "The number of randomly chosen segments to authenticate within every file, after the tags of all its segments have been checked against the Merkle root within its header. 0 authenticates every segment. Files without a Merkle root (e.g. files encrypted in place or by older versions) are always verified completely.";
+
+    /**
+     * The number of files that are verified at once. The segments of every file are authenticated
+     * on the common pool, so a few files at once suffice to hide the latency of opening them.
+     */
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    static {
+        Command.addSupportedCommand(
+                new VerifyCommand()
+        );
+    }
+
+    private VerifyCommand() {
+        super(
+                COMMAND_NAME,
+                COMMAND_DESCRIPTION,
+                new Parameter[]{
+                        new Parameter(
+                                PARAMETER_NAME_SOURCE,
+                                CommonTypes.File,
+                                PARAMETER_DESCRIPTION_SOURCE,
+                                0
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_PASSWORD,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_PASSWORD,
+                                1
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_FILTER,
+                                CommonTypes.String,
+                                PARAMETER_DESCRIPTION_FILTER,
+                                "encr"
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_FILTERMODE,
+                                CommonTypes.FilterMode,
+                                PARAMETER_DESCRIPTION_FILTERMODE,
+                                FilterMode.AllowOnly
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_SUBDIRECTORIES,
+                                CommonTypes.Primitives.Boolean,
+                                PARAMETER_DESCRIPTION_SUBDIRECTORIES,
+                                true
+                        ),
+                        new Parameter(
+                                PARAMETER_NAME_SAMPLE,
+                                CommonTypes.Primitives.Integer,
+                                PARAMETER_DESCRIPTION_SAMPLE,
+                                0,
+                                -1
+                        )
+                },
+                true
+        );
+    }
+
+    @Override
+    protected CommandExecutionResult execute(ParameterValuesList params, PrintStream outputStream) {
+        File src = (File) params.getValue(PARAMETER_NAME_SOURCE);
+        String password = (String) params.getValue(PARAMETER_NAME_PASSWORD);
+        String filter = (String) params.getValue(PARAMETER_NAME_FILTER);
+        FilterMode filtermode = (FilterMode) params.getValue(PARAMETER_NAME_FILTERMODE);
+        boolean subdirectories = (boolean) params.getValue(PARAMETER_NAME_SUBDIRECTORIES);
+        int sample = (int) params.getValue(PARAMETER_NAME_SAMPLE);
+
+        CommandExecutionResult.Builder syso = new CommandExecutionResult.Builder();
+
+        if (sample < 0) {
+            outputStream.println("The number of segments to sample may not be negative.");
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        // create a secret key spec from the given password to use for verification
+        EncryptionService.HashingResult secretkeyresult = EncryptionService.createPrivateKey(password);
+
+        if (!secretkeyresult.isSuccess()) {
+            outputStream.println(secretkeyresult.getErrorMessage());
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        File[] listed;
+
+        try {
+            // determine all the files to verify
+            listed = FileLister.list(
+                    src,
+                    subdirectories,
+                    filtermode,
+                    filter,
+                    false
+            );
+        } catch (IllegalArgumentException exc) {
+            outputStream.println(exc.getMessage());
+            return syso.setSuccess(false)
+                    .build();
+        }
+
+        SecretKeySpec key = secretkeyresult.getSecretKey();
+        List<File> toVerify = new ArrayList<>();
+
+        for (File f : listed) {
+            // journals, volumes and chunks are verified along with the file, archive or manifest they belong to
+            if (!InPlaceEncryptionService.isJournal(f) && !PackArchive.isVolume(f) && !DedupStore.isChunk(f)) {
+                toVerify.add(f);
+            }
+        }
+
+        // check the password against the first file, so a wrong password is not reported as broken files
+        for (File f : toVerify) {
+            if (!EncryptedFileHeader.isEncryptedFile(f) && !InPlaceEncryptionService.isInPlaceFile(f)) {
+                continue;
+            }
+
+            try {
+                if (!EncryptionService.matchesKey(key, f)) {
+                    outputStream.println(StringProcessing.format(
+                            "The password does not match the file '{0}'. No file has been verified.",
+                            f.getAbsolutePath()
+                    ));
+                    return syso.setSuccess(false)
+                            .build();
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                // the file is malformed, which will be reported as soon as it is verified
+            }
+            break;
+        }
+
+        // the files are verified in parallel, while the results are reported in order
+        Set<File> verifiedChunks = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        List<Future<Outcome>> outcomes = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try {
+            List<Callable<Outcome>> tasks = new ArrayList<>();
+            for (File f : toVerify) {
+                tasks.add(() -> verify(f, key, sample, verifiedChunks));
+            }
+            outcomes = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        int verified = 0;
+        int skipped = 0;
+        int failed = 0;
+        long bytes = 0;
+
+        for (int i = 0; i < toVerify.size(); i++) {
+            Outcome outcome;
+
+            try {
+                outcome = outcomes.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                outcome = new Outcome(State.Failed, 0, e.getMessage());
+            }
+
+            bytes += outcome.bytes;
+
+            switch (outcome.state) {
+                case Verified:
+                    verified++;
+                    break;
+                case Skipped:
+                    skipped++;
+                    outputStream.println(StringProcessing.format(
+                            "File '{0}' is not saved in the container format. In case it has been encrypted by an older version, its data is not authenticated and can thus not be verified.",
+                            toVerify.get(i).getAbsolutePath()
+                    ));
+                    break;
+                default:
+                    failed++;
+                    outputStream.println(StringProcessing.format(
+                            "File '{0}' is broken:\n{1}",
+                            toVerify.get(i).getAbsolutePath(),
+                            outcome.errorMessage
+                    ));
+                    break;
+            }
+        }
+
+        outputStream.println(StringProcessing.format(
+                "Verified {0} files; {1} files have been skipped and {2} files are broken.\nChecked {3} bytes in {4} seconds ({5}).",
+                verified,
+                skipped,
+                failed,
+                bytes,
+                String.format(Locale.ROOT, "%.2f", seconds),
+                CipherSuite.formatThroughput(bytes / seconds)
+        ));
+
+        return syso.setSuccess(failed == 0)
+                .build();
+    }
+
+    /**
+     * This method verifies the given file, and also the volumes or chunks it references
+     * in case it is the index of a packed archive or a manifest of a dedup store.
+     *
+     * @param f              the file to verify
+     * @param key            the secret key the file has been encrypted with
+     * @param sample         the number of segments to authenticate within every file; 0 for all of them
+     * @param verifiedChunks the chunks that have already been verified through another manifest
+     * @return the outcome of the verification
+     */
+    private static Outcome verify(File f, SecretKeySpec key, int sample, Set<File> verifiedChunks) {
+        if (!EncryptedFileHeader.isEncryptedFile(f) && !InPlaceEncryptionService.isInPlaceFile(f)) {
+            return new Outcome(State.Skipped, 0, null);
+        }
+
+        List<File> files = new ArrayList<>();
+        files.add(f);
+
+        try {
+            if (PackArchive.isArchive(f)) {
+                Collections.addAll(files, PackArchive.open(f, key).getVolumeFiles());
+            } else if (DedupStore.isManifest(f)) {
+                for (File chunk : DedupStore.getChunkFiles(key, f)) {
+                    // chunks may be shared by several files, whereas each of them is only verified once
+                    if (verifiedChunks.add(chunk)) {
+                        files.add(chunk);
+                    }
+                }
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            return new Outcome(State.Failed, f.length(), e.getMessage());
+        }
+
+        long bytes = 0;
+
+        for (File file : files) {
+            EncryptionService.FileEncryptionResult result = EncryptionService.verifyFile(key, file, sample, ForkJoinPool.commonPool());
+            bytes += file.length();
+
+            if (!result.isSuccess()) {
+                String message = result.getErrorMessage();
+                if (file != f) {
+                    message = StringProcessing.format("File '{0}' referenced by it is broken:\n{1}", file.getAbsolutePath(), message);
+                }
+                return new Outcome(State.Failed, bytes, message);
+            }
+        }
+
+        return new Outcome(State.Verified, bytes, null);
+    }
+
+    /**
+     * The states a file may end up in after it was to be verified.
+     */
+    private enum State {
+        Verified,
+        Skipped,
+        Failed
+    }
+
+    /**
+     * The outcome of verifying a single file.
+     */
+    private static class Outcome {
+
+        /**
+         * The state the file ended up in.
+         */
+        private final State state;
+        /**
+         * The number of bytes that are covered by the verification of the file.
+         */
+        private final long bytes;
+        /**
+         * The message of the error that occurred, in case the file is broken.
+         */
+        private final String errorMessage;
+
+        /**
+         * Creates the outcome of a file with the given values.
+         *
+         * @param state        the state the file ended up in
+         * @param bytes        the number of bytes that are covered by the verification of the file
+         * @param errorMessage the message of the error that occurred, if any
+         */
+        private Outcome(State state, long bytes, String errorMessage) {
+            this.state = state;
+            this.bytes = bytes;
+            this.errorMessage = errorMessage;
+        }
+    }
+}
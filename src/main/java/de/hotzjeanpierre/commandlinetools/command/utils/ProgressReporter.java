@@ -0,0 +1,337 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils;
+
+import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This class reports the progress of a command processing a known number of files: at a fixed interval
+ * it prints the number of files and bytes done, the throughput in files and bytes per second, and the
+ * estimated time until the command is done.</p>
+ * <p>The counters are {@link LongAdder}s, which are updated by any thread without contention, whereas the
+ * progress is only read by a single timer thread once per interval. Thus the reporter is cheap enough to be
+ * kept on for every command. Apart from the progress the reporter collects the time spent in and the bytes
+ * processed by every {@link Stage}, which are added to the result of the command once it is done.</p>
+ */
+public class ProgressReporter implements Closeable {
+
+    /**
+     * The stages a file goes through while it is processed by a command.
+     */
+    public enum Stage {
+        /**
+         * Listing the files that are to be processed.
+         */
+        List("list"),
+        /**
+         * Reading the files apart from processing them (e.g. hashing them).
+         */
+        Read("read"),
+        /**
+         * En- or decrypting the files.
+         */
+        Crypto("crypto"),
+        /**
+         * Writing the output of the files.
+         */
+        Write("write"),
+        /**
+         * Deleting the source files.
+         */
+        Delete("delete");
+
+        /**
+         * The name of the stage as it is reported.
+         */
+        private final String name;
+
+        /**
+         * Creates a Stage with the given name.
+         *
+         * @param name the name of the stage as it is reported
+         */
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The name of the stage as it is reported
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The stream to print the progress to.
+     */
+    private final PrintStream outputStream;
+    /**
+     * The timer printing the progress, or {@code null} in case the progress is not printed.
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * The number of files that have been processed.
+     */
+    private final LongAdder completedFiles;
+    /**
+     * The number of bytes of the files that have been processed.
+     */
+    private final LongAdder completedBytes;
+    /**
+     * The number of files that have been skipped (or could not be processed).
+     */
+    private final LongAdder skippedFiles;
+    /**
+     * The number of bytes of the files that have been skipped (or could not be processed).
+     */
+    private final LongAdder skippedBytes;
+    /**
+     * The time spent in every stage in nanoseconds, indexed by the ordinal of the stage.
+     */
+    private final LongAdder[] stageNanos;
+    /**
+     * The number of bytes processed by every stage, indexed by the ordinal of the stage.
+     */
+    private final LongAdder[] stageBytes;
+    /**
+     * The total number of files that are to be processed, or -1 as long as it is unknown.
+     */
+    private volatile long totalFiles;
+    /**
+     * The total number of bytes that are to be processed.
+     */
+    private volatile long totalBytes;
+    /**
+     * The time the processing of the files has started at (as of {@link System#nanoTime()}).
+     */
+    private volatile long start;
+
+    /**
+     * Creates a ProgressReporter printing the progress to the given stream every given number of seconds.
+     * The progress is printed as soon as the total number of files is known.
+     *
+     * @param outputStream the stream to print the progress to
+     * @param interval     the number of seconds between two reports, or 0 to not print the progress at all
+     */
+    public ProgressReporter(@NotNull PrintStream outputStream, int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException(StringProcessing.format(
+                    "The interval of the progress has to be positive, or 0 to not report it ({0}).",
+                    interval
+            ));
+        }
+
+        this.outputStream = outputStream;
+        this.completedFiles = new LongAdder();
+        this.completedBytes = new LongAdder();
+        this.skippedFiles = new LongAdder();
+        this.skippedBytes = new LongAdder();
+        this.stageNanos = new LongAdder[Stage.values().length];
+        this.stageBytes = new LongAdder[Stage.values().length];
+        this.totalFiles = -1;
+        this.totalBytes = 0;
+        this.start = System.nanoTime();
+
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+            stageBytes[i] = new LongAdder();
+        }
+
+        if (interval > 0) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.timer.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * @return Whether the progress is printed
+     */
+    public boolean isActive() {
+        return timer != null;
+    }
+
+    /**
+     * This method sets the total number of files (and bytes) that are to be processed,
+     * and starts measuring the throughput.
+     *
+     * @param files the total number of files
+     * @param bytes the total number of bytes of the files
+     */
+    public void setTotal(long files, long bytes) {
+        this.totalBytes = bytes;
+        this.start = System.nanoTime();
+        this.totalFiles = files;
+    }
+
+    /**
+     * This method counts a file that has been processed.
+     *
+     * @param bytes the number of bytes of the file
+     */
+    public void completed(long bytes) {
+        completedFiles.increment();
+        completedBytes.add(bytes);
+    }
+
+    /**
+     * This method counts a file that has been skipped or could not be processed. It counts towards the
+     * progress, but not towards the throughput.
+     *
+     * @param bytes the number of bytes of the file
+     */
+    public void skipped(long bytes) {
+        skippedFiles.increment();
+        skippedBytes.add(bytes);
+    }
+
+    /**
+     * This method records time spent in the given stage.
+     *
+     * @param stage the stage the time has been spent in
+     * @param nanos the time spent in nanoseconds
+     * @param bytes the number of bytes processed in that time
+     */
+    public void record(@NotNull Stage stage, long nanos, long bytes) {
+        stageNanos[stage.ordinal()].add(nanos);
+        stageBytes[stage.ordinal()].add(bytes);
+    }
+
+    /**
+     * This method records the time since the given start as time spent in the given stage.
+     *
+     * @param stage the stage the time has been spent in
+     * @param start the time the stage has been entered at (as of {@link System#nanoTime()})
+     * @param bytes the number of bytes processed in that time
+     */
+    public void recordSince(@NotNull Stage stage, long start, long bytes) {
+        record(stage, System.nanoTime() - start, bytes);
+    }
+
+    /**
+     * @param stage the stage to get the time of
+     * @return The time spent in the given stage in nanoseconds
+     */
+    public long getNanos(@NotNull Stage stage) {
+        return stageNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage the stage to get the number of bytes of
+     * @return The number of bytes processed by the given stage
+     */
+    public long getBytes(@NotNull Stage stage) {
+        return stageBytes[stage.ordinal()].sum();
+    }
+
+    /**
+     * This method adds the totals of every stage to the given result.
+     *
+     * @param syso the builder of the result of the command
+     * @return the given builder for method chaining
+     */
+    @NotNull
+    public CommandExecutionResult.Builder addStageTotals(@NotNull CommandExecutionResult.Builder syso) {
+        for (Stage stage : Stage.values()) {
+            syso.addStageTotal(stage.getName(), getNanos(stage), getBytes(stage));
+        }
+        return syso;
+    }
+
+    /**
+     * This method stops printing the progress, whereas the final progress is printed once more.
+     */
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            report();
+        }
+    }
+
+    /**
+     * This method prints the current progress, unless the total number of files is not known yet.
+     */
+    private void report() {
+        if (totalFiles >= 0) {
+            outputStream.println(format(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * This method formats the current progress.
+     *
+     * @param elapsed the time since the processing of the files has started in nanoseconds
+     * @return the formatted progress
+     */
+    @NotNull
+    /* package-protected */ String format(long elapsed) {
+        long processedFiles = completedFiles.sum();
+        long processedBytes = completedBytes.sum();
+        long doneFiles = processedFiles + skippedFiles.sum();
+        long doneBytes = processedBytes + skippedBytes.sum();
+
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        double filesPerSecond = processedFiles / seconds;
+        double bytesPerSecond = processedBytes / seconds;
+
+        double done = (totalBytes > 0)
+                ? Math.min(1, (double) doneBytes / totalBytes)
+                : ((totalFiles > 0) ? Math.min(1, (double) doneFiles / totalFiles) : 1);
+
+        // the remaining time is estimated by the bytes, unless there are none to estimate it by
+        long eta;
+        if (done >= 1) {
+            eta = 0;
+        } else if (totalBytes > 0 && processedBytes > 0) {
+            eta = (long) ((totalBytes - doneBytes) / bytesPerSecond);
+        } else if (processedFiles > 0) {
+            eta = (long) ((totalFiles - doneFiles) / filesPerSecond);
+        } else {
+            eta = -1;
+        }
+
+        return StringProcessing.format(
+                "Progress: {0} of {1} files, {2} of {3} MiB ({4}%), {5} files/s, {6} MiB/s, ETA {7}",
+                doneFiles,
+                totalFiles,
+                String.format(Locale.ROOT, "%.1f", doneBytes / (1024.0 * 1024)),
+                String.format(Locale.ROOT, "%.1f", totalBytes / (1024.0 * 1024)),
+                String.format(Locale.ROOT, "%.1f", done * 100),
+                String.format(Locale.ROOT, "%.1f", filesPerSecond),
+                String.format(Locale.ROOT, "%.1f", bytesPerSecond / (1024 * 1024)),
+                (eta >= 0)
+                        ? String.format(Locale.ROOT, "%d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60)
+                        : "unknown"
+        );
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>A Catalog is kept within an output folder of the 'encrypt'-command, and maps the names
+ * of the original files to the encrypted files containing them, along with their lengths and
+ * hashes. Thus single files can be found and restored without decrypting any other file,
+ * whereas the catalog itself is encrypted, so it does not reveal any name.</p>
+ * <p>The catalog is saved in the container format of {@link SegmentedEncryptionService},
+ * whereas its plaintext is laid out as follows:</p>
+ * <pre>
+ * [int entry count]([int name length][name][int output length][output][long length][int hash length][hash])*
+ * </pre>
+ * <p>The output files are saved relative to the folder of the catalog, so the folder
+ * may be moved as a whole. A catalog is not safe for use by multiple threads.</p>
+ */
+public class Catalog {
+
+    /**
+     * The name of the catalog within its folder.
+     */
+    public static final String FILE_NAME = "catalog.encl";
+    /**
+     * The length of the hashes of the original files.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * The charset used to encode the names of the files.
+     */
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The size of the buffer used to hash files.
+     */
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The folder of this catalog.
+     */
+    private final File folder;
+    /**
+     * The secret key this catalog is encrypted with.
+     */
+    private final SecretKeySpec key;
+    /**
+     * The entries of this catalog, grouped by the (relative path of the) output file containing them.
+     */
+    private final Map<String, List<Entry>> entries;
+    /**
+     * The cipher suite the catalog has been encrypted with, or {@code null} in case it has not been saved yet.
+     */
+    private final CipherSuite suite;
+
+    /**
+     * Creates a catalog with the given values.
+     *
+     * @param folder  the folder of the catalog
+     * @param key     the secret key the catalog is encrypted with
+     * @param entries the entries of the catalog
+     * @param suite   the cipher suite the catalog has been encrypted with
+     */
+    private Catalog(File folder, SecretKeySpec key, Map<String, List<Entry>> entries, CipherSuite suite) {
+        this.folder = folder;
+        this.key = key;
+        this.entries = entries;
+        this.suite = suite;
+    }
+
+    /**
+     * This method gives you the file of the catalog within the given folder.
+     *
+     * @param folder the folder of the catalog
+     * @return the file of the catalog
+     */
+    @NotNull
+    public static File getFile(@NotNull File folder) {
+        return new File(folder, FILE_NAME);
+    }
+
+    /**
+     * This method determines whether the given file is a catalog.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is a catalog
+     */
+    public static boolean isCatalog(@NotNull File f) {
+        return EncryptedFileHeader.hasFlags(f, EncryptedFileHeader.FLAG_CATALOG);
+    }
+
+    /**
+     * This method opens the catalog of the given folder, or creates an empty one in case
+     * the folder does not contain a catalog yet. The catalog is not written until it is saved.
+     *
+     * @param key    the secret key the catalog is encrypted with
+     * @param folder the folder of the catalog
+     * @return the catalog of the folder
+     * @throws IOException              in case the catalog could not be read or is malformed
+     * @throws GeneralSecurityException in case the catalog could not be decrypted (e.g. the key was wrong)
+     */
+    @NotNull
+    public static Catalog open(@NotNull SecretKeySpec key, @NotNull File folder)
+            throws IOException, GeneralSecurityException {
+        File file = getFile(folder);
+
+        if (!file.exists()) {
+            return new Catalog(folder, key, new LinkedHashMap<>(), null);
+        }
+
+        byte[] data;
+        CipherSuite suite;
+
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, new EncryptionContext(key));
+
+            if (header.getFlags() != EncryptedFileHeader.FLAG_CATALOG) {
+                throw new IOException(StringProcessing.format(
+                        "The file '{0}' is not a catalog.",
+                        file.getAbsolutePath()
+                ));
+            }
+
+            suite = header.getCipherSuite();
+            try {
+                data = SegmentedEncryptionService.decryptData(header, input, ForkJoinPool.commonPool());
+            } catch (IOException | GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("The catalog could not be decrypted.", e);
+            }
+        }
+
+        try {
+            return new Catalog(folder, key, decode(ByteBuffer.wrap(data)), suite);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("The catalog is malformed.", e);
+        }
+    }
+
+    /**
+     * This method decodes the given plaintext of a catalog.
+     *
+     * @param data the plaintext of the catalog
+     * @return the entries of the catalog
+     * @throws IOException in case the catalog is malformed
+     */
+    private static Map<String, List<Entry>> decode(ByteBuffer data) throws IOException {
+        int count = data.getInt();
+        if (count < 0) {
+            throw new IOException("The catalog is malformed.");
+        }
+
+        Map<String, List<Entry>> entries = new LinkedHashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            String name = decodeString(data);
+            String output = decodeString(data);
+            long length = data.getLong();
+            byte[] hash = new byte[data.getInt()];
+            data.get(hash);
+
+            if (length < 0 || (hash.length != 0 && hash.length != HASH_LENGTH)) {
+                throw new IOException("The catalog is malformed.");
+            }
+
+            entries.computeIfAbsent(output, o -> new ArrayList<>())
+                    .add(new Entry(name, output, length, hash));
+        }
+
+        if (data.hasRemaining()) {
+            throw new IOException("The catalog is malformed.");
+        }
+
+        return entries;
+    }
+
+    /**
+     * @param data the buffer to read the string from
+     * @return the (length-prefixed) string read from the buffer
+     */
+    private static String decodeString(ByteBuffer data) {
+        byte[] string = new byte[data.getInt()];
+        data.get(string);
+        return new String(string, NAME_CHARSET);
+    }
+
+    /**
+     * This method records that the given output file contains the given original file.
+     *
+     * @param output the encrypted file containing the original file
+     * @param name   the name of the original file, relative to the folder it has been encrypted from
+     * @param length the length of the original file
+     * @param hash   the SHA-256 hash of the original file; empty in case it is unknown
+     */
+    public void add(@NotNull File output, @NotNull String name, long length, @NotNull byte[] hash) {
+        String relative = CommonFileUtilities.extractRelativePath(output, folder);
+
+        entries.computeIfAbsent(relative, o -> new ArrayList<>())
+                .add(new Entry(name, relative, length, hash));
+    }
+
+    /**
+     * This method removes every entry contained by the given output file, e.g. since
+     * it is about to be overwritten or has been deleted.
+     *
+     * @param output the encrypted file whose entries are to be removed
+     */
+    public void remove(@NotNull File output) {
+        entries.remove(CommonFileUtilities.extractRelativePath(output, folder));
+    }
+
+    /**
+     * @return Whether this catalog does not contain any entry
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return The entries of this catalog in the order they have been added in
+     */
+    @NotNull
+    public List<Entry> getEntries() {
+        List<Entry> all = new ArrayList<>();
+        for (List<Entry> group : entries.values()) {
+            all.addAll(group);
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * This method finds the entries whose original name matches the given glob pattern
+     * (e.g. {@code docs/*.pdf} or {@code docs/report.pdf}), whereas the name is matched
+     * relative to the folder it has been encrypted from.
+     *
+     * @param pattern the glob pattern to match the names against
+     * @return the matching entries in the order they have been added in
+     * @throws IllegalArgumentException in case the pattern is invalid
+     */
+    @NotNull
+    public List<Entry> find(@NotNull String pattern) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<Entry> found = new ArrayList<>();
+
+        for (List<Entry> group : entries.values()) {
+            for (Entry entry : group) {
+                try {
+                    if (matcher.matches(Paths.get(entry.getRelativeName()))) {
+                        found.add(entry);
+                    }
+                } catch (InvalidPathException e) {
+                    // a name that is not valid on this platform cannot be matched
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * This method gives you the encrypted file containing the given entry.
+     *
+     * @param entry the entry
+     * @return the encrypted file containing the entry
+     */
+    @NotNull
+    public File getOutputFile(@NotNull Entry entry) {
+        return new File(folder, entry.output);
+    }
+
+    /**
+     * This method (atomically) writes this catalog into its folder with the cipher suite it has
+     * been encrypted with before, or deletes its file in case it is empty.
+     *
+     * @throws IOException              in case the catalog could not be written
+     * @throws GeneralSecurityException in case the catalog could not be encrypted
+     * @see #save(CipherSuite)
+     */
+    public void save() throws IOException, GeneralSecurityException {
+        save((suite != null) ? suite : CipherSuite.getFastest());
+    }
+
+    /**
+     * This method (atomically) writes this catalog into its folder, or deletes its file in case it is empty.
+     *
+     * @param suite the cipher suite to encrypt the catalog with
+     * @throws IOException              in case the catalog could not be written
+     * @throws GeneralSecurityException in case the catalog could not be encrypted
+     */
+    public void save(@NotNull CipherSuite suite) throws IOException, GeneralSecurityException {
+        File file = getFile(folder);
+
+        if (entries.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+
+        byte[] data = encode();
+        byte[] nonce = new byte[8];
+        sRandom.nextBytes(nonce);
+
+        EncryptedFileHeader header = new EncryptedFileHeader(
+                suite,
+                EncryptedFileHeader.FLAG_CATALOG,
+                SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE,
+                data.length,
+                nonce,
+                FILE_NAME
+        );
+
+        // the catalog is written next to the old one and replaces it as a whole
+        File temporary = new File(folder, FILE_NAME + ".tmp");
+
+        try {
+            try (FileChannel output = FileChannel.open(
+                    temporary.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                SegmentedEncryptionService.encryptData(
+                        header, data, output,
+                        SegmentedEncryptionService.createContexts(key), ForkJoinPool.commonPool()
+                );
+                output.force(true);
+            }
+
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            SegmentedEncryptionService.deletePartialOutput(temporary);
+            throw e;
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(temporary);
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the plaintext of this catalog
+     */
+    private byte[] encode() {
+        List<byte[]> strings = new ArrayList<>();
+        long length = 4;
+
+        for (List<Entry> group : entries.values()) {
+            for (Entry entry : group) {
+                byte[] name = entry.name.getBytes(NAME_CHARSET);
+                byte[] output = entry.output.getBytes(NAME_CHARSET);
+                strings.add(name);
+                strings.add(output);
+                length += 4 + name.length + 4 + output.length + 8 + 4 + entry.hash.length;
+            }
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The catalog has become too big.");
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        data.putInt(strings.size() / 2);
+
+        int i = 0;
+        for (List<Entry> group : entries.values()) {
+            for (Entry entry : group) {
+                data.putInt(strings.get(i).length).put(strings.get(i++))
+                        .putInt(strings.get(i).length).put(strings.get(i++))
+                        .putLong(entry.length)
+                        .putInt(entry.hash.length).put(entry.hash);
+            }
+        }
+
+        return data.array();
+    }
+
+    /**
+     * This method computes the SHA-256 hash of the given file.
+     *
+     * @param f the file to hash
+     * @return the hash of the file
+     * @throws IOException in case the file could not be read
+     */
+    @NotNull
+    public static byte[] hash(@NotNull File f) throws IOException {
+        MessageDigest sha256;
+
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        try (FileChannel input = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return sha256.digest();
+    }
+
+    /**
+     * A single original file recorded within a catalog.
+     */
+    public static class Entry {
+
+        /**
+         * The name of the original file, relative to the folder it has been encrypted from.
+         */
+        private final String name;
+        /**
+         * The path of the encrypted file containing the original file, relative to the folder of the catalog.
+         */
+        private final String output;
+        /**
+         * The length of the original file.
+         */
+        private final long length;
+        /**
+         * The SHA-256 hash of the original file; empty in case it is unknown.
+         */
+        private final byte[] hash;
+
+        /**
+         * Creates an entry with the given values.
+         *
+         * @param name   the name of the original file
+         * @param output the relative path of the encrypted file
+         * @param length the length of the original file
+         * @param hash   the hash of the original file
+         */
+        private Entry(String name, String output, long length, byte[] hash) {
+            this.name = name;
+            this.output = output;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * @return The name of the original file, relative to the folder it has been encrypted from
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The name of the original file without its leading separator
+         */
+        private String getRelativeName() {
+            return name.startsWith(File.separator) ? name.substring(File.separator.length()) : name;
+        }
+
+        /**
+         * @return The length of the original file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The SHA-256 hash of the original file, or {@code null} in case it is unknown
+         */
+        @Nullable
+        public byte[] getHash() {
+            return hash.length != 0 ? hash.clone() : null;
+        }
+
+        @Override
+        public String toString() {
+            return StringProcessing.format("{0} ({1} bytes) in {2}", name, length, output);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <p>This enum defines the cipher suites the segments (and the metadata) of a file in the
+ * container format of {@link SegmentedEncryptionService} may be encrypted with. The suite
+ * used to encrypt a file is recorded in its header, so any file can be decrypted regardless
+ * of the suite that is currently preferred.</p>
+ * <p>Every suite authenticates the data it encrypts and produces a tag of {@link #TAG_LENGTH}
+ * bytes, whereas the layout of the container does not depend on the suite. Since the suites
+ * perform very differently depending on the JVM and the CPU (e.g. whether AES is accelerated
+ * by the hardware), the fastest available suite is determined by measuring the throughput
+ * of every suite once it is first needed (see {@link #getFastest()}).</p>
+ */
+public enum CipherSuite {
+
+    /**
+     * AES in Galois/Counter mode. This suite uses the secret key as it is.
+     */
+    AesGcm((byte) 1, "aes-gcm") {
+        @Override
+        /* package-protected */ SegmentCipher createSegmentCipher(SecretKeySpec key) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+            return (encrypt, nonce, aad, src, dst) -> {
+                cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+                cipher.updateAAD(aad);
+                return cipher.doFinal(src, dst);
+            };
+        }
+    },
+
+    /**
+     * AES in counter mode, whereas the ciphertext is authenticated with HMAC-SHA256
+     * (encrypt-then-MAC). The keys for encryption and authentication are derived from the secret key.
+     */
+    AesCtr((byte) 2, "aes-ctr") {
+        @Override
+        /* package-protected */ SegmentCipher createSegmentCipher(SecretKeySpec key) throws GeneralSecurityException {
+            SecretKeySpec encryptionKey = new SecretKeySpec(deriveKey(key, "aes-ctr encryption", 16), "AES");
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(deriveKey(key, "aes-ctr authentication", 32), "HmacSHA256"));
+
+            return (encrypt, nonce, aad, src, dst) -> {
+                // the counter of every segment starts at zero within the last four bytes of the iv
+                cipher.init(
+                        encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                        encryptionKey,
+                        new IvParameterSpec(Arrays.copyOf(nonce, 16))
+                );
+
+                if (encrypt) {
+                    ByteBuffer ciphertext = dst.duplicate();
+                    int length = cipher.doFinal(src, dst);
+
+                    ciphertext.limit(ciphertext.position() + length);
+                    dst.put(computeTag(mac, nonce, aad, ciphertext));
+                    return length + TAG_LENGTH;
+                }
+
+                if (src.remaining() < TAG_LENGTH) {
+                    throw new AEADBadTagException("The data is too short to contain a tag.");
+                }
+
+                ByteBuffer ciphertext = src.duplicate();
+                ciphertext.limit(src.limit() - TAG_LENGTH);
+                byte[] tag = new byte[TAG_LENGTH];
+                ((ByteBuffer) src.duplicate().position(ciphertext.limit())).get(tag);
+
+                // the ciphertext is only decrypted after it has been verified
+                if (!MessageDigest.isEqual(tag, computeTag(mac, nonce, aad, ciphertext.duplicate()))) {
+                    throw new AEADBadTagException("Tag mismatch!");
+                }
+
+                int length = cipher.doFinal(ciphertext, dst);
+                src.position(src.limit());
+                return length;
+            };
+        }
+    },
+
+    /**
+     * ChaCha20 with Poly1305 as authenticator. Since this suite needs a 256 bit key, said key
+     * is derived from the secret key. This suite is only available on Java 11 or newer.
+     */
+    ChaCha20Poly1305((byte) 3, "chacha20-poly1305") {
+        @Override
+        /* package-protected */ SegmentCipher createSegmentCipher(SecretKeySpec key) throws GeneralSecurityException {
+            SecretKeySpec derivedKey = new SecretKeySpec(deriveKey(key, "chacha20-poly1305", 32), "ChaCha20");
+            Cipher[] cipher = {Cipher.getInstance("ChaCha20-Poly1305")};
+            byte[][] lastNonce = {null};
+
+            return (encrypt, nonce, aad, src, dst) -> {
+                // the provider refuses to be initialized with the nonce of its previous initialization
+                // (even for decryption), whereas the same segment may well be decrypted several times
+                if (Arrays.equals(nonce, lastNonce[0])) {
+                    cipher[0] = Cipher.getInstance("ChaCha20-Poly1305");
+                }
+                lastNonce[0] = nonce.clone();
+
+                cipher[0].init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, derivedKey, new IvParameterSpec(nonce));
+                cipher[0].updateAAD(aad);
+                return cipher[0].doFinal(src, dst);
+            };
+        }
+    };
+
+    /**
+     * The length of the tag every suite appends to the data it encrypts.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The size of the data encrypted repeatedly to measure the throughput of a suite.
+     */
+    private static final int PROBE_DATA_SIZE = 256 * 1024;
+    /**
+     * The time in milliseconds a suite is warmed up before its throughput is measured.
+     */
+    private static final long PROBE_WARMUP_MILLIS = 20;
+    /**
+     * The time in milliseconds the throughput of a suite is measured for.
+     */
+    private static final long PROBE_MEASURE_MILLIS = 40;
+
+    /**
+     * The identifier of this suite recorded in the header of encrypted files.
+     */
+    private final byte id;
+    /**
+     * The name of this suite used by commands.
+     */
+    private final String displayName;
+    /**
+     * Whether this suite is available on the current JVM; determined as soon as it is needed.
+     */
+    private volatile Boolean available;
+
+    CipherSuite(byte id, String displayName) {
+        this.id = id;
+        this.displayName = displayName;
+    }
+
+    /**
+     * @return The identifier of this suite recorded in the header of encrypted files
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return The name of this suite used by commands
+     */
+    @NotNull
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * This method determines whether this suite is available on the current JVM,
+     * by encrypting and decrypting some data with it.
+     *
+     * @return whether this suite is available
+     */
+    public boolean isAvailable() {
+        if (available == null) {
+            try {
+                SegmentCipher cipher = createSegmentCipher(new SecretKeySpec(new byte[16], "AES"));
+
+                ByteBuffer sealed = ByteBuffer.allocate(1 + TAG_LENGTH);
+                cipher.process(true, new byte[12], new byte[1], ByteBuffer.allocate(1), sealed);
+                sealed.flip();
+                cipher.process(false, new byte[12], new byte[1], sealed, ByteBuffer.allocate(1));
+
+                available = true;
+            } catch (GeneralSecurityException | RuntimeException e) {
+                available = false;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * This method measures the throughput of this suite on the current JVM by encrypting
+     * the same data repeatedly on the current thread for the given time.
+     *
+     * @param dataSize       the number of bytes encrypted at once
+     * @param durationMillis the time in milliseconds to measure the throughput for
+     * @return the throughput in bytes per second
+     * @throws GeneralSecurityException in case this suite is not available
+     */
+    public double measureThroughput(int dataSize, long durationMillis) throws GeneralSecurityException {
+        SegmentCipher cipher = createSegmentCipher(new SecretKeySpec(new byte[16], "AES"));
+
+        ByteBuffer plain = ByteBuffer.allocateDirect(dataSize);
+        ByteBuffer sealed = ByteBuffer.allocateDirect(dataSize + TAG_LENGTH);
+        byte[] aad = new byte[1];
+        byte[] nonce = new byte[12];
+
+        long processed = 0;
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000L;
+        long now;
+
+        do {
+            // the nonce may not be reused, since some providers refuse to encrypt with a nonce twice
+            ByteBuffer.wrap(nonce).putLong(4, processed);
+
+            plain.clear();
+            sealed.clear();
+            cipher.process(true, nonce, aad, plain, sealed);
+            processed += dataSize;
+
+            now = System.nanoTime();
+        } while (now < end);
+
+        return processed * 1e9 / (now - start);
+    }
+
+    /**
+     * This method creates a cipher for this suite, that en- or decrypts segments with the given key.
+     *
+     * @param key the secret key to use
+     * @return the cipher for this suite
+     * @throws GeneralSecurityException in case this suite is not available
+     */
+    /* package-protected */ abstract SegmentCipher createSegmentCipher(SecretKeySpec key) throws GeneralSecurityException;
+
+    /**
+     * This method gives you the suite with the given identifier.
+     *
+     * @param id the identifier of the suite
+     * @return the suite with the given identifier, or {@code null} in case there is none
+     */
+    @Nullable
+    public static CipherSuite fromId(byte id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method gives you the suite with the given (case insensitive) name.
+     *
+     * @param name the name of the suite
+     * @return the suite with the given name, or {@code null} in case there is none
+     */
+    @Nullable
+    public static CipherSuite fromName(@NotNull String name) {
+        for (CipherSuite suite : values()) {
+            if (suite.displayName.equals(name.toLowerCase(Locale.ROOT))) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method gives you the fastest suite available on the current JVM. The throughput of every
+     * available suite is measured once this method is first called, which takes some milliseconds.
+     *
+     * @return the fastest available suite
+     */
+    @NotNull
+    public static CipherSuite getFastest() {
+        return ProbeResult.FASTEST;
+    }
+
+    /**
+     * @return a listing of the names of all the suites (and whether they are available)
+     */
+    @NotNull
+    public static String listNames() {
+        StringBuilder builder = new StringBuilder();
+        for (CipherSuite suite : values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(suite.displayName);
+            if (!suite.isAvailable()) {
+                builder.append(" (not available)");
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+
+    /**
+     * This method formats the given throughput for humans.
+     *
+     * @param bytesPerSecond the throughput in bytes per second
+     * @return the formatted throughput
+     */
+    @NotNull
+    public static String formatThroughput(double bytesPerSecond) {
+        return StringProcessing.format("{0} MiB/s", String.format(Locale.ROOT, "%.1f", bytesPerSecond / (1024 * 1024)));
+    }
+
+    /**
+     * This method derives a key of the given length for the given purpose from the given secret key,
+     * so the secret key itself is only ever used by a single suite.
+     *
+     * @param key    the secret key
+     * @param info   the purpose of the derived key
+     * @param length the length of the derived key (at most 32)
+     * @return the derived key
+     * @throws GeneralSecurityException in case the key could not be derived
+     */
+    private static byte[] deriveKey(SecretKeySpec key, String info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return Arrays.copyOf(mac.doFinal(info.getBytes(Charset.forName("UTF-8"))), length);
+    }
+
+    /**
+     * This method computes the (truncated) tag of the given ciphertext.
+     *
+     * @param mac        the initialized mac
+     * @param nonce      the nonce used to encrypt the data
+     * @param aad        the additional data to authenticate
+     * @param ciphertext the ciphertext to authenticate; will be consumed
+     * @return the tag
+     */
+    private static byte[] computeTag(Mac mac, byte[] nonce, byte[] aad, ByteBuffer ciphertext) {
+        mac.update(nonce);
+        mac.update(ByteBuffer.allocate(4).putInt(aad.length).array());
+        mac.update(aad);
+        mac.update(ciphertext);
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    /**
+     * This class holds the result of the throughput probe, which is thus only run
+     * once this class is first accessed.
+     */
+    private static final class ProbeResult {
+
+        /**
+         * The fastest suite available on the current JVM.
+         */
+        private static final CipherSuite FASTEST = probe();
+
+        /**
+         * @return the fastest suite available on the current JVM
+         */
+        private static CipherSuite probe() {
+            CipherSuite fastest = AesGcm;
+            double best = 0;
+
+            for (CipherSuite suite : values()) {
+                if (!suite.isAvailable()) {
+                    continue;
+                }
+
+                try {
+                    suite.measureThroughput(PROBE_DATA_SIZE, PROBE_WARMUP_MILLIS);
+                    double throughput = suite.measureThroughput(PROBE_DATA_SIZE, PROBE_MEASURE_MILLIS);
+
+                    if (throughput > best) {
+                        best = throughput;
+                        fastest = suite;
+                    }
+                } catch (GeneralSecurityException e) {
+                    // the suite is not usable after all, whereas it is simply not chosen
+                }
+            }
+
+            return fastest;
+        }
+    }
+
+    /**
+     * A cipher that en- or decrypts segments with a specific suite and key.
+     * A SegmentCipher is not thread-safe.
+     */
+    /* package-protected */ interface SegmentCipher {
+
+        /**
+         * This method en- or decrypts the remaining bytes of the given source buffer
+         * into the given destination buffer.
+         *
+         * @param encrypt whether to encrypt (and append the tag) or to decrypt (and verify the tag)
+         * @param nonce   the (unique) nonce of the data; 12 bytes long
+         * @param aad     the additional data to authenticate with the data
+         * @param src     the buffer containing the data
+         * @param dst     the buffer to write the result to
+         * @return the number of bytes written to the destination buffer
+         * @throws GeneralSecurityException in case the data could not be processed or has been tampered with
+         */
+        int process(boolean encrypt, byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst)
+                throws GeneralSecurityException;
+    }
+}
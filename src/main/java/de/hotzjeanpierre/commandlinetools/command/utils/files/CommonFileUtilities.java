@@ -16,12 +16,14 @@
 
 package de.hotzjeanpierre.commandlinetools.command.utils.files;
 
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Locale;
 
 /**
  * This class contains several methods that can help you on
@@ -156,6 +158,23 @@ public class CommonFileUtilities {
         return f.substring(0, index + 1);
     }
 
+    /**
+     * This method extracts the path of the given file relative to the given folder.
+     * The returned path will start with a separator, as long as the given file
+     * actually lies within the given folder.
+     *
+     * @param f          the file to extract the relative path of
+     * @param relativeTo the folder the extracted path is to be relative to
+     * @return the path of the given file relative to the given folder
+     */
+    @NotNull
+    public static String extractRelativePath(@NotNull File f, @NotNull File relativeTo) {
+        return f.getAbsolutePath().substring(
+                relativeTo.getAbsolutePath().length(),
+                f.getAbsolutePath().length()
+        );
+    }
+
     /**
      * This method extracts the file name with its extension from the given file.
      *
@@ -183,6 +202,30 @@ public class CommonFileUtilities {
         }
     }
 
+    /**
+     * This method formats the given size for humans.
+     *
+     * @param size the size in bytes
+     * @return the formatted size
+     */
+    @NotNull
+    public static String formatSize(long size) {
+        String[] units = {"bytes", "KiB", "MiB", "GiB", "TiB"};
+        int unit = 0;
+        double value = size;
+
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+
+        return StringProcessing.format(
+                "{0} {1}",
+                (value == Math.rint(value)) ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.1f", value),
+                units[unit]
+        );
+    }
+
     /**
      * This method determines whether a specific extension is to be filtered.
      *
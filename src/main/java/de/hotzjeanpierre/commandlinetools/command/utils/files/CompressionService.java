@@ -0,0 +1,192 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>This class compresses data before it is encrypted, since encrypted data cannot be
+ * compressed anymore. The data is compressed with Deflate on the fastest level, since
+ * the compression is supposed to reduce the number of bytes written rather than to produce
+ * the smallest possible output.</p>
+ * <p>Since compressing data that is already compressed (e.g. images, videos or archives)
+ * is a waste of time, this class also estimates whether a file is worth compressing by its
+ * extension and the entropy of its first block.</p>
+ */
+public class CompressionService {
+
+    /**
+     * The number of bytes read from the start of a file to estimate its entropy.
+     */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    /**
+     * The entropy (in bits per byte) from which on data is considered to be incompressible.
+     */
+    public static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+
+    /**
+     * The extensions of files that are known to be compressed already.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "m4a",
+            "mp4", "mkv", "avi", "mov", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "zst",
+            "docx", "xlsx", "pptx", "odt", "pdf",
+            "encr", "encv"
+    ));
+
+    /**
+     * This method determines whether the given file is worth compressing. Files with the extension
+     * of a compressed format are never compressed, whereas the entropy of the first
+     * {@link #SAMPLE_SIZE} bytes of any other file has to be lower than {@link #MAX_COMPRESSIBLE_ENTROPY}.
+     *
+     * @param f the file to check
+     * @return whether the given file is worth compressing
+     * @throws IOException in case the file could not be read
+     */
+    public static boolean isWorthCompressing(@NotNull File f) throws IOException {
+        String extension = CommonFileUtilities.extractFileExtension(f);
+
+        if (extension == null || COMPRESSED_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+            SegmentedEncryptionService.readFully(channel, sample, 0);
+
+            return sample.capacity() > 0
+                    && estimateEntropy(sample.array(), 0, sample.capacity()) < MAX_COMPRESSIBLE_ENTROPY;
+        }
+    }
+
+    /**
+     * This method estimates the (Shannon) entropy of the given data by the distribution of its bytes.
+     *
+     * @param data   the array containing the data
+     * @param offset the start of the data within the array
+     * @param length the length of the data
+     * @return the entropy in bits per byte (between 0 and 8)
+     */
+    public static double estimateEntropy(@NotNull byte[] data, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * This method compresses the given data into the given array. In case the compressed
+     * data would not be smaller than the original data, the compression is abandoned.
+     *
+     * @param src    the array containing the data to compress
+     * @param length the length of the data to compress
+     * @param dst    the array to write the compressed data to; should be as big as the data to compress
+     * @return the length of the compressed data, or {@code -1} in case the data is not compressible
+     */
+    public static int compress(@NotNull byte[] src, int length, @NotNull byte[] dst) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setInput(src, 0, length);
+            deflater.finish();
+
+            int limit = Math.min(length, dst.length);
+            int written = 0;
+
+            while (!deflater.finished() && written < limit) {
+                written += deflater.deflate(dst, written, limit - written);
+            }
+
+            return deflater.finished() && written < length ? written : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * This method decompresses the given data, which has to decompress into exactly
+     * the given number of bytes.
+     *
+     * @param src      the array containing the compressed data
+     * @param offset   the start of the compressed data within the array
+     * @param length   the length of the compressed data
+     * @param dst      the array to write the decompressed data to
+     * @param expected the number of bytes the data has to decompress into
+     * @throws IOException in case the data is malformed or does not decompress into the expected number of bytes
+     */
+    public static void decompress(@NotNull byte[] src, int offset, int length, @NotNull byte[] dst, int expected)
+            throws IOException {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(src, offset, length);
+
+            byte[] overflow = new byte[1];
+            int written = 0;
+
+            while (!inflater.finished()) {
+                int inflated = (written < expected)
+                        ? inflater.inflate(dst, written, expected - written)
+                        : inflater.inflate(overflow);
+
+                // the data may neither decompress into more bytes than expected, nor end prematurely
+                if ((written == expected && inflated > 0)
+                        || (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))) {
+                    throw new IOException("The compressed data is malformed.");
+                }
+                written += inflated;
+            }
+
+            if (written != expected) {
+                throw new IOException("The compressed data is malformed.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The compressed data is malformed.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
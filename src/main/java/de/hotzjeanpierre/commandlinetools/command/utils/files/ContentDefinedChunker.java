@@ -0,0 +1,120 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>A ContentDefinedChunker splits data into chunks whose boundaries are determined by
+ * their content (through a rolling gear hash, as used by FastCDC) instead of their position.
+ * Thus data that is inserted into or removed from a file only changes the chunks around it,
+ * whereas all the other chunks stay the same and can be reused by a {@link DedupStore}.</p>
+ * <p>A boundary is placed after every byte at which the lowest bits of the hash are zero,
+ * whereas the chunks are at least {@link #MIN_CHUNK_SIZE} and at most {@link #MAX_CHUNK_SIZE}
+ * bytes long, and are {@link #AVERAGE_CHUNK_SIZE} bytes long on average. Since the hash is
+ * shifted by one bit per byte, it only depends on the last 64 bytes.</p>
+ * <p>The table of the gear hash is derived from a secret key, so the boundaries of the
+ * chunks do not reveal anything about the content of a file.</p>
+ */
+/* package-protected */ class ContentDefinedChunker {
+
+    /**
+     * The minimum length of a chunk (unless it is the last chunk of a file).
+     */
+    /* package-protected */ static final int MIN_CHUNK_SIZE = 512 * 1024;
+    /**
+     * The average length of a chunk.
+     */
+    /* package-protected */ static final int AVERAGE_CHUNK_SIZE = 1024 * 1024;
+    /**
+     * The maximum length of a chunk.
+     */
+    /* package-protected */ static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The mask of the bits of the hash that have to be zero at a boundary. Since the minimum length
+     * is skipped, the mask only needs to cover the rest of the average length.
+     */
+    private static final long BOUNDARY_MASK = Long.highestOneBit(AVERAGE_CHUNK_SIZE - MIN_CHUNK_SIZE) - 1;
+    /**
+     * The info the table of the gear hash is derived from.
+     */
+    private static final byte[] GEAR_INFO = "CommandLineTools dedup gear".getBytes(Charset.forName("UTF-8"));
+
+    /**
+     * The random value of every byte that is added to the hash.
+     */
+    private final long[] gear;
+
+    /**
+     * Creates a chunker whose table is derived from the given key.
+     *
+     * @param key the (HMAC-SHA256) key to derive the table of the gear hash from
+     * @throws GeneralSecurityException in case the table could not be derived
+     */
+    /* package-protected */ ContentDefinedChunker(@NotNull SecretKeySpec key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key);
+
+        gear = new long[256];
+
+        // every hash yields four values of the table
+        for (int i = 0; i < gear.length / 4; i++) {
+            mac.update(GEAR_INFO);
+            ByteBuffer values = ByteBuffer.wrap(mac.doFinal(new byte[]{(byte) i}));
+
+            for (int j = 0; j < 4; j++) {
+                gear[i * 4 + j] = values.getLong();
+            }
+        }
+    }
+
+    /**
+     * This method determines the length of the chunk starting at the given offset of the given data.
+     * In case there are at least {@link #MAX_CHUNK_SIZE} bytes available (or the data ends with the
+     * available bytes), the chunk is the same regardless of any data following it.
+     *
+     * @param data      the data to split
+     * @param offset    the offset of the chunk within the data
+     * @param available the number of bytes available from the offset
+     * @return the length of the chunk
+     */
+    /* package-protected */ int nextChunkLength(@NotNull byte[] data, int offset, int available) {
+        if (available <= MIN_CHUNK_SIZE) {
+            return available;
+        }
+
+        int end = offset + Math.min(available, MAX_CHUNK_SIZE);
+        long hash = 0;
+
+        for (int i = offset + MIN_CHUNK_SIZE; i < end; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1 - offset;
+            }
+        }
+
+        return end - offset;
+    }
+}
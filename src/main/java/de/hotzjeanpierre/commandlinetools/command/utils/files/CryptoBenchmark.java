@@ -0,0 +1,426 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * <p>This class measures how fast files are en- and decrypted on the current machine by
+ * {@link SegmentedEncryptionService}, i.e. through the same code the 'encrypt'- and
+ * 'decrypt'-commands use. A file of synthetic (incompressible) data is encrypted and decrypted
+ * repeatedly for a given time by a given number of files at once, whereas the latency of every
+ * single operation is recorded.</p>
+ * <p>Since the files are actually written, the results include the disk the working folder is
+ * located on. Comparing them with the throughput of the cipher suite alone
+ * (see {@link CipherSuite#measureThroughput(int, long)}) tells whether the disk or the CPU limits
+ * the throughput.</p>
+ */
+public class CryptoBenchmark {
+
+    /**
+     * The name of the files the synthetic data is encrypted into; {0} is the number of the file.
+     */
+    private static final String ENCRYPTED_FILE_NAME = "benchcrypto-{0}.encr";
+    /**
+     * The name of the files the synthetic data is decrypted into; {0} is the number of the file.
+     */
+    private static final String DECRYPTED_FILE_NAME = "benchcrypto-{0}.decr";
+    /**
+     * The share of the size of a file (as its divisor) that is reserved for the tags of its encrypted segments.
+     */
+    private static final long SPACE_OVERHEAD_DIVISOR = 64;
+    /**
+     * The number of bytes reserved for the header of an encrypted file.
+     */
+    private static final long SPACE_OVERHEAD = 64 * 1024;
+
+    /**
+     * This method writes the given number of bytes of synthetic data into the given file.
+     * The data is pseudo-random, so it is neither compressible nor deduplicated.
+     *
+     * @param f    the file to write the data to
+     * @param size the number of bytes to write
+     * @throws IOException in case the file could not be written
+     */
+    public static void createData(@NotNull File f, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] chunk = new byte[EncryptionService.STREAM_CHUNK_SIZE];
+
+        try (OutputStream out = new FileOutputStream(f)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * This method estimates the space the files written by {@link #run(SecretKeySpec, CipherSuite, File, File, int, long)}
+     * take up at most: an encrypted and a decrypted file for every file processed at once, whereas the
+     * encrypted file is larger by its header and the tags of its segments.
+     *
+     * @param size    the number of bytes of the file to encrypt
+     * @param threads the number of files to process at once
+     * @return the estimated number of bytes
+     */
+    public static long estimateSpace(long size, int threads) {
+        return threads * (2 * size + size / SPACE_OVERHEAD_DIVISOR + SPACE_OVERHEAD);
+    }
+
+    /**
+     * This method encrypts the given file repeatedly for the given time, and afterwards decrypts the
+     * encrypted files repeatedly for the same time. Just like the 'encrypt'-command the given number of
+     * files is processed at once, whereas the files as well as their segments are processed on a pool of
+     * the given parallelism. Every operation is run at least once by every file. The files that are
+     * written into the given folder are deleted afterwards, even if an operation has failed.
+     *
+     * @param key            the secret key to use
+     * @param suite          the cipher suite to measure
+     * @param plain          the file to encrypt
+     * @param folder         the folder to write the en- and decrypted files to
+     * @param threads        the number of files to process at once, and the number of threads to process them on
+     * @param durationMillis the time in milliseconds to measure each of the operations for
+     * @return the results of the en- and decryption
+     * @throws IOException in case an operation failed, or the written files could not be deleted
+     */
+    @NotNull
+    public static Result run(
+            SecretKeySpec key,
+            @NotNull CipherSuite suite,
+            @NotNull File plain,
+            @NotNull File folder,
+            int threads,
+            long durationMillis
+    ) throws IOException {
+        File[] encrypted = new File[threads];
+        File[] decrypted = new File[threads];
+
+        for (int i = 0; i < threads; i++) {
+            encrypted[i] = new File(folder, StringProcessing.format(ENCRYPTED_FILE_NAME, i));
+            decrypted[i] = new File(folder, StringProcessing.format(DECRYPTED_FILE_NAME, i));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Result result;
+        File undeleted;
+
+        try {
+            EncryptionOptions options = new EncryptionOptions.Builder()
+                    .setCipherSuite(suite)
+                    .setPool(pool)
+                    .build();
+
+            Operation encryption = measure(plain.length(), threads, durationMillis, pool,
+                    i -> () -> SegmentedEncryptionService.encryptFile(key, plain, plain.getParentFile(), encrypted[i], options));
+            Operation decryption = measure(plain.length(), threads, durationMillis, pool,
+                    i -> () -> SegmentedEncryptionService.decryptFile(key, encrypted[i], name -> decrypted[i], pool));
+
+            result = new Result(encryption, decryption);
+        } finally {
+            // the files are deleted even if an operation has failed (e.g. since the disk is full),
+            // whereas the operations of the other files have to be done writing them first
+            pool.shutdown();
+            awaitTermination(pool);
+            undeleted = delete(concat(encrypted, decrypted));
+        }
+
+        if (undeleted != null) {
+            throw new IOException(StringProcessing.format(
+                    "Couldn't delete file '{0}'. Please try deleting it manually.",
+                    undeleted
+            ));
+        }
+
+        return result;
+    }
+
+    /**
+     * This method waits for the given pool to run all the operations that have been submitted to it.
+     *
+     * @param pool the pool that has been shut down
+     */
+    private static void awaitTermination(ForkJoinPool pool) {
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method deletes the given files, in case they exist.
+     *
+     * @param files the files to delete
+     * @return the first file that could not be deleted, or {@code null} in case every file has been deleted
+     */
+    private static File delete(File[] files) {
+        File undeleted = null;
+
+        for (File f : files) {
+            if (f.exists() && !f.delete() && undeleted == null) {
+                undeleted = f;
+            }
+        }
+
+        return undeleted;
+    }
+
+    /**
+     * @param first  the first array
+     * @param second the second array
+     * @return an array of the elements of the first array followed by the ones of the second array
+     */
+    private static File[] concat(File[] first, File[] second) {
+        File[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * This method runs the given operations of the given number of files at once on the given pool,
+     * each of them repeatedly (but at least once) for the given time.
+     *
+     * @param bytes          the number of bytes processed by a single run of an operation
+     * @param files          the number of files to run the operation for at once
+     * @param durationMillis the time in milliseconds to run the operations for
+     * @param pool           the pool to run the operations on
+     * @param operations     the operation of every file, given by the number of the file
+     * @return the measurements of the operations
+     * @throws IOException in case an operation failed
+     */
+    private static Operation measure(long bytes, int files, long durationMillis, ForkJoinPool pool, IntFunction<Run> operations)
+            throws IOException {
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000L;
+        List<Future<long[]>> results = new ArrayList<>(files);
+
+        for (int i = 0; i < files; i++) {
+            Run operation = operations.apply(i);
+            results.add(pool.submit(() -> measure(operation, end)));
+        }
+
+        long[] latencies = new long[0];
+
+        for (Future<long[]> result : results) {
+            long[] fileLatencies;
+
+            try {
+                fileLatencies = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("The benchmark has been interrupted.", e);
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof IOException)
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause().getMessage(), e.getCause());
+            }
+
+            int count = latencies.length;
+            latencies = Arrays.copyOf(latencies, count + fileLatencies.length);
+            System.arraycopy(fileLatencies, 0, latencies, count, fileLatencies.length);
+        }
+
+        return new Operation(bytes, latencies, System.nanoTime() - start);
+    }
+
+    /**
+     * This method runs the given operation repeatedly (but at least once) until the given time.
+     *
+     * @param operation the operation to run
+     * @param end       the time to stop at (as of {@link System#nanoTime()})
+     * @return the latencies of the single runs in nanoseconds
+     * @throws IOException in case the operation failed
+     */
+    private static long[] measure(Run operation, long end) throws IOException {
+        long[] latencies = new long[16];
+        int count = 0;
+
+        do {
+            long start = System.nanoTime();
+            EncryptionService.FileEncryptionResult result = operation.run();
+            long latency = System.nanoTime() - start;
+
+            if (!result.isSuccess()) {
+                throw new IOException(result.getErrorMessage(), result.getError());
+            }
+
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        } while (System.nanoTime() < end);
+
+        return Arrays.copyOf(latencies, count);
+    }
+
+    /**
+     * A single en- or decryption that is measured.
+     */
+    private interface Run {
+
+        /**
+         * @return the result of the en- or decryption
+         */
+        EncryptionService.FileEncryptionResult run();
+    }
+
+    /**
+     * The results of measuring the en- and decryption of a file.
+     */
+    public static class Result {
+
+        /**
+         * The measurements of the encryption.
+         */
+        private final Operation encryption;
+        /**
+         * The measurements of the decryption.
+         */
+        private final Operation decryption;
+
+        /**
+         * Creates a result with the given measurements.
+         *
+         * @param encryption the measurements of the encryption
+         * @param decryption the measurements of the decryption
+         */
+        private Result(Operation encryption, Operation decryption) {
+            this.encryption = encryption;
+            this.decryption = decryption;
+        }
+
+        /**
+         * @return The measurements of the encryption
+         */
+        public Operation getEncryption() {
+            return encryption;
+        }
+
+        /**
+         * @return The measurements of the decryption
+         */
+        public Operation getDecryption() {
+            return decryption;
+        }
+    }
+
+    /**
+     * The measurements of an operation that has been run repeatedly.
+     */
+    public static class Operation {
+
+        /**
+         * The number of bytes processed by a single run of the operation.
+         */
+        private final long bytes;
+        /**
+         * The (sorted) latencies of the single runs in nanoseconds.
+         */
+        private final long[] latencies;
+        /**
+         * The time it took to do all the runs in nanoseconds. In case several runs have been done at once,
+         * this is less than the sum of their latencies.
+         */
+        private final long totalNanos;
+
+        /**
+         * Creates the measurements of an operation whose runs have been done one after another.
+         *
+         * @param bytes     the number of bytes processed by a single run of the operation
+         * @param latencies the latencies of the single runs in nanoseconds
+         */
+        /* package-protected */ Operation(long bytes, long[] latencies) {
+            this(bytes, latencies, Arrays.stream(latencies).sum());
+        }
+
+        /**
+         * Creates the measurements of an operation with the given values.
+         *
+         * @param bytes      the number of bytes processed by a single run of the operation
+         * @param latencies  the latencies of the single runs in nanoseconds
+         * @param totalNanos the time it took to do all the runs in nanoseconds
+         */
+        /* package-protected */ Operation(long bytes, long[] latencies, long totalNanos) {
+            this.bytes = bytes;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.totalNanos = Math.max(1, totalNanos);
+        }
+
+        /**
+         * @return The number of times the operation has been run
+         */
+        public int getCount() {
+            return latencies.length;
+        }
+
+        /**
+         * @return The throughput of the operation in bytes per second
+         */
+        public double getThroughput() {
+            return bytes * (double) latencies.length * 1e9 / totalNanos;
+        }
+
+        /**
+         * @return The number of files processed per second
+         */
+        public double getFilesPerSecond() {
+            return latencies.length * 1e9 / totalNanos;
+        }
+
+        /**
+         * This method gives you the latency below which the given percentage of the runs have finished
+         * (using the nearest-rank method).
+         *
+         * @param percentile the percentile (between 0 and 100)
+         * @return the latency of the given percentile in nanoseconds
+         */
+        public long getLatency(double percentile) {
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.min(latencies.length - 1, Math.max(0, rank - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return StringProcessing.format(
+                    "{0}, {1} files/s, p50 {2} ms, p99 {3} ms ({4} runs)",
+                    CipherSuite.formatThroughput(getThroughput()),
+                    String.format(Locale.ROOT, "%.1f", getFilesPerSecond()),
+                    String.format(Locale.ROOT, "%.2f", getLatency(50) / 1e6),
+                    String.format(Locale.ROOT, "%.2f", getLatency(99) / 1e6),
+                    getCount()
+            );
+        }
+    }
+}
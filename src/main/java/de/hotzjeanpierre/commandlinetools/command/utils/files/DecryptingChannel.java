@@ -0,0 +1,268 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>A DecryptingChannel allows you to read the plaintext of a file saved in the container
+ * format at any position, without decrypting the whole file. Since every segment of such
+ * a file is authenticated on its own, only the segments overlapping the data that is read
+ * are decrypted, whereas the segment that has been decrypted last is kept, so reading
+ * a segment in several small pieces only decrypts it once.</p>
+ * <p>Files that have been encrypted in place and files whose segments are compressed can
+ * be read as well, whereas the single files of pack archives and dedup stores can only be
+ * extracted through their archive or manifest. The channel is read-only and, just like
+ * any other {@link SeekableByteChannel}, not safe for use by multiple threads.</p>
+ */
+public class DecryptingChannel implements SeekableByteChannel {
+
+    /**
+     * The channel of the encrypted file.
+     */
+    private final FileChannel channel;
+    /**
+     * The (authenticated) header of the encrypted file.
+     */
+    private final EncryptedFileHeader header;
+    /**
+     * The segment table of the encrypted file; {@code null} in case its segments are not compressed.
+     */
+    private final SegmentedEncryptionService.SegmentTable table;
+    /**
+     * Whether the file has been encrypted in place.
+     */
+    private final boolean inPlace;
+    /**
+     * The context used to decrypt the segments.
+     */
+    private final EncryptionContext context;
+
+    /**
+     * The position within the plaintext the next read starts at.
+     */
+    private long position;
+    /**
+     * The index of the segment that has been decrypted last; {@code -1} if there is none.
+     */
+    private int cachedSegment = -1;
+    /**
+     * The plaintext of the segment that has been decrypted last.
+     */
+    private byte[] cachedPlaintext;
+
+    /**
+     * Creates a channel with the given values.
+     *
+     * @param channel the channel of the encrypted file
+     * @param header  the header of the encrypted file
+     * @param table   the segment table of the encrypted file
+     * @param inPlace whether the file has been encrypted in place
+     */
+    private DecryptingChannel(
+            FileChannel channel,
+            EncryptedFileHeader header,
+            SegmentedEncryptionService.SegmentTable table,
+            boolean inPlace
+    ) {
+        this.channel = channel;
+        this.header = header;
+        this.table = table;
+        this.inPlace = inPlace;
+        this.context = header.getDataContexts().get();
+    }
+
+    /**
+     * This method opens the given encrypted file for random access to its plaintext.
+     * Only its header (and its segment table, if any) is read and authenticated.
+     *
+     * @param pw the secret key used for decryption
+     * @param f  the file to open
+     * @return the channel reading the plaintext of the file
+     * @throws IOException              in case the file could not be read, is malformed or cannot be read randomly
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    @NotNull
+    public static DecryptingChannel open(SecretKeySpec pw, @NotNull File f) throws IOException, GeneralSecurityException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+
+        try {
+            EncryptionContext context = new EncryptionContext(pw);
+
+            if (EncryptedFileHeader.findTrailer(channel) >= 0) {
+                return new DecryptingChannel(
+                        channel,
+                        InPlaceEncryptionService.readTrailer(channel, context, f),
+                        null,
+                        true
+                );
+            }
+            if (EncryptedFileHeader.findHeader(channel) != 0) {
+                throw new IOException("The file is not saved in the container format, whereas it can only be decrypted as a whole.");
+            }
+
+            EncryptedFileHeader header = EncryptedFileHeader.read(channel, context);
+            SegmentedEncryptionService.checkStandaloneFile(header, channel);
+
+            return new DecryptingChannel(
+                    channel,
+                    header,
+                    header.isCompressed() ? SegmentedEncryptionService.SegmentTable.read(header, channel) : null,
+                    false
+            );
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The name of the original file, relative to the folder it has been encrypted from
+     */
+    public String getOriginalName() {
+        return header.getOriginalName();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= header.getPlaintextLength()) {
+            return dst.hasRemaining() ? -1 : 0;
+        }
+
+        int segmentSize = header.getSegmentSize();
+        int read = 0;
+
+        while (dst.hasRemaining() && position < header.getPlaintextLength()) {
+            int segment = (int) (position / segmentSize);
+            int offset = (int) (position - segment * (long) segmentSize);
+            int length = Math.min(dst.remaining(), header.getSegmentLength(segment) - offset);
+
+            dst.put(decryptSegment(segment), offset, length);
+            position += length;
+            read += length;
+        }
+
+        return read;
+    }
+
+    /**
+     * This method decrypts the segment with given index, unless it has been decrypted last.
+     *
+     * @param segment the index of the segment
+     * @return the plaintext of the segment
+     * @throws IOException in case the segment could not be read or authenticated
+     */
+    private byte[] decryptSegment(int segment) throws IOException {
+        if (segment == cachedSegment) {
+            return cachedPlaintext;
+        }
+
+        try {
+            if (inPlace) {
+                cachedPlaintext = InPlaceEncryptionService.decryptSegment(channel, header, context, segment);
+            } else if (table != null) {
+                cachedPlaintext = table.decryptSegment(header, channel, context, segment);
+            } else {
+                cachedPlaintext = SegmentedEncryptionService.decryptSegment(header, channel, context, segment);
+            }
+        } catch (GeneralSecurityException e) {
+            cachedSegment = -1;
+            throw new IOException(StringProcessing.format(
+                    "Segment {0} of the encrypted file could not be authenticated.",
+                    segment
+            ), e);
+        }
+
+        cachedSegment = segment;
+        return cachedPlaintext;
+    }
+
+    /**
+     * Throws a {@link NonWritableChannelException}, since the channel is read-only.
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public DecryptingChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position may not be negative.");
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return The length of the plaintext of the file
+     */
+    @Override
+    public long size() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return header.getPlaintextLength();
+    }
+
+    /**
+     * Throws a {@link NonWritableChannelException}, since the channel is read-only.
+     */
+    @Override
+    public DecryptingChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cachedSegment = -1;
+        cachedPlaintext = null;
+        channel.close();
+    }
+}
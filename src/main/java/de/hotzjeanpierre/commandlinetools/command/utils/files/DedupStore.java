@@ -0,0 +1,840 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService.FileEncryptionResult;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A DedupStore saves files as content-addressed encrypted chunks, whereas identical
+ * content is only encrypted and written once. Every file is split into chunks of a fixed
+ * size, and every chunk is identified by a keyed hash (HMAC-SHA256) of its content. Since
+ * the hash is keyed with a key derived from the secret key, the names of the chunks do
+ * not reveal whether the store contains some known content.</p>
+ * <p>Optionally files are split into content-defined chunks (see {@link ContentDefinedChunker}),
+ * whose boundaries do not move when data is inserted into or removed from a file. Thus storing
+ * a new version of a big file only encrypts and writes the chunks that have actually changed,
+ * whereas all the other chunks are found within the store.</p>
+ * <p>Every file is represented by a manifest, which lists the chunks of the file and the
+ * relative path to the folder of the chunks. Manifests and chunks are saved in the container
+ * format of {@link SegmentedEncryptionService}. The chunks are saved in the following
+ * location within the folder of the store:</p>
+ * <pre>
+ * [first two characters of id]/[id].encc
+ * </pre>
+ */
+public class DedupStore {
+
+    /**
+     * The size of the chunks files are split into.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * The name of the folder of the chunks used by default.
+     */
+    public static final String DEFAULT_FOLDER_NAME = "chunks";
+    /**
+     * The extension of the chunks.
+     */
+    public static final String CHUNK_EXTENSION = "encc";
+
+    /**
+     * The length of the id of a chunk in bytes.
+     */
+    private static final int ID_LENGTH = 32;
+    /**
+     * The info the key of the keyed hash is derived from.
+     */
+    private static final byte[] HASH_KEY_INFO = "CommandLineTools dedup chunk id".getBytes(Charset.forName("UTF-8"));
+    /**
+     * The charset used to encode the path to the folder of the chunks.
+     */
+    private static final Charset PATH_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The folder of the chunks.
+     */
+    private final File folder;
+    /**
+     * The key used for the keyed hash.
+     */
+    private final SecretKeySpec hashKey;
+    /**
+     * The cipher suite new chunks and manifests are encrypted with.
+     */
+    private final CipherSuite suite;
+    /**
+     * The contexts used to wrap the data keys of the chunks and manifests.
+     */
+    private final ThreadLocal<EncryptionContext> contexts;
+    /**
+     * The pool to process the chunks on.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * The chunker splitting files into content-defined chunks, or {@code null} in case files are split into chunks of a fixed size.
+     */
+    private final ContentDefinedChunker chunker;
+    /**
+     * The chunks that are known to be stored (or are being stored) within this store, mapped by their ids.
+     * A future is completed as soon as its chunk exists, so files sharing a chunk wait for it to be written.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> known;
+
+    /**
+     * The number of chunks that have been written.
+     */
+    private final AtomicLong storedChunks;
+    /**
+     * The number of chunks that have been reused instead of being written.
+     */
+    private final AtomicLong reusedChunks;
+    /**
+     * The number of bytes that have not been written since their chunk has been reused.
+     */
+    private final AtomicLong reusedBytes;
+
+    /**
+     * Creates a store within the given folder, whose chunks are encrypted with the fastest
+     * available cipher suite and are processed on the common {@link ForkJoinPool}.
+     *
+     * @param folder the folder of the chunks
+     * @param key    the secret key used for encryption
+     * @throws GeneralSecurityException in case the key of the keyed hash could not be derived
+     */
+    public DedupStore(@NotNull File folder, @NotNull SecretKeySpec key) throws GeneralSecurityException {
+        this(folder, key, CipherSuite.getFastest(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a store within the given folder, whose chunks are encrypted with the given
+     * cipher suite and are processed on the given pool.
+     *
+     * @param folder the folder of the chunks
+     * @param key    the secret key used for encryption
+     * @param suite  the cipher suite to encrypt new chunks and manifests with
+     * @param pool   the pool to process the chunks on
+     * @throws GeneralSecurityException in case the key of the keyed hash could not be derived
+     */
+    public DedupStore(
+            @NotNull File folder,
+            @NotNull SecretKeySpec key,
+            @NotNull CipherSuite suite,
+            @NotNull ForkJoinPool pool
+    ) throws GeneralSecurityException {
+        this(folder, key, suite, pool, false);
+    }
+
+    /**
+     * Creates a store within the given folder, whose chunks are encrypted with the given
+     * cipher suite and are processed on the given pool.
+     *
+     * @param folder        the folder of the chunks
+     * @param key           the secret key used for encryption
+     * @param suite         the cipher suite to encrypt new chunks and manifests with
+     * @param pool          the pool to process the chunks on
+     * @param contentDefined whether to split files into content-defined chunks instead of chunks of a fixed size
+     * @throws GeneralSecurityException in case the keys of the hashes could not be derived
+     */
+    public DedupStore(
+            @NotNull File folder,
+            @NotNull SecretKeySpec key,
+            @NotNull CipherSuite suite,
+            @NotNull ForkJoinPool pool,
+            boolean contentDefined
+    ) throws GeneralSecurityException {
+        this.folder = folder;
+        this.hashKey = deriveHashKey(key);
+        this.chunker = contentDefined ? new ContentDefinedChunker(hashKey) : null;
+        this.suite = suite;
+        this.contexts = SegmentedEncryptionService.createContexts(key);
+        this.pool = pool;
+        this.known = new ConcurrentHashMap<>();
+
+        this.storedChunks = new AtomicLong();
+        this.reusedChunks = new AtomicLong();
+        this.reusedBytes = new AtomicLong();
+
+        // make sure hashing works before any file is stored
+        createMac(hashKey);
+    }
+
+    /**
+     * @return The folder of the chunks
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return The number of chunks that have been written
+     */
+    public long getStoredChunks() {
+        return storedChunks.get();
+    }
+
+    /**
+     * @return The number of chunks that have been reused instead of being written
+     */
+    public long getReusedChunks() {
+        return reusedChunks.get();
+    }
+
+    /**
+     * @return The number of bytes that have not been written since their chunk has been reused
+     */
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    /**
+     * This method stores the given file within this store and writes its manifest to the given file.
+     * The chunks of the file are hashed, and (in case they are not stored already) encrypted in
+     * parallel. The returned {@link FileEncryptionResult} does not contain any data.
+     * In case storing the file fails its partially written manifest is deleted.
+     *
+     * @param in         the file that is to be stored
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the manifest
+     * @param manifest   the file to write the manifest to
+     * @return the result of the encryption
+     */
+    @NotNull
+    public FileEncryptionResult storeFile(File in, File relativeTo, File manifest) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be encrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        String filename;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            filename = CommonFileUtilities.extractRelativePath(in, relativeTo);
+
+            if (chunker != null) {
+                storeContentDefinedChunks(input, manifest, filename);
+                return new FileEncryptionResult(filename);
+            }
+
+            long length = input.size();
+            int chunks = (int) ((length + DEFAULT_CHUNK_SIZE - 1) / DEFAULT_CHUNK_SIZE);
+            byte[][] ids = new byte[chunks][];
+
+            SegmentedEncryptionService.runInParallel(pool, 0, chunks, chunk -> {
+                byte[] data = new byte[(int) Math.min(DEFAULT_CHUNK_SIZE, length - chunk * (long) DEFAULT_CHUNK_SIZE)];
+                SegmentedEncryptionService.readFully(input, ByteBuffer.wrap(data), chunk * (long) DEFAULT_CHUNK_SIZE);
+
+                ids[chunk] = storeChunk(data);
+            });
+
+            writeManifest(manifest, filename, length, ids, null);
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(manifest);
+            return new FileEncryptionResult(new EncryptionAbortedException("Ecryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(filename);
+    }
+
+    /**
+     * This method splits the given file into content-defined chunks, and stores them along with
+     * the manifest of the file. The file is read sequentially in order to find the boundaries of
+     * the chunks, whereas batches of chunks are hashed and (in case they are not stored already)
+     * encrypted in parallel.
+     *
+     * @param input    the channel of the file that is to be stored
+     * @param manifest the file to write the manifest to
+     * @param filename the name of the original file
+     * @throws Exception in case the file could not be stored
+     */
+    private void storeContentDefinedChunks(FileChannel input, File manifest, String filename) throws Exception {
+        int batchSize = Math.max(1, pool.getParallelism() * 2);
+
+        List<byte[]> ids = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        List<byte[]> batch = new ArrayList<>(batchSize);
+
+        // the buffer always holds the maximum length of a chunk unless the file ends,
+        // whereas the rest of the buffer is only moved to its start once per chunk of maximum length
+        byte[] buffer = new byte[2 * ContentDefinedChunker.MAX_CHUNK_SIZE];
+        int start = 0;
+        int end = 0;
+        long position = 0;
+        boolean eof = false;
+
+        while (true) {
+            if (!eof && end - start < ContentDefinedChunker.MAX_CHUNK_SIZE) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+
+                while (end < buffer.length) {
+                    int read = input.read(ByteBuffer.wrap(buffer, end, buffer.length - end), position);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    end += read;
+                    position += read;
+                }
+            }
+
+            if (end == start) {
+                break;
+            }
+
+            int length = chunker.nextChunkLength(buffer, start, end - start);
+            batch.add(Arrays.copyOfRange(buffer, start, start + length));
+            lengths.add(length);
+            start += length;
+
+            if (batch.size() == batchSize) {
+                ids.addAll(storeChunks(batch));
+                batch.clear();
+            }
+        }
+
+        ids.addAll(storeChunks(batch));
+
+        int[] chunkLengths = new int[lengths.size()];
+        for (int i = 0; i < chunkLengths.length; i++) {
+            chunkLengths[i] = lengths.get(i);
+        }
+
+        writeManifest(manifest, filename, position, ids.toArray(new byte[0][]), chunkLengths);
+    }
+
+    /**
+     * This method stores the given chunks in parallel.
+     *
+     * @param chunks the contents of the chunks
+     * @return the ids of the chunks in order
+     * @throws Exception in case any chunk could not be written
+     */
+    private List<byte[]> storeChunks(List<byte[]> chunks) throws Exception {
+        byte[][] ids = new byte[chunks.size()][];
+
+        SegmentedEncryptionService.runInParallel(pool, 0, ids.length, chunk -> ids[chunk] = storeChunk(chunks.get(chunk)));
+
+        return Arrays.asList(ids);
+    }
+
+    /**
+     * This method stores the given chunk, unless it is already contained in this store.
+     * New chunks are written to a temporary file first, which is moved to its location
+     * afterwards, so a chunk that exists is always complete. In case the chunk is being
+     * stored by another thread, this method waits for it to be written, so the chunk
+     * is never reported as stored before it exists.
+     *
+     * @param data the content of the chunk
+     * @return the id of the chunk
+     * @throws Exception in case the chunk could not be written
+     */
+    private byte[] storeChunk(byte[] data) throws Exception {
+        byte[] id = createMac(hashKey).doFinal(data);
+        String name = toHex(id);
+        File chunk = getChunkFile(folder, name);
+
+        CompletableFuture<Void> stored = new CompletableFuture<>();
+        CompletableFuture<Void> previous;
+
+        while ((previous = known.putIfAbsent(name, stored)) != null) {
+            try {
+                previous.get();
+
+                reusedChunks.incrementAndGet();
+                reusedBytes.addAndGet(data.length);
+                return id;
+            } catch (ExecutionException e) {
+                // the chunk could not be written by the other thread, whereas it is tried to be written once more
+            }
+        }
+
+        if (chunk.exists()) {
+            stored.complete(null);
+
+            reusedChunks.incrementAndGet();
+            reusedBytes.addAndGet(data.length);
+            return id;
+        }
+
+        try {
+            if (!chunk.getParentFile().exists() && !chunk.getParentFile().mkdirs() && !chunk.getParentFile().exists()) {
+                throw new IOException(StringProcessing.format(
+                        "Couldn't create folder '{0}'.",
+                        chunk.getParentFile()
+                ));
+            }
+
+            byte[] nonce = new byte[8];
+            sRandom.nextBytes(nonce);
+
+            EncryptedFileHeader header = new EncryptedFileHeader(
+                    suite,
+                    EncryptedFileHeader.FLAG_DEDUP_CHUNK,
+                    SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE,
+                    data.length,
+                    nonce,
+                    name
+            );
+
+            File temporary = new File(chunk.getParentFile(), chunk.getName() + "." + Thread.currentThread().getId() + ".tmp");
+
+            try (FileChannel output = FileChannel.open(
+                    temporary.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                SegmentedEncryptionService.encryptData(header, data, output, contexts, ForkJoinPool.commonPool());
+            } catch (Exception e) {
+                SegmentedEncryptionService.deletePartialOutput(temporary);
+                throw e;
+            }
+
+            try {
+                Files.move(temporary.toPath(), chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), chunk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception e) {
+            // the entry is removed before the waiting threads are released, so they do not find it again
+            known.remove(name, stored);
+            stored.completeExceptionally(e);
+            throw e;
+        }
+
+        stored.complete(null);
+        storedChunks.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * This method writes the manifest of a file:
+     * <pre>
+     * [int path length][relative path to the folder of the chunks][long length of file]
+     * [int chunk count]([32 bytes id])*([int chunk length])*
+     * </pre>
+     * <p>The lengths of the chunks are only saved for files that have been split into content-defined
+     * chunks, whereas the chunks of any other file have the {@link #DEFAULT_CHUNK_SIZE}.</p>
+     *
+     * @param manifest the file to write the manifest to
+     * @param filename the name of the original file
+     * @param length   the length of the original file
+     * @param ids      the ids of the chunks of the file
+     * @param lengths  the lengths of the content-defined chunks of the file, or {@code null} for chunks of a fixed size
+     * @throws Exception in case the manifest could not be written
+     */
+    private void writeManifest(File manifest, String filename, long length, byte[][] ids, int[] lengths) throws Exception {
+        byte[] path = manifest.getAbsoluteFile().getParentFile().toPath()
+                .relativize(folder.getAbsoluteFile().toPath())
+                .toString()
+                .getBytes(PATH_CHARSET);
+
+        int lengthsLength = (lengths != null) ? lengths.length * 4 : 0;
+
+        ByteBuffer data = ByteBuffer.allocate(4 + path.length + 8 + 4 + ids.length * ID_LENGTH + lengthsLength)
+                .putInt(path.length)
+                .put(path)
+                .putLong(length)
+                .putInt(ids.length);
+        for (byte[] id : ids) {
+            data.put(id);
+        }
+        if (lengths != null) {
+            for (int chunkLength : lengths) {
+                data.putInt(chunkLength);
+            }
+        }
+
+        byte[] nonce = new byte[8];
+        sRandom.nextBytes(nonce);
+
+        EncryptedFileHeader header = new EncryptedFileHeader(
+                suite,
+                EncryptedFileHeader.FLAG_DEDUP_MANIFEST,
+                SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE,
+                data.capacity(),
+                nonce,
+                filename
+        );
+
+        try (FileChannel output = FileChannel.open(
+                manifest.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            SegmentedEncryptionService.encryptData(header, data.array(), output, contexts, pool);
+        }
+    }
+
+    /**
+     * This method restores the file described by the given manifest on the common {@link ForkJoinPool}.
+     *
+     * @param key      the secret key used for decryption
+     * @param manifest the manifest of the file that is to be restored
+     * @param resolver the resolver that determines the file to write the restored data to
+     * @return the result of the decryption
+     * @see #restoreFile(SecretKeySpec, File, OutputFileResolver, ForkJoinPool)
+     */
+    @NotNull
+    public static FileEncryptionResult restoreFile(SecretKeySpec key, File manifest, OutputFileResolver resolver) {
+        return restoreFile(key, manifest, resolver, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method restores the file described by the given manifest. The chunks of the file are
+     * decrypted in parallel on the given pool, whereas every chunk has to carry its own id in its
+     * authenticated header. The returned {@link FileEncryptionResult} does not contain any data.
+     * In case the restoration fails any partially written output is deleted.
+     *
+     * @param key      the secret key used for decryption
+     * @param manifest the manifest of the file that is to be restored
+     * @param resolver the resolver that determines the file to write the restored data to
+     * @param pool     the pool to decrypt the chunks on
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult restoreFile(
+            SecretKeySpec key,
+            File manifest,
+            OutputFileResolver resolver,
+            @NotNull ForkJoinPool pool
+    ) {
+        if (manifest == null || !manifest.isFile() || !manifest.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (manifest != null) ? manifest.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        File out = null;
+        String fileName;
+
+        try {
+            ThreadLocal<EncryptionContext> contexts = SegmentedEncryptionService.createContexts(key);
+            Manifest read = readManifest(manifest, contexts.get(), pool);
+
+            File folder = read.folder;
+            byte[][] ids = read.ids;
+            fileName = read.fileName;
+
+            try {
+                out = resolver.resolve(fileName);
+            } catch (IOException e) {
+                return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+            }
+
+            try (FileChannel output = FileChannel.open(
+                    out.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                SegmentedEncryptionService.runInParallel(pool, 0, ids.length, chunk -> {
+                    String name = toHex(ids[chunk]);
+                    byte[] plain;
+
+                    try (FileChannel input = FileChannel.open(getChunkFile(folder, name).toPath(), StandardOpenOption.READ)) {
+                        EncryptedFileHeader header = EncryptedFileHeader.read(input, contexts.get());
+                        if (header.getFlags() != EncryptedFileHeader.FLAG_DEDUP_CHUNK
+                                || !header.getOriginalName().equals(name)
+                                || header.getPlaintextLength() != read.lengths[chunk]) {
+                            throw new IOException(StringProcessing.format(
+                                    "The chunk '{0}' is malformed.",
+                                    name
+                            ));
+                        }
+
+                        plain = SegmentedEncryptionService.decryptData(header, input, ForkJoinPool.commonPool());
+                    }
+
+                    SegmentedEncryptionService.writeFully(output, ByteBuffer.wrap(plain), read.offsets[chunk]);
+                });
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(out);
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method gives you the chunks the file described by the given manifest consists of,
+     * whereas the chunks themselves are neither read nor is their existence checked.
+     *
+     * @param key      the secret key used for decryption
+     * @param manifest the manifest of the file
+     * @return the chunks of the file in order
+     * @throws IOException              in case the manifest could not be read or is malformed
+     * @throws GeneralSecurityException in case the manifest could not be decrypted (e.g. the key was wrong)
+     */
+    @NotNull
+    public static File[] getChunkFiles(@NotNull SecretKeySpec key, @NotNull File manifest)
+            throws IOException, GeneralSecurityException {
+        Manifest read = readManifest(manifest, new EncryptionContext(key), ForkJoinPool.commonPool());
+
+        File[] chunks = new File[read.ids.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = getChunkFile(read.folder, toHex(read.ids[i]));
+        }
+        return chunks;
+    }
+
+    /**
+     * This method reads and decrypts the given manifest.
+     *
+     * @param manifest the manifest to read
+     * @param context  the context (of the secret key derived from the password) used to unwrap the data key
+     * @param pool     the pool to decrypt the manifest on
+     * @return the content of the manifest
+     * @throws IOException              in case the manifest could not be read or is malformed
+     * @throws GeneralSecurityException in case the manifest could not be decrypted (e.g. the key was wrong)
+     */
+    private static Manifest readManifest(File manifest, EncryptionContext context, ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        String fileName;
+        ByteBuffer data;
+
+        try (FileChannel input = FileChannel.open(manifest.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, context);
+
+            if (header.getFlags() != EncryptedFileHeader.FLAG_DEDUP_MANIFEST) {
+                throw new IOException("The file is not a manifest of a dedup store.");
+            }
+
+            fileName = header.getOriginalName();
+            try {
+                data = ByteBuffer.wrap(SegmentedEncryptionService.decryptData(header, input, pool));
+            } catch (IOException | GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("The manifest could not be decrypted.", e);
+            }
+        }
+
+        File folder;
+        long length;
+        byte[][] ids;
+        int[] lengths;
+
+        try {
+            byte[] path = new byte[data.getInt()];
+            data.get(path);
+            folder = new File(manifest.getAbsoluteFile().getParentFile(), new String(path, PATH_CHARSET));
+
+            length = data.getLong();
+            ids = new byte[data.getInt()][ID_LENGTH];
+            for (byte[] id : ids) {
+                data.get(id);
+            }
+
+            lengths = new int[ids.length];
+            if (data.hasRemaining()) {
+                // the file has been split into content-defined chunks
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = data.getInt();
+                }
+            } else {
+                if (length < 0 || ids.length != (length + DEFAULT_CHUNK_SIZE - 1) / DEFAULT_CHUNK_SIZE) {
+                    throw new IOException("The manifest is malformed.");
+                }
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = (int) Math.min(DEFAULT_CHUNK_SIZE, length - i * (long) DEFAULT_CHUNK_SIZE);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("The manifest is malformed.", e);
+        }
+
+        long[] offsets = new long[ids.length];
+        long total = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] <= 0 || lengths[i] > ContentDefinedChunker.MAX_CHUNK_SIZE) {
+                throw new IOException("The manifest is malformed.");
+            }
+            offsets[i] = total;
+            total += lengths[i];
+        }
+
+        if (data.hasRemaining() || total != length) {
+            throw new IOException("The manifest is malformed.");
+        }
+
+        return new Manifest(fileName, folder, length, ids, offsets, lengths);
+    }
+
+    /**
+     * This method determines whether the given file is the manifest of a file within a store.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is a manifest
+     */
+    public static boolean isManifest(@NotNull File f) {
+        return EncryptedFileHeader.hasFlag(f, EncryptedFileHeader.FLAG_DEDUP_MANIFEST);
+    }
+
+    /**
+     * This method determines whether the given file is a chunk of a store.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is a chunk
+     */
+    public static boolean isChunk(@NotNull File f) {
+        return EncryptedFileHeader.hasFlag(f, EncryptedFileHeader.FLAG_DEDUP_CHUNK);
+    }
+
+    /**
+     * This method gives you the file of the chunk with given id.
+     *
+     * @param folder the folder of the chunks
+     * @param id     the (hexadecimal) id of the chunk
+     * @return the file of the chunk
+     */
+    private static File getChunkFile(File folder, String id) {
+        return new File(new File(folder, id.substring(0, 2)), id + "." + CHUNK_EXTENSION);
+    }
+
+    /**
+     * This method derives the key of the keyed hash from the given secret key, so the key
+     * used for encryption is never used for anything else.
+     *
+     * @param key the secret key used for encryption
+     * @return the key of the keyed hash
+     * @throws GeneralSecurityException in case the key could not be derived
+     */
+    private static SecretKeySpec deriveHashKey(SecretKeySpec key) throws GeneralSecurityException {
+        Mac mac = createMac(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return new SecretKeySpec(mac.doFinal(HASH_KEY_INFO), "HmacSHA256");
+    }
+
+    /**
+     * @param key the key to use
+     * @return a new HMAC-SHA256 instance initialized with the given key
+     * @throws GeneralSecurityException in case the instance could not be created
+     */
+    private static Mac createMac(SecretKeySpec key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key);
+        return mac;
+    }
+
+    /**
+     * @param data the data to convert
+     * @return the hexadecimal representation of the given data
+     */
+    private static String toHex(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The content of a manifest.
+     */
+    private static class Manifest {
+
+        /**
+         * The name of the original file.
+         */
+        private final String fileName;
+        /**
+         * The folder containing the chunks of the file.
+         */
+        private final File folder;
+        /**
+         * The length of the original file.
+         */
+        private final long length;
+        /**
+         * The ids of the chunks of the file in order.
+         */
+        private final byte[][] ids;
+        /**
+         * The positions of the chunks within the file.
+         */
+        private final long[] offsets;
+        /**
+         * The lengths of the chunks.
+         */
+        private final int[] lengths;
+
+        /**
+         * Creates the content of a manifest with the given values.
+         *
+         * @param fileName the name of the original file
+         * @param folder   the folder containing the chunks of the file
+         * @param length   the length of the original file
+         * @param ids      the ids of the chunks of the file in order
+         * @param offsets  the positions of the chunks within the file
+         * @param lengths  the lengths of the chunks
+         */
+        private Manifest(String fileName, File folder, long length, byte[][] ids, long[] offsets, int[] lengths) {
+            this.fileName = fileName;
+            this.folder = folder;
+            this.length = length;
+            this.ids = ids;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+    }
+}
@@ -0,0 +1,1131 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * <p>This class represents the header of a file in the versioned container format
+ * written by {@link SegmentedEncryptionService}. The header consists of a cleartext part,
+ * a key block and an encrypted metadata block, which can be read without touching any
+ * of the encrypted data of the file:</p>
+ * <pre>
+ * [magic "CLTENC"][byte version][byte cipher suite][byte flags][int segment size]
+ * [long plaintext length][8 bytes file nonce][int metadata length]
+ * [8 bytes key check][32 bytes wrapped data key][metadata]
+ * </pre>
+ * <p>Every file is encrypted with its own random data key, which is stored within the key
+ * block wrapped (i.e. encrypted) with the secret key derived from the password. Thus the
+ * password of a file can be changed by rewriting its key block only (see
+ * {@link #rekey(File, SecretKeySpec, SecretKeySpec)}), regardless of the size of the file.</p>
+ * <p>The metadata (i.e. the name of the original file, followed by the root of the Merkle tree
+ * over the tags of the segments in case the file is flagged with {@link #FLAG_MERKLE_ROOT}) is
+ * encrypted on its own with the data key, while the cleartext part of the header is authenticated
+ * along with it (and with the wrapped data key). Thus a header that has been read successfully can be trusted:</p>
+ * <pre>
+ * [int name length][name]([32 bytes merkle root])
+ * </pre>
+ * <p>The key check is a keyed hash of the file nonce, which lets a wrong secret key be
+ * rejected after reading the first few dozen bytes of the header only, and tells a wrong
+ * key apart from a header that has been tampered with.</p>
+ * <p>Files that have been encrypted from a stream (see {@link StreamEncryptionService}) state the
+ * length {@link #UNKNOWN_LENGTH} within their header, since it is written before any data has been
+ * read. Their segments are all full, whereas the last one (which is flagged as such within its
+ * additional data) may be shorter, so the end of the stream can only be determined by reaching it.</p>
+ * <p>Files that have been encrypted in place (see {@link InPlaceEncryptionService}) keep their
+ * data at the start and carry the header within a trailer instead, which is located through
+ * a footer at the very end of the file:</p>
+ * <pre>
+ * [long position of the header][magic "CLTTRL"]
+ * </pre>
+ * <p>Files that neither start with the magic number nor end with a footer are considered
+ * to be saved in the legacy format (version 1) of {@link EncryptionService}.</p>
+ */
+public class EncryptedFileHeader {
+
+    /**
+     * The magic number every file in the container format starts with.
+     */
+    private static final byte[] MAGIC = {'C', 'L', 'T', 'E', 'N', 'C'};
+    /**
+     * The magic number the footer of a file that has been encrypted in place ends with.
+     */
+    private static final byte[] TRAILER_MAGIC = {'C', 'L', 'T', 'T', 'R', 'L'};
+    /**
+     * The length of the footer of a file that has been encrypted in place.
+     */
+    /* package-protected */ static final int FOOTER_LENGTH = 8 + TRAILER_MAGIC.length;
+    /**
+     * The length of the cleartext part of the header.
+     */
+    /* package-protected */ static final int CLEARTEXT_LENGTH = MAGIC.length + 1 + 1 + 1 + 4 + 8 + 8 + 4;
+    /**
+     * The length of the key check at the start of the key block.
+     */
+    /* package-protected */ static final int KEY_CHECK_LENGTH = 8;
+    /**
+     * The length of the random data key every file is encrypted with.
+     */
+    private static final int DATA_KEY_LENGTH = 16;
+    /**
+     * The length of the key block following the cleartext part of the header,
+     * which consists of the key check and the wrapped data key.
+     */
+    /* package-protected */ static final int KEY_BLOCK_LENGTH = KEY_CHECK_LENGTH + DATA_KEY_LENGTH + CipherSuite.TAG_LENGTH;
+    /**
+     * The info the key check is derived from along with the file nonce.
+     */
+    private static final byte[] KEY_CHECK_INFO = "CommandLineTools key check".getBytes(Charset.forName("UTF-8"));
+    /**
+     * The biggest metadata block that will be accepted while reading a header.
+     */
+    private static final int MAX_METADATA_LENGTH = 1024 * 1024;
+    /**
+     * The index used for the nonce of the metadata block, which may never be used by a segment.
+     */
+    private static final int METADATA_NONCE_INDEX = -1;
+    /**
+     * The index used for the nonce of the wrapped data key, which may never be used by a segment.
+     */
+    private static final int DATA_KEY_NONCE_INDEX = -2;
+    /**
+     * The charset used to encode the metadata.
+     */
+    private static final Charset METADATA_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The random number generator used to create the data keys.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The version of the container format written by this class.
+     */
+    public static final byte VERSION = 2;
+    /**
+     * The length of the plaintext stated by the header of a file that has been encrypted from a stream.
+     */
+    public static final long UNKNOWN_LENGTH = -1;
+    /**
+     * The flag marking the index of a pack archive (see {@link PackArchive}).
+     */
+    public static final byte FLAG_PACK_INDEX = 1;
+    /**
+     * The flag marking a volume of a pack archive (see {@link PackArchive}).
+     */
+    public static final byte FLAG_PACK_VOLUME = 2;
+    /**
+     * The flag marking a file whose segments may be compressed (see {@link CompressionService}).
+     */
+    public static final byte FLAG_COMPRESSED = 4;
+    /**
+     * The flag marking a chunk of a dedup store (see {@link DedupStore}).
+     */
+    public static final byte FLAG_DEDUP_CHUNK = 8;
+    /**
+     * The flag marking the manifest of a file within a dedup store (see {@link DedupStore}).
+     */
+    public static final byte FLAG_DEDUP_MANIFEST = 16;
+    /**
+     * The flag marking a file that has been encrypted in place (see {@link InPlaceEncryptionService}).
+     */
+    public static final byte FLAG_IN_PLACE = 32;
+    /**
+     * The flag marking the catalog of an output folder (see {@link Catalog}).
+     */
+    public static final byte FLAG_CATALOG = 64;
+    /**
+     * The flag marking a file whose metadata contains the root of the Merkle tree over the tags
+     * of its segments (see {@link MerkleTree}).
+     */
+    public static final byte FLAG_MERKLE_ROOT = (byte) 128;
+    /**
+     * The flags marking the manifest of an incremental encryption (see {@link SourceManifest}). Since every
+     * single flag is taken, the manifest is marked by a combination no other file is written with, which is
+     * only recognized by comparing the flags as a whole (see {@link #hasFlags(File, byte)}).
+     */
+    public static final byte FLAG_SOURCE_MANIFEST = FLAG_CATALOG | FLAG_IN_PLACE;
+
+    /**
+     * The length of a single entry of the segment table of a compressed file.
+     */
+    private static final int SEGMENT_TABLE_ENTRY_LENGTH = 4 + 1;
+
+    /**
+     * The cipher suite used to encrypt the file.
+     */
+    private final CipherSuite cipherSuite;
+    /**
+     * The flags of the file.
+     */
+    private final byte flags;
+    /**
+     * The size of the plaintext of a single segment.
+     */
+    private final int segmentSize;
+    /**
+     * The length of the plaintext (i.e. the original file).
+     */
+    private final long plaintextLength;
+    /**
+     * The random nonce of the file the nonces of the single segments are derived from.
+     */
+    private final byte[] fileNonce;
+    /**
+     * The name of the original file.
+     */
+    private final String originalName;
+    /**
+     * The root of the Merkle tree over the tags of the segments; only set in case the file is flagged with it.
+     */
+    private final byte[] merkleRoot;
+    /**
+     * The length of the encrypted metadata block.
+     */
+    private final int metadataLength;
+    /**
+     * The random data key the file is encrypted with.
+     */
+    private final SecretKeySpec dataKey;
+    /**
+     * The contexts used to en- and decrypt the segments with the data key; created as soon as they are needed.
+     */
+    private final ThreadLocal<EncryptionContext> dataContexts;
+
+    /**
+     * Creates a header with the given values and a new random data key. In case the file is
+     * flagged with {@link #FLAG_MERKLE_ROOT}, the header can only be written as soon as the root
+     * is known (see {@link #withMerkleRoot(byte[])}).
+     *
+     * @param cipherSuite     the cipher suite used to encrypt the file
+     * @param flags           the flags of the file
+     * @param segmentSize     the size of the plaintext of a single segment
+     * @param plaintextLength the length of the plaintext
+     * @param fileNonce       the random nonce of the file
+     * @param originalName    the name of the original file
+     */
+    /* package-protected */ EncryptedFileHeader(
+            CipherSuite cipherSuite,
+            byte flags,
+            int segmentSize,
+            long plaintextLength,
+            byte[] fileNonce,
+            String originalName
+    ) {
+        this(cipherSuite, flags, segmentSize, plaintextLength, fileNonce, originalName, null, createDataKey());
+    }
+
+    /**
+     * Creates a header with the given values.
+     *
+     * @param cipherSuite     the cipher suite used to encrypt the file
+     * @param flags           the flags of the file
+     * @param segmentSize     the size of the plaintext of a single segment
+     * @param plaintextLength the length of the plaintext
+     * @param fileNonce       the random nonce of the file
+     * @param originalName    the name of the original file
+     * @param merkleRoot      the root of the Merkle tree over the tags of the segments, if known
+     * @param dataKey         the data key the file is encrypted with
+     */
+    private EncryptedFileHeader(
+            CipherSuite cipherSuite,
+            byte flags,
+            int segmentSize,
+            long plaintextLength,
+            byte[] fileNonce,
+            String originalName,
+            byte[] merkleRoot,
+            SecretKeySpec dataKey
+    ) {
+        this.cipherSuite = cipherSuite;
+        this.flags = flags;
+        this.segmentSize = segmentSize;
+        this.plaintextLength = plaintextLength;
+        this.fileNonce = fileNonce;
+        this.originalName = originalName;
+        this.merkleRoot = merkleRoot;
+        this.metadataLength = encodeMetadata(originalName, hasMerkleRoot() ? new byte[MerkleTree.HASH_LENGTH] : null).length
+                + CipherSuite.TAG_LENGTH;
+        this.dataKey = dataKey;
+        this.dataContexts = SegmentedEncryptionService.createContexts(dataKey);
+    }
+
+    /**
+     * @return The cipher suite used to encrypt the file
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * @return The flags of the file
+     */
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return The size of the plaintext of a single segment
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return The length of the plaintext (i.e. the original file)
+     */
+    public long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * @return Whether the file has been encrypted from a stream, whereas the length of its plaintext is unknown
+     */
+    public boolean isStreamed() {
+        return plaintextLength == UNKNOWN_LENGTH;
+    }
+
+    /**
+     * @return The name of the original file
+     */
+    public String getOriginalName() {
+        return originalName;
+    }
+
+    /**
+     * @return Whether the metadata of the file contains the root of the Merkle tree over the tags of its segments
+     */
+    public boolean hasMerkleRoot() {
+        return (flags & FLAG_MERKLE_ROOT) != 0;
+    }
+
+    /**
+     * @return The root of the Merkle tree over the tags of the segments, or {@code null} in case the file does not contain one
+     */
+    public byte[] getMerkleRoot() {
+        return (merkleRoot != null) ? merkleRoot.clone() : null;
+    }
+
+    /**
+     * This method creates a copy of this header (with the same data key) containing the given
+     * root of the Merkle tree. The root is only known as soon as every segment has been encrypted,
+     * whereas the header has the same length with any root and can thus be written afterwards.
+     *
+     * @param root the root of the Merkle tree over the tags of the segments
+     * @return the header containing the given root
+     * @throws IllegalStateException in case the file is not flagged with {@link #FLAG_MERKLE_ROOT}
+     */
+    /* package-protected */ EncryptedFileHeader withMerkleRoot(@NotNull byte[] root) {
+        if (!hasMerkleRoot() || root.length != MerkleTree.HASH_LENGTH) {
+            throw new IllegalStateException("The header cannot contain the given root of a Merkle tree.");
+        }
+
+        return new EncryptedFileHeader(
+                cipherSuite, flags, segmentSize, plaintextLength, fileNonce, originalName, root.clone(), dataKey
+        );
+    }
+
+    /**
+     * @return The random nonce of the file
+     */
+    /* package-protected */ byte[] getFileNonce() {
+        return fileNonce.clone();
+    }
+
+    /**
+     * The segments (and the metadata) of the file are encrypted with the data key,
+     * whereas the secret key derived from the password is only used to wrap said key.
+     *
+     * @return The contexts used to en- and decrypt the segments of the file
+     */
+    /* package-protected */ ThreadLocal<EncryptionContext> getDataContexts() {
+        return dataContexts;
+    }
+
+    /**
+     * @return The length of this header within the file
+     */
+    /* package-protected */ int getLength() {
+        return CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH + metadataLength;
+    }
+
+    /**
+     * @return The position within the file the first segment starts at
+     */
+    public long getDataOffset() {
+        return getLength();
+    }
+
+    /**
+     * @return The number of segments the file consists of
+     */
+    public int getSegmentCount() {
+        return (int) Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * @return Whether the segments of the file may be compressed
+     */
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * The segments of a compressed file vary in length, whereas such a file contains a
+     * table of the lengths of its segments between the header and the first segment:
+     * <pre>
+     * ([int length of encrypted segment][byte whether the segment is compressed])*
+     * </pre>
+     *
+     * @return The length of the segment table, which is {@code 0} for uncompressed files
+     */
+    /* package-protected */ int getSegmentTableLength() {
+        return isCompressed() ? getSegmentCount() * SEGMENT_TABLE_ENTRY_LENGTH : 0;
+    }
+
+    /**
+     * The length of a file whose segments are compressed can only be determined from its segment table.
+     *
+     * @return The length a complete (uncompressed) file with this header has
+     */
+    public long getEncryptedLength() {
+        return getDataOffset() + plaintextLength + (long) getSegmentCount() * CipherSuite.TAG_LENGTH;
+    }
+
+    /**
+     * This method gives you the position of the segment with given index within the file.
+     * The position of the segment of a compressed file can only be determined from its segment table.
+     *
+     * @param segment the index of the segment
+     * @return the position of the segment
+     */
+    public long getSegmentPosition(int segment) {
+        return getDataOffset() + segment * (long) (segmentSize + CipherSuite.TAG_LENGTH);
+    }
+
+    /**
+     * This method gives you the length of the plaintext of the segment with given index.
+     *
+     * @param segment the index of the segment
+     * @return the length of the plaintext of the segment
+     */
+    public int getSegmentLength(int segment) {
+        return (int) Math.min(segmentSize, plaintextLength - segment * (long) segmentSize);
+    }
+
+    /**
+     * This method creates the nonce for the segment with given index.
+     *
+     * @param segment the index of the segment
+     * @return the nonce of the segment
+     */
+    /* package-protected */ byte[] createSegmentNonce(int segment) {
+        return ByteBuffer.allocate(12)
+                .put(fileNonce)
+                .putInt(segment)
+                .array();
+    }
+
+    /**
+     * This method creates the additional data authenticated with the segment with given index.
+     *
+     * @param segment the index of the segment
+     * @return the additional data of the segment
+     */
+    /* package-protected */ byte[] createSegmentAssociatedData(int segment) {
+        return createSegmentAssociatedData(segment == getSegmentCount() - 1);
+    }
+
+    /**
+     * This method creates the additional data authenticated with a segment, which states whether
+     * it is the last segment of the file. The segments of a file that has been encrypted from a
+     * stream cannot be counted in advance, so they rely on this to detect a truncated file.
+     *
+     * @param last whether the segment is the last segment of the file
+     * @return the additional data of the segment
+     */
+    /* package-protected */ static byte[] createSegmentAssociatedData(boolean last) {
+        return new byte[]{(byte) (last ? 1 : 0)};
+    }
+
+    /**
+     * This method creates the additional data authenticated with the segment with given index
+     * of a compressed file, which also authenticates whether the segment is compressed.
+     *
+     * @param segment    the index of the segment
+     * @param compressed whether the segment is compressed
+     * @return the additional data of the segment
+     */
+    /* package-protected */ byte[] createSegmentAssociatedData(int segment, boolean compressed) {
+        return new byte[]{(byte) (segment == getSegmentCount() - 1 ? 1 : 0), (byte) (compressed ? 1 : 0)};
+    }
+
+    /**
+     * This method writes this header to the start of the given channel.
+     *
+     * @param channel the channel to write to
+     * @param context the context (of the secret key derived from the password) used to wrap the data key
+     * @throws IOException              in case the header could not be written
+     * @throws GeneralSecurityException in case the data key or the metadata could not be encrypted
+     */
+    /* package-protected */ void write(FileChannel channel, EncryptionContext context)
+            throws IOException, GeneralSecurityException {
+        write(channel, context, 0);
+    }
+
+    /**
+     * This method writes this header to the given position of the given channel.
+     *
+     * @param channel  the channel to write to
+     * @param context  the context (of the secret key derived from the password) used to wrap the data key
+     * @param position the position to write the header to
+     * @throws IOException              in case the header could not be written
+     * @throws GeneralSecurityException in case the data key or the metadata could not be encrypted
+     */
+    /* package-protected */ void write(FileChannel channel, EncryptionContext context, long position)
+            throws IOException, GeneralSecurityException {
+        SegmentedEncryptionService.writeFully(channel, ByteBuffer.wrap(encode(context)), position);
+    }
+
+    /**
+     * This method encodes this header. Since the nonces of the header are fixed, a header may only
+     * be encoded once; its bytes have to be copied in case it is to be written more than once.
+     *
+     * @param context the context (of the secret key derived from the password) used to wrap the data key
+     * @return the encoded header
+     * @throws GeneralSecurityException in case the data key or the metadata could not be encrypted
+     */
+    /* package-protected */ byte[] encode(EncryptionContext context) throws GeneralSecurityException {
+        if (hasMerkleRoot() && merkleRoot == null) {
+            throw new IllegalStateException("The header cannot be written before the root of its Merkle tree is known.");
+        }
+
+        byte[] cleartext = encodeCleartext();
+        byte[] keyBlock = wrapDataKey(context, cleartext, fileNonce, dataKey);
+        byte[] metadata = encodeMetadata(originalName, merkleRoot);
+
+        ByteBuffer header = ByteBuffer.allocate(CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH + metadataLength);
+        header.put(cleartext);
+        header.put(keyBlock);
+        dataContexts.get().sealSegment(
+                cipherSuite,
+                createSegmentNonce(METADATA_NONCE_INDEX),
+                cleartext,
+                ByteBuffer.wrap(metadata),
+                header
+        );
+
+        return header.array();
+    }
+
+    /**
+     * @return the cleartext part of this header
+     */
+    private byte[] encodeCleartext() {
+        return ByteBuffer.allocate(CLEARTEXT_LENGTH)
+                .put(MAGIC)
+                .put(VERSION)
+                .put(cipherSuite.getId())
+                .put(flags)
+                .putInt(segmentSize)
+                .putLong(plaintextLength)
+                .put(fileNonce)
+                .putInt(metadataLength)
+                .array();
+    }
+
+    /**
+     * This method encodes the metadata of a file.
+     *
+     * @param originalName the name of the original file
+     * @param merkleRoot   the root of the Merkle tree over the tags of the segments, or {@code null}
+     * @return the encoded metadata
+     */
+    private static byte[] encodeMetadata(String originalName, byte[] merkleRoot) {
+        byte[] name = originalName.getBytes(METADATA_CHARSET);
+        byte[] root = (merkleRoot != null) ? merkleRoot : new byte[0];
+
+        return ByteBuffer.allocate(4 + name.length + root.length)
+                .putInt(name.length)
+                .put(name)
+                .put(root)
+                .array();
+    }
+
+    /**
+     * This method determines whether the given channel starts with the magic number of the container format.
+     *
+     * @param channel the channel to check
+     * @return whether the given channel starts with the magic number
+     * @throws IOException in case the channel could not be read
+     */
+    /* package-protected */ static boolean hasMagic(FileChannel channel) throws IOException {
+        return hasMagic(channel, 0);
+    }
+
+    /**
+     * This method determines whether the magic number of the container format is located at the given
+     * position of the given channel.
+     *
+     * @param channel  the channel to check
+     * @param position the position to check
+     * @return whether the magic number is located at the given position
+     * @throws IOException in case the channel could not be read
+     */
+    private static boolean hasMagic(FileChannel channel, long position) throws IOException {
+        if (position < 0 || channel.size() - position < MAGIC.length) {
+            return false;
+        }
+
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, position + magic.position()) == -1) {
+                return false;
+            }
+        }
+        magic.flip();
+
+        return ByteBuffer.wrap(MAGIC).equals(magic);
+    }
+
+    /**
+     * This method locates the trailer of a file that has been encrypted in place through the footer
+     * at the end of the given channel.
+     *
+     * @param channel the channel to check
+     * @return the position of the header within the trailer, or {@code -1} in case there is no trailer
+     * @throws IOException in case the channel could not be read
+     */
+    /* package-protected */ static long findTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_LENGTH + CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH) {
+            return -1;
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        SegmentedEncryptionService.readFully(channel, footer, size - FOOTER_LENGTH);
+        footer.flip();
+
+        long position = footer.getLong();
+        byte[] magic = new byte[TRAILER_MAGIC.length];
+        footer.get(magic);
+
+        if (!Arrays.equals(magic, TRAILER_MAGIC)
+                || position > size - FOOTER_LENGTH - CLEARTEXT_LENGTH - KEY_BLOCK_LENGTH
+                || !hasMagic(channel, position)) {
+            return -1;
+        }
+        return position;
+    }
+
+    /**
+     * This method locates the header of the given channel, which either is at its start
+     * or within the trailer of a file that has been encrypted in place.
+     *
+     * @param channel the channel to check
+     * @return the position of the header, or {@code -1} in case the channel is not saved in the container format
+     * @throws IOException in case the channel could not be read
+     */
+    /* package-protected */ static long findHeader(FileChannel channel) throws IOException {
+        long trailer = findTrailer(channel);
+        if (trailer >= 0) {
+            return trailer;
+        }
+        return hasMagic(channel) ? 0 : -1;
+    }
+
+    /**
+     * @param trailerPosition the position of the header within the trailer
+     * @return the footer locating the given trailer
+     */
+    /* package-protected */ static byte[] encodeFooter(long trailerPosition) {
+        return ByteBuffer.allocate(FOOTER_LENGTH)
+                .putLong(trailerPosition)
+                .put(TRAILER_MAGIC)
+                .array();
+    }
+
+    /**
+     * This method determines whether the given file is saved in the container format.
+     *
+     * @param f the file to check
+     * @return whether the given file starts with the magic number of the container format
+     */
+    public static boolean isEncryptedFile(@NotNull File f) {
+        if (!f.isFile()) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return hasMagic(channel);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method determines whether the given file has a header of the container format, which either
+     * is at its start or within the trailer of a file that has been encrypted in place.
+     *
+     * @param f the file to check
+     * @return whether a header of the container format could be located within the given file
+     */
+    public static boolean hasHeader(@NotNull File f) {
+        if (!f.isFile()) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return findHeader(channel) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method determines whether the given file is saved in the container format and has
+     * the given flag set. Since the flags are only read from the cleartext part of the header,
+     * they are not authenticated by this method, whereas no secret key is needed.
+     *
+     * @param f    the file to check
+     * @param flag the flag to check for
+     * @return whether the given file is saved in the container format and has the given flag set
+     */
+    public static boolean hasFlag(@NotNull File f, byte flag) {
+        int flags = readFlags(f);
+        return flags >= 0 && (flags & flag) == (flag & 0xFF);
+    }
+
+    /**
+     * This method determines whether the given file is saved in the container format and has
+     * exactly the given flags set. Just like {@link #hasFlag(File, byte)} the flags are not authenticated.
+     *
+     * @param f     the file to check
+     * @param flags the flags to compare the flags of the file with
+     * @return whether the file is saved in the container format and has exactly the given flags set
+     */
+    public static boolean hasFlags(@NotNull File f, byte flags) {
+        return readFlags(f) == (flags & 0xFF);
+    }
+
+    /**
+     * This method reads the flags from the cleartext part of the header of the given file.
+     *
+     * @param f the file to read the flags of
+     * @return the flags of the file (between 0 and 255), or -1 in case it is not saved in the container format
+     */
+    private static int readFlags(File f) {
+        if (!f.isFile()) {
+            return -1;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long position = findHeader(channel);
+            if (position < 0 || channel.size() - position < CLEARTEXT_LENGTH) {
+                return -1;
+            }
+
+            ByteBuffer flags = ByteBuffer.allocate(1);
+            SegmentedEncryptionService.readFully(channel, flags, position + MAGIC.length + 2);
+
+            return flags.get(0) & 0xFF;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * This method checks whether the given file has been encrypted with the given secret key,
+     * by comparing the key check within the key block of its header. Only some dozen bytes
+     * are read, whereas this is a cheap way to reject a wrong password before decrypting anything.
+     *
+     * @param f   the file to check
+     * @param key the secret key to check
+     * @return whether the given file has been encrypted with the given secret key
+     * @throws IOException              in case the file could not be read or is not saved in the container format
+     * @throws GeneralSecurityException in case the key check could not be computed
+     */
+    public static boolean matchesKey(@NotNull File f, @NotNull SecretKeySpec key)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer prefix = readPrefix(channel, findHeader(channel));
+
+            byte[] fileNonce = new byte[8];
+            byte[] keyCheck = new byte[KEY_CHECK_LENGTH];
+            ((ByteBuffer) prefix.position(CLEARTEXT_LENGTH - 4 - 8)).get(fileNonce);
+            ((ByteBuffer) prefix.position(CLEARTEXT_LENGTH)).get(keyCheck);
+
+            return MessageDigest.isEqual(keyCheck, computeKeyCheck(key, fileNonce));
+        }
+    }
+
+    /**
+     * <p>This method changes the secret key the given file has been encrypted with from the given
+     * old key to the given new key. Since the data key of the file stays the same, only the key
+     * block of the header is rewritten, whereas this takes the same time for a file of any size.</p>
+     * <p>A file that has already been encrypted with the new key is left untouched, so a rotation
+     * that has been interrupted can simply be repeated.</p>
+     *
+     * @param f      the file to change the key of
+     * @param oldKey the secret key the file is currently encrypted with
+     * @param newKey the secret key the file is to be encrypted with
+     * @return whether the key block of the file has been rewritten
+     * @throws IOException              in case the file could not be read or written, or is not saved in the container format
+     * @throws GeneralSecurityException in case the file has not been encrypted with the old key, or the key block has been tampered with
+     */
+    public static boolean rekey(@NotNull File f, @NotNull SecretKeySpec oldKey, @NotNull SecretKeySpec newKey)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = findHeader(channel);
+            ByteBuffer prefix = readPrefix(channel, position);
+
+            byte[] cleartext = Arrays.copyOf(prefix.array(), CLEARTEXT_LENGTH);
+            byte[] keyBlock = Arrays.copyOfRange(prefix.array(), CLEARTEXT_LENGTH, CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH);
+            byte[] fileNonce = Arrays.copyOfRange(cleartext, CLEARTEXT_LENGTH - 4 - 8, CLEARTEXT_LENGTH - 4);
+
+            if (checkKey(keyBlock, newKey, fileNonce)) {
+                return false;
+            }
+            if (!checkKey(keyBlock, oldKey, fileNonce)) {
+                throw new WrongPasswordException("The file has been encrypted with another password.");
+            }
+
+            SecretKeySpec dataKey = unwrapDataKey(new EncryptionContext(oldKey), cleartext, fileNonce, keyBlock);
+            byte[] newKeyBlock = wrapDataKey(new EncryptionContext(newKey), cleartext, fileNonce, dataKey);
+
+            // the key block has the same length for every key, so it can be overwritten in place
+            SegmentedEncryptionService.writeFully(channel, ByteBuffer.wrap(newKeyBlock), position + CLEARTEXT_LENGTH);
+            channel.force(false);
+            return true;
+        }
+    }
+
+    /**
+     * This method reads and authenticates the header of the given file. Only the header
+     * itself is read, whereas this is a cheap way to determine the name and the size of
+     * the original file.
+     *
+     * @param f   the file to read the header of
+     * @param key the secret key the file has been encrypted with
+     * @return the header of the given file
+     * @throws IOException              in case the file could not be read or is not saved in the container format
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    @NotNull
+    public static EncryptedFileHeader read(@NotNull File f, @NotNull SecretKeySpec key)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long position = findHeader(channel);
+            if (position < 0) {
+                throw new IOException("The file is not saved in the container format.");
+            }
+            return read(channel, new EncryptionContext(key), position);
+        }
+    }
+
+    /**
+     * This method reads and authenticates the header at the start of the given channel.
+     *
+     * @param channel the channel to read from
+     * @param context the context (of the secret key derived from the password) used to unwrap the data key
+     * @return the header that has been read
+     * @throws IOException              in case the header could not be read or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    /* package-protected */ static EncryptedFileHeader read(FileChannel channel, EncryptionContext context)
+            throws IOException, GeneralSecurityException {
+        return read(channel, context, 0);
+    }
+
+    /**
+     * This method reads and authenticates the header at the given position of the given channel.
+     *
+     * @param channel  the channel to read from
+     * @param context  the context (of the secret key derived from the password) used to unwrap the data key
+     * @param position the position of the header
+     * @return the header that has been read
+     * @throws IOException              in case the header could not be read or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    /* package-protected */ static EncryptedFileHeader read(FileChannel channel, EncryptionContext context, long position)
+            throws IOException, GeneralSecurityException {
+        long[] next = {position};
+
+        return read(buffer -> {
+            SegmentedEncryptionService.readFully(channel, buffer, next[0]);
+            next[0] += buffer.capacity();
+        }, context);
+    }
+
+    /**
+     * This method reads and authenticates the header at the current position of the given stream.
+     * Exactly the bytes of the header are read, so the stream is positioned at the first segment afterwards.
+     *
+     * @param stream  the stream to read from
+     * @param context the context (of the secret key derived from the password) used to unwrap the data key
+     * @return the header that has been read
+     * @throws IOException              in case the header could not be read or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    /* package-protected */ static EncryptedFileHeader read(InputStream stream, EncryptionContext context)
+            throws IOException, GeneralSecurityException {
+        return read(buffer -> {
+            if (StreamEncryptionService.readFully(stream, buffer.array()) != buffer.capacity()) {
+                throw new IOException("The file is not saved in the container format.");
+            }
+            buffer.position(buffer.capacity());
+        }, context);
+    }
+
+    /**
+     * This method reads and authenticates a header, whose blocks are read one after another from the given source.
+     *
+     * @param source  the source to read the blocks of the header from
+     * @param context the context (of the secret key derived from the password) used to unwrap the data key
+     * @return the header that has been read
+     * @throws IOException              in case the header could not be read or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    private static EncryptedFileHeader read(BlockSource source, EncryptionContext context)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer prefix = ByteBuffer.allocate(CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH);
+        source.read(prefix);
+        prefix.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        prefix.get(magic);
+        if (!ByteBuffer.wrap(MAGIC).equals(ByteBuffer.wrap(magic))) {
+            throw new IOException("The file is not saved in the container format.");
+        }
+
+        byte version = prefix.get();
+        if (version != VERSION) {
+            throw new IOException(StringProcessing.format(
+                    "The version {0} of the container format is not supported.",
+                    version
+            ));
+        }
+
+        byte cipherSuiteId = prefix.get();
+        byte flags = prefix.get();
+        int segmentSize = prefix.getInt();
+        long plaintextLength = prefix.getLong();
+        byte[] fileNonce = new byte[8];
+        prefix.get(fileNonce);
+        int metadataLength = prefix.getInt();
+        byte[] keyBlock = new byte[KEY_BLOCK_LENGTH];
+        prefix.get(keyBlock);
+
+        byte[] cleartext = Arrays.copyOf(prefix.array(), CLEARTEXT_LENGTH);
+
+        // reject a wrong key before any encrypted data is touched
+        if (!checkKey(keyBlock, context.getKey(), fileNonce)) {
+            throw new WrongPasswordException("The file has been encrypted with another password.");
+        }
+
+        CipherSuite cipherSuite = CipherSuite.fromId(cipherSuiteId);
+        if (cipherSuite == null) {
+            throw new IOException(StringProcessing.format(
+                    "The cipher suite {0} is not supported.",
+                    cipherSuiteId
+            ));
+        }
+        // only files without any other purpose than holding their data may be encrypted from a stream
+        boolean streamed = plaintextLength == UNKNOWN_LENGTH && flags == 0;
+
+        if (segmentSize <= 0 || (plaintextLength < 0 && !streamed)
+                || metadataLength < CipherSuite.TAG_LENGTH || metadataLength > MAX_METADATA_LENGTH) {
+            throw new IOException("The header of the encrypted file is malformed.");
+        }
+
+        SecretKeySpec dataKey = unwrapDataKey(context, cleartext, fileNonce, keyBlock);
+
+        ByteBuffer encryptedMetadata = ByteBuffer.allocate(metadataLength);
+        source.read(encryptedMetadata);
+        encryptedMetadata.flip();
+
+        ByteBuffer metadata = ByteBuffer.allocate(metadataLength - CipherSuite.TAG_LENGTH);
+        new EncryptionContext(dataKey).openSegment(
+                cipherSuite,
+                ByteBuffer.allocate(12).put(fileNonce).putInt(METADATA_NONCE_INDEX).array(),
+                cleartext,
+                encryptedMetadata,
+                metadata
+        );
+        metadata.flip();
+
+        int rootLength = ((flags & FLAG_MERKLE_ROOT) != 0) ? MerkleTree.HASH_LENGTH : 0;
+        int nameLength = metadata.getInt();
+        if (nameLength < 0 || nameLength != metadata.remaining() - rootLength) {
+            throw new IOException("The metadata of the encrypted file is malformed.");
+        }
+        byte[] name = new byte[nameLength];
+        metadata.get(name);
+        byte[] merkleRoot = null;
+        if (rootLength != 0) {
+            merkleRoot = new byte[rootLength];
+            metadata.get(merkleRoot);
+        }
+
+        return new EncryptedFileHeader(
+                cipherSuite,
+                flags,
+                segmentSize,
+                plaintextLength,
+                fileNonce,
+                new String(name, METADATA_CHARSET),
+                merkleRoot,
+                dataKey
+        );
+    }
+
+    /**
+     * This method reads the cleartext part and the key block of the header at the given position
+     * of the given channel, without authenticating them.
+     *
+     * @param channel  the channel to read from
+     * @param position the position of the header (see {@link #findHeader(FileChannel)})
+     * @return the cleartext part of the header followed by the key block
+     * @throws IOException in case the channel could not be read or is not saved in the container format
+     */
+    private static ByteBuffer readPrefix(FileChannel channel, long position) throws IOException {
+        if (position < 0 || channel.size() - position < CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH) {
+            throw new IOException("The file is not saved in the container format.");
+        }
+
+        ByteBuffer prefix = ByteBuffer.allocate(CLEARTEXT_LENGTH + KEY_BLOCK_LENGTH);
+        SegmentedEncryptionService.readFully(channel, prefix, position);
+        return prefix;
+    }
+
+    /**
+     * @return a new random data key
+     */
+    private static SecretKeySpec createDataKey() {
+        byte[] key = new byte[DATA_KEY_LENGTH];
+        sRandom.nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * This method creates the key block of a file, which consists of the key check of the given
+     * secret key and the data key encrypted with said secret key. The cleartext part of the header
+     * is authenticated along with the data key.
+     *
+     * @param context   the context of the secret key derived from the password
+     * @param cleartext the cleartext part of the header
+     * @param fileNonce the nonce of the file
+     * @param dataKey   the data key to wrap
+     * @return the key block
+     * @throws GeneralSecurityException in case the data key could not be wrapped
+     */
+    private static byte[] wrapDataKey(EncryptionContext context, byte[] cleartext, byte[] fileNonce, SecretKeySpec dataKey)
+            throws GeneralSecurityException {
+        ByteBuffer keyBlock = ByteBuffer.allocate(KEY_BLOCK_LENGTH);
+        keyBlock.put(computeKeyCheck(context.getKey(), fileNonce));
+        context.sealSegment(
+                CipherSuite.AesGcm,
+                ByteBuffer.allocate(12).put(fileNonce).putInt(DATA_KEY_NONCE_INDEX).array(),
+                cleartext,
+                ByteBuffer.wrap(dataKey.getEncoded()),
+                keyBlock
+        );
+        return keyBlock.array();
+    }
+
+    /**
+     * This method decrypts the data key within the given key block.
+     *
+     * @param context   the context of the secret key derived from the password
+     * @param cleartext the cleartext part of the header
+     * @param fileNonce the nonce of the file
+     * @param keyBlock  the key block of the header
+     * @return the data key
+     * @throws GeneralSecurityException in case the data key could not be decrypted or has been tampered with
+     */
+    private static SecretKeySpec unwrapDataKey(EncryptionContext context, byte[] cleartext, byte[] fileNonce, byte[] keyBlock)
+            throws GeneralSecurityException {
+        ByteBuffer dataKey = ByteBuffer.allocate(DATA_KEY_LENGTH);
+        context.openSegment(
+                CipherSuite.AesGcm,
+                ByteBuffer.allocate(12).put(fileNonce).putInt(DATA_KEY_NONCE_INDEX).array(),
+                cleartext,
+                ByteBuffer.wrap(keyBlock, KEY_CHECK_LENGTH, KEY_BLOCK_LENGTH - KEY_CHECK_LENGTH),
+                dataKey
+        );
+        return new SecretKeySpec(dataKey.array(), "AES");
+    }
+
+    /**
+     * This method compares the key check within the given key block with the one of the given secret key.
+     *
+     * @param keyBlock  the key block of the header
+     * @param key       the secret key to check
+     * @param fileNonce the nonce of the file
+     * @return whether the key check matches the given secret key
+     * @throws GeneralSecurityException in case the key check could not be computed
+     */
+    private static boolean checkKey(byte[] keyBlock, SecretKeySpec key, byte[] fileNonce) throws GeneralSecurityException {
+        return MessageDigest.isEqual(Arrays.copyOf(keyBlock, KEY_CHECK_LENGTH), computeKeyCheck(key, fileNonce));
+    }
+
+    /**
+     * This method computes the key check of the given secret key for the file with the given nonce.
+     * Since the key check is a keyed hash of the nonce of the file, it cannot be used to compare the
+     * keys of several files, and does not reveal anything about the key.
+     *
+     * @param key       the secret key
+     * @param fileNonce the nonce of the file
+     * @return the key check
+     * @throws GeneralSecurityException in case the key check could not be computed
+     */
+    private static byte[] computeKeyCheck(SecretKeySpec key, byte[] fileNonce) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update(KEY_CHECK_INFO);
+        return Arrays.copyOf(mac.doFinal(fileNonce), KEY_CHECK_LENGTH);
+    }
+
+    /**
+     * A source the blocks of a header are read from one after another.
+     */
+    private interface BlockSource {
+
+        /**
+         * This method reads the next block of the header into the given (empty) buffer.
+         *
+         * @param buffer the buffer to fill completely
+         * @throws IOException in case the block could not be read
+         */
+        void read(ByteBuffer buffer) throws IOException;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * <p>An EncryptionContext holds ciphers that have already been initialized with a
+ * secret key, and some scratch buffers, so en- or decrypting a lot of (small) pieces
+ * of data does not need to look up and initialize a new cipher (and allocate new
+ * buffers) every single time.</p>
+ * <p>An EncryptionContext is not thread-safe and is thus supposed to be confined to
+ * a single thread. In case you want to en- or decrypt data on several threads you'll
+ * have to create a context for every thread.</p>
+ */
+public class EncryptionContext {
+
+    /**
+     * The secret key used by this context.
+     */
+    private final SecretKeySpec key;
+    /**
+     * The (legacy) AES-cipher initialized for encryption.
+     */
+    private final Cipher encryptCipher;
+    /**
+     * The (legacy) AES-cipher initialized for decryption.
+     */
+    private final Cipher decryptCipher;
+    /**
+     * The ciphers used for authenticated segments; created as soon as they are needed.
+     */
+    private final Map<CipherSuite, CipherSuite.SegmentCipher> segmentCiphers;
+    /**
+     * The scratch buffer for plaintext.
+     */
+    private ByteBuffer plainBuffer;
+    /**
+     * The scratch buffer for ciphertext.
+     */
+    private ByteBuffer cipherBuffer;
+
+    /**
+     * Creates an EncryptionContext using the given secret key.
+     *
+     * @param key the secret key to use for en- and decryption
+     * @throws GeneralSecurityException in case the ciphers could not be initialized with the given key
+     */
+    public EncryptionContext(@NotNull SecretKeySpec key) throws GeneralSecurityException {
+        this.key = key;
+
+        this.encryptCipher = Cipher.getInstance("AES");
+        this.encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+
+        this.decryptCipher = Cipher.getInstance("AES");
+        this.decryptCipher.init(Cipher.DECRYPT_MODE, key);
+
+        this.segmentCiphers = new EnumMap<>(CipherSuite.class);
+    }
+
+    /**
+     * @return the secret key used by this context
+     */
+    public SecretKeySpec getKey() {
+        return key;
+    }
+
+    /**
+     * This method determines the number of bytes the encryption of
+     * the given number of bytes will result in.
+     *
+     * @param plainLength the number of bytes to encrypt
+     * @return the number of encrypted bytes
+     */
+    public int getEncryptedLength(int plainLength) {
+        return encryptCipher.getOutputSize(plainLength);
+    }
+
+    /**
+     * This method encrypts the remaining bytes of the given source buffer into the given
+     * destination buffer. Both buffers may be direct buffers, whereas the data does not
+     * need to be copied onto the heap. The produced data is identical to the one produced
+     * by {@link EncryptionService#encrypt(byte[], SecretKeySpec)}.
+     *
+     * @param src the buffer containing the data to encrypt
+     * @param dst the buffer to write the encrypted data to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the data could not be encrypted (e.g. the destination is too small)
+     */
+    public int encrypt(@NotNull ByteBuffer src, @NotNull ByteBuffer dst) throws GeneralSecurityException {
+        return encryptCipher.doFinal(src, dst);
+    }
+
+    /**
+     * This method decrypts the remaining bytes of the given source buffer into the given
+     * destination buffer. Both buffers may be direct buffers, whereas the data does not
+     * need to be copied onto the heap.
+     *
+     * @param src the buffer containing the data to decrypt
+     * @param dst the buffer to write the decrypted data to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the data could not be decrypted (e.g. the key was wrong)
+     */
+    public int decrypt(@NotNull ByteBuffer src, @NotNull ByteBuffer dst) throws GeneralSecurityException {
+        return decryptCipher.doFinal(src, dst);
+    }
+
+    /**
+     * This method encrypts the given data.
+     *
+     * @param data the data to encrypt
+     * @return the encrypted data
+     * @throws GeneralSecurityException in case the data could not be encrypted
+     */
+    @NotNull
+    public byte[] encrypt(@NotNull byte[] data) throws GeneralSecurityException {
+        return encryptCipher.doFinal(data);
+    }
+
+    /**
+     * This method decrypts the given data.
+     *
+     * @param data the data to decrypt
+     * @return the decrypted data
+     * @throws GeneralSecurityException in case the data could not be decrypted
+     */
+    @NotNull
+    public byte[] decrypt(@NotNull byte[] data) throws GeneralSecurityException {
+        return decryptCipher.doFinal(data);
+    }
+
+    /**
+     * This method encrypts and authenticates the given segment with AES-GCM.
+     *
+     * @param nonce the (unique) nonce of the segment
+     * @param aad   the additional data to authenticate with the segment
+     * @param src   the buffer containing the plaintext of the segment
+     * @param dst   the buffer to write the ciphertext (including the tag) to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the segment could not be encrypted
+     * @see #sealSegment(CipherSuite, byte[], byte[], ByteBuffer, ByteBuffer)
+     */
+    /* package-protected */ int sealSegment(byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst)
+            throws GeneralSecurityException {
+        return sealSegment(CipherSuite.AesGcm, nonce, aad, src, dst);
+    }
+
+    /**
+     * This method decrypts and verifies the given segment with AES-GCM.
+     *
+     * @param nonce the nonce of the segment
+     * @param aad   the additional data that has been authenticated with the segment
+     * @param src   the buffer containing the ciphertext (including the tag) of the segment
+     * @param dst   the buffer to write the plaintext to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the segment could not be decrypted or has been tampered with
+     * @see #openSegment(CipherSuite, byte[], byte[], ByteBuffer, ByteBuffer)
+     */
+    /* package-protected */ int openSegment(byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst)
+            throws GeneralSecurityException {
+        return openSegment(CipherSuite.AesGcm, nonce, aad, src, dst);
+    }
+
+    /**
+     * This method encrypts and authenticates the given segment with the given cipher suite.
+     *
+     * @param suite the cipher suite to use
+     * @param nonce the (unique) nonce of the segment
+     * @param aad   the additional data to authenticate with the segment
+     * @param src   the buffer containing the plaintext of the segment
+     * @param dst   the buffer to write the ciphertext (including the tag) to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the segment could not be encrypted
+     */
+    /* package-protected */ int sealSegment(CipherSuite suite, byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst)
+            throws GeneralSecurityException {
+        return getSegmentCipher(suite).process(true, nonce, aad, src, dst);
+    }
+
+    /**
+     * This method decrypts and verifies the given segment with the given cipher suite.
+     *
+     * @param suite the cipher suite that has been used
+     * @param nonce the nonce of the segment
+     * @param aad   the additional data that has been authenticated with the segment
+     * @param src   the buffer containing the ciphertext (including the tag) of the segment
+     * @param dst   the buffer to write the plaintext to
+     * @return the number of bytes written to the destination buffer
+     * @throws GeneralSecurityException in case the segment could not be decrypted or has been tampered with
+     */
+    /* package-protected */ int openSegment(CipherSuite suite, byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst)
+            throws GeneralSecurityException {
+        return getSegmentCipher(suite).process(false, nonce, aad, src, dst);
+    }
+
+    /**
+     * This method gives you the scratch buffer for plaintext of this context, cleared
+     * and limited to the given capacity. The returned buffer is only valid until the
+     * next call of this method.
+     *
+     * @param capacity the number of bytes needed
+     * @return the cleared scratch buffer
+     */
+    /* package-protected */ ByteBuffer getPlainBuffer(int capacity) {
+        plainBuffer = prepareBuffer(plainBuffer, capacity);
+        return plainBuffer;
+    }
+
+    /**
+     * This method gives you the scratch buffer for ciphertext of this context, cleared
+     * and limited to the given capacity. The returned buffer is only valid until the
+     * next call of this method.
+     *
+     * @param capacity the number of bytes needed
+     * @return the cleared scratch buffer
+     */
+    /* package-protected */ ByteBuffer getCipherBuffer(int capacity) {
+        cipherBuffer = prepareBuffer(cipherBuffer, capacity);
+        return cipherBuffer;
+    }
+
+    /**
+     * This method clears the given buffer and limits it to the given capacity.
+     * In case the buffer is too small a new (direct) buffer is allocated.
+     *
+     * @param buffer   the buffer to prepare
+     * @param capacity the number of bytes needed
+     * @return the prepared buffer
+     */
+    private static ByteBuffer prepareBuffer(ByteBuffer buffer, int capacity) {
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+
+        return buffer;
+    }
+
+    /**
+     * @param suite the cipher suite
+     * @return the cipher of this context for the given suite
+     * @throws GeneralSecurityException in case the suite is not available
+     */
+    private CipherSuite.SegmentCipher getSegmentCipher(CipherSuite suite) throws GeneralSecurityException {
+        CipherSuite.SegmentCipher cipher = segmentCiphers.get(suite);
+        if (cipher == null) {
+            cipher = suite.createSegmentCipher(key);
+            segmentCiphers.put(suite, cipher);
+        }
+        return cipher;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class represents the options used by {@link SegmentedEncryptionService} to encrypt a file.
+ * Any option that is not set explicitly through the {@link Builder} uses its default value.
+ */
+public class EncryptionOptions {
+
+    /**
+     * The size of the plaintext of a single segment
+     */
+    private final int segmentSize;
+    /**
+     * Whether the segments may be compressed before they are encrypted
+     */
+    private final boolean compression;
+    /**
+     * The cipher suite to encrypt the segments with; {@code null} for the fastest available one
+     */
+    private final CipherSuite cipherSuite;
+    /**
+     * The pool to en- or decrypt the segments on
+     */
+    private final ForkJoinPool pool;
+    /**
+     * The writer to write the encrypted segments behind; {@code null} to write them directly
+     */
+    private final WriteBehindWriter writer;
+
+    /**
+     * Creates an EncryptionOptions-object with the given values.
+     * This constructor may only be called by the {@link Builder}-class
+     * within this class, and is thus set to private.
+     *
+     * @param segmentSize The size of the plaintext of a single segment
+     * @param compression Whether the segments may be compressed
+     * @param cipherSuite The cipher suite to encrypt the segments with; {@code null} for the fastest available one
+     * @param pool        The pool to en- or decrypt the segments on
+     * @param writer      The writer to write the encrypted segments behind; {@code null} to write them directly
+     */
+    private EncryptionOptions(
+            int segmentSize,
+            boolean compression,
+            CipherSuite cipherSuite,
+            ForkJoinPool pool,
+            WriteBehindWriter writer
+    ) {
+        this.segmentSize = segmentSize;
+        this.compression = compression;
+        this.cipherSuite = cipherSuite;
+        this.pool = pool;
+        this.writer = writer;
+    }
+
+    /**
+     * @return The size of the plaintext of a single segment
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return Whether the segments may be compressed before they are encrypted
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * This method gives you the cipher suite to encrypt the segments with. In case no suite
+     * has been set explicitly the fastest available suite is determined (see {@link CipherSuite#getFastest()}).
+     *
+     * @return The cipher suite to encrypt the segments with
+     */
+    @NotNull
+    public CipherSuite getCipherSuite() {
+        return (cipherSuite != null) ? cipherSuite : CipherSuite.getFastest();
+    }
+
+    /**
+     * @return The pool to en- or decrypt the segments on
+     */
+    @NotNull
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return The writer to write the encrypted segments behind; {@code null} to write them directly
+     */
+    public WriteBehindWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public String toString() {
+        return StringProcessing.format(
+                "EncryptionOptions[segmentSize={0}, compression={1}, cipherSuite={2}, parallelism={3}, writeBehind={4}]",
+                segmentSize,
+                compression,
+                (cipherSuite != null) ? cipherSuite : "fastest",
+                pool.getParallelism(),
+                writer != null
+        );
+    }
+
+    /**
+     * The builder class for {@link EncryptionOptions}.
+     */
+    public static class Builder {
+
+        /**
+         * The size of the plaintext of a single segment
+         */
+        private int segmentSize;
+        /**
+         * Whether the segments may be compressed before they are encrypted
+         */
+        private boolean compression;
+        /**
+         * The cipher suite to encrypt the segments with; {@code null} for the fastest available one
+         */
+        private CipherSuite cipherSuite;
+        /**
+         * The pool to en- or decrypt the segments on
+         */
+        private ForkJoinPool pool;
+        /**
+         * The writer to write the encrypted segments behind; {@code null} to write them directly
+         */
+        private WriteBehindWriter writer;
+
+        /**
+         * Creates a new Builder for EncryptionOptions-objects with default values.
+         */
+        public Builder() {
+            this.segmentSize = SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE;
+            this.compression = false;
+            this.cipherSuite = null;
+            this.pool = ForkJoinPool.commonPool();
+            this.writer = null;
+        }
+
+        /**
+         * This method sets the size of the plaintext of a single segment.
+         *
+         * @param segmentSize the segment size that is to be set
+         * @return the Builder for method chaining
+         */
+        public Builder setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * This method sets whether the segments may be compressed before they are encrypted.
+         * Files that are not worth compressing (see {@link CompressionService#isWorthCompressing(java.io.File)})
+         * will not be compressed regardless of this option.
+         *
+         * @param compression whether the segments may be compressed
+         * @return the Builder for method chaining
+         */
+        public Builder setCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * This method sets the cipher suite to encrypt the segments with.
+         * The value {@code null} will make the fastest available suite be used.
+         *
+         * @param cipherSuite the cipher suite that is to be set
+         * @return the Builder for method chaining
+         */
+        public Builder setCipherSuite(CipherSuite cipherSuite) {
+            this.cipherSuite = cipherSuite;
+            return this;
+        }
+
+        /**
+         * This method sets the pool to en- or decrypt the segments on.
+         * The value {@code null} will be ignored.
+         *
+         * @param pool the pool that is to be set
+         * @return the Builder for method chaining
+         */
+        public Builder setPool(ForkJoinPool pool) {
+            if (pool != null) {
+                this.pool = pool;
+            }
+            return this;
+        }
+
+        /**
+         * This method sets the writer to write the encrypted segments behind, so the segments (and files)
+         * that follow can be encrypted while the previous ones are still being written. Files that are
+         * mapped into memory are written through the mapping regardless of this option.
+         * The value {@code null} will make the segments be written directly.
+         *
+         * @param writer the writer that is to be set
+         * @return the Builder for method chaining
+         */
+        public Builder setWriter(WriteBehindWriter writer) {
+            this.writer = writer;
+            return this;
+        }
+
+        /**
+         * This method builds the EncryptionOptions-object with the values set in this Builder.
+         *
+         * @return the EncryptionOptions-object
+         */
+        @NotNull
+        public EncryptionOptions build() {
+            return new EncryptionOptions(segmentSize, compression, cipherSuite, pool, writer);
+        }
+    }
+}
@@ -20,17 +20,30 @@ import de.hotzjeanpierre.commandlinetools.command.development.DebuggingPurpose;
 import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.HashingAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
 import org.jetbrains.annotations.NotNull;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class can be used to en- or decrypt single files and save the
@@ -40,6 +53,19 @@ import java.util.Arrays;
  */
 public class EncryptionService {
 
+    /**
+     * The size of the chunks (in bytes) in which the streaming methods read
+     * from the input. Any streamed en- or decryption will thus only ever hold
+     * about two chunks in memory regardless of the size of the processed file.
+     */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The longest name of an original file that is considered plausible while checking
+     * the key of a file in the legacy format (see {@link #matchesKey(SecretKeySpec, File)}).
+     */
+    private static final int MAX_LEGACY_NAME_LENGTH = 0xFFFF;
+
     /**
      * This method creates a private key from the given password. The returned {@link HashingResult}
      * will contain whether the Hashing-process was successful, if so it will also contain a
@@ -67,6 +93,8 @@ public class EncryptionService {
 
     /**
      * This method encrypts the given byte data with the given secret key.
+     * In case you need to encrypt a lot of data with the same key you should
+     * consider using an {@link EncryptionContext} instead.
      *
      * @param data the data to encrypt
      * @param pw   the secret key to use for encryption
@@ -75,9 +103,7 @@ public class EncryptionService {
     @NotNull
     public static EncryptionResult encrypt(byte[] data, SecretKeySpec pw) {
         try {
-            Cipher aes = Cipher.getInstance("AES");
-            aes.init(Cipher.ENCRYPT_MODE, pw);
-            return new EncryptionResult(aes.doFinal(data));
+            return new EncryptionResult(new EncryptionContext(pw).encrypt(data));
         } catch (Exception exc) {
             return new EncryptionResult(exc);
         }
@@ -85,6 +111,8 @@ public class EncryptionService {
 
     /**
      * This method decrypts the given data with the given secret key.
+     * In case you need to decrypt a lot of data with the same key you should
+     * consider using an {@link EncryptionContext} instead.
      *
      * @param data the data to decrypt
      * @param pw   the secret key to use for decryption
@@ -93,9 +121,7 @@ public class EncryptionService {
     @NotNull
     public static EncryptionResult decrypt(byte[] data, SecretKeySpec pw) {
         try {
-            Cipher aes = Cipher.getInstance("AES");
-            aes.init(Cipher.DECRYPT_MODE, pw);
-            return new EncryptionResult(aes.doFinal(data));
+            return new EncryptionResult(new EncryptionContext(pw).decrypt(data));
         } catch (Exception exc) {
             return new EncryptionResult(exc);
         }
@@ -124,10 +150,7 @@ public class EncryptionService {
         try {
             byte[] data = CommonFileUtilities.readFile(in);
 
-            String filename = in.getAbsolutePath().substring(
-                    relativeTo.getAbsolutePath().length(),
-                    in.getAbsolutePath().length()
-            );
+            String filename = CommonFileUtilities.extractRelativePath(in, relativeTo);
 
             byte[] filenameBytes = filename.getBytes();
 
@@ -200,6 +223,418 @@ public class EncryptionService {
         }
     }
 
+    /**
+     * This method encrypts the data from the given file with the given secret key and
+     * directly streams the encrypted data into the given output file. Other than
+     * {@link #encryptFile(SecretKeySpec, File, File)} this method works on chunks of
+     * {@link #STREAM_CHUNK_SIZE} bytes, whereas its memory usage does not depend on the
+     * size of the file that is to be encrypted. The produced file is identical to the data
+     * that would have been returned by {@link #encryptFile(SecretKeySpec, File, File)}.
+     * The returned {@link FileEncryptionResult} does not contain any data.
+     * In case the encryption fails any partially written output is deleted.
+     *
+     * @param pw         the secret key used for encryption
+     * @param in         the file that is to be encrypted
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out        the file to write the encrypted data to
+     * @return the result of the encryption
+     */
+    @NotNull
+    public static FileEncryptionResult encryptFile(SecretKeySpec pw, File in, File relativeTo, File out) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be encrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        String filename;
+
+        try (InputStream input = new FileInputStream(in);
+             OutputStream output = new FileOutputStream(out)) {
+            Cipher aes = Cipher.getInstance("AES");
+            aes.init(Cipher.ENCRYPT_MODE, pw);
+
+            filename = CommonFileUtilities.extractRelativePath(in, relativeTo);
+            byte[] filenameBytes = filename.getBytes();
+
+            byte[] header = ByteBuffer.allocate(4 + filenameBytes.length)
+                    .putInt(filenameBytes.length)
+                    .put(filenameBytes)
+                    .array();
+
+            output.write(aes.update(header));
+
+            byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            byte[] encrypted = new byte[STREAM_CHUNK_SIZE + 2 * aes.getBlockSize()];
+
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                output.write(encrypted, 0, aes.update(chunk, 0, read, encrypted));
+            }
+
+            output.write(aes.doFinal());
+        } catch (Exception e) {
+            deletePartialOutput(out);
+            return new FileEncryptionResult(new EncryptionAbortedException("Ecryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(filename);
+    }
+
+    /**
+     * This method decrypts the data from the given file with the given secret key and
+     * directly streams the decrypted data into a file. Since the name of the original file
+     * is only known as soon as the beginning of the file has been decrypted, the file
+     * to write the data to is determined by the given {@link OutputFileResolver}.
+     * Other than {@link #decryptFile(SecretKeySpec, File)} this method works on chunks of
+     * {@link #STREAM_CHUNK_SIZE} bytes, whereas its memory usage does not depend on the
+     * size of the file that is to be decrypted. The returned {@link FileEncryptionResult}
+     * does not contain any data. In case the decryption fails any partially written output is deleted.
+     * Files that are saved in the versioned container format (see {@link EncryptedFileHeader})
+     * are decrypted by {@link SegmentedEncryptionService}, and files that have been encrypted in place
+     * are decrypted into a new file by {@link InPlaceEncryptionService}, whereas any other file is
+     * considered to be saved in the legacy format (version 1) of this class.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @return the result of the decryption
+     * @see #decryptFile(SecretKeySpec, File, OutputFileResolver, WriteBehindWriter)
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(SecretKeySpec pw, File in, OutputFileResolver resolver) {
+        return decryptFile(pw, in, resolver, null);
+    }
+
+    /**
+     * This method decrypts the given file like {@link #decryptFile(SecretKeySpec, File, OutputFileResolver)},
+     * whereas the decrypted data of files saved in the versioned container format may be written behind
+     * by the given writer (see {@link SegmentedEncryptionService#decryptFile(SecretKeySpec, File, OutputFileResolver, ForkJoinPool, WriteBehindWriter)}).
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @param writer   the writer to write the decrypted data behind; {@code null} to write it directly
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            WriteBehindWriter writer
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        if (InPlaceEncryptionService.isInPlaceFile(in)) {
+            return InPlaceEncryptionService.decryptFile(pw, in, resolver, ForkJoinPool.commonPool());
+        }
+        if (EncryptedFileHeader.isEncryptedFile(in)) {
+            return SegmentedEncryptionService.decryptFile(pw, in, resolver, ForkJoinPool.commonPool(), writer);
+        }
+
+        File out = null;
+        String fileName;
+
+        try (InputStream input = new FileInputStream(in)) {
+            // reject a wrong key before any output is written, rather than after the whole file has been decrypted
+            if (!matchesLegacyKey(pw, in)) {
+                throw new WrongPasswordException("The file has been encrypted with another password.");
+            }
+
+            Cipher aes = Cipher.getInstance("AES");
+            aes.init(Cipher.DECRYPT_MODE, pw);
+
+            byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            byte[] decrypted = new byte[STREAM_CHUNK_SIZE + 2 * aes.getBlockSize()];
+
+            // we'll collect the decrypted data until the name of the original file is complete
+            ByteBuffer header = ByteBuffer.allocate(4);
+            int nameLength = -1;
+            int offset = 0;
+            int length = 0;
+            int read = 0;
+
+            while (nameLength == -1 || header.hasRemaining()) {
+                if (offset == length) {
+                    if (read == -1) {
+                        throw new IOException("The encrypted file ended before the name of the original file could be read.");
+                    }
+                    read = input.read(chunk);
+                    offset = 0;
+                    length = (read != -1) ? aes.update(chunk, 0, read, decrypted) : aes.doFinal(decrypted, 0);
+                    continue;
+                }
+
+                int toCopy = Math.min(length - offset, header.remaining());
+                header.put(decrypted, offset, toCopy);
+                offset += toCopy;
+
+                if (nameLength == -1 && !header.hasRemaining()) {
+                    header.flip();
+                    nameLength = header.getInt();
+
+                    if (nameLength < 0 || nameLength > in.length()) {
+                        throw new IOException("The encrypted file is malformed.");
+                    }
+
+                    header = ByteBuffer.allocate(nameLength);
+                }
+            }
+
+            fileName = new String(header.array());
+
+            try {
+                out = resolver.resolve(fileName);
+            } catch (IOException e) {
+                return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+            }
+
+            try (OutputStream output = new FileOutputStream(out)) {
+                output.write(decrypted, offset, length - offset);
+
+                if (read != -1) {
+                    while ((read = input.read(chunk)) != -1) {
+                        output.write(decrypted, 0, aes.update(chunk, 0, read, decrypted));
+                    }
+
+                    output.write(decrypted, 0, aes.doFinal(decrypted, 0));
+                }
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            deletePartialOutput(out);
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method decrypts the given range of the plaintext of the given file into a file, which is
+     * determined by the given {@link OutputFileResolver}. Only the segments overlapping the range
+     * are decrypted (see {@link DecryptingChannel}), whereas a range reaching beyond the end of the
+     * file is cut off at said end. The returned {@link FileEncryptionResult} does not contain any data.
+     * In case the decryption fails any partially written output is deleted.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted; has to be saved in the container format
+     * @param resolver the resolver that determines the file to write the decrypted range to
+     * @param offset   the position within the plaintext the range starts at
+     * @param length   the length of the range; {@code -1} for the rest of the file
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFileRange(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            long offset,
+            long length
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+        if (offset < 0 || length < -1) {
+            return new FileEncryptionResult(new EncryptionAbortedException(
+                    "The offset of the range may not be negative, and its length has to be positive or -1.", null
+            ));
+        }
+
+        File out = null;
+        String fileName;
+
+        try (DecryptingChannel input = DecryptingChannel.open(pw, in)) {
+            if (offset > input.size()) {
+                throw new IOException(StringProcessing.format(
+                        "The range starts at {0}, whereas the file only contains {1} bytes.",
+                        offset,
+                        input.size()
+                ));
+            }
+
+            long toDecrypt = (length == -1) ? input.size() - offset : Math.min(length, input.size() - offset);
+            fileName = input.getOriginalName();
+
+            try {
+                out = resolver.resolve(fileName);
+            } catch (IOException e) {
+                return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+            }
+
+            input.position(offset);
+
+            try (FileChannel output = FileChannel.open(
+                    out.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                long written = 0;
+                while (written < toDecrypt) {
+                    long transferred = output.transferFrom(input, written, toDecrypt - written);
+                    if (transferred == 0) {
+                        throw new IOException("The encrypted file ended unexpectedly.");
+                    }
+                    written += transferred;
+                }
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            deletePartialOutput(out);
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method authenticates the whole given file without writing any of its plaintext.
+     * Files that have been encrypted in place are verified by {@link InPlaceEncryptionService}
+     * and any other file saved in the container format by {@link SegmentedEncryptionService}.
+     * Files saved in the legacy format cannot be verified, since said format does not
+     * authenticate its data.
+     *
+     * @param pw   the secret key used for decryption
+     * @param in   the file that is to be verified
+     * @param pool the pool to authenticate the segments on
+     * @return the result of the verification
+     */
+    @NotNull
+    public static FileEncryptionResult verifyFile(SecretKeySpec pw, File in, @NotNull ForkJoinPool pool) {
+        return verifyFile(pw, in, 0, pool);
+    }
+
+    /**
+     * This method verifies the given file like {@link #verifyFile(SecretKeySpec, File, ForkJoinPool)}, but
+     * only authenticates the given number of randomly chosen segments of files whose header contains the
+     * root of a Merkle tree over the tags of their segments
+     * (see {@link SegmentedEncryptionService#verifyFile(SecretKeySpec, File, int, ForkJoinPool)}).
+     * Any other file is verified completely.
+     *
+     * @param pw      the secret key used for decryption
+     * @param in      the file that is to be verified
+     * @param samples the number of segments to authenticate; {@code 0} to authenticate every segment
+     * @param pool    the pool to authenticate the segments on
+     * @return the result of the verification
+     */
+    @NotNull
+    public static FileEncryptionResult verifyFile(SecretKeySpec pw, File in, int samples, @NotNull ForkJoinPool pool) {
+        if (in != null && InPlaceEncryptionService.isInPlaceFile(in)) {
+            return InPlaceEncryptionService.verifyFile(pw, in, pool);
+        }
+        if (in != null && !EncryptedFileHeader.isEncryptedFile(in) && in.isFile()) {
+            return new FileEncryptionResult(new EncryptionAbortedException(
+                    "The file is not saved in the container format, whereas its data is not authenticated and can thus not be verified.",
+                    null
+            ));
+        }
+        return SegmentedEncryptionService.verifyFile(pw, in, samples, pool);
+    }
+
+    /**
+     * This method checks whether the given file has been encrypted with the given secret key,
+     * whereas only some dozen bytes of the file are read. Files that are saved in the versioned
+     * container format are checked by the key check within their header (see
+     * {@link EncryptedFileHeader#matchesKey(File, SecretKeySpec)}), whereas any other file is
+     * considered to be saved in the legacy format of this class. Since the legacy format does
+     * not contain a key check, its first and last block are decrypted, and have to contain a
+     * plausible length of the name of the original file and a valid padding respectively.
+     * This check of legacy files will only wrongly accept about one in 16 million wrong keys.
+     *
+     * @param pw the secret key to check
+     * @param in the file to check
+     * @return whether the given file has been encrypted with the given secret key
+     * @throws IOException              in case the file could not be read or is malformed
+     * @throws GeneralSecurityException in case the key could not be checked
+     */
+    public static boolean matchesKey(SecretKeySpec pw, File in) throws IOException, GeneralSecurityException {
+        if (EncryptedFileHeader.isEncryptedFile(in) || InPlaceEncryptionService.isInPlaceFile(in)) {
+            return EncryptedFileHeader.matchesKey(in, pw);
+        }
+        return matchesLegacyKey(pw, in);
+    }
+
+    /**
+     * This method checks whether the given file in the legacy format has been encrypted with the
+     * given secret key, by decrypting its first and its last block.
+     *
+     * @param pw the secret key to check
+     * @param in the file to check
+     * @return whether the given file has (most likely) been encrypted with the given secret key
+     * @throws IOException              in case the file could not be read or is malformed
+     * @throws GeneralSecurityException in case the blocks could not be decrypted
+     */
+    private static boolean matchesLegacyKey(SecretKeySpec pw, File in) throws IOException, GeneralSecurityException {
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.DECRYPT_MODE, pw);
+
+        int blockSize = aes.getBlockSize();
+        long length = in.length();
+
+        if (length < blockSize || length % blockSize != 0) {
+            throw new IOException("The encrypted file is malformed.");
+        }
+
+        byte[] first = new byte[blockSize];
+        byte[] last = new byte[blockSize];
+
+        try (RandomAccessFile file = new RandomAccessFile(in, "r")) {
+            file.readFully(first);
+            file.seek(length - blockSize);
+            file.readFully(last);
+        }
+
+        // the first block starts with the length of the name of the original file, which is
+        // a (relative) path and thus way shorter than the limit used here
+        int nameLength = ByteBuffer.wrap(aes.doFinal(first)).getInt();
+        if (nameLength < 0 || nameLength > Math.min(MAX_LEGACY_NAME_LENGTH, length - 4)) {
+            return false;
+        }
+
+        // the last block ends with a PKCS#5 padding
+        last = aes.doFinal(last);
+        int padding = last[blockSize - 1];
+        if (padding < 1 || padding > blockSize) {
+            return false;
+        }
+        for (int i = blockSize - padding; i < blockSize; i++) {
+            if (last[i] != padding) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * This method deletes the given (partially written) output of a failed en- or decryption.
+     *
+     * @param out the file to delete; {@code null} will be ignored
+     */
+    private static void deletePartialOutput(File out) {
+        if (out != null && out.exists() && !out.delete()) {
+            out.deleteOnExit();
+        }
+    }
+
     /**
      * The hashing result is the result of trying to create a secret key by hashing a password.
      */
@@ -361,6 +796,11 @@ public class EncryptionService {
          * that can be built from an FileEncryptionResult-object
          */
         private String originalName;
+        /**
+         * The future that is completed as soon as the output has been written,
+         * or {@code null} in case it has been written already
+         */
+        private CompletableFuture<Void> written;
 
         /* package-protected */ FileEncryptionResult(EncryptionResult result) {
             this(result.error);
@@ -388,6 +828,60 @@ public class EncryptionService {
             this.originalName = originalName;
         }
 
+        /**
+         * Creates an FileEncryptionResult which represents the successful en- or decryption
+         * of a file with given name, whose data has directly been streamed into another file.
+         * Thus the created result does not contain any data.
+         *
+         * @param originalName the name of the original file
+         */
+        /* package-protected */ FileEncryptionResult(String originalName) {
+            this(originalName, (byte[]) null);
+        }
+
+        /**
+         * Creates an FileEncryptionResult which represents the successful en- or decryption
+         * of a file with given name, whose data is still being written behind (see {@link WriteBehindWriter}).
+         *
+         * @param originalName the name of the original file
+         * @param written      the future that is completed as soon as the data has been written
+         */
+        /* package-protected */ FileEncryptionResult(String originalName, CompletableFuture<Void> written) {
+            this(originalName, (byte[]) null);
+            this.written = written;
+        }
+
+        /**
+         * @return Whether the output of the en- or decryption has been written completely (or failed to be written)
+         */
+        public boolean isWritten() {
+            return written == null || written.isDone();
+        }
+
+        /**
+         * This method waits for the output of the en- or decryption to be written.
+         * Only once this method has returned normally the output is complete, and e.g.
+         * the source of an encrypted file may be deleted.
+         *
+         * @throws IOException in case the output could not be written, whereas it has been deleted
+         */
+        public void awaitWritten() throws IOException {
+            if (written == null) {
+                return;
+            }
+
+            try {
+                written.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the output to be written.");
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof IOException)
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            }
+        }
+
         /**
          * @return The name of the original file which
          */
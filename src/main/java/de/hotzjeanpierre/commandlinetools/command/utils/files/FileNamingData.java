@@ -253,11 +253,23 @@ public class FileNamingData {
          * @return the FileNamingData with the extracted information
          */
         public static FileNamingData build(@NotNull EncryptionService.FileEncryptionResult result, int index) {
+            return build(result.getOriginalName(), index);
+        }
+
+        /**
+         * This method creates an instance of FileNamingData with regard of the given
+         * (relative) path of the original file, and the given index.
+         *
+         * @param originalPath the path of the original file to evaluate
+         * @param index        the index to give the FileNamingData
+         * @return the FileNamingData with the extracted information
+         */
+        public static FileNamingData build(@NotNull String originalPath, int index) {
             return new Builder()
-                    .setOriginalName(CommonFileUtilities.extractFileName(result.getOriginalName()))
-                    .setExtension(CommonFileUtilities.extractFileExtensionContainingPoint(result.getOriginalName()))
+                    .setOriginalName(CommonFileUtilities.extractFileName(originalPath))
+                    .setExtension(CommonFileUtilities.extractFileExtensionContainingPoint(originalPath))
                     .setIndex(index)
-                    .setOriginalLocation(CommonFileUtilities.extractFolderPath(result.getOriginalName()))
+                    .setOriginalLocation(CommonFileUtilities.extractFolderPath(originalPath))
                     .build();
         }
     }
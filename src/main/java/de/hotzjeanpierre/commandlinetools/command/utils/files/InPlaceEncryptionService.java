@@ -0,0 +1,1128 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService.FileEncryptionResult;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+ * <p>This class en- and decrypts (very big) files in place, so no second copy of a file is
+ * written and the disk usage does not peak at twice the size of the file. Since every cipher
+ * suite (see {@link CipherSuite}) encrypts a segment into a ciphertext of the same length
+ * followed by its tag, the ciphertext of every segment overwrites its plaintext, whereas the
+ * tags are collected within a trailer at the end of the file:</p>
+ * <pre>
+ * [ciphertext of the original length][header][tag of every segment][footer]
+ * </pre>
+ * <p>The header is the same {@link EncryptedFileHeader} as the one of the segmented container
+ * format (flagged with {@link EncryptedFileHeader#FLAG_IN_PLACE}), whereas the footer locates it.</p>
+ * <p>Since a segment that has only been overwritten partially can neither be decrypted nor be
+ * encrypted again, the progress is recorded within a small journal next to the file. The segments
+ * are processed in batches, whereas the result of every batch is written to the journal (and
+ * forced to the disk) before it overwrites the file, and the batch is only marked as committed
+ * once the file has been forced to the disk as well. Thus an interrupted en- or decryption is
+ * resumed by simply repeating it, which redoes the batch that may have been written partially.
+ * The journal never contains any plaintext while a file is encrypted.</p>
+ * <p>Once the whole file has been processed, it is moved to its destination. Thus said destination
+ * has to be on the same volume as the file, so the file can be renamed instead of being copied.</p>
+ */
+public class InPlaceEncryptionService {
+
+    /**
+     * The extension of the journal of a file that is being en- or decrypted in place.
+     */
+    public static final String JOURNAL_EXTENSION = "encj";
+
+    /**
+     * The magic number every journal starts with.
+     */
+    private static final byte[] JOURNAL_MAGIC = {'C', 'L', 'T', 'J', 'N', 'L'};
+    /**
+     * The mode of a journal recording an encryption.
+     */
+    private static final byte MODE_ENCRYPT = 0;
+    /**
+     * The mode of a journal recording a decryption.
+     */
+    private static final byte MODE_DECRYPT = 1;
+    /**
+     * The (maximum) number of bytes processed in a single batch.
+     */
+    private static final int BATCH_SIZE = 16 * 1024 * 1024;
+    /**
+     * The length of the authentication tag of every segment.
+     */
+    private static final int TAG_LENGTH = CipherSuite.TAG_LENGTH;
+
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * This method determines whether the given file has been encrypted in place,
+     * i.e. whether it ends with the footer of a trailer.
+     *
+     * @param f the file to check
+     * @return whether the given file has been encrypted in place
+     */
+    public static boolean isInPlaceFile(@NotNull File f) {
+        if (!f.isFile()) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return EncryptedFileHeader.findTrailer(channel) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method determines whether the given file is the journal of a file that is being en- or decrypted in place.
+     *
+     * @param f the file to check
+     * @return whether the given file is a journal
+     */
+    public static boolean isJournal(@NotNull File f) {
+        if (!f.isFile() || !f.getName().endsWith("." + JOURNAL_EXTENSION)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(JOURNAL_MAGIC.length);
+            SegmentedEncryptionService.readFully(channel, magic, 0);
+            return Arrays.equals(magic.array(), JOURNAL_MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method determines whether the given file is the journal of a file that has been decrypted in place
+     * and moved to its output completely, whereas the journal itself has not been deleted (e.g. since the
+     * program has crashed in between). Such a journal is not needed anymore, and can be deleted.
+     *
+     * @param f the file to check
+     * @return whether the given file is a journal whose file does not exist anymore
+     */
+    public static boolean isOrphanedJournal(@NotNull File f) {
+        if (!isJournal(f)) {
+            return false;
+        }
+
+        String name = f.getName();
+        return !new File(f.getAbsoluteFile().getParentFile(), name.substring(0, name.length() - JOURNAL_EXTENSION.length() - 1)).exists();
+    }
+
+    /**
+     * @param f the file that is being en- or decrypted in place
+     * @return the journal of the given file
+     */
+    @NotNull
+    public static File getJournalFile(@NotNull File f) {
+        return new File(f.getAbsoluteFile().getParentFile(), f.getName() + "." + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * This method encrypts the given file in place and moves it to the given output file afterwards.
+     * In case the encryption of the file has been interrupted before, it is resumed. The returned
+     * {@link FileEncryptionResult} does not contain any data. In case the encryption fails the file
+     * is left as it is, so the encryption may be resumed later on.
+     *
+     * @param pw         the secret key used for encryption
+     * @param in         the file that is to be encrypted
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out        the file to move the encrypted file to; has to be on the same volume as the file
+     * @param options    the options to use for the encryption; the compression is not supported and thus ignored
+     * @return the result of the encryption
+     */
+    @NotNull
+    public static FileEncryptionResult encryptFile(
+            SecretKeySpec pw,
+            File in,
+            File relativeTo,
+            File out,
+            @NotNull EncryptionOptions options
+    ) {
+        return encryptFile(pw, in, relativeTo, out, options, -1, false);
+    }
+
+    /**
+     * This method encrypts the given file in place, whereas the encryption may be interrupted
+     * after the given number of batches to simulate a crash.
+     *
+     * @param pw         the secret key used for encryption
+     * @param in         the file that is to be encrypted
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out        the file to move the encrypted file to
+     * @param options    the options to use for the encryption
+     * @param batchLimit the number of batches after which the encryption is interrupted; {@code -1} for no limit
+     * @param tear       whether the batch following the limit is to be written partially before the interruption
+     * @return the result of the encryption
+     */
+    /* package-protected */ static FileEncryptionResult encryptFile(
+            SecretKeySpec pw,
+            File in,
+            File relativeTo,
+            File out,
+            EncryptionOptions options,
+            int batchLimit,
+            boolean tear
+    ) {
+        int segmentSize = options.getSegmentSize();
+
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be encrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+        if (segmentSize <= 0 || segmentSize > SegmentedEncryptionService.MAX_SEGMENT_SIZE) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The segment size {0} is not supported.",
+                            segmentSize
+                    ), null)
+            );
+        }
+
+        File journalFile = getJournalFile(in);
+        String filename;
+
+        try {
+            checkSameVolume(in, out);
+
+            try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                EncryptionContext context = new EncryptionContext(pw);
+                EncryptedFileHeader header;
+
+                if (journalFile.exists()) {
+                    try (Journal journal = Journal.open(journalFile)) {
+                        if (journal.mode != MODE_ENCRYPT) {
+                            throw new IOException("The file is being decrypted in place, and has to be decrypted before it can be encrypted again.");
+                        }
+
+                        header = journal.readHeader(context);
+
+                        // the trailer is written before any data is overwritten, so it can only be missing in the beginning
+                        if (EncryptedFileHeader.findTrailer(channel) != header.getPlaintextLength()) {
+                            if (journal.committed != 0 || channel.size() < header.getPlaintextLength()) {
+                                throw new IOException("The trailer of the file that is being encrypted has been lost.");
+                            }
+                            writeTrailer(channel, header, journal.readEncodedHeader(header));
+                        }
+
+                        if (!process(channel, journal, header, true, options.getPool(), batchLimit, tear)) {
+                            return interrupted();
+                        }
+                    }
+                } else {
+                    long trailer = EncryptedFileHeader.findTrailer(channel);
+
+                    if (trailer >= 0) {
+                        // the file has been encrypted completely, whereas it has not been moved yet
+                        header = EncryptedFileHeader.read(channel, context, trailer);
+                        if (header.getFlags() != EncryptedFileHeader.FLAG_IN_PLACE) {
+                            throw new IOException("The file has already been encrypted.");
+                        }
+                    } else {
+                        if ((channel.size() + segmentSize - 1) / segmentSize > Integer.MAX_VALUE) {
+                            throw new IllegalArgumentException("The file is too big to be encrypted with the given segment size.");
+                        }
+
+                        byte[] fileNonce = new byte[8];
+                        sRandom.nextBytes(fileNonce);
+
+                        header = new EncryptedFileHeader(
+                                options.getCipherSuite(),
+                                EncryptedFileHeader.FLAG_IN_PLACE,
+                                segmentSize,
+                                channel.size(),
+                                fileNonce,
+                                CommonFileUtilities.extractRelativePath(in, relativeTo)
+                        );
+
+                        byte[] encodedHeader = header.encode(context);
+
+                        try (Journal journal = Journal.create(journalFile, MODE_ENCRYPT, header, encodedHeader)) {
+                            writeTrailer(channel, header, encodedHeader);
+
+                            if (!process(channel, journal, header, true, options.getPool(), batchLimit, tear)) {
+                                return interrupted();
+                            }
+                        }
+                    }
+                }
+
+                filename = header.getOriginalName();
+                channel.force(true);
+            }
+
+            // the file has been encrypted completely, whereas the journal is no longer needed
+            Files.deleteIfExists(journalFile.toPath());
+            Files.move(in.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(
+                    "Encryption has been aborted. Encrypt the file in place again to resume the encryption.", e
+            ));
+        }
+
+        return new FileEncryptionResult(filename);
+    }
+
+    /**
+     * This method authenticates every segment of the given file, which has to be encrypted in place,
+     * without writing any of its plaintext. The segments are authenticated in parallel on the given
+     * pool. The returned {@link FileEncryptionResult} does not contain any data, and its error
+     * states why the file is broken.
+     *
+     * @param pw   the secret key used for decryption
+     * @param in   the file that is to be verified
+     * @param pool the pool to authenticate the segments on
+     * @return the result of the verification
+     */
+    @NotNull
+    public static FileEncryptionResult verifyFile(SecretKeySpec pw, File in, @NotNull ForkJoinPool pool) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be verified.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        String fileName;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = readTrailer(input, new EncryptionContext(pw), in);
+            ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+            SegmentedEncryptionService.runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+                try {
+                    decryptSegment(input, header, contexts.get(), segment);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(StringProcessing.format(
+                            "Segment {0} of the encrypted file has been tampered with.",
+                            segment
+                    ), e);
+                }
+            });
+
+            fileName = header.getOriginalName();
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method decrypts the given file, which has to be encrypted in place, into a new file.
+     * The file itself is left untouched. The returned {@link FileEncryptionResult} does not contain
+     * any data. In case the decryption fails any partially written output is deleted.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @param pool     the pool to decrypt the segments on
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            @NotNull ForkJoinPool pool
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        File out = null;
+        String fileName;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = readTrailer(input, new EncryptionContext(pw), in);
+            fileName = header.getOriginalName();
+
+            try {
+                out = resolver.resolve(fileName);
+            } catch (IOException e) {
+                return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+            }
+
+            try (FileChannel output = FileChannel.open(
+                    out.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                int batchSegments = getBatchSegments(header);
+
+                for (int first = 0; first < header.getSegmentCount(); first += batchSegments) {
+                    int count = Math.min(batchSegments, header.getSegmentCount() - first);
+                    Batch batch = transformBatch(input, header, first, count, false, pool);
+
+                    SegmentedEncryptionService.writeFully(
+                            output, ByteBuffer.wrap(batch.data), first * (long) header.getSegmentSize()
+                    );
+                }
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(out);
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method decrypts the given file, which has to be encrypted in place, in place and moves it
+     * to the file determined by the given {@link OutputFileResolver} afterwards. Before any data is
+     * overwritten every segment of the file is verified, so a file that has been tampered with is
+     * left untouched. In case the decryption of the file has been interrupted before, it is resumed.
+     * The returned {@link FileEncryptionResult} does not contain any data.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to move the decrypted file to; has to be on the same volume as the file
+     * @param pool     the pool to decrypt the segments on
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFileInPlace(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            @NotNull ForkJoinPool pool
+    ) {
+        return decryptFileInPlace(pw, in, resolver, pool, -1, false);
+    }
+
+    /**
+     * This method decrypts the given file in place, whereas the decryption may be interrupted
+     * after the given number of batches to simulate a crash.
+     *
+     * @param pw         the secret key used for decryption
+     * @param in         the file that is to be decrypted
+     * @param resolver   the resolver that determines the file to move the decrypted file to
+     * @param pool       the pool to decrypt the segments on
+     * @param batchLimit the number of batches after which the decryption is interrupted; {@code -1} for no limit
+     * @param tear       whether the batch following the limit is to be written partially before the interruption
+     * @return the result of the decryption
+     */
+    /* package-protected */ static FileEncryptionResult decryptFileInPlace(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            ForkJoinPool pool,
+            int batchLimit,
+            boolean tear
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        File journalFile = getJournalFile(in);
+        File out;
+        String fileName;
+
+        try {
+            try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                EncryptionContext context = new EncryptionContext(pw);
+                EncryptedFileHeader header;
+
+                if (journalFile.exists()) {
+                    try (Journal journal = Journal.open(journalFile)) {
+                        if (journal.mode != MODE_DECRYPT) {
+                            throw new IOException("The file has not been encrypted completely. Encrypt it in place again to resume the encryption.");
+                        }
+
+                        header = journal.readHeader(context);
+                        fileName = header.getOriginalName();
+                        out = resolveSameVolume(resolver, fileName, in);
+
+                        if (!process(channel, journal, header, false, pool, batchLimit, tear)) {
+                            return interrupted();
+                        }
+                    }
+                } else {
+                    header = readTrailer(channel, context, in);
+                    fileName = header.getOriginalName();
+
+                    // verify the whole file before anything is overwritten
+                    int batchSegments = getBatchSegments(header);
+                    for (int first = 0; first < header.getSegmentCount(); first += batchSegments) {
+                        transformBatch(channel, header, first, Math.min(batchSegments, header.getSegmentCount() - first), false, pool);
+                    }
+
+                    out = resolveSameVolume(resolver, fileName, in);
+
+                    // the header is copied, since it may not be encoded again with the same nonces
+                    byte[] encodedHeader = new byte[header.getLength()];
+                    SegmentedEncryptionService.readFully(channel, ByteBuffer.wrap(encodedHeader), header.getPlaintextLength());
+
+                    try (Journal journal = Journal.create(journalFile, MODE_DECRYPT, header, encodedHeader)) {
+                        if (!process(channel, journal, header, false, pool, batchLimit, tear)) {
+                            return interrupted();
+                        }
+                    }
+                }
+
+                // the trailer is only cut off once every segment has been decrypted
+                channel.truncate(header.getPlaintextLength());
+                channel.force(true);
+            }
+
+            // the journal is kept until the file has been moved, since the decrypted file could not be recognized
+            // without it; thus a crash in between leaves an orphaned journal (see isOrphanedJournal(File))
+            Files.move(in.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(journalFile.toPath());
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(
+                    "Decryption has been aborted. Decrypt the file in place again to resume the decryption.", e
+            ));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * @return the result of an en- or decryption that has been interrupted on purpose
+     */
+    private static FileEncryptionResult interrupted() {
+        return new FileEncryptionResult(new EncryptionAbortedException("The file has been processed partially.", null));
+    }
+
+    /**
+     * This method reads and checks the header within the trailer of the given file.
+     *
+     * @param channel the channel of the file
+     * @param context the context (of the secret key derived from the password) used to unwrap the data key
+     * @param f       the file
+     * @return the header of the file
+     * @throws IOException              in case the file has not been encrypted (completely) in place or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+     */
+    /* package-protected */ static EncryptedFileHeader readTrailer(FileChannel channel, EncryptionContext context, File f)
+            throws IOException, GeneralSecurityException {
+        if (getJournalFile(f).exists()) {
+            throw new IOException("The file has not been en- or decrypted completely. Repeat the en- or decryption in place to resume it.");
+        }
+
+        long trailer = EncryptedFileHeader.findTrailer(channel);
+        if (trailer < 0) {
+            throw new IOException("The file has not been encrypted in place.");
+        }
+
+        EncryptedFileHeader header = EncryptedFileHeader.read(channel, context, trailer);
+
+        // the header has been authenticated, so a file of any other layout has been tampered with
+        if (header.getFlags() != EncryptedFileHeader.FLAG_IN_PLACE
+                || header.getSegmentSize() > SegmentedEncryptionService.MAX_SEGMENT_SIZE
+                || header.getPlaintextLength() != trailer
+                || getTrailerLength(header) != channel.size() - trailer) {
+            throw new IOException("The encrypted file is malformed.");
+        }
+
+        return header;
+    }
+
+    /**
+     * This method decrypts the segment with given index of a file that has been encrypted in place.
+     *
+     * @param channel the channel of the file
+     * @param header  the header of the file, as read from its trailer
+     * @param context the context used to decrypt the segment
+     * @param segment the index of the segment
+     * @return the plaintext of the segment
+     * @throws IOException              in case the segment could not be read
+     * @throws GeneralSecurityException in case the segment could not be authenticated
+     */
+    /* package-protected */ static byte[] decryptSegment(
+            FileChannel channel,
+            EncryptedFileHeader header,
+            EncryptionContext context,
+            int segment
+    ) throws IOException, GeneralSecurityException {
+        int length = header.getSegmentLength(segment);
+
+        // the data of the segment is kept at its original position, whereas its tag is part of the trailer
+        ByteBuffer sealed = ByteBuffer.allocate(length + TAG_LENGTH);
+        sealed.limit(length);
+        SegmentedEncryptionService.readFully(channel, sealed, segment * (long) header.getSegmentSize());
+        sealed.limit(length + TAG_LENGTH);
+        SegmentedEncryptionService.readFully(
+                channel, sealed,
+                header.getPlaintextLength() + header.getLength() + segment * (long) TAG_LENGTH
+        );
+        sealed.flip();
+
+        byte[] plain = new byte[length];
+        context.openSegment(
+                header.getCipherSuite(),
+                header.createSegmentNonce(segment),
+                header.createSegmentAssociatedData(segment),
+                sealed,
+                ByteBuffer.wrap(plain)
+        );
+        return plain;
+    }
+
+    /**
+     * This method writes the trailer of a file that is to be encrypted in place. The tags of the
+     * segments are written as soon as the segments have been encrypted.
+     *
+     * @param channel       the channel of the file
+     * @param header        the header of the file
+     * @param encodedHeader the encoded header of the file
+     * @throws IOException in case the trailer could not be written
+     */
+    private static void writeTrailer(FileChannel channel, EncryptedFileHeader header, byte[] encodedHeader)
+            throws IOException {
+        long trailer = header.getPlaintextLength();
+
+        channel.truncate(trailer);
+        SegmentedEncryptionService.writeFully(channel, ByteBuffer.wrap(encodedHeader), trailer);
+        SegmentedEncryptionService.writeFully(
+                channel,
+                ByteBuffer.wrap(EncryptedFileHeader.encodeFooter(trailer)),
+                trailer + getTrailerLength(header) - EncryptedFileHeader.FOOTER_LENGTH
+        );
+        channel.force(true);
+    }
+
+    /**
+     * @param header the header of a file that has been encrypted in place
+     * @return the length of the trailer of said file
+     */
+    private static long getTrailerLength(EncryptedFileHeader header) {
+        return header.getLength() + (long) header.getSegmentCount() * TAG_LENGTH + EncryptedFileHeader.FOOTER_LENGTH;
+    }
+
+    /**
+     * @param header the header of a file that is en- or decrypted in place
+     * @return the number of segments processed within a single batch
+     */
+    private static int getBatchSegments(EncryptedFileHeader header) {
+        return Math.max(1, BATCH_SIZE / header.getSegmentSize());
+    }
+
+    /**
+     * This method determines the file to move the decrypted file to, and makes sure
+     * it is on the same volume as the file.
+     *
+     * @param resolver the resolver that determines the file to move the decrypted file to
+     * @param fileName the name of the original file
+     * @param in       the file that is decrypted
+     * @return the file to move the decrypted file to
+     * @throws IOException in case the file could not be determined or is on another volume
+     */
+    private static File resolveSameVolume(OutputFileResolver resolver, String fileName, File in) throws IOException {
+        File out = resolver.resolve(fileName);
+        checkSameVolume(in, out);
+        return out;
+    }
+
+    /**
+     * This method makes sure the given file can be moved to the given destination without being copied.
+     *
+     * @param in  the file to move
+     * @param out the destination of the file
+     * @throws IOException in case the destination is on another volume than the file
+     */
+    private static void checkSameVolume(File in, File out) throws IOException {
+        File folder = out.getAbsoluteFile().getParentFile();
+
+        if (!Files.getFileStore(in.toPath()).equals(Files.getFileStore(folder.toPath()))) {
+            throw new IOException(StringProcessing.format(
+                    "The folder '{0}' is not on the same volume as the file '{1}', whereas the file cannot be processed in place.",
+                    folder.getAbsolutePath(),
+                    in.getAbsolutePath()
+            ));
+        }
+    }
+
+    /**
+     * This method en- or decrypts the file with given header in place, starting with the first batch that
+     * has not been committed yet. In case the journal contains a batch that may have been written partially,
+     * said batch is redone first.
+     *
+     * @param channel    the channel of the file
+     * @param journal    the journal of the file
+     * @param header     the header of the file
+     * @param encrypt    whether to encrypt or to decrypt the file
+     * @param pool       the pool to en- or decrypt the segments on
+     * @param batchLimit the number of batches after which the processing is interrupted; {@code -1} for no limit
+     * @param tear       whether the batch following the limit is to be written partially before the interruption
+     * @return whether the whole file has been processed
+     * @throws Exception in case the file could not be processed
+     */
+    private static boolean process(
+            FileChannel channel,
+            Journal journal,
+            EncryptedFileHeader header,
+            boolean encrypt,
+            ForkJoinPool pool,
+            int batchLimit,
+            boolean tear
+    ) throws Exception {
+        Batch redo = journal.readRedo();
+        if (redo != null && redo.first == journal.committed) {
+            apply(channel, header, redo, -1);
+            journal.commit(redo.first + redo.count);
+        }
+
+        int batchSegments = getBatchSegments(header);
+        int batches = 0;
+
+        for (int first = (int) journal.committed; first < header.getSegmentCount(); first += batchSegments) {
+            int count = Math.min(batchSegments, header.getSegmentCount() - first);
+            Batch batch = transformBatch(channel, header, first, count, encrypt, pool);
+
+            journal.writeRedo(batch);
+
+            if (batches++ == batchLimit) {
+                if (tear) {
+                    apply(channel, header, batch, batch.data.length / 2);
+                }
+                return false;
+            }
+
+            apply(channel, header, batch, -1);
+            journal.commit(first + count);
+        }
+
+        return true;
+    }
+
+    /**
+     * This method writes the given (en- or decrypted) batch to the file and forces it to the disk.
+     *
+     * @param channel the channel of the file
+     * @param header  the header of the file
+     * @param batch   the batch to write
+     * @param limit   the number of bytes of the data to write (to simulate a crash); {@code -1} for all of them
+     * @throws IOException in case the batch could not be written
+     */
+    private static void apply(FileChannel channel, EncryptedFileHeader header, Batch batch, int limit)
+            throws IOException {
+        SegmentedEncryptionService.writeFully(
+                channel,
+                ByteBuffer.wrap(batch.data, 0, (limit >= 0) ? limit : batch.data.length),
+                batch.first * (long) header.getSegmentSize()
+        );
+        SegmentedEncryptionService.writeFully(
+                channel,
+                ByteBuffer.wrap(batch.tags),
+                header.getPlaintextLength() + header.getLength() + batch.first * (long) TAG_LENGTH
+        );
+        channel.force(false);
+    }
+
+    /**
+     * This method reads the given segments of the file with given header and en- or decrypts them
+     * in parallel on the given pool. The tags of the segments are verified while decrypting them.
+     *
+     * @param channel the channel of the file
+     * @param header  the header of the file
+     * @param first   the index of the first segment
+     * @param count   the number of segments
+     * @param encrypt whether to encrypt or to decrypt the segments
+     * @param pool    the pool to en- or decrypt the segments on
+     * @return the en- or decrypted batch; only contains the tags of the segments if they have been encrypted
+     * @throws Exception in case the segments could not be en- or decrypted or have been tampered with
+     */
+    private static Batch transformBatch(
+            FileChannel channel,
+            EncryptedFileHeader header,
+            int first,
+            int count,
+            boolean encrypt,
+            ForkJoinPool pool
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+        long start = first * (long) segmentSize;
+        int length = (int) Math.min(count * (long) segmentSize, header.getPlaintextLength() - start);
+        long tagsPosition = header.getPlaintextLength() + header.getLength() + first * (long) TAG_LENGTH;
+
+        ByteBuffer source = ByteBuffer.allocate(length);
+        SegmentedEncryptionService.readFully(channel, source, start);
+
+        byte[] tags = new byte[count * TAG_LENGTH];
+        if (!encrypt) {
+            SegmentedEncryptionService.readFully(channel, ByteBuffer.wrap(tags), tagsPosition);
+        }
+
+        byte[] data = new byte[length];
+        ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+        SegmentedEncryptionService.runInParallel(pool, 0, count, i -> {
+            int segment = first + i;
+            int offset = i * segmentSize;
+            int segmentLength = header.getSegmentLength(segment);
+
+            if (encrypt) {
+                ByteBuffer sealed = ByteBuffer.allocate(segmentLength + TAG_LENGTH);
+                contexts.get().sealSegment(
+                        header.getCipherSuite(),
+                        header.createSegmentNonce(segment),
+                        header.createSegmentAssociatedData(segment),
+                        ByteBuffer.wrap(source.array(), offset, segmentLength),
+                        sealed
+                );
+                sealed.flip();
+                sealed.get(data, offset, segmentLength);
+                sealed.get(tags, i * TAG_LENGTH, TAG_LENGTH);
+            } else {
+                ByteBuffer sealed = ByteBuffer.allocate(segmentLength + TAG_LENGTH)
+                        .put(source.array(), offset, segmentLength)
+                        .put(tags, i * TAG_LENGTH, TAG_LENGTH);
+                sealed.flip();
+                contexts.get().openSegment(
+                        header.getCipherSuite(),
+                        header.createSegmentNonce(segment),
+                        header.createSegmentAssociatedData(segment),
+                        sealed,
+                        ByteBuffer.wrap(data, offset, segmentLength)
+                );
+            }
+        });
+
+        return new Batch(first, count, data, encrypt ? tags : new byte[0]);
+    }
+
+    /**
+     * A batch of segments that have been en- or decrypted, but not yet written to the file.
+     */
+    private static class Batch {
+
+        /**
+         * The index of the first segment of this batch.
+         */
+        private final int first;
+        /**
+         * The number of segments of this batch.
+         */
+        private final int count;
+        /**
+         * The en- or decrypted data of the segments.
+         */
+        private final byte[] data;
+        /**
+         * The tags of the segments; empty in case they have been decrypted.
+         */
+        private final byte[] tags;
+
+        /**
+         * Creates a batch with the given values.
+         *
+         * @param first the index of the first segment
+         * @param count the number of segments
+         * @param data  the en- or decrypted data of the segments
+         * @param tags  the tags of the segments
+         */
+        private Batch(int first, int count, byte[] data, byte[] tags) {
+            this.first = first;
+            this.count = count;
+            this.data = data;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * <p>The journal of a file that is being en- or decrypted in place, which is laid out as follows:</p>
+     * <pre>
+     * [magic "CLTJNL"][byte mode][long plaintext length][long committed segments][int header length][header]
+     * [int first segment][int segment count][int data length][int tags length][long checksum][data][tags]
+     * </pre>
+     * <p>The second line is the batch that is being written to the file (if any), which is only
+     * considered in case its checksum matches, whereas a torn record is simply ignored.</p>
+     */
+    private static class Journal implements Closeable {
+
+        /**
+         * The position of the number of committed segments.
+         */
+        private static final int COMMITTED_POSITION = JOURNAL_MAGIC.length + 1 + 8;
+        /**
+         * The position of the header of the file.
+         */
+        private static final int HEADER_POSITION = COMMITTED_POSITION + 8 + 4;
+        /**
+         * The length of the fixed part of a batch record.
+         */
+        private static final int RECORD_HEADER_LENGTH = 4 + 4 + 4 + 4 + 8;
+
+        /**
+         * The channel of the journal.
+         */
+        private final FileChannel channel;
+        /**
+         * Whether the file is being en- or decrypted.
+         */
+        private final byte mode;
+        /**
+         * The position of the batch record.
+         */
+        private final long recordPosition;
+        /**
+         * The number of segments that have been written to the file.
+         */
+        private long committed;
+
+        /**
+         * Creates a journal with the given values.
+         *
+         * @param channel        the channel of the journal
+         * @param mode           whether the file is being en- or decrypted
+         * @param recordPosition the position of the batch record
+         * @param committed      the number of segments that have been written to the file
+         */
+        private Journal(FileChannel channel, byte mode, long recordPosition, long committed) {
+            this.channel = channel;
+            this.mode = mode;
+            this.recordPosition = recordPosition;
+            this.committed = committed;
+        }
+
+        /**
+         * This method creates a new journal for a file with the given header.
+         *
+         * @param f             the journal file
+         * @param mode          whether the file is being en- or decrypted
+         * @param header        the header of the file
+         * @param encodedHeader the encoded header of the file
+         * @return the created journal
+         * @throws IOException in case the journal could not be written
+         */
+        private static Journal create(File f, byte mode, EncryptedFileHeader header, byte[] encodedHeader)
+                throws IOException {
+            FileChannel channel = FileChannel.open(
+                    f.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+            );
+
+            try {
+                ByteBuffer fixed = ByteBuffer.allocate(HEADER_POSITION)
+                        .put(JOURNAL_MAGIC)
+                        .put(mode)
+                        .putLong(header.getPlaintextLength())
+                        .putLong(0)
+                        .putInt(header.getLength());
+                fixed.flip();
+
+                SegmentedEncryptionService.writeFully(channel, fixed, 0);
+                SegmentedEncryptionService.writeFully(channel, ByteBuffer.wrap(encodedHeader), HEADER_POSITION);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+
+            return new Journal(channel, mode, HEADER_POSITION + header.getLength(), 0);
+        }
+
+        /**
+         * This method opens an existing journal.
+         *
+         * @param f the journal file
+         * @return the opened journal
+         * @throws IOException in case the journal could not be read or is malformed
+         */
+        private static Journal open(File f) throws IOException {
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            try {
+                ByteBuffer fixed = ByteBuffer.allocate(HEADER_POSITION);
+                SegmentedEncryptionService.readFully(channel, fixed, 0);
+                fixed.flip();
+
+                byte[] magic = new byte[JOURNAL_MAGIC.length];
+                fixed.get(magic);
+                byte mode = fixed.get();
+                fixed.getLong();
+                long committed = fixed.getLong();
+                int headerLength = fixed.getInt();
+
+                if (!Arrays.equals(magic, JOURNAL_MAGIC) || committed < 0 || headerLength <= 0) {
+                    throw new IOException("The journal is malformed.");
+                }
+
+                return new Journal(channel, mode, HEADER_POSITION + (long) headerLength, committed);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param context the context (of the secret key derived from the password) used to unwrap the data key
+         * @return the header of the file
+         * @throws IOException              in case the header could not be read
+         * @throws GeneralSecurityException in case the header could not be authenticated (e.g. the key was wrong)
+         */
+        private EncryptedFileHeader readHeader(EncryptionContext context) throws IOException, GeneralSecurityException {
+            EncryptedFileHeader header = EncryptedFileHeader.read(channel, context, HEADER_POSITION);
+
+            if (header.getFlags() != EncryptedFileHeader.FLAG_IN_PLACE
+                    || header.getSegmentSize() > SegmentedEncryptionService.MAX_SEGMENT_SIZE
+                    || committed > header.getSegmentCount()) {
+                throw new IOException("The journal is malformed.");
+            }
+            return header;
+        }
+
+        /**
+         * @param header the header of the file, as read from this journal
+         * @return the encoded header of the file
+         * @throws IOException in case the header could not be read
+         */
+        private byte[] readEncodedHeader(EncryptedFileHeader header) throws IOException {
+            byte[] encodedHeader = new byte[header.getLength()];
+            SegmentedEncryptionService.readFully(channel, ByteBuffer.wrap(encodedHeader), HEADER_POSITION);
+            return encodedHeader;
+        }
+
+        /**
+         * This method records the given number of segments as written to the file.
+         *
+         * @param segments the number of segments that have been written to the file
+         * @throws IOException in case the journal could not be written
+         */
+        private void commit(long segments) throws IOException {
+            SegmentedEncryptionService.writeFully(
+                    channel, (ByteBuffer) ByteBuffer.allocate(8).putLong(segments).flip(), COMMITTED_POSITION
+            );
+            channel.force(false);
+            committed = segments;
+        }
+
+        /**
+         * This method records the given batch before it is written to the file.
+         *
+         * @param batch the batch that is to be written
+         * @throws IOException in case the journal could not be written
+         */
+        private void writeRedo(Batch batch) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + batch.data.length + batch.tags.length)
+                    .putInt(batch.first)
+                    .putInt(batch.count)
+                    .putInt(batch.data.length)
+                    .putInt(batch.tags.length)
+                    .putLong(checksum(batch))
+                    .put(batch.data)
+                    .put(batch.tags);
+            record.flip();
+
+            channel.truncate(recordPosition);
+            SegmentedEncryptionService.writeFully(channel, record, recordPosition);
+            channel.force(false);
+        }
+
+        /**
+         * @return the batch that has been recorded last, or {@code null} in case there is no (complete) record
+         * @throws IOException in case the journal could not be read
+         */
+        private Batch readRedo() throws IOException {
+            if (channel.size() - recordPosition < RECORD_HEADER_LENGTH) {
+                return null;
+            }
+
+            ByteBuffer fixed = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            SegmentedEncryptionService.readFully(channel, fixed, recordPosition);
+            fixed.flip();
+
+            int first = fixed.getInt();
+            int count = fixed.getInt();
+            int dataLength = fixed.getInt();
+            int tagsLength = fixed.getInt();
+            long checksum = fixed.getLong();
+
+            if (first < 0 || count <= 0 || dataLength < 0 || tagsLength < 0
+                    || channel.size() - recordPosition - RECORD_HEADER_LENGTH < (long) dataLength + tagsLength) {
+                return null;
+            }
+
+            byte[] data = new byte[dataLength];
+            byte[] tags = new byte[tagsLength];
+            SegmentedEncryptionService.readFully(channel, ByteBuffer.wrap(data), recordPosition + RECORD_HEADER_LENGTH);
+            SegmentedEncryptionService.readFully(channel, ByteBuffer.wrap(tags), recordPosition + RECORD_HEADER_LENGTH + dataLength);
+
+            Batch batch = new Batch(first, count, data, tags);
+            return (checksum(batch) == checksum) ? batch : null;
+        }
+
+        /**
+         * @param batch the batch to compute the checksum of
+         * @return the checksum of the given batch
+         */
+        private static long checksum(Batch batch) {
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(8).putInt(batch.first).putInt(batch.count).array());
+            crc.update(batch.data);
+            crc.update(batch.tags);
+            return crc.getValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
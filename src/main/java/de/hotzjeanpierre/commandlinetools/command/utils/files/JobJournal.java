@@ -0,0 +1,638 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A JobJournal is kept within the output folder of a bulk en- or decryption, and records every
+ * input that has been completed along with its output. It is only ever appended to, so the job can
+ * be resumed after it has been interrupted (e.g. the command or the whole program has been killed):
+ * the inputs that have been completed are skipped, whereas the indices of the remaining outputs
+ * follow the ones that have been recorded.</p>
+ * <p>Since the names of the files must not be revealed, every record is encrypted with AES-GCM on its
+ * own using a random nonce and a key derived from the secret key. A record that has only been written
+ * partially (since the job has been interrupted while writing it) is dropped as soon as the journal is
+ * opened again. The journal is laid out as follows:</p>
+ * <pre>
+ * [magic "CLTJOB"][nonce][check tag]([int record length][nonce][encrypted record])*
+ * </pre>
+ * <p>whereas the plaintext of a record is laid out as follows:</p>
+ * <pre>
+ * [int next index][int input length][input][int output length][output][long length][int hash length][hash]
+ * </pre>
+ * <p>A journal is not safe for use by multiple threads.</p>
+ */
+public class JobJournal implements Closeable {
+
+    /**
+     * The extension of journals.
+     */
+    public static final String EXTENSION = "encjob";
+
+    /**
+     * The magic number every journal starts with.
+     */
+    private static final byte[] MAGIC = {'C', 'L', 'T', 'J', 'O', 'B'};
+    /**
+     * The length of the nonces of the records.
+     */
+    private static final int NONCE_LENGTH = 12;
+    /**
+     * The length of the header of a journal.
+     */
+    private static final int HEADER_LENGTH = MAGIC.length + NONCE_LENGTH + CipherSuite.TAG_LENGTH;
+    /**
+     * The biggest record that will be accepted while reading a journal.
+     */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    /**
+     * The info the key of the records is derived from.
+     */
+    private static final byte[] KEY_INFO = "CommandLineTools job journal".getBytes(Charset.forName("UTF-8"));
+    /**
+     * The additional data authenticated with the check tag in the header.
+     */
+    private static final byte[] CHECK_AAD = "check".getBytes(Charset.forName("UTF-8"));
+    /**
+     * The additional data authenticated with every record.
+     */
+    private static final byte[] RECORD_AAD = "record".getBytes(Charset.forName("UTF-8"));
+    /**
+     * The charset used to encode the names of the files.
+     */
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The source of the random nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The file of this journal.
+     */
+    private final File file;
+    /**
+     * The channel the records are appended to.
+     */
+    private final FileChannel channel;
+    /**
+     * The context used to en- and decrypt the records.
+     */
+    private final EncryptionContext context;
+    /**
+     * The records of this journal in the order they have been appended in.
+     */
+    private final List<Record> records;
+    /**
+     * The records of the inputs that have been completed, by their inputs.
+     */
+    private final Map<String, Record> completed;
+    /**
+     * The index following the indices of the outputs that have been recorded.
+     */
+    private int nextIndex;
+    /**
+     * Whether there are records (or the header) that have been written, but not forced to the disk yet.
+     */
+    private boolean unsynced;
+
+    /**
+     * Creates a journal with the given values.
+     *
+     * @param file    the file of the journal
+     * @param channel the channel to append the records to
+     * @param context the context used to en- and decrypt the records
+     */
+    private JobJournal(File file, FileChannel channel, EncryptionContext context) {
+        this.file = file;
+        this.channel = channel;
+        this.context = context;
+        this.records = new ArrayList<>();
+        this.completed = new HashMap<>();
+        this.nextIndex = 0;
+    }
+
+    /**
+     * This method gives you the file of the journal of the given job within the given folder.
+     *
+     * @param folder the output folder of the job
+     * @param job    the name of the job (i.e. of the command running it)
+     * @return the file of the journal
+     */
+    @NotNull
+    public static File getFile(@NotNull File folder, @NotNull String job) {
+        return new File(folder, job + "." + EXTENSION);
+    }
+
+    /**
+     * This method determines whether the given file is a journal of a job.
+     *
+     * @param f the file to check
+     * @return whether the file is a journal
+     */
+    public static boolean isJournal(@NotNull File f) {
+        if (!f.isFile() || !f.getName().endsWith("." + EXTENSION)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            SegmentedEncryptionService.readFully(channel, magic, 0);
+            return Arrays.equals(magic.array(), MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method creates a new (empty) journal in the given file, replacing any journal that may exist.
+     *
+     * @param key  the secret key to encrypt the records with
+     * @param file the file of the journal
+     * @return the created journal
+     * @throws IOException              in case the journal could not be written
+     * @throws GeneralSecurityException in case the key of the records could not be derived
+     */
+    @NotNull
+    public static JobJournal create(SecretKeySpec key, @NotNull File file) throws IOException, GeneralSecurityException {
+        EncryptionContext context = new EncryptionContext(deriveKey(key));
+        FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+
+        try {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            sRandom.nextBytes(nonce);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).put(nonce);
+            context.sealSegment(nonce, CHECK_AAD, ByteBuffer.allocate(0), header);
+            header.flip();
+
+            SegmentedEncryptionService.writeFully(channel, header, 0);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        JobJournal journal = new JobJournal(file, channel, context);
+        journal.unsynced = true;
+        return journal;
+    }
+
+    /**
+     * This method opens the journal in the given file in order to resume its job, or creates a new
+     * journal in case the file does not exist. The records are read in a single pass, whereas a
+     * record at the end that has only been written partially is dropped.
+     *
+     * @param key  the secret key the records have been encrypted with
+     * @param file the file of the journal
+     * @return the opened journal
+     * @throws IOException              in case the journal could not be read or is malformed
+     * @throws GeneralSecurityException in case the journal has been written with another secret key
+     */
+    @NotNull
+    public static JobJournal resume(SecretKeySpec key, @NotNull File file) throws IOException, GeneralSecurityException {
+        if (!file.exists()) {
+            return create(key, file);
+        }
+
+        EncryptionContext context = new EncryptionContext(deriveKey(key));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            JobJournal journal = new JobJournal(file, channel, context);
+            journal.read();
+            return journal;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * This method opens the journal of the given job within the given folder (which is created
+     * if necessary), either resuming it or replacing it by a new (empty) journal.
+     *
+     * @param key    the secret key to en- and decrypt the records with
+     * @param folder the output folder of the job
+     * @param job    the name of the job (i.e. of the command running it)
+     * @param resume whether to resume the job recorded in the journal
+     * @return the opened journal
+     * @throws IOException              in case the folder could not be created, or the journal could not be read or written
+     * @throws GeneralSecurityException in case the journal has been written with another secret key
+     * @see #create(SecretKeySpec, File)
+     * @see #resume(SecretKeySpec, File)
+     */
+    @NotNull
+    public static JobJournal open(SecretKeySpec key, @NotNull File folder, @NotNull String job, boolean resume)
+            throws IOException, GeneralSecurityException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException(StringProcessing.format(
+                    "Couldn't create folder '{0}'.",
+                    folder
+            ));
+        }
+
+        File file = getFile(folder, job);
+        return resume ? resume(key, file) : create(key, file);
+    }
+
+    /**
+     * This method reads the records of this journal, and truncates a record that has only been written partially.
+     *
+     * @throws IOException              in case the journal is malformed
+     * @throws GeneralSecurityException in case the journal has been written with another secret key
+     */
+    private void read() throws IOException, GeneralSecurityException {
+        long size = channel.size();
+
+        if (size < HEADER_LENGTH) {
+            throw new IOException("The journal is malformed.");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        SegmentedEncryptionService.readFully(channel, header, 0);
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        header.get(magic).get(nonce);
+
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("The file is not a journal.");
+        }
+
+        try {
+            context.openSegment(nonce, CHECK_AAD, header, ByteBuffer.allocate(0));
+        } catch (GeneralSecurityException e) {
+            throw new WrongPasswordException("The journal has been written with another password.");
+        }
+
+        long position = HEADER_LENGTH;
+
+        while (position < size) {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            Record record = null;
+
+            if (size - position >= length.capacity()) {
+                SegmentedEncryptionService.readFully(channel, length, position);
+                length.flip();
+
+                int recordLength = length.getInt();
+
+                if (recordLength < NONCE_LENGTH + CipherSuite.TAG_LENGTH || recordLength > MAX_RECORD_LENGTH) {
+                    throw new IOException("The journal is malformed.");
+                }
+
+                if (size - position - Integer.BYTES >= recordLength) {
+                    ByteBuffer sealed = ByteBuffer.allocate(recordLength);
+                    SegmentedEncryptionService.readFully(channel, sealed, position + Integer.BYTES);
+                    sealed.flip();
+
+                    record = openRecord(sealed, position + Integer.BYTES + recordLength == size);
+                    position += Integer.BYTES + recordLength;
+                }
+            }
+
+            // only the last record may be incomplete, since the job has been interrupted while writing it
+            if (record == null) {
+                channel.truncate(position);
+                break;
+            }
+
+            add(record);
+        }
+    }
+
+    /**
+     * This method decrypts the given record.
+     *
+     * @param sealed the nonce followed by the encrypted record
+     * @param last   whether the record is the last one of the journal, which may have been written partially
+     * @return the decrypted record, or {@code null} in case the last record could not be decrypted
+     * @throws IOException in case a record that is not the last one is malformed
+     */
+    private Record openRecord(ByteBuffer sealed, boolean last) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        sealed.get(nonce);
+
+        ByteBuffer plain = ByteBuffer.allocate(sealed.remaining() - CipherSuite.TAG_LENGTH);
+
+        try {
+            context.openSegment(nonce, RECORD_AAD, sealed, plain);
+            plain.flip();
+
+            int nextIndex = plain.getInt();
+            String input = getString(plain);
+            String output = getString(plain);
+            long length = plain.getLong();
+            byte[] hash = new byte[plain.getInt()];
+            plain.get(hash);
+
+            return new Record(nextIndex, input, output, length, hash);
+        } catch (GeneralSecurityException | BufferUnderflowException | IllegalArgumentException e) {
+            if (last) {
+                return null;
+            }
+            throw new IOException("The journal is malformed.", e);
+        }
+    }
+
+    /**
+     * @return The file of this journal
+     */
+    @NotNull
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The records of this journal in the order they have been appended in
+     */
+    @NotNull
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * This method determines whether the given input has been completed.
+     *
+     * @param input the input (e.g. the path of a file relative to the source folder)
+     * @return whether the input has been completed
+     */
+    public boolean isCompleted(@NotNull String input) {
+        return completed.containsKey(input);
+    }
+
+    /**
+     * This method gives you the record of the given input.
+     *
+     * @param input the input (e.g. the path of a file relative to the source folder)
+     * @return the record of the input, or {@code null} in case it has not been completed
+     */
+    @Nullable
+    public Record getRecord(@NotNull String input) {
+        return completed.get(input);
+    }
+
+    /**
+     * @return The index following the indices of the outputs that have been recorded; 0 for an empty journal
+     */
+    public int getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * This method appends a record of the given completed input to this journal. The record is written
+     * as soon as this method returns, whereas it is only forced to the disk by {@link #sync()}, which has
+     * to be called before the input is removed (e.g. deleted).
+     *
+     * @param input     the input that has been completed (e.g. the path of a file relative to the source folder)
+     * @param output    the output of the input (e.g. the path of a file relative to the output folder), or an empty string
+     * @param nextIndex the index following the indices used by the output(s) of the input
+     * @param length    the length of the input
+     * @param hash      the hash of the input, or an empty array
+     * @throws IOException in case the record could not be written
+     */
+    public void complete(
+            @NotNull String input,
+            @NotNull String output,
+            int nextIndex,
+            long length,
+            @NotNull byte[] hash
+    ) throws IOException {
+        Record record = new Record(nextIndex, input, output, length, hash);
+
+        byte[] inputBytes = input.getBytes(NAME_CHARSET);
+        byte[] outputBytes = output.getBytes(NAME_CHARSET);
+
+        ByteBuffer plain = ByteBuffer.allocate(
+                Integer.BYTES * 4 + inputBytes.length + outputBytes.length + Long.BYTES + hash.length
+        );
+        plain.putInt(nextIndex)
+                .putInt(inputBytes.length).put(inputBytes)
+                .putInt(outputBytes.length).put(outputBytes)
+                .putLong(length)
+                .putInt(hash.length).put(hash)
+                .flip();
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        sRandom.nextBytes(nonce);
+
+        int recordLength = NONCE_LENGTH + plain.remaining() + CipherSuite.TAG_LENGTH;
+        ByteBuffer sealed = ByteBuffer.allocate(Integer.BYTES + recordLength);
+        sealed.putInt(recordLength).put(nonce);
+
+        try {
+            context.sealSegment(nonce, RECORD_AAD, plain, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("The record could not be encrypted.", e);
+        }
+        sealed.flip();
+
+        SegmentedEncryptionService.writeFully(channel, sealed, channel.size());
+        unsynced = true;
+        add(record);
+    }
+
+    /**
+     * This method forces the records that have been appended since the last call to the disk. It has to be
+     * called before an input is removed, since its record might be lost on a crash otherwise, whereas a job
+     * keeping its inputs can leave its records to the operating system (and thus does not wait for the disk
+     * once per input).
+     *
+     * @throws IOException in case the records could not be forced to the disk
+     */
+    public void sync() throws IOException {
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * This method adds the given record to the records that have been read or appended.
+     *
+     * @param record the record to add
+     */
+    private void add(Record record) {
+        records.add(record);
+        completed.put(record.getInput(), record);
+        nextIndex = Math.max(nextIndex, record.getNextIndex());
+    }
+
+    /**
+     * This method closes the journal, whereas it is kept so its job can be resumed.
+     *
+     * @throws IOException in case the journal could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * This method closes and deletes the journal, since its job has been completed.
+     *
+     * @throws IOException in case the journal could not be deleted
+     */
+    public void delete() throws IOException {
+        close();
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("The journal could not be deleted.");
+        }
+    }
+
+    /**
+     * This method reads a string preceded by its length from the given buffer.
+     *
+     * @param src the buffer to read from
+     * @return the read string
+     */
+    private static String getString(ByteBuffer src) {
+        int length = src.getInt();
+
+        if (length < 0 || length > src.remaining()) {
+            throw new IllegalArgumentException("The record is malformed.");
+        }
+
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return new String(bytes, NAME_CHARSET);
+    }
+
+    /**
+     * This method derives the key of the records from the given secret key, so the key
+     * used for encryption is never used for anything else.
+     *
+     * @param key the secret key used for encryption
+     * @return the key of the records
+     * @throws GeneralSecurityException in case the key could not be derived
+     */
+    private static SecretKeySpec deriveKey(SecretKeySpec key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(KEY_INFO), key.getEncoded().length), "AES");
+    }
+
+    /**
+     * A single input that has been completed.
+     */
+    public static class Record {
+
+        /**
+         * The index following the indices used by the output(s) of the input.
+         */
+        private final int nextIndex;
+        /**
+         * The input that has been completed.
+         */
+        private final String input;
+        /**
+         * The output of the input, or an empty string.
+         */
+        private final String output;
+        /**
+         * The length of the input.
+         */
+        private final long length;
+        /**
+         * The hash of the input, or an empty array.
+         */
+        private final byte[] hash;
+
+        /**
+         * Creates a record with the given values.
+         *
+         * @param nextIndex the index following the indices used by the output(s) of the input
+         * @param input     the input that has been completed
+         * @param output    the output of the input, or an empty string
+         * @param length    the length of the input
+         * @param hash      the hash of the input, or an empty array
+         */
+        private Record(int nextIndex, String input, String output, long length, byte[] hash) {
+            this.nextIndex = nextIndex;
+            this.input = input;
+            this.output = output;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * @return The index following the indices used by the output(s) of the input
+         */
+        public int getNextIndex() {
+            return nextIndex;
+        }
+
+        /**
+         * @return The input that has been completed
+         */
+        public String getInput() {
+            return input;
+        }
+
+        /**
+         * @return The output of the input, or an empty string
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return The length of the input
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The hash of the input, or an empty array
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+}
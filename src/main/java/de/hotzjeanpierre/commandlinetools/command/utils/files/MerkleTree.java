@@ -0,0 +1,148 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A Merkle tree over the tags of the segments of a file. Its root is saved within the
+ * (authenticated) header of the file (see {@link EncryptedFileHeader#getMerkleRoot()}), so
+ * the tags of all the segments can be checked by reading the tags only, whereas the
+ * data of the segments does not have to be read. Every single segment is still
+ * authenticated by its own tag as soon as it is decrypted.</p>
+ * <p>The leaves and the inner nodes are hashed with SHA-256 and distinct prefixes, whereas
+ * a node without a sibling is carried up to the next level as it is:</p>
+ * <pre>
+ * leaf = SHA-256(0x00 || tag)
+ * node = SHA-256(0x01 || left || right)
+ * </pre>
+ * <p>The leaves may be set by multiple threads at once, as long as every leaf is only set by a single thread.</p>
+ */
+/* package-protected */ class MerkleTree {
+
+    /**
+     * The length of a single hash (and thus of the root).
+     */
+    /* package-protected */ static final int HASH_LENGTH = 32;
+
+    /**
+     * The prefix of the hash of a leaf.
+     */
+    private static final byte LEAF_PREFIX = 0;
+    /**
+     * The prefix of the hash of an inner node.
+     */
+    private static final byte NODE_PREFIX = 1;
+
+    /**
+     * The digests used by the single threads.
+     */
+    private static final ThreadLocal<MessageDigest> sDigests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported.", e);
+        }
+    });
+
+    /**
+     * The hashes of the leaves.
+     */
+    private final byte[][] leaves;
+
+    /**
+     * Creates a tree with the given number of leaves, which have to be set before the root can be computed.
+     *
+     * @param leafCount the number of leaves (i.e. segments)
+     */
+    /* package-protected */ MerkleTree(int leafCount) {
+        this.leaves = new byte[leafCount][];
+    }
+
+    /**
+     * This method sets the leaf with the given index to the given tag.
+     *
+     * @param leaf the index of the leaf (i.e. segment)
+     * @param tag  the tag of the segment; its remaining bytes are hashed without changing its position
+     */
+    /* package-protected */ void setLeaf(int leaf, @NotNull ByteBuffer tag) {
+        MessageDigest digest = sDigests.get();
+        digest.update(LEAF_PREFIX);
+        digest.update(tag.duplicate());
+        leaves[leaf] = digest.digest();
+    }
+
+    /**
+     * This method sets the leaf with the given index to the tag at the end of the given sealed segment.
+     *
+     * @param leaf   the index of the leaf (i.e. segment)
+     * @param sealed the sealed segment (i.e. its ciphertext followed by its tag)
+     */
+    /* package-protected */ void setLeafFromSegment(int leaf, @NotNull ByteBuffer sealed) {
+        ByteBuffer tag = sealed.duplicate();
+        tag.position(tag.limit() - CipherSuite.TAG_LENGTH);
+        setLeaf(leaf, tag);
+    }
+
+    /**
+     * @return The root of this tree
+     * @throws IllegalStateException in case not every leaf has been set
+     */
+    @NotNull
+    /* package-protected */ byte[] computeRoot() {
+        List<byte[]> level = new ArrayList<>(leaves.length);
+
+        for (byte[] leaf : leaves) {
+            if (leaf == null) {
+                throw new IllegalStateException("Not every leaf of the tree has been set.");
+            }
+            level.add(leaf);
+        }
+
+        // a file always consists of at least one segment
+        if (level.isEmpty()) {
+            throw new IllegalStateException("The tree does not have any leaf.");
+        }
+
+        MessageDigest digest = sDigests.get();
+
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                } else {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level.get(i));
+                    digest.update(level.get(i + 1));
+                    parents.add(digest.digest());
+                }
+            }
+
+            level = parents;
+        }
+
+        return level.get(0);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This interface is used to determine the file to write decrypted data to
+ * as soon as the name of the original file has been decrypted.
+ */
+@FunctionalInterface
+public interface OutputFileResolver {
+
+    /**
+     * This method determines the file the decrypted data of the file with
+     * the given original name is to be written to. Any missing parent folders
+     * of the returned file have to be created by this method.
+     *
+     * @param originalName the name of the original file as it was saved within the encrypted data
+     * @return the file to write the decrypted data to
+     * @throws IOException in case the file cannot be determined or its parent folders cannot be created
+     */
+    File resolve(String originalName) throws IOException;
+
+}
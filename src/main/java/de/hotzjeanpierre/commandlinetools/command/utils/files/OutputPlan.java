@@ -0,0 +1,398 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>This class plans the output of en- or decrypting a set of files without reading (or writing) any of
+ * them: every file is added along with the name of its output, whereas the plan detects outputs that are
+ * produced for more than one file, existing files that would be overwritten, and folders that would have
+ * to be created (or cannot be created since a file is in their way).</p>
+ * <p>Only the metadata of the outputs and their folders is looked at, and every folder is only looked at
+ * once, so a plan of a million files is done within seconds. The duration of the job is estimated through
+ * the throughput of a cipher suite, which is measured on a short sample of data.</p>
+ */
+public class OutputPlan {
+
+    /**
+     * The number of examples printed for every kind of problem.
+     */
+    public static final int MAX_EXAMPLES = 10;
+    /**
+     * The number of bytes encrypted at once while calibrating the throughput.
+     */
+    private static final int CALIBRATION_DATA_SIZE = 1024 * 1024;
+    /**
+     * The time in milliseconds the throughput is measured for before it is calibrated, so the cipher is compiled.
+     */
+    private static final long CALIBRATION_WARMUP_MILLIS = 50;
+    /**
+     * The time in milliseconds the throughput is calibrated for.
+     */
+    private static final long CALIBRATION_MEASURE_MILLIS = 200;
+
+    /**
+     * The inputs of the planned outputs, mapped by the outputs.
+     */
+    private final Map<File, String> outputs;
+    /**
+     * Whether the folders of the planned outputs exist or can be created, mapped by the folders.
+     */
+    private final Map<File, Boolean> folders;
+    /**
+     * The examples of outputs that are produced for more than one file.
+     */
+    private final List<String> collisions;
+    /**
+     * The examples of existing files that would be overwritten.
+     */
+    private final List<String> overwritten;
+    /**
+     * The examples of folders that cannot be created.
+     */
+    private final List<String> blocked;
+    /**
+     * The examples of files that could not be planned.
+     */
+    private final List<String> failed;
+    /**
+     * The number of planned files.
+     */
+    private int files;
+    /**
+     * The total number of bytes of the planned files.
+     */
+    private long bytes;
+    /**
+     * The number of skipped files.
+     */
+    private int skippedFiles;
+    /**
+     * The total number of bytes of the skipped files.
+     */
+    private long skippedBytes;
+    /**
+     * The number of outputs that are produced for more than one file.
+     */
+    private int collisionCount;
+    /**
+     * The number of existing files that would be overwritten.
+     */
+    private int overwrittenCount;
+    /**
+     * The number of folders that would be created.
+     */
+    private int missingCount;
+    /**
+     * The number of folders that cannot be created.
+     */
+    private int blockedCount;
+    /**
+     * The number of files that could not be planned.
+     */
+    private int failedCount;
+
+    /**
+     * Creates an empty OutputPlan.
+     */
+    public OutputPlan() {
+        this.outputs = new HashMap<>();
+        this.folders = new HashMap<>();
+        this.collisions = new ArrayList<>();
+        this.overwritten = new ArrayList<>();
+        this.blocked = new ArrayList<>();
+        this.failed = new ArrayList<>();
+    }
+
+    /**
+     * This method adds a file to the plan.
+     *
+     * @param input    the name of the file
+     * @param output   the output the file would be written to
+     * @param length   the number of bytes of the file
+     * @param replaces whether the output is supposed to replace an existing file (e.g. the previous encryption
+     *                 of a file that has changed), whereas it is not reported to be overwritten
+     */
+    public void add(@NotNull String input, @NotNull File output, long length, boolean replaces) {
+        File normalized = output.getAbsoluteFile().toPath().normalize().toFile();
+
+        files++;
+        bytes += length;
+
+        String previous = outputs.putIfAbsent(normalized, input);
+
+        if (previous != null) {
+            collisionCount++;
+            addExample(collisions, StringProcessing.format(
+                    "'{0}' and '{1}' would both be written to '{2}'.",
+                    previous,
+                    input,
+                    normalized.getPath()
+            ));
+        } else if (!replaces && normalized.exists()) {
+            overwrittenCount++;
+            addExample(overwritten, StringProcessing.format(
+                    "'{0}' would overwrite '{1}'.",
+                    input,
+                    normalized.getPath()
+            ));
+        }
+
+        checkFolder(normalized.getParentFile());
+    }
+
+    /**
+     * This method counts a file that would be skipped (e.g. since it has been processed before).
+     *
+     * @param length the number of bytes of the file
+     */
+    public void skip(long length) {
+        skippedFiles++;
+        skippedBytes += length;
+    }
+
+    /**
+     * This method counts a file that could not be planned (e.g. since its name could not be determined).
+     *
+     * @param input  the name of the file
+     * @param reason the reason the file could not be planned
+     */
+    public void fail(@NotNull String input, String reason) {
+        failedCount++;
+        addExample(failed, StringProcessing.format(
+                "'{0}': {1}",
+                input,
+                reason
+        ));
+    }
+
+    /**
+     * This method checks whether the given folder exists or can be created, unless it has been checked before.
+     *
+     * @param folder the folder to check
+     */
+    private void checkFolder(File folder) {
+        if (folder == null || folders.containsKey(folder)) {
+            return;
+        }
+
+        if (folder.isDirectory()) {
+            folders.put(folder, true);
+            return;
+        }
+
+        // the missing folders are created within the first existing one, which thus has to be a folder
+        File existing = folder;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+
+        boolean creatable = existing == null || existing.isDirectory();
+        folders.put(folder, creatable);
+
+        if (creatable) {
+            missingCount++;
+        } else {
+            blockedCount++;
+            addExample(blocked, StringProcessing.format(
+                    "'{0}' cannot be created, since '{1}' is a file.",
+                    folder.getPath(),
+                    existing.getPath()
+            ));
+        }
+    }
+
+    /**
+     * This method adds the given example to the given list, unless it contains enough examples already.
+     *
+     * @param examples the list of examples
+     * @param example  the example to add
+     */
+    private static void addExample(List<String> examples, String example) {
+        if (examples.size() < MAX_EXAMPLES) {
+            examples.add(example);
+        }
+    }
+
+    /**
+     * @return The number of planned files
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return The total number of bytes of the planned files
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of skipped files
+     */
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    /**
+     * @return The number of outputs that are produced for more than one file
+     */
+    public int getCollisions() {
+        return collisionCount;
+    }
+
+    /**
+     * @return The number of existing files that would be overwritten
+     */
+    public int getOverwritten() {
+        return overwrittenCount;
+    }
+
+    /**
+     * @return The number of folders that would be created (not counting their missing parents)
+     */
+    public int getMissingFolders() {
+        return missingCount;
+    }
+
+    /**
+     * @return The number of folders that cannot be created, since a file is in their way
+     */
+    public int getBlockedFolders() {
+        return blockedCount;
+    }
+
+    /**
+     * @return The number of files that could not be planned
+     */
+    public int getFailed() {
+        return failedCount;
+    }
+
+    /**
+     * @return Whether the job would run into problems: outputs produced for more than one file,
+     * folders that cannot be created or files that could not be planned
+     */
+    public boolean hasProblems() {
+        return collisionCount > 0 || blockedCount > 0 || failedCount > 0;
+    }
+
+    /**
+     * This method estimates the time it takes to process the planned files at the given throughput.
+     *
+     * @param bytesPerSecond the throughput in bytes per second
+     * @return the estimated time in seconds
+     */
+    public long estimateSeconds(double bytesPerSecond) {
+        return (long) Math.ceil(bytes / Math.max(bytesPerSecond, 1));
+    }
+
+    /**
+     * This method measures the throughput of the given suite on a short sample of data, and scales it
+     * by the number of threads that can actually run at once.
+     *
+     * @param suite   the suite to measure the throughput of
+     * @param threads the number of threads the files are processed on
+     * @return the estimated throughput in bytes per second
+     * @throws GeneralSecurityException in case the suite is not available
+     */
+    public static double calibrate(@NotNull CipherSuite suite, int threads) throws GeneralSecurityException {
+        suite.measureThroughput(CALIBRATION_DATA_SIZE, CALIBRATION_WARMUP_MILLIS);
+        double throughput = suite.measureThroughput(CALIBRATION_DATA_SIZE, CALIBRATION_MEASURE_MILLIS);
+
+        return throughput * Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * This method prints the plan along with the estimated duration of the job.
+     *
+     * @param outputStream   the stream to print the plan to
+     * @param action         the past participle of what is done to the files (e.g. "encrypted")
+     * @param output         the folder the files would be written to
+     * @param bytesPerSecond the estimated throughput in bytes per second
+     */
+    public void print(@NotNull PrintStream outputStream, @NotNull String action, @NotNull File output, double bytesPerSecond) {
+        outputStream.println(StringProcessing.format(
+                "Dry run: {0} files ({1}) would be {2} into '{3}', whereas {4} files ({5}) would be skipped. No file has been written.",
+                files,
+                CommonFileUtilities.formatSize(bytes),
+                action,
+                output.getAbsolutePath(),
+                skippedFiles,
+                CommonFileUtilities.formatSize(skippedBytes)
+        ));
+
+        printExamples(outputStream, "{0} outputs would be produced for more than one file:", collisionCount, collisions);
+        printExamples(outputStream, "{0} existing files would be overwritten:", overwrittenCount, overwritten);
+        printExamples(outputStream, "{0} folders cannot be created:", blockedCount, blocked);
+        printExamples(outputStream, "{0} files could not be planned:", failedCount, failed);
+
+        if (missingCount > 0) {
+            outputStream.println(StringProcessing.format(
+                    "{0} folders would be created.",
+                    missingCount
+            ));
+        }
+
+        long seconds = estimateSeconds(bytesPerSecond);
+
+        outputStream.println(StringProcessing.format(
+                "Estimated duration: {0} at {1}. This only covers the cipher as measured on a short sample, whereas reading and writing the files might take longer.",
+                String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60),
+                CipherSuite.formatThroughput(bytesPerSecond)
+        ));
+    }
+
+    /**
+     * This method prints the given examples of a problem, in case the problem occurs at all.
+     *
+     * @param outputStream the stream to print the examples to
+     * @param title        the title of the problem; {0} is the number of occurrences
+     * @param count        the number of occurrences of the problem
+     * @param examples     the examples of the problem
+     */
+    private static void printExamples(PrintStream outputStream, String title, int count, List<String> examples) {
+        if (count == 0) {
+            return;
+        }
+
+        outputStream.println(StringProcessing.format(title, count));
+
+        for (String example : examples) {
+            outputStream.println("    " + example);
+        }
+
+        if (count > examples.size()) {
+            outputStream.println(StringProcessing.format(
+                    "    ... and {0} more.",
+                    count - examples.size()
+            ));
+        }
+    }
+}
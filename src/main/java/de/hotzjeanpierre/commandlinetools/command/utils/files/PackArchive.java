@@ -0,0 +1,894 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>A PackArchive contains a lot of (small) files, which are packed into a few big
+ * volumes instead of being encrypted into a file of their own. Thus packing a huge
+ * number of files does neither need to create as many encrypted files, nor to initialize
+ * a cipher for every single one of them.</p>
+ * <p>An archive consists of an index file and its volumes, which are all saved in the
+ * container format of {@link SegmentedEncryptionService}. The plaintext of a volume is
+ * the concatenation of the data of its members, whereas the (encrypted) index contains
+ * the name, the volume and the position of every member. Since the segments of a volume
+ * can be decrypted independently of each other, any single member can be extracted
+ * without decrypting the whole volume.</p>
+ * <p>The volumes are saved next to the index, and are named after it:</p>
+ * <pre>
+ * [name of index].[index of volume].encv
+ * </pre>
+ */
+public class PackArchive {
+
+    /**
+     * The size of the plaintext of a single segment used by default. It is rather small,
+     * so extracting a single member does not need to decrypt too much of the other members.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    /**
+     * The size of the plaintext of a single volume used by default.
+     */
+    public static final long DEFAULT_VOLUME_SIZE = 1024L * 1024 * 1024;
+    /**
+     * The extension of the volumes of an archive.
+     */
+    public static final String VOLUME_EXTENSION = "encv";
+
+    /**
+     * The charset used to encode the names of the members.
+     */
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The index file of this archive.
+     */
+    private final File index;
+    /**
+     * The nonces of the single volumes, as they are recorded within the index.
+     */
+    private final byte[][] volumeNonces;
+    /**
+     * The lengths of the plaintext of the single volumes.
+     */
+    private final long[] volumeLengths;
+    /**
+     * The index of the first member of every volume; followed by the number of members.
+     */
+    private final int[] volumeStarts;
+    /**
+     * The members of this archive, ordered by their volume and their position within it.
+     */
+    private final List<Member> members;
+    /**
+     * The contexts used to unwrap the data keys of the volumes.
+     */
+    private final ThreadLocal<EncryptionContext> contexts;
+
+    /**
+     * Creates an archive with the given values.
+     *
+     * @param index         the index file of the archive
+     * @param volumeNonces  the nonces of the single volumes
+     * @param volumeLengths the lengths of the plaintext of the single volumes
+     * @param members       the members of the archive
+     * @param contexts      the contexts used to unwrap the data keys of the volumes
+     */
+    private PackArchive(
+            File index,
+            byte[][] volumeNonces,
+            long[] volumeLengths,
+            List<Member> members,
+            ThreadLocal<EncryptionContext> contexts
+    ) {
+        this.index = index;
+        this.volumeNonces = volumeNonces;
+        this.volumeLengths = volumeLengths;
+        this.members = Collections.unmodifiableList(members);
+        this.contexts = contexts;
+
+        this.volumeStarts = new int[volumeNonces.length + 1];
+        int member = 0;
+        for (int volume = 0; volume < volumeNonces.length; volume++) {
+            volumeStarts[volume] = member;
+            while (member < members.size() && members.get(member).volume == volume) {
+                member++;
+            }
+        }
+        volumeStarts[volumeNonces.length] = members.size();
+    }
+
+    /**
+     * @return The index file of this archive
+     */
+    public File getIndexFile() {
+        return index;
+    }
+
+    /**
+     * @return The volumes of this archive
+     */
+    @NotNull
+    public File[] getVolumeFiles() {
+        File[] volumes = new File[volumeNonces.length];
+        for (int i = 0; i < volumes.length; i++) {
+            volumes[i] = getVolumeFile(index, i);
+        }
+        return volumes;
+    }
+
+    /**
+     * @return The members of this archive
+     */
+    @NotNull
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * This method searches for the member with given name. The leading separator
+     * of the name may be omitted.
+     *
+     * @param name the name of the member to search for
+     * @return the member with given name, or {@code null} in case there is no such member
+     */
+    @Nullable
+    public Member getMember(@NotNull String name) {
+        if (!name.startsWith(File.separator)) {
+            name = File.separator + name;
+        }
+
+        for (Member member : members) {
+            if (member.name.equals(name)) {
+                return member;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * This method extracts the given member of this archive into the given file on the
+     * common {@link ForkJoinPool}.
+     *
+     * @param member the member to extract
+     * @param out    the file to write the data of the member to
+     * @throws IOException              in case the archive could not be read or the member could not be written
+     * @throws GeneralSecurityException in case the volume of the member could not be decrypted
+     * @see #extract(Member, File, ForkJoinPool)
+     */
+    public void extract(@NotNull Member member, @NotNull File out) throws IOException, GeneralSecurityException {
+        extract(member, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method extracts the given member of this archive into the given file. Only the
+     * segments of the volume containing the data of the member are decrypted, whereas they
+     * are decrypted in parallel on the given pool. In case the extraction fails any
+     * partially written output is deleted.
+     *
+     * @param member the member to extract
+     * @param out    the file to write the data of the member to
+     * @param pool   the pool to decrypt the segments on
+     * @throws IOException              in case the archive could not be read or the member could not be written
+     * @throws GeneralSecurityException in case the volume of the member could not be decrypted
+     */
+    public void extract(@NotNull Member member, @NotNull File out, @NotNull ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel input = FileChannel.open(getVolumeFile(index, member.volume).toPath(), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(
+                     out.toPath(),
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE
+             )) {
+            if (member.length == 0) {
+                return;
+            }
+
+            EncryptedFileHeader header = readVolumeHeader(member.volume, input);
+            int segmentSize = header.getSegmentSize();
+
+            SegmentedEncryptionService.decryptSegments(
+                    header, input, header.getDataContexts(), pool,
+                    (int) (member.offset / segmentSize),
+                    (int) ((member.offset + member.length - 1) / segmentSize) + 1,
+                    (segment, plain) -> writeOverlap(member, output, segment * (long) segmentSize, plain)
+            );
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(out);
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * This method extracts all the members of this archive on the common {@link ForkJoinPool}.
+     *
+     * @param resolver the resolver that determines the file to write the data of a member to
+     * @throws IOException              in case the archive could not be read or a member could not be written
+     * @throws GeneralSecurityException in case a volume could not be decrypted
+     * @see #extractAll(OutputFileResolver, ForkJoinPool)
+     */
+    public void extractAll(@NotNull OutputFileResolver resolver) throws IOException, GeneralSecurityException {
+        extractAll(resolver, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method extracts all the members of this archive. First the files to write the
+     * members to are determined by the given {@link OutputFileResolver} (in the order of
+     * {@link #getMembers()}). Afterwards every volume is decrypted exactly once, whereas
+     * its segments are decrypted in parallel on the given pool and the data of every
+     * segment is written to the members it belongs to. In case the extraction fails
+     * any partially written output is deleted.
+     *
+     * @param resolver the resolver that determines the file to write the data of a member to
+     * @param pool     the pool to decrypt the segments on
+     * @throws IOException              in case the archive could not be read or a member could not be written
+     * @throws GeneralSecurityException in case a volume could not be decrypted
+     */
+    public void extractAll(@NotNull OutputFileResolver resolver, @NotNull ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        File[] outputs = new File[members.size()];
+
+        try {
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = resolver.resolve(members.get(i).name);
+
+                // create (or truncate) the file, so empty members are also extracted
+                FileChannel.open(
+                        outputs[i].toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE
+                ).close();
+            }
+
+            for (int volume = 0; volume < volumeNonces.length; volume++) {
+                final int first = volumeStarts[volume];
+                final int last = volumeStarts[volume + 1];
+
+                try (FileChannel input = FileChannel.open(getVolumeFile(index, volume).toPath(), StandardOpenOption.READ)) {
+                    EncryptedFileHeader header = readVolumeHeader(volume, input);
+                    int segmentSize = header.getSegmentSize();
+
+                    SegmentedEncryptionService.decryptSegments(
+                            header, input, header.getDataContexts(), pool, 0, header.getSegmentCount(),
+                            (segment, plain) -> {
+                                long start = segment * (long) segmentSize;
+                                long end = start + plain.remaining();
+
+                                for (int i = findMember(first, last, start);
+                                     i < last && members.get(i).offset < end; i++) {
+                                    Member member = members.get(i);
+                                    if (member.length == 0) {
+                                        continue;
+                                    }
+
+                                    try (FileChannel output = FileChannel.open(
+                                            outputs[i].toPath(),
+                                            StandardOpenOption.WRITE
+                                    )) {
+                                        writeOverlap(member, output, start, plain.duplicate());
+                                    }
+                                }
+                            }
+                    );
+                }
+            }
+        } catch (Exception e) {
+            for (File out : outputs) {
+                SegmentedEncryptionService.deletePartialOutput(out);
+            }
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * This method reads the header of the given volume and checks it against the index.
+     *
+     * @param volume  the index of the volume
+     * @param channel the channel of the volume
+     * @return the header of the volume
+     * @throws IOException              in case the volume does not belong to this archive or is malformed
+     * @throws GeneralSecurityException in case the header could not be authenticated
+     */
+    private EncryptedFileHeader readVolumeHeader(int volume, FileChannel channel)
+            throws IOException, GeneralSecurityException {
+        EncryptedFileHeader header = EncryptedFileHeader.read(channel, contexts.get());
+
+        if (header.getFlags() != EncryptedFileHeader.FLAG_PACK_VOLUME
+                || !Arrays.equals(header.getFileNonce(), volumeNonces[volume])
+                || header.getPlaintextLength() != volumeLengths[volume]
+                || header.getEncryptedLength() != channel.size()) {
+            throw new IOException(StringProcessing.format(
+                    "The volume {0} of the archive '{1}' is malformed or does not belong to it.",
+                    volume,
+                    index.getAbsolutePath()
+            ));
+        }
+
+        return header;
+    }
+
+    /**
+     * This method searches for the first member within the given range whose data ends
+     * after the given position within its volume.
+     *
+     * @param from     the index of the first member to consider (inclusive)
+     * @param to       the index of the last member to consider (exclusive)
+     * @param position the position within the volume
+     * @return the index of the first member ending after the given position, or {@code to} if there is none
+     */
+    private int findMember(int from, int to, long position) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            Member member = members.get(middle);
+
+            if (member.offset + member.length > position) {
+                to = middle;
+            } else {
+                from = middle + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * This method writes the part of the given plaintext of a segment that belongs to
+     * the given member to its position within the given output.
+     *
+     * @param member the member to write the data of
+     * @param output the channel of the file the member is extracted to
+     * @param start  the position of the segment within the volume
+     * @param plain  the plaintext of the segment
+     * @throws IOException in case the data could not be written
+     */
+    private static void writeOverlap(Member member, FileChannel output, long start, ByteBuffer plain)
+            throws IOException {
+        long from = Math.max(start, member.offset);
+        long to = Math.min(start + plain.remaining(), member.offset + member.length);
+
+        if (from < to) {
+            plain.limit((int) (to - start));
+            plain.position((int) (from - start));
+
+            SegmentedEncryptionService.writeFully(output, plain, from - member.offset);
+        }
+    }
+
+    /**
+     * This method determines whether the given file is the index of an archive.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is the index of an archive
+     */
+    public static boolean isArchive(@NotNull File f) {
+        return EncryptedFileHeader.hasFlag(f, EncryptedFileHeader.FLAG_PACK_INDEX);
+    }
+
+    /**
+     * This method determines whether the given file is a volume of an archive.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is a volume of an archive
+     */
+    public static boolean isVolume(@NotNull File f) {
+        return EncryptedFileHeader.hasFlag(f, EncryptedFileHeader.FLAG_PACK_VOLUME);
+    }
+
+    /**
+     * This method gives you the file of the volume with given index of the archive with given index file.
+     *
+     * @param index  the index file of the archive
+     * @param volume the index of the volume
+     * @return the file of the volume
+     */
+    @NotNull
+    public static File getVolumeFile(@NotNull File index, int volume) {
+        return new File(index.getParentFile(), index.getName() + "." + volume + "." + VOLUME_EXTENSION);
+    }
+
+    /**
+     * This method packs the given files into an archive with the default segment and
+     * volume size and the fastest available cipher suite, whereas the volumes are
+     * encrypted on the common {@link ForkJoinPool}.
+     *
+     * @param key        the secret key used for encryption
+     * @param files      the files to pack
+     * @param relativeTo the folder whose path is stripped from the names of the members
+     * @param index      the index file of the archive to create
+     * @return the created archive
+     * @throws IOException              in case a file could not be read or the archive could not be written
+     * @throws GeneralSecurityException in case the data could not be encrypted
+     * @see #create(SecretKeySpec, File[], File, File, long, int, CipherSuite, ForkJoinPool)
+     */
+    @NotNull
+    public static PackArchive create(
+            @NotNull SecretKeySpec key,
+            @NotNull File[] files,
+            @NotNull File relativeTo,
+            @NotNull File index
+    ) throws IOException, GeneralSecurityException {
+        return create(
+                key, files, relativeTo, index,
+                DEFAULT_VOLUME_SIZE, DEFAULT_SEGMENT_SIZE, CipherSuite.getFastest(), ForkJoinPool.commonPool()
+        );
+    }
+
+    /**
+     * This method packs the given files into an archive with the fastest available cipher suite.
+     *
+     * @param key         the secret key used for encryption
+     * @param files       the files to pack
+     * @param relativeTo  the folder whose path is stripped from the names of the members
+     * @param index       the index file of the archive to create
+     * @param volumeSize  the (maximum) size of the plaintext of a single volume
+     * @param segmentSize the size of the plaintext of a single segment
+     * @param pool        the pool to encrypt the segments on
+     * @return the created archive
+     * @throws IOException              in case a file could not be read or the archive could not be written
+     * @throws GeneralSecurityException in case the data could not be encrypted
+     * @see #create(SecretKeySpec, File[], File, File, long, int, CipherSuite, ForkJoinPool)
+     */
+    @NotNull
+    public static PackArchive create(
+            @NotNull SecretKeySpec key,
+            @NotNull File[] files,
+            @NotNull File relativeTo,
+            @NotNull File index,
+            long volumeSize,
+            int segmentSize,
+            @NotNull ForkJoinPool pool
+    ) throws IOException, GeneralSecurityException {
+        return create(key, files, relativeTo, index, volumeSize, segmentSize, CipherSuite.getFastest(), pool);
+    }
+
+    /**
+     * This method packs the given files into an archive. The files are appended to the
+     * current volume until it would exceed the given volume size, whereas a single
+     * file is never split across several volumes. Every volume is encrypted with
+     * segments of the given size, which are encrypted in parallel on the given pool.
+     * The index is written after all the volumes have been written successfully.
+     * In case the packing fails any partially written volume or index is deleted.
+     *
+     * @param key         the secret key used for encryption
+     * @param files       the files to pack
+     * @param relativeTo  the folder whose path is stripped from the names of the members
+     * @param index       the index file of the archive to create
+     * @param volumeSize  the (maximum) size of the plaintext of a single volume
+     * @param segmentSize the size of the plaintext of a single segment
+     * @param suite       the cipher suite to encrypt the volumes and the index with
+     * @param pool        the pool to encrypt the segments on
+     * @return the created archive
+     * @throws IOException              in case a file could not be read or the archive could not be written
+     * @throws GeneralSecurityException in case the data could not be encrypted
+     */
+    @NotNull
+    public static PackArchive create(
+            @NotNull SecretKeySpec key,
+            @NotNull File[] files,
+            @NotNull File relativeTo,
+            @NotNull File index,
+            long volumeSize,
+            int segmentSize,
+            @NotNull CipherSuite suite,
+            @NotNull ForkJoinPool pool
+    ) throws IOException, GeneralSecurityException {
+        if (volumeSize <= 0 || segmentSize <= 0) {
+            throw new IllegalArgumentException("The volume and segment size have to be positive.");
+        }
+
+        // lay out the members within the single volumes
+        List<Member> members = new ArrayList<>(files.length);
+        List<Long> lengths = new ArrayList<>();
+        long volumeLength = 0;
+
+        for (File f : files) {
+            long length = f.length();
+
+            if (lengths.isEmpty() || (volumeLength > 0 && volumeLength + length > volumeSize)) {
+                if (!lengths.isEmpty()) {
+                    lengths.set(lengths.size() - 1, volumeLength);
+                }
+                lengths.add(0L);
+                volumeLength = 0;
+            }
+
+            members.add(new Member(
+                    CommonFileUtilities.extractRelativePath(f, relativeTo),
+                    lengths.size() - 1,
+                    volumeLength,
+                    length
+            ));
+            volumeLength += length;
+        }
+        if (!lengths.isEmpty()) {
+            lengths.set(lengths.size() - 1, volumeLength);
+        }
+
+        byte[][] volumeNonces = new byte[lengths.size()][8];
+        long[] volumeLengths = new long[lengths.size()];
+        for (int i = 0; i < volumeNonces.length; i++) {
+            sRandom.nextBytes(volumeNonces[i]);
+            volumeLengths[i] = lengths.get(i);
+        }
+
+        ThreadLocal<EncryptionContext> contexts = SegmentedEncryptionService.createContexts(key);
+        PackArchive archive = new PackArchive(index, volumeNonces, volumeLengths, members, contexts);
+
+        try {
+            for (int volume = 0; volume < volumeNonces.length; volume++) {
+                archive.writeVolume(volume, files, segmentSize, suite, pool);
+            }
+
+            byte[] data = archive.encodeIndex();
+            byte[] nonce = new byte[8];
+            sRandom.nextBytes(nonce);
+
+            EncryptedFileHeader header = new EncryptedFileHeader(
+                    suite,
+                    EncryptedFileHeader.FLAG_PACK_INDEX,
+                    segmentSize,
+                    data.length,
+                    nonce,
+                    index.getName()
+            );
+
+            try (FileChannel output = FileChannel.open(
+                    index.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                SegmentedEncryptionService.encryptData(header, data, output, contexts, pool);
+            }
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(index);
+            for (File volume : archive.getVolumeFiles()) {
+                SegmentedEncryptionService.deletePartialOutput(volume);
+            }
+            throw rethrow(e);
+        }
+
+        return archive;
+    }
+
+    /**
+     * This method encrypts the given volume of this (newly created) archive.
+     *
+     * @param volume      the index of the volume to write
+     * @param files       the files to pack, in the order of the members of this archive
+     * @param segmentSize the size of the plaintext of a single segment
+     * @param suite       the cipher suite to encrypt the volume with
+     * @param pool        the pool to encrypt the segments on
+     * @throws Exception in case the volume could not be written
+     */
+    private void writeVolume(int volume, File[] files, int segmentSize, CipherSuite suite, ForkJoinPool pool)
+            throws Exception {
+        final int first = volumeStarts[volume];
+        final int last = volumeStarts[volume + 1];
+        File file = getVolumeFile(index, volume);
+
+        EncryptedFileHeader header = new EncryptedFileHeader(
+                suite,
+                EncryptedFileHeader.FLAG_PACK_VOLUME,
+                segmentSize,
+                volumeLengths[volume],
+                volumeNonces[volume],
+                file.getName()
+        );
+
+        try (FileChannel output = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            header.write(output, contexts.get());
+
+            // assemble the plaintext of every segment from the members it overlaps
+            SegmentedEncryptionService.encryptSegments(header, output, header.getDataContexts(), pool, (segment, dst) -> {
+                long start = segment * (long) segmentSize;
+
+                for (int i = findMember(first, last, start); i < last && dst.hasRemaining(); i++) {
+                    Member member = members.get(i);
+                    if (member.length == 0) {
+                        continue;
+                    }
+
+                    long position = start + dst.position();
+                    int toRead = (int) Math.min(dst.remaining(), member.offset + member.length - position);
+
+                    try (FileChannel input = FileChannel.open(files[i].toPath(), StandardOpenOption.READ)) {
+                        int limit = dst.limit();
+                        dst.limit(dst.position() + toRead);
+                        SegmentedEncryptionService.readFully(input, dst, position - member.offset);
+                        dst.limit(limit);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * This method encodes the index of this archive:
+     * <pre>
+     * [int volume count]([8 bytes nonce][long length])*
+     * [int member count]([int name length][name][int volume][long offset][long length])*
+     * </pre>
+     *
+     * @return the encoded index
+     */
+    private byte[] encodeIndex() {
+        List<byte[]> names = new ArrayList<>(members.size());
+        int length = 4 + volumeNonces.length * (8 + 8) + 4;
+
+        for (Member member : members) {
+            byte[] name = member.name.getBytes(NAME_CHARSET);
+            names.add(name);
+            length += 4 + name.length + 4 + 8 + 8;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(length);
+
+        data.putInt(volumeNonces.length);
+        for (int i = 0; i < volumeNonces.length; i++) {
+            data.put(volumeNonces[i]).putLong(volumeLengths[i]);
+        }
+
+        data.putInt(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            data.putInt(names.get(i).length)
+                    .put(names.get(i))
+                    .putInt(member.volume)
+                    .putLong(member.offset)
+                    .putLong(member.length);
+        }
+
+        return data.array();
+    }
+
+    /**
+     * This method opens the archive with given index file on the common {@link ForkJoinPool}.
+     *
+     * @param index the index file of the archive
+     * @param key   the secret key the archive has been encrypted with
+     * @return the opened archive
+     * @throws IOException              in case the index could not be read or is malformed
+     * @throws GeneralSecurityException in case the index could not be decrypted (e.g. the key was wrong)
+     * @see #open(File, SecretKeySpec, ForkJoinPool)
+     */
+    @NotNull
+    public static PackArchive open(@NotNull File index, @NotNull SecretKeySpec key)
+            throws IOException, GeneralSecurityException {
+        return open(index, key, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method opens the archive with given index file, whereas only its index is read
+     * and decrypted (in parallel on the given pool). The volumes are not touched until
+     * a member is extracted.
+     *
+     * @param index the index file of the archive
+     * @param key   the secret key the archive has been encrypted with
+     * @param pool  the pool to decrypt the index on
+     * @return the opened archive
+     * @throws IOException              in case the index could not be read or is malformed
+     * @throws GeneralSecurityException in case the index could not be decrypted (e.g. the key was wrong)
+     */
+    @NotNull
+    public static PackArchive open(@NotNull File index, @NotNull SecretKeySpec key, @NotNull ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        ThreadLocal<EncryptionContext> contexts = SegmentedEncryptionService.createContexts(key);
+        byte[] data;
+
+        try (FileChannel input = FileChannel.open(index.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, contexts.get());
+
+            if (header.getFlags() != EncryptedFileHeader.FLAG_PACK_INDEX) {
+                throw new IOException(StringProcessing.format(
+                        "The file '{0}' is not the index of an archive.",
+                        index.getAbsolutePath()
+                ));
+            }
+
+            data = SegmentedEncryptionService.decryptData(header, input, pool);
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+
+        try {
+            return decodeIndex(index, ByteBuffer.wrap(data), contexts);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("The index of the archive is malformed.", e);
+        }
+    }
+
+    /**
+     * This method decodes the given index (see {@link #encodeIndex()}) and checks
+     * whether the members of every volume are laid out contiguously.
+     *
+     * @param index    the index file of the archive
+     * @param data     the decrypted index
+     * @param contexts the contexts used to unwrap the data keys of the volumes
+     * @return the decoded archive
+     * @throws IOException in case the index is malformed
+     */
+    private static PackArchive decodeIndex(File index, ByteBuffer data, ThreadLocal<EncryptionContext> contexts)
+            throws IOException {
+        int volumeCount = data.getInt();
+        if (volumeCount < 0 || volumeCount > data.remaining() / 16) {
+            throw new IOException("The index of the archive is malformed.");
+        }
+
+        byte[][] volumeNonces = new byte[volumeCount][8];
+        long[] volumeLengths = new long[volumeCount];
+        for (int i = 0; i < volumeCount; i++) {
+            data.get(volumeNonces[i]);
+            volumeLengths[i] = data.getLong();
+        }
+
+        int memberCount = data.getInt();
+        if (memberCount < 0 || memberCount > data.remaining() / 24) {
+            throw new IOException("The index of the archive is malformed.");
+        }
+
+        List<Member> members = new ArrayList<>(memberCount);
+        int volume = 0;
+        long position = 0;
+
+        for (int i = 0; i < memberCount; i++) {
+            int nameLength = data.getInt();
+            if (nameLength < 0 || nameLength > data.remaining()) {
+                throw new IOException("The index of the archive is malformed.");
+            }
+            byte[] name = new byte[nameLength];
+            data.get(name);
+
+            Member member = new Member(new String(name, NAME_CHARSET), data.getInt(), data.getLong(), data.getLong());
+
+            // every volume has to be filled contiguously in the order of the members
+            while (volume < volumeCount && member.volume > volume && position == volumeLengths[volume]) {
+                volume++;
+                position = 0;
+            }
+            if (member.volume != volume || member.offset != position || member.length < 0) {
+                throw new IOException("The index of the archive is malformed.");
+            }
+
+            position += member.length;
+            members.add(member);
+        }
+
+        if (data.hasRemaining()
+                || (volumeCount > 0 && (volume != volumeCount - 1 || position != volumeLengths[volume]))) {
+            throw new IOException("The index of the archive is malformed.");
+        }
+
+        return new PackArchive(index, volumeNonces, volumeLengths, members, contexts);
+    }
+
+    /**
+     * This method converts the given error into one of the errors declared by the
+     * public methods of this class.
+     *
+     * @param e the error to convert
+     * @return the error to throw
+     * @throws GeneralSecurityException in case the given error is one
+     */
+    private static IOException rethrow(Exception e) throws GeneralSecurityException {
+        if (e instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        return new IOException(e.getMessage(), e);
+    }
+
+    /**
+     * A single file packed into an archive.
+     */
+    public static class Member {
+
+        /**
+         * The name of the original file.
+         */
+        private final String name;
+        /**
+         * The index of the volume containing the data of the file.
+         */
+        private final int volume;
+        /**
+         * The position of the data within the volume.
+         */
+        private final long offset;
+        /**
+         * The length of the data of the file.
+         */
+        private final long length;
+
+        /**
+         * Creates a member with the given values.
+         *
+         * @param name   the name of the original file
+         * @param volume the index of the volume containing the data of the file
+         * @param offset the position of the data within the volume
+         * @param length the length of the data of the file
+         */
+        private Member(String name, int volume, long offset, long length) {
+            this.name = name;
+            this.volume = volume;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The name of the original file
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The length of the data of the file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return StringProcessing.format(
+                    "Member[name='{0}', volume={1}, offset={2}, length={3}]",
+                    name,
+                    volume,
+                    offset,
+                    length
+            );
+        }
+    }
+}
@@ -0,0 +1,1361 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService.FileEncryptionResult;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * <p>This class en- and decrypts files in the segmented container format, in which every
+ * segment of the data is authenticated on its own. Thus the single segments of a file can
+ * be en- and decrypted independently of each other, whereas they are processed in parallel
+ * on a {@link ForkJoinPool}.</p>
+ * <p>Every file starts with an {@link EncryptedFileHeader}, which contains the (encrypted)
+ * name of the original file and is directly followed by the segments of the original data.
+ * Every segment is encrypted with AES-GCM, whereas its nonce consists of the file nonce and
+ * the index of the segment. The last segment is also flagged within the authenticated data,
+ * so a file that has been truncated at the border of a segment will not be accepted.</p>
+ * <p>Big files are en- and decrypted through memory mapped buffers, so their data
+ * does not need to be copied onto the heap. The output of any other file may be written
+ * behind by a {@link WriteBehindWriter}, so the next file can be processed meanwhile.</p>
+ * <p>Optionally the segments of a file can be compressed before they are encrypted
+ * (see {@link CompressionService}). Whether a single segment is compressed is
+ * authenticated along with it, and the lengths of the segments are saved in a table
+ * following the header.</p>
+ * <p>The header of every file also contains the root of a {@link MerkleTree} over the tags of
+ * its segments, which is written as soon as every segment has been encrypted. Thus a file can
+ * be audited by checking the tags of all its segments against said root and authenticating a
+ * sample of its segments only (see {@link #verifyFile(SecretKeySpec, File, int, ForkJoinPool)}).</p>
+ * <p>Files that have been encrypted from a stream (see {@link StreamEncryptionService}) are decrypted
+ * and verified one segment after another, since the positions of their segments are unknown.</p>
+ */
+public class SegmentedEncryptionService {
+
+    /**
+     * The length of the authentication tag appended to every segment.
+     */
+    private static final int TAG_LENGTH = CipherSuite.TAG_LENGTH;
+    /**
+     * The biggest segment size that will be accepted while decrypting.
+     * This prevents a corrupted header from making us allocate huge buffers.
+     */
+    /* package-protected */ static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The minimum number of segments a file has to span so its segments are
+     * read and written through memory mapped buffers instead of positional I/O.
+     */
+    private static final int MAPPED_IO_MIN_SEGMENTS = 16;
+    /**
+     * The (maximum) size of the single windows in which files are mapped into memory.
+     */
+    private static final long MAPPING_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * The size of the plaintext of a single segment used by default.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * This method determines whether the given file is saved in the segmented container format.
+     *
+     * @param f the file to check
+     * @return whether the given file starts with the magic number of the container format
+     * @see EncryptedFileHeader#isEncryptedFile(File)
+     */
+    public static boolean isSegmentedFile(@NotNull File f) {
+        return EncryptedFileHeader.isEncryptedFile(f);
+    }
+
+    /**
+     * This method encrypts the given file into the given output file using the default
+     * segment size, while the segments are encrypted on the common {@link ForkJoinPool}.
+     *
+     * @param pw         the secret key used for encryption
+     * @param in         the file that is to be encrypted
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out        the file to write the encrypted data to
+     * @return the result of the encryption
+     * @see #encryptFile(SecretKeySpec, File, File, File, int, ForkJoinPool)
+     */
+    @NotNull
+    public static FileEncryptionResult encryptFile(SecretKeySpec pw, File in, File relativeTo, File out) {
+        return encryptFile(pw, in, relativeTo, out, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method encrypts the given file into the given output file without compression. The data
+     * is split into segments of the given size, which are encrypted in parallel on the given pool.
+     *
+     * @param pw          the secret key used for encryption
+     * @param in          the file that is to be encrypted
+     * @param relativeTo  the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out         the file to write the encrypted data to
+     * @param segmentSize the size of the plaintext of a single segment
+     * @param pool        the pool to encrypt the segments on
+     * @return the result of the encryption
+     * @see #encryptFile(SecretKeySpec, File, File, File, EncryptionOptions)
+     */
+    @NotNull
+    public static FileEncryptionResult encryptFile(
+            SecretKeySpec pw,
+            File in,
+            File relativeTo,
+            File out,
+            int segmentSize,
+            @NotNull ForkJoinPool pool
+    ) {
+        return encryptFile(
+                pw, in, relativeTo, out,
+                new EncryptionOptions.Builder()
+                        .setSegmentSize(segmentSize)
+                        .setPool(pool)
+                        .build()
+        );
+    }
+
+    /**
+     * This method encrypts the given file into the given output file using the given options.
+     * The data is split into segments, which are encrypted in parallel on the pool of the options.
+     * In case the file spans enough segments, it is mapped into memory and the segments are
+     * encrypted directly from the mapped file into the (pre-sized and also mapped) output file.
+     * In case compression is enabled and the file is worth compressing, every segment is compressed
+     * before it is encrypted (unless it does not get any smaller), whereas the encrypted segments
+     * vary in length and are written in order after a batch of segments has been encrypted in parallel.
+     * The cipher suite of the options is recorded in the header, so the file can be decrypted regardless of it.
+     * The header is written last, since it contains the root of the Merkle tree over the tags of the segments.
+     * In case the options contain a {@link WriteBehindWriter}, any file that is not mapped into memory is
+     * written behind, whereas this method may return before the output has been written completely
+     * (see {@link FileEncryptionResult#awaitWritten()}).
+     * The returned {@link FileEncryptionResult} does not contain any data.
+     * In case the encryption fails any partially written output is deleted.
+     *
+     * @param pw         the secret key used for encryption
+     * @param in         the file that is to be encrypted
+     * @param relativeTo the folder whose path is stripped from the name that is saved within the encrypted data
+     * @param out        the file to write the encrypted data to
+     * @param options    the options to use for the encryption
+     * @return the result of the encryption
+     */
+    @NotNull
+    public static FileEncryptionResult encryptFile(
+            SecretKeySpec pw,
+            File in,
+            File relativeTo,
+            File out,
+            @NotNull EncryptionOptions options
+    ) {
+        int segmentSize = options.getSegmentSize();
+        ForkJoinPool pool = options.getPool();
+
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be encrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The segment size {0} is not supported.",
+                            segmentSize
+                    ), null)
+            );
+        }
+
+        String filename;
+        WriteBehindWriter.Target target = null;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            filename = CommonFileUtilities.extractRelativePath(in, relativeTo);
+
+            if ((input.size() + segmentSize - 1) / segmentSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The file is too big to be encrypted with the given segment size.");
+            }
+
+            byte[] fileNonce = new byte[8];
+            sRandom.nextBytes(fileNonce);
+
+            boolean compress = options.isCompression() && CompressionService.isWorthCompressing(in);
+
+            EncryptedFileHeader header = new EncryptedFileHeader(
+                    options.getCipherSuite(),
+                    (byte) (EncryptedFileHeader.FLAG_MERKLE_ROOT | (compress ? EncryptedFileHeader.FLAG_COMPRESSED : 0)),
+                    segmentSize,
+                    input.size(),
+                    fileNonce,
+                    filename
+            );
+
+            ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+            int segments = header.getSegmentCount();
+            MerkleTree tree = new MerkleTree(segments);
+
+            // files that are mapped into memory are written through the mapping, any other file may be written behind
+            boolean mapped = !compress && segments >= MAPPED_IO_MIN_SEGMENTS;
+            FileChannel output = null;
+
+            if (options.getWriter() != null && !mapped) {
+                target = options.getWriter().open(out);
+            } else {
+                output = FileChannel.open(
+                        out.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE
+                );
+            }
+
+            try {
+                BlockWriter blocks = (target != null) ? target::write : directly(output);
+
+                if (compress) {
+                    encryptCompressedSegments(header, input, blocks, contexts, pool, tree);
+                } else if (mapped) {
+                    encryptMappedSegments(header, input, output, contexts, pool, tree);
+                } else {
+                    encryptSegments(
+                            header, blocks, contexts, pool, tree,
+                            (segment, plain) -> readFully(input, plain, segment * (long) segmentSize)
+                    );
+                }
+
+                blocks.write(ByteBuffer.wrap(header.withMerkleRoot(tree.computeRoot()).encode(new EncryptionContext(pw))), 0);
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        } catch (Exception e) {
+            if (target != null) {
+                target.abort();
+            } else {
+                deletePartialOutput(out);
+            }
+            return new FileEncryptionResult(new EncryptionAbortedException("Ecryption has been aborted.", e));
+        }
+
+        return (target != null)
+                ? new FileEncryptionResult(filename, target.finish())
+                : new FileEncryptionResult(filename);
+    }
+
+    /**
+     * This method encrypts the segments of the given file directly from the mapped input file
+     * into the (pre-sized and also mapped) output file in parallel on the given pool.
+     *
+     * @param header   the header of the file that is to be written
+     * @param input    the channel to read the plaintext from
+     * @param output   the channel to write the encrypted segments to
+     * @param contexts the contexts used to encrypt the segments
+     * @param pool     the pool to encrypt the segments on
+     * @param tree     the tree to set the leaves of to the tags of the encrypted segments
+     * @throws Exception the first error that occurred while encrypting the segments
+     */
+    private static void encryptMappedSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            FileChannel output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool,
+            MerkleTree tree
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+
+        MappedFileRegion source = new MappedFileRegion(
+                input, FileChannel.MapMode.READ_ONLY,
+                0, header.getPlaintextLength(), segmentSize
+        );
+        MappedFileRegion target = new MappedFileRegion(
+                output, FileChannel.MapMode.READ_WRITE,
+                header.getDataOffset(), header.getEncryptedLength() - header.getDataOffset(),
+                segmentSize + TAG_LENGTH
+        );
+
+        // encrypt directly from the mapped input into the mapped output
+        runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+            int length = header.getSegmentLength(segment);
+            ByteBuffer sealed = target.slice(segment, length + TAG_LENGTH);
+
+            contexts.get().sealSegment(
+                    header.getCipherSuite(),
+                    header.createSegmentNonce(segment),
+                    header.createSegmentAssociatedData(segment),
+                    source.slice(segment, length),
+                    sealed
+            );
+            sealed.flip();
+            tree.setLeafFromSegment(segment, sealed);
+        });
+    }
+
+    /**
+     * This method decrypts the given file on the common {@link ForkJoinPool}.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @return the result of the decryption
+     * @see #decryptFile(SecretKeySpec, File, OutputFileResolver, ForkJoinPool)
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(SecretKeySpec pw, File in, OutputFileResolver resolver) {
+        return decryptFile(pw, in, resolver, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method decrypts the given file, which has to be saved in the segmented container format.
+     * Only the header of the file is read and authenticated before the file to write the decrypted
+     * data to is determined by the given {@link OutputFileResolver}. The segments will then be
+     * decrypted in parallel on the given pool, whereas the encrypted and the (pre-sized) decrypted
+     * file are mapped into memory in case the file spans enough segments.
+     * The returned {@link FileEncryptionResult} does not contain any data.
+     * In case the decryption fails any partially written output is deleted.
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @param pool     the pool to decrypt the segments on
+     * @return the result of the decryption
+     * @see #decryptFile(SecretKeySpec, File, OutputFileResolver, ForkJoinPool, WriteBehindWriter)
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            @NotNull ForkJoinPool pool
+    ) {
+        return decryptFile(pw, in, resolver, pool, null);
+    }
+
+    /**
+     * This method decrypts the given file like {@link #decryptFile(SecretKeySpec, File, OutputFileResolver, ForkJoinPool)},
+     * whereas the decrypted data of any file that is not mapped into memory (or has been encrypted from a stream)
+     * is written behind by the given writer. Thus this method may return before the output has been written
+     * completely (see {@link FileEncryptionResult#awaitWritten()}).
+     *
+     * @param pw       the secret key used for decryption
+     * @param in       the file that is to be decrypted
+     * @param resolver the resolver that determines the file to write the decrypted data to
+     * @param pool     the pool to decrypt the segments on
+     * @param writer   the writer to write the decrypted data behind; {@code null} to write it directly
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(
+            SecretKeySpec pw,
+            File in,
+            OutputFileResolver resolver,
+            @NotNull ForkJoinPool pool,
+            WriteBehindWriter writer
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        File out = null;
+        String fileName;
+        WriteBehindWriter.Target target = null;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, new EncryptionContext(pw));
+            ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+            if (!header.isStreamed()) {
+                checkStandaloneFile(header, input);
+            }
+
+            fileName = header.getOriginalName();
+
+            try {
+                out = resolver.resolve(fileName);
+            } catch (IOException e) {
+                return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+            }
+
+            // the segments of a file that has been encrypted from a stream can only be located one after another
+            if (header.isStreamed()) {
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(out), EncryptionService.STREAM_CHUNK_SIZE)) {
+                    StreamEncryptionService.decryptSegments(header, input, output, pool);
+                }
+                return new FileEncryptionResult(fileName);
+            }
+
+            int segments = header.getSegmentCount();
+            int segmentSize = header.getSegmentSize();
+
+            // files that are mapped into memory are written through the mapping, any other file may be written behind
+            boolean mapped = !header.isCompressed() && segments >= MAPPED_IO_MIN_SEGMENTS;
+
+            if (writer != null && !mapped) {
+                target = writer.open(out);
+                BlockWriter blocks = target::write;
+
+                if (header.isCompressed()) {
+                    decryptCompressedSegments(header, input, blocks, contexts, pool);
+                } else {
+                    decryptSegments(
+                            header, input, contexts, pool, 0, segments,
+                            (segment, plain) -> blocks.write(plain, segment * (long) segmentSize)
+                    );
+                }
+            } else {
+                try (FileChannel output = FileChannel.open(
+                        out.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE
+                )) {
+                    if (header.isCompressed()) {
+                        decryptCompressedSegments(header, input, directly(output), contexts, pool);
+                    } else if (mapped) {
+                        decryptMappedSegments(header, input, output, contexts, pool);
+                    } else {
+                        decryptSegments(
+                                header, input, contexts, pool, 0, segments,
+                                (segment, plain) -> writeFully(output, plain, segment * (long) segmentSize)
+                        );
+                    }
+                }
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            if (target != null) {
+                target.abort();
+            } else {
+                deletePartialOutput(out);
+            }
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return (target != null)
+                ? new FileEncryptionResult(fileName, target.finish())
+                : new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method decrypts the segments of the given file directly from the mapped input file
+     * into the (pre-sized and also mapped) output file in parallel on the given pool.
+     *
+     * @param header   the header of the file that is to be decrypted
+     * @param input    the channel to read the encrypted segments from
+     * @param output   the channel to write the plaintext to
+     * @param contexts the contexts used to decrypt the segments
+     * @param pool     the pool to decrypt the segments on
+     * @throws Exception the first error that occurred while decrypting the segments
+     */
+    private static void decryptMappedSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            FileChannel output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+
+        MappedFileRegion source = new MappedFileRegion(
+                input, FileChannel.MapMode.READ_ONLY,
+                header.getDataOffset(), input.size() - header.getDataOffset(),
+                segmentSize + TAG_LENGTH
+        );
+        MappedFileRegion target = new MappedFileRegion(
+                output, FileChannel.MapMode.READ_WRITE,
+                0, header.getPlaintextLength(), segmentSize
+        );
+
+        // decrypt directly from the mapped input into the mapped output
+        runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+            int length = header.getSegmentLength(segment);
+
+            contexts.get().openSegment(
+                    header.getCipherSuite(),
+                    header.createSegmentNonce(segment),
+                    header.createSegmentAssociatedData(segment),
+                    source.slice(segment, length + TAG_LENGTH),
+                    target.slice(segment, length)
+            );
+        });
+    }
+
+    /**
+     * This method authenticates every segment of the given file without writing any of its plaintext.
+     * The file has to be saved in the segmented container format, whereas the files of pack archives
+     * and dedup stores are verified as well. The segments are authenticated in parallel on the given
+     * pool. The returned {@link FileEncryptionResult} does not contain any data, and its error
+     * states why the file is broken.
+     *
+     * @param pw   the secret key used for decryption
+     * @param in   the file that is to be verified
+     * @param pool the pool to authenticate the segments on
+     * @return the result of the verification
+     */
+    @NotNull
+    public static FileEncryptionResult verifyFile(SecretKeySpec pw, File in, @NotNull ForkJoinPool pool) {
+        return verifyFile(pw, in, 0, pool);
+    }
+
+    /**
+     * <p>This method verifies the given file like {@link #verifyFile(SecretKeySpec, File, ForkJoinPool)},
+     * but only authenticates the given number of randomly chosen segments in case its header contains
+     * the root of a {@link MerkleTree}. The tags of all the segments are read and checked against said
+     * root before, so any tag that has been changed is detected, whereas the data of a segment whose
+     * tag is intact is only checked in case it has been chosen.</p>
+     * <p>Thus such an audit reads {@link CipherSuite#TAG_LENGTH} bytes per segment in addition to the
+     * chosen segments, and is meant to spot-check huge sets of files cheaply. Files without a root
+     * (e.g. files encrypted by older versions) are verified completely.</p>
+     *
+     * @param pw      the secret key used for decryption
+     * @param in      the file that is to be verified
+     * @param samples the number of segments to authenticate; {@code 0} to authenticate every segment
+     * @param pool    the pool to authenticate the segments on
+     * @return the result of the verification
+     */
+    @NotNull
+    public static FileEncryptionResult verifyFile(SecretKeySpec pw, File in, int samples, @NotNull ForkJoinPool pool) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be verified.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        String fileName;
+
+        try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, new EncryptionContext(pw));
+            ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+            // a file that has been encrypted from a stream does not contain a Merkle root, and is thus verified completely
+            if (header.isStreamed()) {
+                StreamEncryptionService.decryptSegments(header, input, null, pool);
+                return new FileEncryptionResult(header.getOriginalName());
+            }
+
+            if (header.getSegmentSize() > MAX_SEGMENT_SIZE
+                    || header.getFlags() == EncryptedFileHeader.FLAG_IN_PLACE
+                    || (!header.isCompressed() && header.getEncryptedLength() != input.size())) {
+                throw new IOException("The encrypted file is truncated or malformed.");
+            }
+
+            SegmentTable table = header.isCompressed() ? SegmentTable.read(header, input) : null;
+            int[] chosen = IntStream.range(0, header.getSegmentCount()).toArray();
+
+            if (samples > 0 && samples < chosen.length && header.hasMerkleRoot()) {
+                checkMerkleRoot(header, input, table, pool);
+                chosen = ThreadLocalRandom.current().ints(0, chosen.length).distinct().limit(samples).toArray();
+            }
+
+            int[] segments = chosen;
+            runInParallel(pool, 0, segments.length, i -> {
+                int segment = segments[i];
+                try {
+                    if (table != null) {
+                        table.decryptSegment(header, input, contexts.get(), segment);
+                    } else {
+                        decryptSegment(header, input, contexts.get(), segment);
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(StringProcessing.format(
+                            "Segment {0} of the encrypted file has been tampered with.",
+                            segment
+                    ), e);
+                }
+            });
+
+            fileName = header.getOriginalName();
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method reads the tags of all the segments of the given file, and checks them against
+     * the root of the Merkle tree within its header. The tags are read in parallel on the given pool.
+     *
+     * @param header the (already authenticated) header of the file, which has to contain a root
+     * @param input  the channel of the file
+     * @param table  the segment table of the file, or {@code null} in case it is not compressed
+     * @param pool   the pool to read the tags on
+     * @throws Exception in case the tags could not be read or do not match the root
+     */
+    private static void checkMerkleRoot(EncryptedFileHeader header, FileChannel input, SegmentTable table, ForkJoinPool pool)
+            throws Exception {
+        MerkleTree tree = new MerkleTree(header.getSegmentCount());
+
+        runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+            long position = (table != null)
+                    ? table.getTagPosition(segment)
+                    : header.getSegmentPosition(segment) + header.getSegmentLength(segment);
+
+            ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+            readFully(input, tag, position);
+            tag.flip();
+            tree.setLeaf(segment, tag);
+        });
+
+        if (!MessageDigest.isEqual(tree.computeRoot(), header.getMerkleRoot())) {
+            throw new IOException("The tags of the segments do not match the Merkle root of the encrypted file, so it has been tampered with.");
+        }
+    }
+
+    /**
+     * This method checks whether the file with the given (already authenticated) header is a
+     * standalone file, whose segments directly follow its header, and is neither truncated nor extended.
+     *
+     * @param header the header of the file
+     * @param input  the channel of the file
+     * @throws IOException in case the file is malformed or not a standalone file
+     */
+    /* package-protected */ static void checkStandaloneFile(EncryptedFileHeader header, FileChannel input)
+            throws IOException {
+        if (header.isStreamed()) {
+            throw new IOException("The encrypted file has been encrypted from a stream, whereas it can only be decrypted as a whole.");
+        }
+        // the header has been authenticated, so a file of any other length has been truncated or extended
+        if (header.getSegmentSize() > MAX_SEGMENT_SIZE
+                || (!header.isCompressed() && header.getEncryptedLength() != input.size())) {
+            throw new IOException("The encrypted file is malformed.");
+        }
+        if ((header.getFlags() & (EncryptedFileHeader.FLAG_PACK_INDEX | EncryptedFileHeader.FLAG_PACK_VOLUME)) != 0) {
+            throw new IOException("The encrypted file is part of a pack archive and can only be extracted through said archive.");
+        }
+        if ((header.getFlags() & (EncryptedFileHeader.FLAG_DEDUP_CHUNK | EncryptedFileHeader.FLAG_DEDUP_MANIFEST)) != 0) {
+            throw new IOException("The encrypted file is part of a dedup store and can only be restored through its manifest.");
+        }
+        if (header.getFlags() == EncryptedFileHeader.FLAG_IN_PLACE) {
+            throw new IOException("The encrypted file has been encrypted in place and can only be decrypted through InPlaceEncryptionService.");
+        }
+    }
+
+    /**
+     * This method encrypts the segments described by the given header in parallel on the given
+     * pool, and writes them to their positions within the given channel. The plaintext of every
+     * segment is provided by the given source. The header itself is not written by this method.
+     *
+     * @param header   the header of the file that is to be written
+     * @param output   the channel to write the encrypted segments to
+     * @param contexts the contexts used to encrypt the segments
+     * @param pool     the pool to encrypt the segments on
+     * @param source   the source providing the plaintext of the single segments
+     * @throws Exception the first error that occurred while encrypting the segments
+     */
+    /* package-protected */ static void encryptSegments(
+            EncryptedFileHeader header,
+            FileChannel output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool,
+            SegmentSource source
+    ) throws Exception {
+        encryptSegments(header, directly(output), contexts, pool, null, source);
+    }
+
+    /**
+     * This method encrypts the segments like {@link #encryptSegments(EncryptedFileHeader, FileChannel, ThreadLocal, ForkJoinPool, SegmentSource)},
+     * and sets the leaves of the given Merkle tree to the tags of the encrypted segments.
+     *
+     * @param header   the header of the file that is to be written
+     * @param output   the writer to write the encrypted segments with
+     * @param contexts the contexts used to encrypt the segments
+     * @param pool     the pool to encrypt the segments on
+     * @param tree     the tree to set the leaves of, or {@code null}
+     * @param source   the source providing the plaintext of the single segments
+     * @throws Exception the first error that occurred while encrypting the segments
+     */
+    private static void encryptSegments(
+            EncryptedFileHeader header,
+            BlockWriter output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool,
+            MerkleTree tree,
+            SegmentSource source
+    ) throws Exception {
+        runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+            int length = header.getSegmentLength(segment);
+            EncryptionContext context = contexts.get();
+
+            ByteBuffer plain = context.getPlainBuffer(length);
+            source.read(segment, plain);
+            if (plain.hasRemaining()) {
+                throw new IOException("The data to encrypt ended unexpectedly.");
+            }
+            plain.flip();
+
+            ByteBuffer encrypted = context.getCipherBuffer(length + TAG_LENGTH);
+            context.sealSegment(
+                    header.getCipherSuite(),
+                    header.createSegmentNonce(segment),
+                    header.createSegmentAssociatedData(segment),
+                    plain,
+                    encrypted
+            );
+            encrypted.flip();
+
+            if (tree != null) {
+                tree.setLeafFromSegment(segment, encrypted);
+            }
+            output.write(encrypted, header.getSegmentPosition(segment));
+        });
+    }
+
+    /**
+     * This method decrypts the segments within the given range of the file described by the
+     * given header in parallel on the given pool. The plaintext of every segment is handed
+     * to the given sink.
+     *
+     * @param header   the header of the file that is to be decrypted
+     * @param input    the channel to read the encrypted segments from
+     * @param contexts the contexts used to decrypt the segments
+     * @param pool     the pool to decrypt the segments on
+     * @param from     the index of the first segment to decrypt (inclusive)
+     * @param to       the index of the last segment to decrypt (exclusive)
+     * @param sink     the sink receiving the plaintext of the single segments
+     * @throws Exception the first error that occurred while decrypting the segments
+     */
+    /* package-protected */ static void decryptSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool,
+            int from,
+            int to,
+            SegmentSink sink
+    ) throws Exception {
+        runInParallel(pool, from, to, segment -> {
+            int length = header.getSegmentLength(segment);
+            EncryptionContext context = contexts.get();
+
+            ByteBuffer encrypted = context.getCipherBuffer(length + TAG_LENGTH);
+            readFully(input, encrypted, header.getSegmentPosition(segment));
+            encrypted.flip();
+
+            ByteBuffer plain = context.getPlainBuffer(length);
+            context.openSegment(
+                    header.getCipherSuite(),
+                    header.createSegmentNonce(segment),
+                    header.createSegmentAssociatedData(segment),
+                    encrypted,
+                    plain
+            );
+            plain.flip();
+
+            sink.write(segment, plain);
+        });
+    }
+
+    /**
+     * This method decrypts the segment with given index of the (uncompressed) file described by the given header.
+     *
+     * @param header  the header of the file
+     * @param input   the channel to read the segment from
+     * @param context the context used to decrypt the segment
+     * @param segment the index of the segment
+     * @return the plaintext of the segment
+     * @throws IOException              in case the segment could not be read
+     * @throws GeneralSecurityException in case the segment could not be authenticated
+     */
+    /* package-protected */ static byte[] decryptSegment(
+            EncryptedFileHeader header,
+            FileChannel input,
+            EncryptionContext context,
+            int segment
+    ) throws IOException, GeneralSecurityException {
+        int length = header.getSegmentLength(segment);
+
+        ByteBuffer sealed = ByteBuffer.allocate(length + TAG_LENGTH);
+        readFully(input, sealed, header.getSegmentPosition(segment));
+        sealed.flip();
+
+        byte[] plain = new byte[length];
+        context.openSegment(
+                header.getCipherSuite(),
+                header.createSegmentNonce(segment),
+                header.createSegmentAssociatedData(segment),
+                sealed,
+                ByteBuffer.wrap(plain)
+        );
+        return plain;
+    }
+
+    /**
+     * This method writes the given header followed by the given data, which is encrypted in
+     * parallel on the given pool. This is used for small files (e.g. indices) kept in memory.
+     *
+     * @param header   the header of the file that is to be written
+     * @param data     the plaintext of the file; has to be as long as stated by the header
+     * @param output   the channel to write the file to
+     * @param contexts the contexts (of the secret key derived from the password) used to wrap the data key
+     * @param pool     the pool to encrypt the segments on
+     * @throws Exception the first error that occurred while encrypting the data
+     */
+    /* package-protected */ static void encryptData(
+            EncryptedFileHeader header,
+            byte[] data,
+            FileChannel output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+
+        header.write(output, contexts.get());
+        encryptSegments(
+                header, output, header.getDataContexts(), pool,
+                (segment, dst) -> dst.put(data, segment * segmentSize, dst.remaining())
+        );
+    }
+
+    /**
+     * This method decrypts the whole data of the file with given header into memory. The data
+     * is decrypted in parallel on the given pool. This is used for small files (e.g. indices).
+     *
+     * @param header   the (already read) header of the file that is to be decrypted
+     * @param input    the channel to read the file from
+     * @param pool     the pool to decrypt the segments on
+     * @return the plaintext of the file
+     * @throws Exception in case the file is malformed or could not be decrypted
+     */
+    /* package-protected */ static byte[] decryptData(
+            EncryptedFileHeader header,
+            FileChannel input,
+            ForkJoinPool pool
+    ) throws Exception {
+        if (header.isCompressed()
+                || header.getPlaintextLength() > Integer.MAX_VALUE
+                || header.getEncryptedLength() != input.size()) {
+            throw new IOException("The encrypted file is malformed.");
+        }
+
+        int segmentSize = header.getSegmentSize();
+        byte[] data = new byte[(int) header.getPlaintextLength()];
+
+        decryptSegments(
+                header, input, header.getDataContexts(), pool, 0, header.getSegmentCount(),
+                (segment, src) -> src.get(data, segment * segmentSize, src.remaining())
+        );
+
+        return data;
+    }
+
+    /**
+     * This method compresses and encrypts the segments of the given file. The segments are
+     * processed in batches, whereas the segments of a batch are compressed and encrypted in
+     * parallel on the given pool, and afterwards written in order, since the position of
+     * a segment depends on the lengths of the segments preceding it. Finally the table of
+     * the lengths of the segments is written.
+     *
+     * @param header   the header of the file that is to be written
+     * @param input    the channel to read the plaintext from
+     * @param output   the writer to write the encrypted segments with
+     * @param contexts the contexts used to encrypt the segments
+     * @param pool     the pool to compress and encrypt the segments on
+     * @param tree     the tree to set the leaves of to the tags of the encrypted segments
+     * @throws Exception the first error that occurred while compressing or encrypting the segments
+     */
+    private static void encryptCompressedSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            BlockWriter output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool,
+            MerkleTree tree
+    ) throws Exception {
+        int segments = header.getSegmentCount();
+        int segmentSize = header.getSegmentSize();
+        int batchSize = Math.max(1, pool.getParallelism() * 4);
+
+        ByteBuffer table = ByteBuffer.allocate(header.getSegmentTableLength());
+        long position = header.getDataOffset() + table.capacity();
+
+        for (int first = 0; first < segments; first += batchSize) {
+            final int batch = first;
+            ByteBuffer[] sealed = new ByteBuffer[Math.min(batchSize, segments - first)];
+            boolean[] compressed = new boolean[sealed.length];
+
+            runInParallel(pool, batch, batch + sealed.length, segment -> {
+                int length = header.getSegmentLength(segment);
+
+                byte[] plain = new byte[length];
+                readFully(input, ByteBuffer.wrap(plain), segment * (long) segmentSize);
+
+                byte[] packed = new byte[length];
+                int packedLength = CompressionService.compress(plain, length, packed);
+
+                ByteBuffer src = (packedLength != -1)
+                        ? ByteBuffer.wrap(packed, 0, packedLength)
+                        : ByteBuffer.wrap(plain);
+                ByteBuffer dst = ByteBuffer.allocate(src.remaining() + TAG_LENGTH);
+
+                contexts.get().sealSegment(
+                        header.getCipherSuite(),
+                        header.createSegmentNonce(segment),
+                        header.createSegmentAssociatedData(segment, packedLength != -1),
+                        src,
+                        dst
+                );
+                dst.flip();
+                tree.setLeafFromSegment(segment, dst);
+
+                sealed[segment - batch] = dst;
+                compressed[segment - batch] = packedLength != -1;
+            });
+
+            for (int i = 0; i < sealed.length; i++) {
+                int length = sealed[i].remaining();
+
+                table.putInt(length).put((byte) (compressed[i] ? 1 : 0));
+                output.write(sealed[i], position);
+                position += length;
+            }
+        }
+
+        table.flip();
+        output.write(table, header.getDataOffset());
+    }
+
+    /**
+     * This method decrypts and decompresses the segments of the given file in parallel on the
+     * given pool. The positions of the segments are determined from the segment table of the file,
+     * which has to describe the whole file.
+     *
+     * @param header   the header of the file that is to be decrypted
+     * @param input    the channel to read the encrypted segments from
+     * @param output   the writer to write the plaintext with
+     * @param contexts the contexts used to decrypt the segments
+     * @param pool     the pool to decrypt and decompress the segments on
+     * @throws Exception the first error that occurred while decrypting or decompressing the segments
+     */
+    private static void decryptCompressedSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            BlockWriter output,
+            ThreadLocal<EncryptionContext> contexts,
+            ForkJoinPool pool
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+        SegmentTable table = SegmentTable.read(header, input);
+
+        runInParallel(pool, 0, header.getSegmentCount(), segment -> {
+            byte[] plain = table.decryptSegment(header, input, contexts.get(), segment);
+            output.write(ByteBuffer.wrap(plain, 0, header.getSegmentLength(segment)), segment * (long) segmentSize);
+        });
+    }
+
+    /**
+     * The segment table of a compressed file, which determines the positions of its segments.
+     */
+    /* package-protected */ static class SegmentTable {
+
+        /**
+         * The positions of the single segments.
+         */
+        private final long[] positions;
+        /**
+         * The lengths of the single encrypted segments.
+         */
+        private final int[] lengths;
+        /**
+         * Whether the single segments are compressed.
+         */
+        private final boolean[] compressed;
+
+        /**
+         * Creates a segment table with the given values.
+         *
+         * @param positions  the positions of the single segments
+         * @param lengths    the lengths of the single encrypted segments
+         * @param compressed whether the single segments are compressed
+         */
+        private SegmentTable(long[] positions, int[] lengths, boolean[] compressed) {
+            this.positions = positions;
+            this.lengths = lengths;
+            this.compressed = compressed;
+        }
+
+        /**
+         * This method reads the segment table of the given file, which has to describe the whole file.
+         *
+         * @param header the header of the file
+         * @param input  the channel to read the segment table from
+         * @return the segment table of the file
+         * @throws IOException in case the segment table could not be read or is malformed
+         */
+        /* package-protected */ static SegmentTable read(EncryptedFileHeader header, FileChannel input)
+                throws IOException {
+            int segments = header.getSegmentCount();
+
+            ByteBuffer table = ByteBuffer.allocate(header.getSegmentTableLength());
+            readFully(input, table, header.getDataOffset());
+            table.flip();
+
+            long[] positions = new long[segments];
+            int[] lengths = new int[segments];
+            boolean[] compressed = new boolean[segments];
+            long position = header.getDataOffset() + table.capacity();
+
+            for (int segment = 0; segment < segments; segment++) {
+                int length = table.getInt();
+                byte flag = table.get();
+                int maxLength = header.getSegmentLength(segment) + TAG_LENGTH;
+
+                // uncompressed segments have to be exactly as long as their plaintext
+                if (length < TAG_LENGTH || length > maxLength || (flag != 0 && flag != 1) || (flag == 0 && length != maxLength)) {
+                    throw new IOException("The segment table of the encrypted file is malformed.");
+                }
+
+                positions[segment] = position;
+                lengths[segment] = length;
+                compressed[segment] = flag == 1;
+                position += length;
+            }
+
+            if (position != input.size()) {
+                throw new IOException("The encrypted file is malformed.");
+            }
+
+            return new SegmentTable(positions, lengths, compressed);
+        }
+
+        /**
+         * @param segment the index of the segment
+         * @return the position of the tag of the segment with given index
+         */
+        /* package-protected */ long getTagPosition(int segment) {
+            return positions[segment] + lengths[segment] - TAG_LENGTH;
+        }
+
+        /**
+         * This method decrypts and (if necessary) decompresses the segment with given index.
+         *
+         * @param header  the header of the file
+         * @param input   the channel to read the segment from
+         * @param context the context used to decrypt the segment
+         * @param segment the index of the segment
+         * @return the plaintext of the segment; may be longer than the segment
+         * @throws IOException              in case the segment could not be read or decompressed
+         * @throws GeneralSecurityException in case the segment could not be authenticated
+         */
+        /* package-protected */ byte[] decryptSegment(
+                EncryptedFileHeader header,
+                FileChannel input,
+                EncryptionContext context,
+                int segment
+        ) throws IOException, GeneralSecurityException {
+            int length = header.getSegmentLength(segment);
+
+            ByteBuffer sealed = ByteBuffer.allocate(lengths[segment]);
+            readFully(input, sealed, positions[segment]);
+            sealed.flip();
+
+            byte[] opened = new byte[lengths[segment] - TAG_LENGTH];
+            context.openSegment(
+                    header.getCipherSuite(),
+                    header.createSegmentNonce(segment),
+                    header.createSegmentAssociatedData(segment, compressed[segment]),
+                    sealed,
+                    ByteBuffer.wrap(opened)
+            );
+
+            if (!compressed[segment]) {
+                return opened;
+            }
+
+            byte[] plain = new byte[length];
+            CompressionService.decompress(opened, 0, opened.length, plain, length);
+            return plain;
+        }
+    }
+
+    /**
+     * This method creates the contexts used to en- or decrypt the segments of a single file,
+     * whereas every thread working on the file will use its own context.
+     *
+     * @param pw the secret key to use
+     * @return the contexts for the single threads
+     */
+    /* package-protected */ static ThreadLocal<EncryptionContext> createContexts(SecretKeySpec pw) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return new EncryptionContext(pw);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("The encryption context could not be created.", e);
+            }
+        });
+    }
+
+    /**
+     * This method processes the segments within the given range in parallel on the given pool.
+     * As soon as the processing of one segment fails any segment that has not been started
+     * yet will be skipped, and the first error is thrown.
+     *
+     * @param pool      the pool to process the segments on
+     * @param from      the index of the first segment to process (inclusive)
+     * @param to        the index of the last segment to process (exclusive)
+     * @param operation the operation to apply to every segment
+     * @throws Exception the first error that occurred while processing the segments
+     */
+    /* package-protected */ static void runInParallel(ForkJoinPool pool, int from, int to, SegmentOperation operation)
+            throws Exception {
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Callable<Void>> tasks = new ArrayList<>(Math.max(0, to - from));
+
+        for (int i = from; i < to; i++) {
+            final int segment = i;
+            tasks.add(() -> {
+                if (error.get() == null) {
+                    try {
+                        operation.process(segment);
+                    } catch (Exception e) {
+                        // only the first error is kept, since the pool would wrap it anyways
+                        error.compareAndSet(null, e);
+                    }
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            future.get();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * This method reads from the given channel at the given position until the buffer is full.
+     *
+     * @param channel  the channel to read from
+     * @param buffer   the buffer to fill
+     * @param position the position within the channel to start reading at
+     * @throws IOException in case the channel ends before the buffer is full
+     */
+    /* package-protected */ static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("The file ended unexpectedly.");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * This method writes the whole content of the given buffer to the given position of the given channel.
+     *
+     * @param channel  the channel to write to
+     * @param buffer   the buffer to write
+     * @param position the position within the channel to start writing at
+     * @throws IOException in case an error occurs during writing
+     */
+    /* package-protected */ static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * This method creates a writer that writes the blocks directly to the given channel.
+     *
+     * @param channel the channel to write to
+     * @return the writer
+     */
+    private static BlockWriter directly(FileChannel channel) {
+        return (src, position) -> writeFully(channel, src, position);
+    }
+
+    /**
+     * This method deletes the given (partially written) output of a failed en- or decryption.
+     *
+     * @param out the file to delete; {@code null} will be ignored
+     */
+    /* package-protected */ static void deletePartialOutput(File out) {
+        if (out != null && out.exists() && !out.delete()) {
+            out.deleteOnExit();
+        }
+    }
+
+    /**
+     * A region of a file that is mapped into memory in several windows. Every window
+     * contains a whole number of units (i.e. segments), so a single unit can always
+     * be accessed through a single buffer.
+     */
+    private static class MappedFileRegion {
+
+        /**
+         * The size of a single unit.
+         */
+        private final int unit;
+        /**
+         * The number of units contained in a single window.
+         */
+        private final int unitsPerWindow;
+        /**
+         * The single mapped windows of the region.
+         */
+        private final MappedByteBuffer[] windows;
+
+        /**
+         * Maps the given region of the given channel into memory. In case the mode is
+         * {@link FileChannel.MapMode#READ_WRITE} the file will be extended to contain the whole region.
+         *
+         * @param channel the channel of the file to map
+         * @param mode    the mode to map the file in
+         * @param start   the position within the file the region starts at
+         * @param length  the length of the region
+         * @param unit    the size of a single unit
+         * @throws IOException in case the file could not be mapped
+         */
+        private MappedFileRegion(FileChannel channel, FileChannel.MapMode mode, long start, long length, int unit)
+                throws IOException {
+            this.unit = unit;
+            this.unitsPerWindow = (int) Math.max(1, MAPPING_WINDOW_SIZE / unit);
+
+            long windowSize = (long) unitsPerWindow * unit;
+            this.windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+
+            for (int i = 0; i < windows.length; i++) {
+                long offset = i * windowSize;
+                windows[i] = channel.map(mode, start + offset, Math.min(windowSize, length - offset));
+            }
+        }
+
+        /**
+         * This method gives you a buffer for the given unit. The returned buffer
+         * does not share its position or limit with any other buffer, whereas it can
+         * safely be used while other threads access different units.
+         *
+         * @param index  the index of the unit relative to the start of the region
+         * @param length the number of bytes of the unit to access
+         * @return the buffer for the given unit
+         */
+        private ByteBuffer slice(int index, int length) {
+            ByteBuffer window = windows[index / unitsPerWindow].duplicate();
+
+            int offset = (index % unitsPerWindow) * unit;
+            window.position(offset);
+            window.limit(offset + length);
+
+            return window.slice();
+        }
+    }
+
+    /**
+     * An operation that is applied to a single segment.
+     */
+    @FunctionalInterface
+    /* package-protected */ interface SegmentOperation {
+
+        void process(int segment) throws Exception;
+    }
+
+    /**
+     * A source providing the plaintext of single segments.
+     */
+    @FunctionalInterface
+    /* package-protected */ interface SegmentSource {
+
+        /**
+         * This method fills the given buffer with the plaintext of the segment with given index.
+         *
+         * @param segment the index of the segment
+         * @param dst     the buffer to fill completely
+         * @throws Exception in case the plaintext could not be read
+         */
+        void read(int segment, ByteBuffer dst) throws Exception;
+    }
+
+    /**
+     * A writer of the blocks of an output file, which writes them either directly
+     * or behind the threads producing them (see {@link WriteBehindWriter.Target}).
+     */
+    @FunctionalInterface
+    /* package-protected */ interface BlockWriter {
+
+        /**
+         * This method writes the remaining content of the given buffer to the given position of the
+         * output. The given buffer may be reused as soon as this method returns.
+         *
+         * @param src      the buffer to write
+         * @param position the position within the output to write the buffer to
+         * @throws IOException in case the buffer could not be written
+         */
+        void write(ByteBuffer src, long position) throws IOException;
+    }
+
+    /**
+     * A sink receiving the plaintext of single decrypted segments.
+     */
+    @FunctionalInterface
+    /* package-protected */ interface SegmentSink {
+
+        /**
+         * This method consumes the plaintext of the segment with given index. The given buffer
+         * may be reused as soon as this method returns.
+         *
+         * @param segment the index of the segment
+         * @param src     the plaintext of the segment
+         * @throws Exception in case the plaintext could not be consumed
+         */
+        void write(int segment, ByteBuffer src) throws Exception;
+    }
+}
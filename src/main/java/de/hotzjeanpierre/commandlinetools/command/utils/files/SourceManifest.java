@@ -0,0 +1,540 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>A SourceManifest is kept within an output folder of the 'encrypt'-command, and records the
+ * length, the time of the last modification and (optionally) the SHA-256 hash of every file that
+ * has been encrypted into said folder, along with the encrypted file containing it. Thus a later
+ * encryption of the same folder only has to encrypt the files that are new or have changed, whereas
+ * the unchanged files are recognized without reading them. Files that have been deleted from the
+ * source folder may be recorded as well.</p>
+ * <p>The manifest is saved in the container format of {@link SegmentedEncryptionService} and flagged
+ * like a {@link Catalog} (so it is skipped wherever catalogs are), whereas its plaintext is laid out
+ * as follows:</p>
+ * <pre>
+ * [int version][int next index][int entry count]([int name length][name][int output length][output]
+ *     [long length][long modified][int hash length][hash][long deleted])*
+ * </pre>
+ * <p>The output files are saved relative to the folder of the manifest, so the folder may be moved
+ * as a whole. A manifest is not safe for use by multiple threads.</p>
+ */
+public class SourceManifest {
+
+    /**
+     * The name of the manifest within its folder.
+     */
+    public static final String FILE_NAME = "manifest.encl";
+
+    /**
+     * The version of the layout of the plaintext.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The value of the time of deletion of files that have not been deleted.
+     */
+    private static final long NOT_DELETED = -1;
+    /**
+     * The charset used to encode the names of the files.
+     */
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The folder of this manifest.
+     */
+    private final File folder;
+    /**
+     * The secret key this manifest is encrypted with.
+     */
+    private final SecretKeySpec key;
+    /**
+     * The entries of this manifest by the names of their files.
+     */
+    private final Map<String, Entry> entries;
+    /**
+     * The index following the indices of the encrypted files that have been recorded.
+     */
+    private int nextIndex;
+
+    /**
+     * Creates a manifest with the given values.
+     *
+     * @param folder    the folder of the manifest
+     * @param key       the secret key the manifest is encrypted with
+     * @param entries   the entries of the manifest
+     * @param nextIndex the index following the indices of the encrypted files
+     */
+    private SourceManifest(File folder, SecretKeySpec key, Map<String, Entry> entries, int nextIndex) {
+        this.folder = folder;
+        this.key = key;
+        this.entries = entries;
+        this.nextIndex = nextIndex;
+    }
+
+    /**
+     * This method gives you the file of the manifest within the given folder.
+     *
+     * @param folder the folder of the manifest
+     * @return the file of the manifest
+     */
+    @NotNull
+    public static File getFile(@NotNull File folder) {
+        return new File(folder, FILE_NAME);
+    }
+
+    /**
+     * This method determines whether the given file is the manifest of an incremental encryption.
+     * Since only the cleartext part of its header is read this method does not need a secret key.
+     *
+     * @param f the file to check
+     * @return whether the given file is a manifest
+     */
+    public static boolean isManifest(@NotNull File f) {
+        return EncryptedFileHeader.hasFlags(f, EncryptedFileHeader.FLAG_SOURCE_MANIFEST);
+    }
+
+    /**
+     * This method opens the manifest of the given folder, or creates an empty one in case
+     * the folder does not contain a manifest yet. The manifest is not written until it is saved.
+     *
+     * @param key    the secret key the manifest is encrypted with
+     * @param folder the folder of the manifest
+     * @return the manifest of the folder
+     * @throws IOException              in case the manifest could not be read or is malformed
+     * @throws GeneralSecurityException in case the manifest could not be decrypted (e.g. the key was wrong)
+     */
+    @NotNull
+    public static SourceManifest open(@NotNull SecretKeySpec key, @NotNull File folder)
+            throws IOException, GeneralSecurityException {
+        File file = getFile(folder);
+
+        if (!file.exists()) {
+            return new SourceManifest(folder, key, new LinkedHashMap<>(), 0);
+        }
+
+        byte[] data;
+
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            EncryptedFileHeader header = EncryptedFileHeader.read(input, new EncryptionContext(key));
+
+            if (header.getFlags() != EncryptedFileHeader.FLAG_SOURCE_MANIFEST) {
+                throw new IOException(StringProcessing.format(
+                        "The file '{0}' is not a manifest.",
+                        file.getAbsolutePath()
+                ));
+            }
+
+            try {
+                data = SegmentedEncryptionService.decryptData(header, input, ForkJoinPool.commonPool());
+            } catch (IOException | GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("The manifest could not be decrypted.", e);
+            }
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+
+            if (buffer.getInt() != VERSION) {
+                throw new IOException("The manifest has been written by another version.");
+            }
+
+            int nextIndex = buffer.getInt();
+            return new SourceManifest(folder, key, decode(buffer), nextIndex);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("The manifest is malformed.", e);
+        }
+    }
+
+    /**
+     * This method decodes the entries within the given plaintext of a manifest.
+     *
+     * @param data the plaintext of the manifest, positioned at the entries
+     * @return the entries of the manifest
+     * @throws IOException in case the manifest is malformed
+     */
+    private static Map<String, Entry> decode(ByteBuffer data) throws IOException {
+        int count = data.getInt();
+        if (count < 0) {
+            throw new IOException("The manifest is malformed.");
+        }
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            String name = decodeString(data);
+            String output = decodeString(data);
+            long length = data.getLong();
+            long modified = data.getLong();
+            byte[] hash = new byte[data.getInt()];
+            data.get(hash);
+            long deleted = data.getLong();
+
+            if (length < 0 || (hash.length != 0 && hash.length != Catalog.HASH_LENGTH)) {
+                throw new IOException("The manifest is malformed.");
+            }
+
+            entries.put(name, new Entry(name, output, length, modified, hash, deleted));
+        }
+
+        if (data.hasRemaining()) {
+            throw new IOException("The manifest is malformed.");
+        }
+
+        return entries;
+    }
+
+    /**
+     * @param data the buffer to read the string from
+     * @return the (length-prefixed) string read from the buffer
+     */
+    private static String decodeString(ByteBuffer data) {
+        byte[] string = new byte[data.getInt()];
+        data.get(string);
+        return new String(string, NAME_CHARSET);
+    }
+
+    /**
+     * This method gives you the entry of the file with the given name.
+     *
+     * @param name the name of the file, relative to the folder it has been encrypted from
+     * @return the entry of the file, or {@code null} in case it has never been recorded
+     */
+    @Nullable
+    public Entry get(@NotNull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * This method determines whether the given file has not changed since it has been recorded,
+     * by comparing its length and the time of its last modification. The file is not read.
+     *
+     * @param f    the file to check
+     * @param name the name of the file, relative to the folder it is encrypted from
+     * @return whether the file has been recorded, has not been deleted since and has not changed
+     */
+    public boolean isUnchanged(@NotNull File f, @NotNull String name) {
+        Entry entry = entries.get(name);
+
+        return entry != null
+                && !entry.isDeleted()
+                && entry.length == f.length()
+                && entry.modified == f.lastModified();
+    }
+
+    /**
+     * This method records that the given output file contains the given file, replacing its previous entry.
+     *
+     * @param output   the encrypted file containing the file
+     * @param name     the name of the file, relative to the folder it has been encrypted from
+     * @param length   the length of the file
+     * @param modified the time of the last modification of the file
+     * @param hash     the SHA-256 hash of the file; empty in case it is unknown
+     */
+    public void record(@NotNull File output, @NotNull String name, long length, long modified, @NotNull byte[] hash) {
+        entries.put(name, new Entry(
+                name,
+                CommonFileUtilities.extractRelativePath(output, folder),
+                length,
+                modified,
+                hash,
+                NOT_DELETED
+        ));
+    }
+
+    /**
+     * This method records the deletion of every file that has been recorded, but does not exist
+     * within the given folder anymore. Their encrypted files are kept, so they can still be restored.
+     *
+     * @param src  the folder the files have been encrypted from
+     * @param time the time to record as the time of deletion
+     * @return the entries of the files whose deletion has been recorded
+     */
+    @NotNull
+    public List<Entry> recordDeletions(@NotNull File src, long time) {
+        List<Entry> deleted = new ArrayList<>();
+
+        for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+            Entry entry = mapping.getValue();
+
+            if (!entry.isDeleted() && !new File(src, entry.name).exists()) {
+                Entry marked = new Entry(entry.name, entry.output, entry.length, entry.modified, entry.hash, time);
+                mapping.setValue(marked);
+                deleted.add(marked);
+            }
+        }
+
+        return deleted;
+    }
+
+    /**
+     * @return The entries of this manifest in the order they have been recorded in
+     */
+    @NotNull
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * This method gives you the encrypted file containing the given entry.
+     *
+     * @param entry the entry
+     * @return the encrypted file containing the entry
+     */
+    @NotNull
+    public File getOutputFile(@NotNull Entry entry) {
+        return new File(folder, entry.output);
+    }
+
+    /**
+     * @return The index following the indices of the encrypted files that have been recorded
+     */
+    public int getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * @param nextIndex The index following the indices of the encrypted files that have been recorded
+     */
+    public void setNextIndex(int nextIndex) {
+        this.nextIndex = nextIndex;
+    }
+
+    /**
+     * This method (atomically) writes this manifest into its folder.
+     *
+     * @param suite the cipher suite to encrypt the manifest with
+     * @throws IOException              in case the manifest could not be written
+     * @throws GeneralSecurityException in case the manifest could not be encrypted
+     */
+    public void save(@NotNull CipherSuite suite) throws IOException, GeneralSecurityException {
+        File file = getFile(folder);
+
+        byte[] data = encode();
+        byte[] nonce = new byte[8];
+        sRandom.nextBytes(nonce);
+
+        EncryptedFileHeader header = new EncryptedFileHeader(
+                suite,
+                EncryptedFileHeader.FLAG_SOURCE_MANIFEST,
+                SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE,
+                data.length,
+                nonce,
+                FILE_NAME
+        );
+
+        // the manifest is written next to the old one and replaces it as a whole
+        File temporary = new File(folder, FILE_NAME + ".tmp");
+
+        try {
+            try (FileChannel output = FileChannel.open(
+                    temporary.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                SegmentedEncryptionService.encryptData(
+                        header, data, output,
+                        SegmentedEncryptionService.createContexts(key), ForkJoinPool.commonPool()
+                );
+                output.force(true);
+            }
+
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            SegmentedEncryptionService.deletePartialOutput(temporary);
+            throw e;
+        } catch (Exception e) {
+            SegmentedEncryptionService.deletePartialOutput(temporary);
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the plaintext of this manifest
+     */
+    private byte[] encode() {
+        List<byte[]> strings = new ArrayList<>();
+        long length = 12;
+
+        for (Entry entry : entries.values()) {
+            byte[] name = entry.name.getBytes(NAME_CHARSET);
+            byte[] output = entry.output.getBytes(NAME_CHARSET);
+            strings.add(name);
+            strings.add(output);
+            length += 4 + name.length + 4 + output.length + 8 + 8 + 4 + entry.hash.length + 8;
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The manifest has become too big.");
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        data.putInt(VERSION)
+                .putInt(nextIndex)
+                .putInt(entries.size());
+
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            data.putInt(strings.get(i).length).put(strings.get(i++))
+                    .putInt(strings.get(i).length).put(strings.get(i++))
+                    .putLong(entry.length)
+                    .putLong(entry.modified)
+                    .putInt(entry.hash.length).put(entry.hash)
+                    .putLong(entry.deleted);
+        }
+
+        return data.array();
+    }
+
+    /**
+     * A single file recorded within a manifest.
+     */
+    public static class Entry {
+
+        /**
+         * The name of the file, relative to the folder it has been encrypted from.
+         */
+        private final String name;
+        /**
+         * The path of the encrypted file containing the file, relative to the folder of the manifest.
+         */
+        private final String output;
+        /**
+         * The length of the file.
+         */
+        private final long length;
+        /**
+         * The time of the last modification of the file.
+         */
+        private final long modified;
+        /**
+         * The SHA-256 hash of the file; empty in case it is unknown.
+         */
+        private final byte[] hash;
+        /**
+         * The time the deletion of the file has been recorded at, or {@link #NOT_DELETED}.
+         */
+        private final long deleted;
+
+        /**
+         * Creates an entry with the given values.
+         *
+         * @param name     the name of the file
+         * @param output   the relative path of the encrypted file
+         * @param length   the length of the file
+         * @param modified the time of the last modification of the file
+         * @param hash     the hash of the file
+         * @param deleted  the time the deletion of the file has been recorded at, or {@link #NOT_DELETED}
+         */
+        private Entry(String name, String output, long length, long modified, byte[] hash, long deleted) {
+            this.name = name;
+            this.output = output;
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return The name of the file, relative to the folder it has been encrypted from
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The length of the file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The time of the last modification of the file
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * @return The SHA-256 hash of the file, or {@code null} in case it is unknown
+         */
+        @Nullable
+        public byte[] getHash() {
+            return hash.length != 0 ? hash.clone() : null;
+        }
+
+        /**
+         * This method determines whether the file has the given content, by comparing its hash.
+         *
+         * @param hash the SHA-256 hash of the content
+         * @return whether the hash of the file is known and equal to the given one
+         */
+        public boolean hasHash(@NotNull byte[] hash) {
+            return this.hash.length != 0 && MessageDigest.isEqual(this.hash, hash);
+        }
+
+        /**
+         * @return Whether the deletion of the file has been recorded
+         */
+        public boolean isDeleted() {
+            return deleted != NOT_DELETED;
+        }
+
+        /**
+         * @return The time the deletion of the file has been recorded at, or {@code -1} in case it has not been deleted
+         */
+        public long getDeleted() {
+            return deleted;
+        }
+
+        @Override
+        public String toString() {
+            return StringProcessing.format("{0} ({1} bytes) in {2}", name, length, output);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService.FileEncryptionResult;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>This class en- and decrypts data that is streamed (e.g. the standard input and output, or
+ * the output of a {@link de.hotzjeanpierre.commandlinetools.command.Command.ShellCommand}), so
+ * the data never has to be staged within a plaintext file.</p>
+ * <p>The data is saved in the container format of {@link SegmentedEncryptionService}, whereas the
+ * header has to be written before any data has been read. Thus it states the length
+ * {@link EncryptedFileHeader#UNKNOWN_LENGTH}, and does neither contain the root of a Merkle tree nor
+ * are the segments compressed. Every segment but the last one is full, whereas the last segment is
+ * flagged within its additional data as usual, so a truncated stream is rejected as soon as it ends:</p>
+ * <pre>
+ * [header][full segment]*[last segment]
+ * </pre>
+ * <p>The segments are read in batches, whereas the segments of a batch are en- or decrypted in
+ * parallel on a {@link ForkJoinPool} and written in order afterwards. Thus the memory usage only
+ * depends on the size of a batch. Since the plaintext of every segment is written as soon as it has
+ * been authenticated, the plaintext of a stream that turns out to be truncated has already been
+ * written partially, whereas an error is reported at its end.</p>
+ * <p>A file containing an encrypted stream is decrypted by {@link SegmentedEncryptionService} just like
+ * any other file, whereas ranges of it cannot be decrypted, since the positions of its segments are unknown.</p>
+ */
+public class StreamEncryptionService {
+
+    /**
+     * The length of the authentication tag appended to every segment.
+     */
+    private static final int TAG_LENGTH = CipherSuite.TAG_LENGTH;
+
+    /**
+     * The source of the random file nonces.
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * This method encrypts the data of the given stream into the given stream using the given options.
+     * The data is read up to the end of the input, whereas neither of the streams is closed.
+     * Compression is not supported, whereas it is ignored if enabled within the options.
+     * The returned {@link FileEncryptionResult} does not contain any data.
+     *
+     * @param pw      the secret key used for encryption
+     * @param in      the stream providing the data that is to be encrypted
+     * @param name    the name to save within the encrypted data, under which the data will be decrypted
+     * @param out     the stream to write the encrypted data to
+     * @param options the options to use for the encryption
+     * @return the result of the encryption
+     */
+    @NotNull
+    public static FileEncryptionResult encryptStream(
+            SecretKeySpec pw,
+            @NotNull InputStream in,
+            @NotNull String name,
+            @NotNull OutputStream out,
+            @NotNull EncryptionOptions options
+    ) {
+        int segmentSize = options.getSegmentSize();
+
+        if (segmentSize <= 0 || segmentSize > SegmentedEncryptionService.MAX_SEGMENT_SIZE) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The segment size {0} is not supported.",
+                            segmentSize
+                    ), null)
+            );
+        }
+
+        try {
+            byte[] fileNonce = new byte[8];
+            sRandom.nextBytes(fileNonce);
+
+            EncryptedFileHeader header = new EncryptedFileHeader(
+                    options.getCipherSuite(),
+                    (byte) 0,
+                    segmentSize,
+                    EncryptedFileHeader.UNKNOWN_LENGTH,
+                    fileNonce,
+                    name
+            );
+
+            out.write(header.encode(new EncryptionContext(pw)));
+            encryptSegments(header, in, out, options.getPool());
+            out.flush();
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException("Ecryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(name);
+    }
+
+    /**
+     * This method decrypts the data of the given stream into the given stream, whereas the data of
+     * the input has to have been encrypted by {@link #encryptStream(SecretKeySpec, InputStream, String, OutputStream, EncryptionOptions)}.
+     * Neither of the streams is closed. The returned {@link FileEncryptionResult} does not contain any
+     * data, and its file name is the name that has been saved within the encrypted data.
+     *
+     * @param pw   the secret key used for decryption
+     * @param in   the stream providing the encrypted data
+     * @param out  the stream to write the decrypted data to
+     * @param pool the pool to decrypt the segments on
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptStream(
+            SecretKeySpec pw,
+            @NotNull InputStream in,
+            @NotNull OutputStream out,
+            @NotNull ForkJoinPool pool
+    ) {
+        String fileName;
+
+        try {
+            EncryptedFileHeader header = EncryptedFileHeader.read(in, new EncryptionContext(pw));
+
+            if (!header.isStreamed()) {
+                throw new IOException("The data has not been encrypted from a stream, whereas it can only be decrypted from its file.");
+            }
+
+            decryptSegments(header, in, out, pool);
+            out.flush();
+
+            fileName = header.getOriginalName();
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method decrypts the given file into the given stream. Files that have been encrypted from
+     * a stream are decrypted segment by segment, whereas any other file saved in the container format
+     * (including files that have been encrypted in place) is read through a {@link DecryptingChannel}.
+     * The output stream is not closed. The returned {@link FileEncryptionResult} does not contain any data.
+     *
+     * @param pw   the secret key used for decryption
+     * @param in   the file that is to be decrypted
+     * @param out  the stream to write the decrypted data to
+     * @param pool the pool to decrypt the segments on
+     * @return the result of the decryption
+     */
+    @NotNull
+    public static FileEncryptionResult decryptFile(
+            SecretKeySpec pw,
+            File in,
+            @NotNull OutputStream out,
+            @NotNull ForkJoinPool pool
+    ) {
+        if (in == null || !in.isFile() || !in.exists()) {
+            return new FileEncryptionResult(
+                    new EncryptionAbortedException(StringProcessing.format(
+                            "The file '{0}' does not exist and can thus not be decrypted.",
+                            (in != null) ? in.getAbsolutePath() : "null"
+                    ), null)
+            );
+        }
+
+        String fileName;
+
+        try {
+            try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+                if (EncryptedFileHeader.findHeader(input) == 0) {
+                    EncryptedFileHeader header = EncryptedFileHeader.read(input, new EncryptionContext(pw));
+
+                    if (header.isStreamed()) {
+                        decryptSegments(header, input, out, pool);
+                        out.flush();
+                        return new FileEncryptionResult(header.getOriginalName());
+                    }
+                }
+            }
+
+            try (DecryptingChannel input = DecryptingChannel.open(pw, in)) {
+                fileName = input.getOriginalName();
+
+                ByteBuffer buffer = ByteBuffer.allocate(EncryptionService.STREAM_CHUNK_SIZE);
+                while (input.read(buffer) != -1) {
+                    buffer.flip();
+                    out.write(buffer.array(), 0, buffer.remaining());
+                    buffer.clear();
+                }
+                out.flush();
+            }
+        } catch (WrongPasswordException e) {
+            return new FileEncryptionResult(new EncryptionAbortedException(e.getMessage(), e));
+        } catch (Exception e) {
+            return new FileEncryptionResult(new EncryptionAbortedException("Decryption has been aborted.", e));
+        }
+
+        return new FileEncryptionResult(fileName);
+    }
+
+    /**
+     * This method encrypts the data of the given stream into segments, which are written to the
+     * given stream. The segments are encrypted in batches in parallel on the given pool, whereas
+     * one segment is read ahead, so the last segment is known before it is encrypted.
+     *
+     * @param header the header of the stream, which has already been written
+     * @param in     the stream to read the plaintext from
+     * @param out    the stream to write the encrypted segments to
+     * @param pool   the pool to encrypt the segments on
+     * @throws Exception the first error that occurred while reading or encrypting the segments
+     */
+    private static void encryptSegments(
+            EncryptedFileHeader header,
+            InputStream in,
+            OutputStream out,
+            ForkJoinPool pool
+    ) throws Exception {
+        int segmentSize = header.getSegmentSize();
+        ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+        byte[][] plain = new byte[Math.max(1, pool.getParallelism() * 4)][segmentSize];
+        byte[][] sealed = new byte[plain.length][segmentSize + TAG_LENGTH];
+        int[] lengths = new int[plain.length];
+
+        byte[] next = new byte[segmentSize];
+        int nextLength = readFully(in, next);
+        int first = 0;
+        boolean done = false;
+
+        while (!done) {
+            int count = 0;
+
+            // a full segment is only the last one in case the stream ends right after it
+            while (count < plain.length && !done) {
+                byte[] current = next;
+                next = plain[count];
+                plain[count] = current;
+                lengths[count] = nextLength;
+
+                done = nextLength < segmentSize || (nextLength = readFully(in, next)) == 0;
+                count++;
+            }
+
+            if (first + (long) count > Integer.MAX_VALUE) {
+                throw new IOException("The stream is too long to be encrypted with the given segment size.");
+            }
+
+            final int batch = first;
+            final int last = done ? batch + count - 1 : -1;
+
+            SegmentedEncryptionService.runInParallel(pool, batch, batch + count, segment -> {
+                int i = segment - batch;
+
+                contexts.get().sealSegment(
+                        header.getCipherSuite(),
+                        header.createSegmentNonce(segment),
+                        EncryptedFileHeader.createSegmentAssociatedData(segment == last),
+                        ByteBuffer.wrap(plain[i], 0, lengths[i]),
+                        ByteBuffer.wrap(sealed[i])
+                );
+            });
+
+            for (int i = 0; i < count; i++) {
+                out.write(sealed[i], 0, lengths[i] + TAG_LENGTH);
+            }
+
+            first += count;
+        }
+    }
+
+    /**
+     * This method decrypts the segments of a stream, whose header has already been read, from the
+     * given stream. The segments are decrypted in batches in parallel on the given pool, whereas one
+     * segment is read ahead, so the last segment is known before it is decrypted.
+     *
+     * @param header the (already authenticated) header of the stream, which has to be streamed
+     * @param in     the stream to read the encrypted segments from
+     * @param out    the stream to write the plaintext to; {@code null} to only authenticate the segments
+     * @param pool   the pool to decrypt the segments on
+     * @throws Exception the first error that occurred while reading or decrypting the segments
+     */
+    /* package-protected */ static void decryptSegments(
+            EncryptedFileHeader header,
+            InputStream in,
+            OutputStream out,
+            ForkJoinPool pool
+    ) throws Exception {
+        if (header.getSegmentSize() > SegmentedEncryptionService.MAX_SEGMENT_SIZE) {
+            throw new IOException("The encrypted file is malformed.");
+        }
+
+        int sealedSize = header.getSegmentSize() + TAG_LENGTH;
+        ThreadLocal<EncryptionContext> contexts = header.getDataContexts();
+
+        byte[][] sealed = new byte[Math.max(1, pool.getParallelism() * 4)][sealedSize];
+        byte[][] plain = new byte[sealed.length][header.getSegmentSize()];
+        int[] lengths = new int[sealed.length];
+
+        byte[] next = new byte[sealedSize];
+        int nextLength = readFully(in, next);
+        int first = 0;
+        boolean done = false;
+
+        while (!done) {
+            int count = 0;
+
+            while (count < sealed.length && !done) {
+                if (nextLength < TAG_LENGTH) {
+                    throw new IOException("The encrypted data ended unexpectedly.");
+                }
+
+                byte[] current = next;
+                next = sealed[count];
+                sealed[count] = current;
+                lengths[count] = nextLength;
+
+                done = nextLength < sealedSize || (nextLength = readFully(in, next)) == 0;
+                count++;
+            }
+
+            if (first + (long) count > Integer.MAX_VALUE) {
+                throw new IOException("The encrypted data is malformed.");
+            }
+
+            final int batch = first;
+            final int last = done ? batch + count - 1 : -1;
+
+            SegmentedEncryptionService.runInParallel(pool, batch, batch + count, segment -> {
+                int i = segment - batch;
+
+                try {
+                    contexts.get().openSegment(
+                            header.getCipherSuite(),
+                            header.createSegmentNonce(segment),
+                            EncryptedFileHeader.createSegmentAssociatedData(segment == last),
+                            ByteBuffer.wrap(sealed[i], 0, lengths[i]),
+                            ByteBuffer.wrap(plain[i])
+                    );
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(StringProcessing.format(
+                            "Segment {0} of the encrypted data has been tampered with, or the data has been truncated.",
+                            segment
+                    ), e);
+                }
+            });
+
+            if (out != null) {
+                for (int i = 0; i < count; i++) {
+                    out.write(plain[i], 0, lengths[i] - TAG_LENGTH);
+                }
+            }
+
+            first += count;
+        }
+    }
+
+    /**
+     * This method decrypts (or only authenticates) the segments of the given file, which has been encrypted from a stream.
+     *
+     * @param header the (already authenticated) header of the file
+     * @param input  the channel of the file
+     * @param out    the stream to write the plaintext to; {@code null} to only authenticate the segments
+     * @param pool   the pool to decrypt the segments on
+     * @throws Exception the first error that occurred while reading or decrypting the segments
+     */
+    /* package-protected */ static void decryptSegments(
+            EncryptedFileHeader header,
+            FileChannel input,
+            OutputStream out,
+            ForkJoinPool pool
+    ) throws Exception {
+        input.position(header.getDataOffset());
+        decryptSegments(header, Channels.newInputStream(input), out, pool);
+    }
+
+    /**
+     * This method reads from the given stream until the given buffer is full or the stream has ended.
+     *
+     * @param in     the stream to read from
+     * @param buffer the buffer to fill
+     * @return the number of bytes that have been read; only less than the length of the buffer at the end of the stream
+     * @throws IOException in case the stream could not be read
+     */
+    /* package-protected */ static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This class writes the output of en- and decryptions behind the threads producing it. The
+ * encrypted (or decrypted) blocks of a file are copied into a queue and written to their positions
+ * by dedicated writer threads, so the next segments (or the next file) can be processed while
+ * the previous ones are still being written.</p>
+ * <p>The memory used by the queue is bounded: as soon as the given number of bytes is waiting to be
+ * written, any thread handing in another block blocks until enough blocks have been written. The
+ * number of files being written at once is bounded as well, since every one of them is kept open.</p>
+ * <p>Every file is written through a {@link Target}. Once all of its blocks have been handed in it is
+ * finished, whereas it is closed as soon as its last block has been written. In case a block could
+ * not be written, or the target has been aborted, the file is deleted instead.</p>
+ */
+public class WriteBehindWriter implements Closeable {
+
+    /**
+     * The number of bytes that may be waiting to be written by default.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024 * 1024;
+    /**
+     * The number of files that may be written at once by default.
+     */
+    public static final int DEFAULT_OPEN_FILES = 64;
+    /**
+     * The number of threads writing the blocks by default.
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The number of bytes that may be waiting to be written.
+     */
+    private final int bufferSize;
+    /**
+     * The permits for the bytes waiting to be written.
+     */
+    private final Semaphore buffered;
+    /**
+     * The permits for the files being written.
+     */
+    private final Semaphore openFiles;
+    /**
+     * The threads writing the blocks.
+     */
+    private final ExecutorService writers;
+    /**
+     * The total time the writer threads have spent writing blocks in nanoseconds.
+     */
+    private final LongAdder writeNanos;
+    /**
+     * The total number of bytes that have been written.
+     */
+    private final LongAdder writtenBytes;
+
+    /**
+     * Creates a WriteBehindWriter using the default limits.
+     */
+    public WriteBehindWriter() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_OPEN_FILES, DEFAULT_THREADS);
+    }
+
+    /**
+     * Creates a WriteBehindWriter with the given limits.
+     *
+     * @param bufferSize the number of bytes that may be waiting to be written
+     * @param openFiles  the number of files that may be written at once
+     * @param threads    the number of threads writing the blocks
+     */
+    public WriteBehindWriter(int bufferSize, int openFiles, int threads) {
+        if (bufferSize <= 0 || openFiles <= 0 || threads <= 0) {
+            throw new IllegalArgumentException(StringProcessing.format(
+                    "The limits of a WriteBehindWriter have to be positive (buffer size {0}, open files {1}, threads {2}).",
+                    bufferSize,
+                    openFiles,
+                    threads
+            ));
+        }
+
+        this.bufferSize = bufferSize;
+        this.buffered = new Semaphore(bufferSize);
+        this.openFiles = new Semaphore(openFiles);
+        this.writers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writeNanos = new LongAdder();
+        this.writtenBytes = new LongAdder();
+    }
+
+    /**
+     * @return The total time the writer threads have spent writing blocks in nanoseconds
+     */
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    /**
+     * @return The total number of bytes that have been written
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    /**
+     * This method creates (or truncates) the given file and opens it for writing behind.
+     * In case the maximum number of files is already being written, this method blocks
+     * until one of them has been closed.
+     *
+     * @param file the file to write
+     * @return the target to hand the blocks of the file to
+     * @throws IOException in case the file could not be opened
+     */
+    @NotNull
+    public Target open(@NotNull File file) throws IOException {
+        acquire(openFiles, 1);
+
+        try {
+            return new Target(file, FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+            ));
+        } catch (IOException | RuntimeException e) {
+            openFiles.release();
+            throw e;
+        }
+    }
+
+    /**
+     * This method waits for every block that has been handed in to be written,
+     * and stops the writer threads afterwards.
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method acquires the given number of permits from the given semaphore.
+     *
+     * @param semaphore the semaphore to acquire the permits from
+     * @param permits   the number of permits to acquire
+     * @throws InterruptedIOException in case the current thread has been interrupted while waiting
+     */
+    private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output to be written.");
+        }
+    }
+
+    /**
+     * A single file that is written behind.
+     */
+    public class Target {
+
+        /**
+         * The file that is written.
+         */
+        private final File file;
+        /**
+         * The channel the blocks are written to.
+         */
+        private final FileChannel channel;
+        /**
+         * The number of blocks that are still to be written, plus one as long as the target is not finished.
+         */
+        private final AtomicInteger outstanding;
+        /**
+         * Whether the target has been finished (or aborted).
+         */
+        private final AtomicBoolean finished;
+        /**
+         * The first error that occurred while writing a block.
+         */
+        private final AtomicReference<IOException> error;
+        /**
+         * Whether the target has been aborted.
+         */
+        private volatile boolean aborted;
+        /**
+         * The future that is completed as soon as the file has been closed (or deleted).
+         */
+        private final CompletableFuture<Void> written;
+
+        /**
+         * Creates a target writing to the given (open) channel.
+         *
+         * @param file    the file that is written
+         * @param channel the channel to write the blocks to
+         */
+        private Target(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+            this.outstanding = new AtomicInteger(1);
+            this.finished = new AtomicBoolean(false);
+            this.error = new AtomicReference<>();
+            this.aborted = false;
+            this.written = new CompletableFuture<>();
+        }
+
+        /**
+         * @return The channel of the file, e.g. to map it into memory; blocks should not be written to it directly
+         */
+        /* package-protected */ FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * This method hands the remaining content of the given buffer in to be written to the given position.
+         * The content is copied, so the buffer may be reused as soon as this method returns. In case too
+         * many bytes are waiting to be written already, this method blocks until enough of them have been written.
+         *
+         * @param buffer   the buffer whose remaining content is to be written
+         * @param position the position within the file to write the content to
+         * @throws IOException in case a previous block could not be written, or the target has been finished
+         */
+        public void write(@NotNull ByteBuffer buffer, long position) throws IOException {
+            if (finished.get()) {
+                throw new IOException("The file has been finished, whereas no more data may be written into it.");
+            }
+            if (error.get() != null) {
+                throw new IOException("The file could not be written.", error.get());
+            }
+
+            // a single block bigger than the whole buffer may still be written, but only on its own
+            int permits = Math.min(buffer.remaining(), bufferSize);
+            acquire(buffered, permits);
+
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer).flip();
+
+            outstanding.incrementAndGet();
+
+            try {
+                writers.execute(() -> {
+                    try {
+                        if (error.get() == null && !aborted) {
+                            long start = System.nanoTime();
+                            int length = copy.remaining();
+
+                            SegmentedEncryptionService.writeFully(channel, copy, position);
+
+                            writeNanos.add(System.nanoTime() - start);
+                            writtenBytes.add(length);
+                        }
+                    } catch (IOException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        buffered.release(permits);
+                        release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                buffered.release(permits);
+                release();
+                throw new IOException("The block could not be handed in to be written.", e);
+            }
+        }
+
+        /**
+         * This method marks the file as complete. It is closed as soon as all of its blocks have been written.
+         *
+         * @return the future that is completed as soon as the file has been closed, or completed exceptionally
+         * in case the file could not be written (whereas it is deleted)
+         */
+        @NotNull
+        public CompletableFuture<Void> finish() {
+            if (finished.compareAndSet(false, true)) {
+                release();
+            }
+            return written;
+        }
+
+        /**
+         * This method aborts writing the file. Any block that has not been written yet is skipped,
+         * and the file is deleted as soon as the blocks that are being written have been written.
+         *
+         * @return the future that is completed (exceptionally) as soon as the file has been deleted
+         */
+        @NotNull
+        public CompletableFuture<Void> abort() {
+            aborted = true;
+            return finish();
+        }
+
+        /**
+         * This method releases one of the outstanding blocks (or the mark of not being finished),
+         * and closes the file as soon as nothing is outstanding anymore.
+         */
+        private void release() {
+            if (outstanding.decrementAndGet() != 0) {
+                return;
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                error.compareAndSet(null, e);
+            } finally {
+                openFiles.release();
+            }
+
+            if (aborted || error.get() != null) {
+                SegmentedEncryptionService.deletePartialOutput(file);
+                written.completeExceptionally((error.get() != null)
+                        ? error.get()
+                        : new IOException(StringProcessing.format("Writing the file '{0}' has been aborted.", file.getAbsolutePath())));
+            } else {
+                written.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * This exception is thrown in case a file has been encrypted with another secret key
+ * than the one that is used to decrypt it. It is thrown as soon as the key-check
+ * value of the file has been read, whereas no encrypted data has been touched.
+ */
+public class WrongPasswordException extends GeneralSecurityException {
+
+    public WrongPasswordException(String message) {
+        super(message);
+    }
+}
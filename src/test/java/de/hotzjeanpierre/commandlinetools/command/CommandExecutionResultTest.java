@@ -52,4 +52,25 @@ public class CommandExecutionResultTest {
                 is(true)
         );
     }
+
+    @Test
+    public void testStageTotals() {
+        CommandExecutionResult result = new CommandExecutionResult.Builder()
+                .addStageTotal("list", 1000, 0)
+                .addStageTotal("write", 2500000000L, 4096)
+                .build();
+
+        assertThat(result.getStageTotals().size(), is(2));
+        assertThat(result.getStageTotals().get(0).getName(), is("list"));
+        assertThat(result.getStageTotals().get(1).getNanos(), is(2500000000L));
+        assertThat(result.getStageTotals().get(1).getBytes(), is(4096L));
+        assertThat(result.getStageTotals().get(1).toString(), is("write: 2.500 s, 4096 bytes"));
+    }
+
+    @Test
+    public void testNoStageTotals() {
+        CommandExecutionResult result = new CommandExecutionResult.Builder().build();
+
+        assertThat(result.getStageTotals().isEmpty(), is(true));
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.impl.encryption;
+
+import de.hotzjeanpierre.commandlinetools.command.Command;
+import de.hotzjeanpierre.commandlinetools.command.testutilities.CommandTestingStream;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.CommonFileUtilities;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EmptyFolderDeleter;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptedFileHeader;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.EncryptionService;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FileLister;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.FilterMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class EncryptCommandTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "encrypt command test folder");
+    private static File outputFolder = new File(System.getProperty("user.home"), "encrypt command test output");
+    private static File sequentialFolder = new File(System.getProperty("user.home"), "encrypt command test sequential");
+
+    @Before
+    public void setUp() throws IOException {
+        Command.setDefaultCommandsEnabled(true);
+
+        sourceFolder.mkdirs();
+        CommonFileUtilities.writeFile(new File(sourceFolder, "somefile.txt"), "some content".getBytes());
+    }
+
+    @After
+    public void cleanUp() {
+        for (File folder : new File[]{sourceFolder, outputFolder, sequentialFolder}) {
+            if (folder.exists()) {
+                for (File f : FileLister.list(folder, true, FilterMode.None, "", false)) {
+                    f.delete();
+                }
+                EmptyFolderDeleter.deleteIfEmpty(folder);
+            }
+        }
+    }
+
+    private boolean encrypt(String parameters, CommandTestingStream stream) {
+        return encrypt(outputFolder, parameters, stream);
+    }
+
+    private boolean encrypt(File output, String parameters, CommandTestingStream stream) {
+        return Command.parseCommand(
+                "encrypt src \"" + sourceFolder.getAbsolutePath() + "\" out \"" + output.getAbsolutePath()
+                        + "\" password asdf1234 delsrc false " + parameters
+        ).execute(new PrintStream(stream)).isSuccess();
+    }
+
+    @Test
+    public void testParallelEncryptionNamesFilesLikeSequentialOne() throws IOException, GeneralSecurityException {
+        Random random = new Random(42);
+
+        // files of very different sizes, so the files encrypted in parallel are done in a different order
+        for (int i = 0; i < 40; i++) {
+            byte[] data = new byte[random.nextInt(4) * 100_000 + random.nextInt(1000)];
+            random.nextBytes(data);
+            File f = new File(sourceFolder, "sub" + (i % 3) + File.separator + "file" + i + ".bin");
+            f.getParentFile().mkdirs();
+            CommonFileUtilities.writeFile(f, data);
+        }
+
+        assertThat(encrypt(sequentialFolder, "threads 1 progress 0", new CommandTestingStream()), is(true));
+        assertThat(encrypt(outputFolder, "threads 4 progress 0", new CommandTestingStream()), is(true));
+
+        File[] sequential = FileLister.list(sequentialFolder, true, FilterMode.None, "", false);
+        assertThat(FileLister.list(outputFolder, true, FilterMode.None, "", false).length, is(sequential.length));
+
+        for (File f : sequential) {
+            File parallel = new File(outputFolder, f.getName());
+
+            assertThat(parallel.exists(), is(true));
+            assertThat(
+                    EncryptedFileHeader.read(parallel, KEY).getOriginalName(),
+                    is(EncryptedFileHeader.read(f, KEY).getOriginalName())
+            );
+        }
+    }
+
+    @Test
+    public void testFailedMoveAbortsEncryption() throws IOException {
+        // a folder that is not empty cannot be replaced by the encrypted file
+        for (String name : new String[]{"0000000000.encr", "0000000001.encr"}) {
+            File blocking = new File(outputFolder, name);
+            blocking.mkdirs();
+            CommonFileUtilities.writeFile(new File(blocking, "blocking.txt"), "in the way".getBytes());
+        }
+
+        CommandTestingStream stream = new CommandTestingStream();
+
+        assertThat(encrypt("progress 0", stream), is(false));
+        assertThat(stream.evaluate().contains("Will abort execution of command."), is(true));
+        assertThat(new File(sourceFolder, "somefile.txt").exists(), is(true));
+    }
+
+    @Test
+    public void testInvalidThreads() {
+        CommandTestingStream stream = new CommandTestingStream();
+
+        assertThat(encrypt("threads 0", stream), is(false));
+        assertThat(stream.evaluate().contains("The number of threads has to be positive."), is(true));
+        assertThat(outputFolder.exists(), is(false));
+        assertThat(new File(sourceFolder, "somefile.txt").exists(), is(true));
+    }
+
+    @Test
+    public void testDryRunRejectsInvalidThreads() {
+        CommandTestingStream stream = new CommandTestingStream();
+
+        // a dry run only succeeds in case the encryption would
+        assertThat(encrypt("dryrun true threads 0", stream), is(false));
+        assertThat(stream.evaluate().contains("The number of threads has to be positive."), is(true));
+        assertThat(outputFolder.exists(), is(false));
+    }
+
+    @Test
+    public void testDryRunRejectsInvalidProgress() {
+        CommandTestingStream stream = new CommandTestingStream();
+
+        assertThat(encrypt("dryrun true progress -1", stream), is(false));
+        assertThat(outputFolder.exists(), is(false));
+    }
+
+    @Test
+    public void testDryRun() {
+        CommandTestingStream stream = new CommandTestingStream();
+
+        assertThat(encrypt("dryrun true", stream), is(true));
+        assertThat(stream.evaluate().contains("No file has been written."), is(true));
+        assertThat(outputFolder.exists(), is(false));
+    }
+}
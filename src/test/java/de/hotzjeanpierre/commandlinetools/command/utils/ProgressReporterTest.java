@@ -0,0 +1,118 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils;
+
+import de.hotzjeanpierre.commandlinetools.command.CommandExecutionResult;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ProgressReporterTest {
+
+    private static final long MIB = 1024 * 1024;
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testFormat() {
+        ProgressReporter progress = new ProgressReporter(new PrintStream(new ByteArrayOutputStream()), 0);
+        progress.setTotal(10, 100 * MIB);
+
+        assertThat(
+                progress.format(SECOND),
+                is("Progress: 0 of 10 files, 0.0 of 100.0 MiB (0.0%), 0.0 files/s, 0.0 MiB/s, ETA unknown")
+        );
+
+        progress.completed(20 * MIB);
+        progress.completed(20 * MIB);
+        progress.skipped(10 * MIB);
+
+        // 40 MiB have been processed within 2 seconds, whereas the remaining 50 MiB take 2.5 seconds more
+        assertThat(
+                progress.format(2 * SECOND),
+                is("Progress: 3 of 10 files, 50.0 of 100.0 MiB (50.0%), 1.0 files/s, 20.0 MiB/s, ETA 0:00:02")
+        );
+
+        for (int i = 0; i < 6; i++) {
+            progress.completed(0);
+        }
+        progress.completed(50 * MIB);
+
+        assertThat(
+                progress.format(3600 * SECOND),
+                is("Progress: 10 of 10 files, 100.0 of 100.0 MiB (100.0%), 0.0 files/s, 0.0 MiB/s, ETA 0:00:00")
+        );
+    }
+
+    @Test
+    public void testEstimateByFiles() {
+        ProgressReporter progress = new ProgressReporter(new PrintStream(new ByteArrayOutputStream()), 0);
+        progress.setTotal(4000, 0);
+
+        progress.completed(0);
+
+        assertThat(
+                progress.format(SECOND),
+                is("Progress: 1 of 4000 files, 0.0 of 0.0 MiB (0.0%), 1.0 files/s, 0.0 MiB/s, ETA 1:06:39")
+        );
+    }
+
+    @Test
+    public void testStageTotals() {
+        ProgressReporter progress = new ProgressReporter(new PrintStream(new ByteArrayOutputStream()), 0);
+
+        progress.record(ProgressReporter.Stage.Crypto, 100, 10);
+        progress.record(ProgressReporter.Stage.Crypto, 50, 5);
+        progress.record(ProgressReporter.Stage.Delete, 7, 0);
+        progress.close();
+
+        CommandExecutionResult result = progress.addStageTotals(new CommandExecutionResult.Builder()).build();
+
+        assertThat(result.getStageTotals().size(), is(ProgressReporter.Stage.values().length));
+        assertThat(result.getStageTotals().get(0).getName(), is("list"));
+
+        CommandExecutionResult.StageTotal crypto = result.getStageTotals().get(ProgressReporter.Stage.Crypto.ordinal());
+        assertThat(crypto.getName(), is("crypto"));
+        assertThat(crypto.getNanos(), is(150L));
+        assertThat(crypto.getBytes(), is(15L));
+    }
+
+    @Test
+    public void testReport() throws InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (ProgressReporter progress = new ProgressReporter(new PrintStream(output, true), 1)) {
+            // nothing is printed as long as the total is unknown
+            Thread.sleep(1200);
+            assertThat(output.size(), is(0));
+
+            progress.setTotal(1, 1);
+            progress.completed(1);
+        }
+
+        // the final progress is printed once the reporter is closed
+        assertThat(output.toString().startsWith("Progress: 1 of 1 files"), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeInterval() {
+        new ProgressReporter(System.out, -1);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CatalogTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File folder = new File(System.getProperty("user.home"), "catalog test folder");
+    private static File someFile = new File(folder, "somefile.txt");
+
+    private String sep = File.separator;
+
+    @Before
+    public void setUp() {
+        folder.mkdirs();
+    }
+
+    @After
+    public void cleanUp() {
+        Catalog.getFile(folder).delete();
+        someFile.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void testSaveAndOpen() throws IOException, GeneralSecurityException {
+        Catalog catalog = Catalog.open(KEY, folder);
+        assertThat(catalog.isEmpty(), is(true));
+
+        byte[] hash = new byte[Catalog.HASH_LENGTH];
+        hash[0] = 42;
+
+        catalog.add(new File(folder, "0000000000.encr"), sep + "docs" + sep + "report.pdf", 1234, hash);
+        catalog.add(new File(folder, "0000000001.encr"), sep + "docs" + sep + "notes.txt", 56, new byte[0]);
+        catalog.add(new File(folder, "0000000002.encr"), sep + "images" + sep + "cat.png", 7890, hash);
+        catalog.save(CipherSuite.AesGcm);
+
+        assertThat(Catalog.isCatalog(Catalog.getFile(folder)), is(true));
+        assertThat(SourceManifest.isManifest(Catalog.getFile(folder)), is(false));
+
+        Catalog read = Catalog.open(KEY, folder);
+        assertThat(read.getEntries().size(), is(3));
+
+        List<Catalog.Entry> found = read.find("docs/*");
+        assertThat(found.size(), is(2));
+        assertThat(found.get(0).getName(), is(sep + "docs" + sep + "report.pdf"));
+        assertThat(found.get(0).getLength(), is(1234L));
+        assertThat(found.get(0).getHash(), is(hash));
+        assertThat(read.getOutputFile(found.get(0)), is(new File(folder, "0000000000.encr")));
+        assertThat(found.get(1).getHash() == null, is(true));
+
+        assertThat(read.find("**.png").size(), is(1));
+        assertThat(read.find("images/dog.png").size(), is(0));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testOpenWithWrongKey() throws IOException, GeneralSecurityException {
+        Catalog catalog = Catalog.open(KEY, folder);
+        catalog.add(new File(folder, "0000000000.encr"), sep + "somefile.txt", 1, new byte[0]);
+        catalog.save(CipherSuite.AesGcm);
+
+        Catalog.open(EncryptionService.createPrivateKey("wrong password").getSecretKey(), folder);
+    }
+
+    @Test
+    public void testRemove() throws IOException, GeneralSecurityException {
+        File output = new File(folder, "0000000000.encr");
+
+        Catalog catalog = Catalog.open(KEY, folder);
+        catalog.add(output, sep + "somefile.txt", 1, new byte[0]);
+        catalog.save(CipherSuite.AesGcm);
+
+        // overwriting an output file replaces its entries
+        catalog = Catalog.open(KEY, folder);
+        catalog.remove(output);
+        catalog.add(output, sep + "otherfile.txt", 2, new byte[0]);
+        catalog.save();
+
+        catalog = Catalog.open(KEY, folder);
+        assertThat(catalog.find("somefile.txt").size(), is(0));
+        assertThat(catalog.find("otherfile.txt").size(), is(1));
+
+        // an empty catalog is deleted
+        catalog.remove(output);
+        catalog.save();
+        assertThat(Catalog.getFile(folder).exists(), is(false));
+    }
+
+    @Test
+    public void testHash() throws IOException, GeneralSecurityException {
+        byte[] data = "Some text to hash.".getBytes("UTF-8");
+        CommonFileUtilities.writeFile(someFile, data);
+
+        assertThat(Catalog.hash(someFile), is(MessageDigest.getInstance("SHA-256").digest(data)));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CipherSuiteTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final byte[] DATA = "Some data that is to be sealed by every suite.".getBytes(Charset.forName("UTF-8"));
+
+    private static ByteBuffer seal(CipherSuite suite, byte[] nonce) throws GeneralSecurityException {
+        ByteBuffer sealed = ByteBuffer.allocate(DATA.length + CipherSuite.TAG_LENGTH);
+        new EncryptionContext(KEY).sealSegment(suite, nonce, new byte[]{0}, ByteBuffer.wrap(DATA), sealed);
+        sealed.flip();
+        return sealed;
+    }
+
+    @Test
+    public void testSealAndOpen() throws GeneralSecurityException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                continue;
+            }
+
+            ByteBuffer sealed = seal(suite, new byte[12]);
+            ByteBuffer opened = ByteBuffer.allocate(DATA.length);
+
+            assertThat(sealed.remaining(), is(DATA.length + CipherSuite.TAG_LENGTH));
+
+            new EncryptionContext(KEY).openSegment(suite, new byte[12], new byte[]{0}, sealed, opened);
+
+            assertThat(opened.array(), is(DATA));
+        }
+    }
+
+    @Test
+    public void testOpenSameSegmentTwice() throws GeneralSecurityException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                continue;
+            }
+
+            EncryptionContext context = new EncryptionContext(KEY);
+            ByteBuffer sealed = seal(suite, new byte[12]);
+
+            for (int i = 0; i < 2; i++) {
+                ByteBuffer opened = ByteBuffer.allocate(DATA.length);
+                context.openSegment(suite, new byte[12], new byte[]{0}, sealed.duplicate(), opened);
+
+                assertThat(opened.array(), is(DATA));
+            }
+        }
+    }
+
+    @Test
+    public void testOpenTamperedData() throws GeneralSecurityException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                continue;
+            }
+
+            ByteBuffer sealed = seal(suite, new byte[12]);
+            sealed.put(3, (byte) (sealed.get(3) ^ 1));
+
+            boolean failed = false;
+            try {
+                new EncryptionContext(KEY).openSegment(suite, new byte[12], new byte[]{0}, sealed, ByteBuffer.allocate(DATA.length));
+            } catch (AEADBadTagException e) {
+                failed = true;
+            }
+
+            assertThat(failed, is(true));
+        }
+    }
+
+    @Test
+    public void testOpenWithOtherAssociatedData() throws GeneralSecurityException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                continue;
+            }
+
+            boolean failed = false;
+            try {
+                new EncryptionContext(KEY).openSegment(
+                        suite, new byte[12], new byte[]{1}, seal(suite, new byte[12]), ByteBuffer.allocate(DATA.length)
+                );
+            } catch (AEADBadTagException e) {
+                failed = true;
+            }
+
+            assertThat(failed, is(true));
+        }
+    }
+
+    @Test
+    public void testSuitesProduceDifferentCiphertexts() throws GeneralSecurityException {
+        assertThat(seal(CipherSuite.AesGcm, new byte[12]).equals(seal(CipherSuite.AesCtr, new byte[12])), is(false));
+    }
+
+    @Test
+    public void testFromIdAndName() {
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertThat(CipherSuite.fromId(suite.getId()), is(suite));
+            assertThat(CipherSuite.fromName(suite.getDisplayName().toUpperCase()), is(suite));
+        }
+
+        assertThat(CipherSuite.fromId((byte) 0) == null, is(true));
+        assertThat(CipherSuite.fromName("rot13") == null, is(true));
+    }
+
+    @Test
+    public void testFastestIsAvailable() {
+        assertThat(CipherSuite.AesGcm.isAvailable(), is(true));
+        assertThat(CipherSuite.AesCtr.isAvailable(), is(true));
+        assertThat(CipherSuite.getFastest().isAvailable(), is(true));
+    }
+
+    @Test
+    public void testMeasureThroughput() throws GeneralSecurityException {
+        assertThat(CipherSuite.AesCtr.measureThroughput(1024, 5) > 0, is(true));
+    }
+}
@@ -322,4 +322,23 @@ public class CommonFileUtilitiesTest {
                 is(System.getProperty("user.home"))
         );
     }
+
+    @Test
+    public void testExtractRelativePath() {
+        assertThat(
+                CommonFileUtilities.extractRelativePath(
+                        new File(System.getProperty("user.home"), "some folder/somefile.someextension"),
+                        new File(System.getProperty("user.home"))
+                ),
+                is(File.separator + "some folder" + File.separator + "somefile.someextension")
+        );
+    }
+
+    @Test
+    public void testFormatSize() {
+        assertThat(CommonFileUtilities.formatSize(512), is("512 bytes"));
+        assertThat(CommonFileUtilities.formatSize(1536), is("1.5 KiB"));
+        assertThat(CommonFileUtilities.formatSize(64L * 1024 * 1024), is("64 MiB"));
+        assertThat(CommonFileUtilities.formatSize(3L * 1024 * 1024 * 1024 * 1024), is("3 TiB"));
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CompressionServiceTest {
+
+    private static byte[] createText(int length) {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(length);
+
+        while (builder.length() < length) {
+            builder.append("This is some text that is supposed to be compressed ")
+                    .append(random.nextInt(1000))
+                    .append(".\n");
+        }
+
+        return builder.substring(0, length).getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static byte[] createRandom(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testEstimateEntropy() {
+        assertThat(CompressionService.estimateEntropy(new byte[1000], 0, 1000), is(0.0));
+        assertThat(CompressionService.estimateEntropy(new byte[]{0, 1, 0, 1}, 0, 4), is(1.0));
+        assertThat(CompressionService.estimateEntropy(createText(10000), 0, 10000) < CompressionService.MAX_COMPRESSIBLE_ENTROPY, is(true));
+        assertThat(CompressionService.estimateEntropy(createRandom(10000), 0, 10000) > CompressionService.MAX_COMPRESSIBLE_ENTROPY, is(true));
+    }
+
+    @Test
+    public void testCompressRoundTrip() throws IOException {
+        byte[] data = createText(100000);
+        byte[] compressed = new byte[data.length];
+
+        int length = CompressionService.compress(data, data.length, compressed);
+
+        assertThat(length > 0 && length < data.length / 2, is(true));
+
+        byte[] decompressed = new byte[data.length];
+        CompressionService.decompress(compressed, 0, length, decompressed, data.length);
+
+        assertThat(decompressed, is(data));
+    }
+
+    @Test
+    public void testCompressIncompressibleData() {
+        byte[] data = createRandom(10000);
+
+        assertThat(CompressionService.compress(data, data.length, new byte[data.length]), is(-1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressIntoWrongLength() throws IOException {
+        byte[] data = createText(10000);
+        byte[] compressed = new byte[data.length];
+
+        int length = CompressionService.compress(data, data.length, compressed);
+
+        CompressionService.decompress(compressed, 0, length, new byte[data.length], data.length - 1);
+    }
+
+    @Test
+    public void testIsWorthCompressing() throws IOException {
+        File text = new File(System.getProperty("user.home"), "compressiontest.txt");
+        File image = new File(System.getProperty("user.home"), "compressiontest.jpg");
+        File random = new File(System.getProperty("user.home"), "compressiontest.bin");
+
+        try {
+            CommonFileUtilities.writeFile(text, createText(10000));
+            CommonFileUtilities.writeFile(image, createText(10000));
+            CommonFileUtilities.writeFile(random, createRandom(10000));
+
+            assertThat(CompressionService.isWorthCompressing(text), is(true));
+            assertThat(CompressionService.isWorthCompressing(image), is(false));
+            assertThat(CompressionService.isWorthCompressing(random), is(false));
+        } finally {
+            text.delete();
+            image.delete();
+            random.delete();
+        }
+    }
+}
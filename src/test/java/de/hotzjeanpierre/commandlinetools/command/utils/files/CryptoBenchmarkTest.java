@@ -0,0 +1,119 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CryptoBenchmarkTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File folder = new File(System.getProperty("user.home"), "benchmark test folder");
+    private static File data = new File(folder, "data.bin");
+
+    @Before
+    public void setUp() {
+        folder.mkdirs();
+    }
+
+    @After
+    public void cleanUp() {
+        data.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        CryptoBenchmark.createData(data, 100 * 1024 + 7);
+        assertThat(data.length(), is(100L * 1024 + 7));
+
+        CryptoBenchmark.Result result = CryptoBenchmark.run(KEY, CipherSuite.AesGcm, data, folder, 2, 50);
+
+        for (CryptoBenchmark.Operation operation : new CryptoBenchmark.Operation[]{result.getEncryption(), result.getDecryption()}) {
+            // every one of the files processed at once is processed at least once
+            assertThat(operation.getCount() >= 2, is(true));
+            assertThat(operation.getThroughput() > 0, is(true));
+            assertThat(operation.getLatency(50) <= operation.getLatency(99), is(true));
+        }
+
+        // only the synthetic data is left behind
+        assertThat(folder.list().length, is(1));
+    }
+
+    @Test
+    public void testFailedRunDeletesItsFiles() throws IOException {
+        CryptoBenchmark.createData(data, 100 * 1024);
+
+        // a folder that is not empty in the way of the decrypted files makes the decryption fail
+        File blocking = new File(folder, "benchcrypto-0.decr");
+        File blocked = new File(blocking, "blocking.txt");
+        blocking.mkdirs();
+        CommonFileUtilities.writeFile(blocked, "in the way".getBytes());
+
+        boolean failed = false;
+
+        try {
+            CryptoBenchmark.run(KEY, CipherSuite.AesGcm, data, folder, 2, 50);
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            blocked.delete();
+            blocking.delete();
+        }
+
+        assertThat(failed, is(true));
+        // the encrypted files have been written before the decryption failed
+        assertThat(new File(folder, "benchcrypto-0.encr").exists(), is(false));
+        assertThat(new File(folder, "benchcrypto-1.encr").exists(), is(false));
+        assertThat(new File(folder, "benchcrypto-1.decr").exists(), is(false));
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        long[] latencies = new long[100];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = (100 - i) * 1000L;
+        }
+
+        CryptoBenchmark.Operation operation = new CryptoBenchmark.Operation(1024, latencies);
+
+        assertThat(operation.getCount(), is(100));
+        assertThat(operation.getLatency(50), is(50_000L));
+        assertThat(operation.getLatency(99), is(99_000L));
+        assertThat(operation.getLatency(100), is(100_000L));
+        assertThat(operation.getFilesPerSecond(), is(100 * 1e9 / 5_050_000L));
+    }
+
+    @Test
+    public void testThroughputOfConcurrentRuns() {
+        // four runs of a millisecond each, done two at a time
+        CryptoBenchmark.Operation operation = new CryptoBenchmark.Operation(1024, new long[]{1_000_000L, 1_000_000L, 1_000_000L, 1_000_000L}, 2_000_000L);
+
+        assertThat(operation.getFilesPerSecond(), is(2000.0));
+        assertThat(operation.getThroughput(), is(2000.0 * 1024));
+        assertThat(operation.getLatency(50), is(1_000_000L));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class DecryptingChannelTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "decrypting channel test folder");
+    private static File sourceFile = new File(sourceFolder, "somefile.bin");
+    private static File encryptedFile = new File(System.getProperty("user.home"), "channelfile.encr");
+    private static File decryptedFile = new File(System.getProperty("user.home"), "channelfile.decr");
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        // the first half compresses well, whereas the second one does not
+        data = new byte[10 * SEGMENT_SIZE + 123];
+        new Random(42).nextBytes(data);
+        Arrays.fill(data, 0, data.length / 2, (byte) 'a');
+
+        sourceFolder.mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, data);
+    }
+
+    @After
+    public void cleanUp() {
+        sourceFile.delete();
+        sourceFolder.delete();
+        encryptedFile.delete();
+        decryptedFile.delete();
+    }
+
+    private void encrypt(boolean compression) {
+        assertThat(
+                SegmentedEncryptionService.encryptFile(
+                        KEY, sourceFile, sourceFolder, encryptedFile,
+                        new EncryptionOptions.Builder()
+                                .setSegmentSize(SEGMENT_SIZE)
+                                .setCompression(compression)
+                                .build()
+                ).isSuccess(),
+                is(true)
+        );
+    }
+
+    private void assertRandomReads() throws IOException, GeneralSecurityException {
+        try (DecryptingChannel channel = DecryptingChannel.open(KEY, encryptedFile)) {
+            assertThat(channel.size(), is((long) data.length));
+            assertThat(channel.getOriginalName(), is(File.separator + "somefile.bin"));
+
+            Random random = new Random(7);
+            for (int i = 0; i < 50; i++) {
+                int position = random.nextInt(data.length);
+                int length = Math.min(random.nextInt(3 * SEGMENT_SIZE), data.length - position);
+
+                ByteBuffer read = ByteBuffer.allocate(length);
+                channel.position(position);
+                while (read.hasRemaining()) {
+                    channel.read(read);
+                }
+
+                assertThat(read.array(), is(Arrays.copyOfRange(data, position, position + length)));
+                assertThat(channel.position(), is((long) position + length));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomReads() throws IOException, GeneralSecurityException {
+        encrypt(false);
+        assertRandomReads();
+    }
+
+    @Test
+    public void testRandomReadsOfCompressedFile() throws IOException, GeneralSecurityException {
+        encrypt(true);
+        assertRandomReads();
+    }
+
+    @Test
+    public void testRandomReadsOfFileEncryptedInPlace() throws IOException, GeneralSecurityException {
+        assertThat(
+                InPlaceEncryptionService.encryptFile(
+                        KEY, sourceFile, sourceFolder, encryptedFile,
+                        new EncryptionOptions.Builder().setSegmentSize(SEGMENT_SIZE).build()
+                ).isSuccess(),
+                is(true)
+        );
+        assertRandomReads();
+    }
+
+    @Test
+    public void testReadAtEnd() throws IOException, GeneralSecurityException {
+        encrypt(false);
+
+        try (DecryptingChannel channel = DecryptingChannel.open(KEY, encryptedFile)) {
+            channel.position(data.length + 10);
+            assertThat(channel.read(ByteBuffer.allocate(10)), is(-1));
+
+            channel.position(data.length - 3);
+            assertThat(channel.read(ByteBuffer.allocate(10)), is(3));
+        }
+    }
+
+    @Test
+    public void testTamperedSegmentIsOnlyRejectedWhenRead() throws IOException, GeneralSecurityException {
+        encrypt(false);
+
+        try (DecryptingChannel channel = DecryptingChannel.open(KEY, encryptedFile)) {
+            // tamper with the last segment after the header has been read
+            try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+                file.seek(file.length() - 1);
+                int value = file.read();
+                file.seek(file.length() - 1);
+                file.write(value ^ 1);
+            }
+
+            ByteBuffer first = ByteBuffer.allocate(SEGMENT_SIZE);
+            channel.read(first);
+            assertThat(first.array(), is(Arrays.copyOf(data, SEGMENT_SIZE)));
+
+            channel.position(data.length - 1);
+            try {
+                channel.read(ByteBuffer.allocate(1));
+                throw new AssertionError("The tampered segment has been accepted.");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = NonWritableChannelException.class)
+    public void testWrite() throws IOException, GeneralSecurityException {
+        encrypt(false);
+
+        try (DecryptingChannel channel = DecryptingChannel.open(KEY, encryptedFile)) {
+            channel.write(ByteBuffer.allocate(1));
+        }
+    }
+
+    @Test
+    public void testDecryptFileRange() throws IOException {
+        encrypt(true);
+
+        assertThat(
+                EncryptionService.decryptFileRange(KEY, encryptedFile, originalName -> decryptedFile, 5000, 10000).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(Arrays.copyOfRange(data, 5000, 15000)));
+
+        // a range reaching beyond the end of the file is cut off
+        assertThat(
+                EncryptionService.decryptFileRange(KEY, encryptedFile, originalName -> decryptedFile, data.length - 10, 100).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(Arrays.copyOfRange(data, data.length - 10, data.length)));
+
+        decryptedFile.delete();
+        assertThat(
+                EncryptionService.decryptFileRange(KEY, encryptedFile, originalName -> decryptedFile, data.length + 1, -1).isSuccess(),
+                is(false)
+        );
+        assertThat(decryptedFile.exists(), is(false));
+    }
+}
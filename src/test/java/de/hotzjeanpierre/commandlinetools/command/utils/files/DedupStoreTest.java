@@ -0,0 +1,301 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class DedupStoreTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "dedup test folder");
+    private static File storeFolder = new File(System.getProperty("user.home"), "dedup test store");
+    private static File restored = new File(System.getProperty("user.home"), "deduptest.decr");
+
+    private File[] files;
+    private File[] manifests;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        // one chunk and a half, so the last chunk is shorter than the others
+        data = new byte[DedupStore.DEFAULT_CHUNK_SIZE + DedupStore.DEFAULT_CHUNK_SIZE / 2];
+        new Random(42).nextBytes(data);
+
+        files = new File[]{new File(sourceFolder, "a.bin"), new File(sourceFolder, "sub/b.bin")};
+        manifests = new File[]{new File(storeFolder, "a.encr"), new File(storeFolder, "b.encr")};
+
+        for (File f : files) {
+            f.getParentFile().mkdirs();
+            CommonFileUtilities.writeFile(f, data);
+        }
+        storeFolder.mkdirs();
+    }
+
+    @After
+    public void cleanUp() {
+        for (File folder : new File[]{sourceFolder, storeFolder}) {
+            if (folder.exists()) {
+                for (File f : FileLister.list(folder, true, FilterMode.None, "", false)) {
+                    f.delete();
+                }
+                EmptyFolderDeleter.deleteIfEmpty(folder);
+            }
+        }
+        restored.delete();
+    }
+
+    private DedupStore storeFiles() throws GeneralSecurityException {
+        DedupStore store = new DedupStore(new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), KEY);
+
+        for (int i = 0; i < files.length; i++) {
+            assertThat(store.storeFile(files[i], sourceFolder, manifests[i]).isSuccess(), is(true));
+        }
+
+        return store;
+    }
+
+    private File[] listChunks() {
+        return FileLister.list(new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), true, FilterMode.None, "", false);
+    }
+
+    @Test
+    public void testIdenticalFilesAreStoredOnce() throws GeneralSecurityException {
+        DedupStore store = storeFiles();
+
+        assertThat(store.getStoredChunks(), is(2L));
+        assertThat(store.getReusedChunks(), is(2L));
+        assertThat(store.getReusedBytes(), is((long) data.length));
+        assertThat(listChunks().length, is(2));
+
+        for (File chunk : listChunks()) {
+            assertThat(DedupStore.isChunk(chunk), is(true));
+            assertThat(DedupStore.isManifest(chunk), is(false));
+        }
+        assertThat(DedupStore.isManifest(manifests[0]), is(true));
+    }
+
+    @Test
+    public void testConcurrentFilesShareChunks() throws Exception {
+        DedupStore store = new DedupStore(new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), KEY);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            File manifest = new File(storeFolder, i + ".encr");
+            File out = new File(storeFolder, i + ".decr");
+
+            // every file has to be restorable as soon as it has been stored, even if its chunks have been written by another thread
+            tasks.add(() -> store.storeFile(files[0], sourceFolder, manifest).isSuccess()
+                    && DedupStore.restoreFile(KEY, manifest, originalName -> out).isSuccess()
+                    && Arrays.equals(CommonFileUtilities.readFile(out), data));
+        }
+
+        try {
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertThat(result.get(), is(true));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(store.getStoredChunks(), is(2L));
+        assertThat(store.getReusedChunks(), is(14L));
+    }
+
+    @Test
+    public void testStoreIsReusedAcrossRuns() throws GeneralSecurityException {
+        storeFiles();
+        DedupStore store = storeFiles();
+
+        assertThat(store.getStoredChunks(), is(0L));
+        assertThat(listChunks().length, is(2));
+    }
+
+    @Test
+    public void testRestore() throws GeneralSecurityException, IOException {
+        storeFiles();
+
+        for (int i = 0; i < files.length; i++) {
+            String[] name = new String[1];
+
+            EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(KEY, manifests[i], originalName -> {
+                name[0] = originalName;
+                return restored;
+            });
+
+            assertThat(result.isSuccess(), is(true));
+            assertThat(name[0], is(CommonFileUtilities.extractRelativePath(files[i], sourceFolder)));
+            assertThat(CommonFileUtilities.readFile(restored), is(data));
+        }
+    }
+
+    @Test
+    public void testRestoreThroughEncryptionService() throws GeneralSecurityException {
+        storeFiles();
+
+        EncryptionService.FileEncryptionResult result = EncryptionService.decryptFile(KEY, manifests[0], originalName -> restored);
+
+        // a manifest may only be restored through the store
+        assertThat(result.isSuccess(), is(false));
+        assertThat(restored.exists(), is(false));
+    }
+
+    @Test
+    public void testRestoreAfterRekey() throws GeneralSecurityException, IOException {
+        storeFiles();
+
+        SecretKeySpec newKey = EncryptionService.createPrivateKey("qwertz5678").getSecretKey();
+        for (File chunk : listChunks()) {
+            assertThat(EncryptedFileHeader.rekey(chunk, KEY, newKey), is(true));
+        }
+        assertThat(EncryptedFileHeader.rekey(manifests[0], KEY, newKey), is(true));
+
+        EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(newKey, manifests[0], originalName -> restored);
+
+        assertThat(result.isSuccess(), is(true));
+        assertThat(CommonFileUtilities.readFile(restored), is(data));
+    }
+
+    @Test
+    public void testRestoreWithWrongPassword() throws GeneralSecurityException {
+        storeFiles();
+
+        EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(
+                EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                manifests[0],
+                originalName -> restored
+        );
+
+        assertThat(result.isSuccess(), is(false));
+        assertThat(restored.exists(), is(false));
+    }
+
+    @Test
+    public void testRestoreWithMissingChunk() throws GeneralSecurityException {
+        storeFiles();
+
+        listChunks()[0].delete();
+
+        EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(KEY, manifests[0], originalName -> restored);
+
+        assertThat(result.isSuccess(), is(false));
+        assertThat(restored.exists(), is(false));
+    }
+
+    @Test
+    public void testRestoreWithTamperedChunk() throws GeneralSecurityException, IOException {
+        storeFiles();
+
+        try (RandomAccessFile file = new RandomAccessFile(listChunks()[0], "rw")) {
+            file.seek(file.length() - 100);
+            int value = file.read();
+            file.seek(file.length() - 100);
+            file.write(value ^ 1);
+        }
+
+        EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(KEY, manifests[0], originalName -> restored);
+
+        assertThat(result.isSuccess(), is(false));
+        assertThat(restored.exists(), is(false));
+    }
+
+    @Test
+    public void testRestoreWithSwappedChunks() throws GeneralSecurityException, IOException {
+        storeFiles();
+
+        File[] chunks = listChunks();
+        byte[] first = CommonFileUtilities.readFile(chunks[0]);
+        CommonFileUtilities.writeFile(chunks[0], CommonFileUtilities.readFile(chunks[1]));
+        CommonFileUtilities.writeFile(chunks[1], first);
+
+        EncryptionService.FileEncryptionResult result = DedupStore.restoreFile(KEY, manifests[0], originalName -> restored);
+
+        assertThat(result.isSuccess(), is(false));
+        assertThat(restored.exists(), is(false));
+    }
+
+    @Test
+    public void testContentDefinedChunksOnlyStoreChanges() throws GeneralSecurityException, IOException {
+        byte[] original = new byte[8 * 1024 * 1024 + 123];
+        new Random(7).nextBytes(original);
+        CommonFileUtilities.writeFile(files[0], original);
+
+        DedupStore store = new DedupStore(
+                new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), KEY,
+                CipherSuite.AesGcm, ForkJoinPool.commonPool(), true
+        );
+        assertThat(store.storeFile(files[0], sourceFolder, manifests[0]).isSuccess(), is(true));
+        long chunks = store.getStoredChunks();
+
+        // insert some bytes into the middle of the file, which shifts all the data following them
+        byte[] changed = new byte[original.length + 1000];
+        System.arraycopy(original, 0, changed, 0, original.length / 2);
+        System.arraycopy(original, original.length / 2, changed, original.length / 2 + 1000, original.length - original.length / 2);
+        CommonFileUtilities.writeFile(files[0], changed);
+
+        store = new DedupStore(
+                new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), KEY,
+                CipherSuite.AesGcm, ForkJoinPool.commonPool(), true
+        );
+        assertThat(store.storeFile(files[0], sourceFolder, manifests[1]).isSuccess(), is(true));
+
+        // only the chunk the bytes have been inserted into (and maybe its successor) has changed
+        assertThat(chunks > 4, is(true));
+        assertThat(store.getStoredChunks() <= 2, is(true));
+        assertThat(store.getReusedChunks() >= chunks - 2, is(true));
+
+        assertThat(DedupStore.restoreFile(KEY, manifests[0], originalName -> restored).isSuccess(), is(true));
+        assertThat(CommonFileUtilities.readFile(restored), is(original));
+        assertThat(DedupStore.restoreFile(KEY, manifests[1], originalName -> restored).isSuccess(), is(true));
+        assertThat(CommonFileUtilities.readFile(restored), is(changed));
+    }
+
+    @Test
+    public void testContentDefinedChunksOfEmptyFile() throws GeneralSecurityException, IOException {
+        CommonFileUtilities.writeFile(files[0], new byte[0]);
+
+        DedupStore store = new DedupStore(
+                new File(storeFolder, DedupStore.DEFAULT_FOLDER_NAME), KEY,
+                CipherSuite.AesGcm, ForkJoinPool.commonPool(), true
+        );
+        assertThat(store.storeFile(files[0], sourceFolder, manifests[0]).isSuccess(), is(true));
+
+        assertThat(DedupStore.restoreFile(KEY, manifests[0], originalName -> restored).isSuccess(), is(true));
+        assertThat(CommonFileUtilities.readFile(restored).length, is(0));
+    }
+}
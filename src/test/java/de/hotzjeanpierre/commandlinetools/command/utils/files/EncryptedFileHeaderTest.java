@@ -0,0 +1,174 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class EncryptedFileHeaderTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final SecretKeySpec OTHER_KEY = EncryptionService.createPrivateKey("qwertz5678").getSecretKey();
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "header test folder");
+    private static File sourceFile = new File(sourceFolder, "somefile.txt");
+    private static File encryptedFile = new File(System.getProperty("user.home"), "headerfile.encr");
+
+    @After
+    public void cleanUp() {
+        sourceFile.delete();
+        sourceFolder.delete();
+        encryptedFile.delete();
+    }
+
+    private static void createEncryptedFile(int length) throws IOException {
+        sourceFolder.mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, new byte[length]);
+
+        SegmentedEncryptionService.encryptFile(
+                KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool()
+        );
+    }
+
+    @Test
+    public void testReadHeader() throws IOException, GeneralSecurityException {
+        createEncryptedFile(5000);
+
+        EncryptedFileHeader header = EncryptedFileHeader.read(encryptedFile, KEY);
+
+        assertThat(header.getOriginalName(), is(File.separator + "somefile.txt"));
+        assertThat(header.getCipherSuite(), is(CipherSuite.getFastest()));
+        assertThat(header.getSegmentSize(), is(1024));
+        assertThat(header.getPlaintextLength(), is(5000L));
+        assertThat(header.getSegmentCount(), is(5));
+        assertThat(header.getEncryptedLength(), is(encryptedFile.length()));
+    }
+
+    @Test
+    public void testIsEncryptedFile() throws IOException {
+        createEncryptedFile(100);
+
+        assertThat(EncryptedFileHeader.isEncryptedFile(sourceFile), is(false));
+        assertThat(EncryptedFileHeader.isEncryptedFile(encryptedFile), is(true));
+        assertThat(EncryptedFileHeader.hasHeader(sourceFile), is(false));
+        assertThat(EncryptedFileHeader.hasHeader(encryptedFile), is(true));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testReadHeaderWithWrongKey() throws IOException, GeneralSecurityException {
+        createEncryptedFile(100);
+
+        EncryptedFileHeader.read(encryptedFile, EncryptionService.createPrivateKey("notthepassword").getSecretKey());
+    }
+
+    @Test(expected = WrongPasswordException.class)
+    public void testReadHeaderWithWrongKeyFailsOnKeyCheck() throws IOException, GeneralSecurityException {
+        createEncryptedFile(100);
+
+        EncryptedFileHeader.read(encryptedFile, EncryptionService.createPrivateKey("notthepassword").getSecretKey());
+    }
+
+    @Test
+    public void testMatchesKey() throws IOException, GeneralSecurityException {
+        createEncryptedFile(100);
+
+        assertThat(EncryptedFileHeader.matchesKey(encryptedFile, KEY), is(true));
+        assertThat(
+                EncryptedFileHeader.matchesKey(encryptedFile, EncryptionService.createPrivateKey("notthepassword").getSecretKey()),
+                is(false)
+        );
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testReadTamperedHeader() throws IOException, GeneralSecurityException {
+        createEncryptedFile(5000);
+
+        // claim the file to be shorter than it actually is
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(EncryptedFileHeader.CLEARTEXT_LENGTH - 4 - 8 - 1);
+            file.write(0);
+        }
+
+        // the key check still matches, whereas the tampering is detected by the authentication of the header
+        assertThat(EncryptedFileHeader.matchesKey(encryptedFile, KEY), is(true));
+
+        EncryptedFileHeader.read(encryptedFile, KEY);
+    }
+
+    @Test
+    public void testRekey() throws IOException, GeneralSecurityException {
+        createEncryptedFile(5000);
+        long length = encryptedFile.length();
+
+        assertThat(EncryptedFileHeader.rekey(encryptedFile, KEY, OTHER_KEY), is(true));
+
+        assertThat(encryptedFile.length(), is(length));
+        assertThat(EncryptedFileHeader.matchesKey(encryptedFile, KEY), is(false));
+        assertThat(EncryptedFileHeader.matchesKey(encryptedFile, OTHER_KEY), is(true));
+        assertThat(EncryptedFileHeader.read(encryptedFile, OTHER_KEY).getOriginalName(), is(File.separator + "somefile.txt"));
+
+        sourceFile.delete();
+        assertThat(
+                SegmentedEncryptionService.decryptFile(OTHER_KEY, encryptedFile, originalName -> sourceFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(sourceFile), is(new byte[5000]));
+    }
+
+    @Test
+    public void testRekeyIsIdempotent() throws IOException, GeneralSecurityException {
+        createEncryptedFile(100);
+
+        assertThat(EncryptedFileHeader.rekey(encryptedFile, KEY, OTHER_KEY), is(true));
+        byte[] rekeyed = CommonFileUtilities.readFile(encryptedFile);
+
+        // an interrupted rotation may be repeated, whereas the file is left untouched
+        assertThat(EncryptedFileHeader.rekey(encryptedFile, KEY, OTHER_KEY), is(false));
+        assertThat(CommonFileUtilities.readFile(encryptedFile), is(rekeyed));
+    }
+
+    @Test(expected = WrongPasswordException.class)
+    public void testRekeyWithWrongKey() throws IOException, GeneralSecurityException {
+        createEncryptedFile(100);
+
+        EncryptedFileHeader.rekey(
+                encryptedFile,
+                EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                OTHER_KEY
+        );
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadLegacyFile() throws IOException, GeneralSecurityException {
+        sourceFolder.mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, new byte[100]);
+        EncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile);
+
+        EncryptedFileHeader.read(encryptedFile, KEY);
+    }
+}
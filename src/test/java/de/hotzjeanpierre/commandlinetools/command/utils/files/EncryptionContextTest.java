@@ -0,0 +1,100 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class EncryptionContextTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final byte[] DATA = "This is some text the EncryptionContext-class is supposed to encrypt."
+            .getBytes(Charset.forName("UTF-8"));
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void testEncryptMatchesEncryptionService() throws GeneralSecurityException {
+        assertThat(
+                new EncryptionContext(KEY).encrypt(DATA),
+                is(EncryptionService.encrypt(DATA, KEY).getData())
+        );
+    }
+
+    @Test
+    public void testEncryptIsRepeatable() throws GeneralSecurityException {
+        EncryptionContext context = new EncryptionContext(KEY);
+
+        assertThat(
+                context.encrypt(DATA),
+                is(context.encrypt(DATA))
+        );
+    }
+
+    @Test
+    public void testRoundTripWithDirectBuffers() throws GeneralSecurityException {
+        EncryptionContext context = new EncryptionContext(KEY);
+
+        ByteBuffer plain = ByteBuffer.allocateDirect(DATA.length);
+        plain.put(DATA);
+        plain.flip();
+
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(context.getEncryptedLength(DATA.length));
+        context.encrypt(plain, encrypted);
+        encrypted.flip();
+
+        ByteBuffer decrypted = ByteBuffer.allocateDirect(encrypted.remaining());
+        context.decrypt(encrypted, decrypted);
+        decrypted.flip();
+
+        assertThat(toArray(decrypted), is(DATA));
+    }
+
+    @Test
+    public void testEncryptWithByteBuffersMatchesByteArrays() throws GeneralSecurityException {
+        EncryptionContext context = new EncryptionContext(KEY);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(context.getEncryptedLength(DATA.length));
+        context.encrypt(ByteBuffer.wrap(DATA), encrypted);
+        encrypted.flip();
+
+        assertThat(toArray(encrypted), is(context.encrypt(DATA)));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testOpenTamperedSegment() throws GeneralSecurityException {
+        EncryptionContext context = new EncryptionContext(KEY);
+        byte[] nonce = new byte[12];
+
+        ByteBuffer sealed = ByteBuffer.allocate(DATA.length + CipherSuite.TAG_LENGTH);
+        context.sealSegment(nonce, new byte[]{0}, ByteBuffer.wrap(DATA), sealed);
+        sealed.flip();
+
+        context.openSegment(nonce, new byte[]{1}, sealed, ByteBuffer.allocate(DATA.length));
+    }
+}
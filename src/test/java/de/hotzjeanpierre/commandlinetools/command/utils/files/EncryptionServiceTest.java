@@ -20,6 +20,7 @@ import de.hotzjeanpierre.commandlinetools.command.testutilities.ByteArrayProcess
 import de.hotzjeanpierre.commandlinetools.command.utils.StringProcessing;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.EncryptionAbortedException;
 import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.HashingAbortedException;
+import de.hotzjeanpierre.commandlinetools.command.utils.files.exceptions.WrongPasswordException;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
@@ -451,4 +452,169 @@ public class EncryptionServiceTest {
         toTestOn.delete();
     }
 
+    @Test
+    public void testEncryptFileStreamed() throws IOException {
+        File toTestOn = new File(System.getProperty("user.home"), "somenewtextfile.txt");
+        File output = new File(System.getProperty("user.home"), "somenewtextfile.encr");
+
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(toTestOn))) {
+            writer.write(TESTENCRYPTFILE_USEDDATATEXT);
+        } catch (IOException e) {
+            fail(StringProcessing.format(
+                    "The test failed due to restrictions on the file system:\n{0}", e.getMessage()
+            ));
+        }
+
+        EncryptionService.FileEncryptionResult result = EncryptionService.encryptFile(
+                EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                toTestOn,
+                toTestOn.getParentFile(),
+                output
+        );
+
+        assertThat(result.isSuccess(), is(true));
+        assertThat(result.getOriginalName(), is(File.separator + "somenewtextfile.txt"));
+        assertThat(CommonFileUtilities.readFile(output), is(TESTENCRYPTFILE_EXPECTED));
+
+        toTestOn.delete();
+        output.delete();
+    }
+
+    @Test
+    public void testDecryptFileStreamed() throws IOException {
+        File toTestOn = new File(System.getProperty("user.home"), "somenewtextfile.encr");
+        File output = new File(System.getProperty("user.home"), "somenewtextfile.txt");
+
+        CommonFileUtilities.writeFile(toTestOn, TESTENCRYPTFILE_EXPECTED);
+
+        String[] resolvedName = new String[1];
+
+        EncryptionService.FileEncryptionResult result = EncryptionService.decryptFile(
+                EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                toTestOn,
+                originalName -> {
+                    resolvedName[0] = originalName;
+                    return output;
+                }
+        );
+
+        assertThat(result.isSuccess(), is(true));
+        assertThat(resolvedName[0], is(File.separator + "somenewtextfile.txt"));
+        assertThat(new String(CommonFileUtilities.readFile(output)), is(TESTENCRYPTFILE_USEDDATATEXT));
+
+        toTestOn.delete();
+        output.delete();
+    }
+
+    @Test
+    public void testDecryptFileStreamedWrongPassword() throws IOException {
+        File toTestOn = new File(System.getProperty("user.home"), "somenewtextfile.encr");
+        File output = new File(System.getProperty("user.home"), "somenewtextfile.txt");
+
+        CommonFileUtilities.writeFile(toTestOn, TESTENCRYPTFILE_EXPECTED);
+
+        assertThat(
+                EncryptionService.decryptFile(
+                        EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                        toTestOn,
+                        originalName -> output
+                ).isSuccess(),
+                is(false)
+        );
+        assertThat(output.exists(), is(false));
+
+        toTestOn.delete();
+    }
+
+    @Test
+    public void testStreamedEncryptionOfMultipleChunks() throws IOException {
+        File toTestOn = new File(System.getProperty("user.home"), "somebigfile.bin");
+        File encrypted = new File(System.getProperty("user.home"), "somebigfile.encr");
+        File decrypted = new File(System.getProperty("user.home"), "somebigfile.decr");
+
+        byte[] data = new byte[3 * EncryptionService.STREAM_CHUNK_SIZE + 123];
+        new java.util.Random(42).nextBytes(data);
+        CommonFileUtilities.writeFile(toTestOn, data);
+
+        assertThat(
+                EncryptionService.encryptFile(
+                        EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                        toTestOn,
+                        toTestOn.getParentFile(),
+                        encrypted
+                ).isSuccess(),
+                is(true)
+        );
+        assertThat(
+                EncryptionService.decryptFile(
+                        EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                        encrypted,
+                        originalName -> decrypted
+                ).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decrypted), is(data));
+
+        toTestOn.delete();
+        encrypted.delete();
+        decrypted.delete();
+    }
+
+    @Test
+    public void testMatchesKeyOfLegacyFile() throws IOException, GeneralSecurityException {
+        File toTestOn = new File(System.getProperty("user.home"), "somenewtextfile.encr");
+
+        CommonFileUtilities.writeFile(toTestOn, TESTENCRYPTFILE_EXPECTED);
+
+        try {
+            assertThat(
+                    EncryptionService.matchesKey(
+                            EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                            toTestOn
+                    ),
+                    is(true)
+            );
+            assertThat(
+                    EncryptionService.matchesKey(EncryptionService.createPrivateKey("notthepassword").getSecretKey(), toTestOn),
+                    is(false)
+            );
+        } finally {
+            toTestOn.delete();
+        }
+    }
+
+    @Test
+    public void testDecryptFileStreamedWrongPasswordFailsFast() throws IOException {
+        File toTestOn = new File(System.getProperty("user.home"), "somebigfile.bin");
+        File encrypted = new File(System.getProperty("user.home"), "somebigfile.encr");
+
+        CommonFileUtilities.writeFile(toTestOn, new byte[3 * EncryptionService.STREAM_CHUNK_SIZE]);
+        EncryptionService.encryptFile(
+                EncryptionService.createPrivateKey(TESTENCRYPTFILE_USEDPASSWORD).getSecretKey(),
+                toTestOn,
+                toTestOn.getParentFile(),
+                encrypted
+        );
+
+        boolean[] resolved = new boolean[1];
+
+        try {
+            EncryptionService.FileEncryptionResult result = EncryptionService.decryptFile(
+                    EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                    encrypted,
+                    originalName -> {
+                        resolved[0] = true;
+                        return toTestOn;
+                    }
+            );
+
+            // the output is never resolved, since the key is rejected beforehand
+            assertThat(result.isSuccess(), is(false));
+            assertThat(result.getError().getCause() instanceof WrongPasswordException, is(true));
+            assertThat(resolved[0], is(false));
+        } finally {
+            toTestOn.delete();
+            encrypted.delete();
+        }
+    }
 }
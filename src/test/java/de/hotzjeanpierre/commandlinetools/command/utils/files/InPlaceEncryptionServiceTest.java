@@ -0,0 +1,281 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class InPlaceEncryptionServiceTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "in place test folder");
+    private static File sourceFile = new File(sourceFolder, "somefile.bin");
+    private static File encryptedFile = new File(System.getProperty("user.home"), "inplacefile.encr");
+    private static File decryptedFile = new File(System.getProperty("user.home"), "inplacefile.decr");
+
+    private byte[] data;
+    private EncryptionOptions options;
+
+    @Before
+    public void setUp() throws IOException {
+        // three segments, whereas the last one is shorter than the others
+        data = new byte[33 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+
+        sourceFolder.mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, data);
+
+        // segments as big as a batch make every segment a batch of its own
+        options = new EncryptionOptions.Builder()
+                .setSegmentSize(16 * 1024 * 1024)
+                .build();
+    }
+
+    @After
+    public void cleanUp() {
+        for (File f : new File[]{sourceFile, encryptedFile, decryptedFile}) {
+            f.delete();
+            InPlaceEncryptionService.getJournalFile(f).delete();
+        }
+        sourceFolder.delete();
+    }
+
+    @Test
+    public void testEncryptInPlace() throws IOException, GeneralSecurityException {
+        assertThat(InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options).isSuccess(), is(true));
+
+        assertThat(sourceFile.exists(), is(false));
+        assertThat(InPlaceEncryptionService.getJournalFile(sourceFile).exists(), is(false));
+        assertThat(InPlaceEncryptionService.isInPlaceFile(encryptedFile), is(true));
+        assertThat(EncryptedFileHeader.isEncryptedFile(encryptedFile), is(false));
+        assertThat(EncryptedFileHeader.hasHeader(encryptedFile), is(true));
+        assertThat(EncryptionService.matchesKey(KEY, encryptedFile), is(true));
+
+        EncryptedFileHeader header = EncryptedFileHeader.read(encryptedFile, KEY);
+        assertThat(header.getOriginalName(), is(File.separator + "somefile.bin"));
+        assertThat(header.getPlaintextLength(), is((long) data.length));
+    }
+
+    @Test
+    public void testDecryptInPlace() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        String[] name = new String[1];
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> {
+                    name[0] = originalName;
+                    return decryptedFile;
+                }, options.getPool()).isSuccess(),
+                is(true)
+        );
+
+        assertThat(name[0], is(File.separator + "somefile.bin"));
+        assertThat(encryptedFile.exists(), is(false));
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testDecryptIntoNewFile() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        assertThat(
+                EncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+
+        assertThat(encryptedFile.exists(), is(true));
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testDecryptWithWrongPassword() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+        byte[] encrypted = CommonFileUtilities.readFile(encryptedFile);
+
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(
+                        EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                        encryptedFile,
+                        originalName -> decryptedFile,
+                        options.getPool()
+                ).isSuccess(),
+                is(false)
+        );
+
+        assertThat(decryptedFile.exists(), is(false));
+        assertThat(CommonFileUtilities.readFile(encryptedFile), is(encrypted));
+    }
+
+    @Test
+    public void testDecryptTamperedFileIsLeftUntouched() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        // tamper with the last segment, so the first ones would already be decrypted without the verification
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(data.length - 1);
+            int value = file.read();
+            file.seek(data.length - 1);
+            file.write(value ^ 1);
+        }
+        byte[] encrypted = CommonFileUtilities.readFile(encryptedFile);
+
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(false)
+        );
+
+        assertThat(decryptedFile.exists(), is(false));
+        assertThat(CommonFileUtilities.readFile(encryptedFile), is(encrypted));
+    }
+
+    @Test
+    public void testResumeInterruptedEncryption() throws IOException {
+        assertThat(
+                InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options, 2, false).isSuccess(),
+                is(false)
+        );
+        assertThat(InPlaceEncryptionService.getJournalFile(sourceFile).exists(), is(true));
+
+        // a file that has been encrypted partially cannot be decrypted
+        assertThat(
+                EncryptionService.decryptFile(KEY, sourceFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+
+        assertThat(InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options).isSuccess(), is(true));
+
+        assertThat(
+                InPlaceEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testResumeTornEncryption() throws IOException {
+        // the batch following the limit is written halfway, as if the process had crashed while writing it
+        assertThat(
+                InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options, 1, true).isSuccess(),
+                is(false)
+        );
+
+        assertThat(InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options).isSuccess(), is(true));
+
+        assertThat(
+                InPlaceEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testResumeTornDecryption() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(
+                        KEY, encryptedFile, originalName -> decryptedFile, options.getPool(), 1, true
+                ).isSuccess(),
+                is(false)
+        );
+        assertThat(decryptedFile.exists(), is(false));
+
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(true)
+        );
+
+        assertThat(InPlaceEncryptionService.getJournalFile(encryptedFile).exists(), is(false));
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testOrphanedJournal() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+        File journal = InPlaceEncryptionService.getJournalFile(encryptedFile);
+
+        InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> decryptedFile, options.getPool(), 1, true);
+        byte[] interrupted = CommonFileUtilities.readFile(journal);
+
+        // the journal of a file that is still being decrypted is needed to resume the decryption
+        assertThat(InPlaceEncryptionService.isOrphanedJournal(journal), is(false));
+
+        InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> decryptedFile, options.getPool());
+
+        // as if the program had crashed after the file had been moved, but before its journal had been deleted
+        CommonFileUtilities.writeFile(journal, interrupted);
+
+        assertThat(InPlaceEncryptionService.isOrphanedJournal(journal), is(true));
+        assertThat(InPlaceEncryptionService.isOrphanedJournal(decryptedFile), is(false));
+    }
+
+    @Test
+    public void testVerifyFile() throws IOException {
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        assertThat(EncryptionService.verifyFile(KEY, encryptedFile, options.getPool()).isSuccess(), is(true));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(0);
+            int value = file.read();
+            file.seek(0);
+            file.write(value ^ 1);
+        }
+
+        assertThat(EncryptionService.verifyFile(KEY, encryptedFile, options.getPool()).isSuccess(), is(false));
+    }
+
+    @Test
+    public void testRekey() throws IOException, GeneralSecurityException {
+        SecretKeySpec otherKey = EncryptionService.createPrivateKey("qwertz5678").getSecretKey();
+        InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options);
+
+        assertThat(EncryptedFileHeader.rekey(encryptedFile, KEY, otherKey), is(true));
+        assertThat(EncryptionService.matchesKey(otherKey, encryptedFile), is(true));
+
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(otherKey, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testEncryptEmptyFile() throws IOException {
+        CommonFileUtilities.writeFile(sourceFile, new byte[0]);
+
+        assertThat(InPlaceEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options).isSuccess(), is(true));
+        assertThat(
+                InPlaceEncryptionService.decryptFileInPlace(KEY, encryptedFile, originalName -> decryptedFile, options.getPool()).isSuccess(),
+                is(true)
+        );
+
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(new byte[0]));
+    }
+}
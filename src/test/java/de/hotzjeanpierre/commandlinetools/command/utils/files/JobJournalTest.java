@@ -0,0 +1,135 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class JobJournalTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File folder = new File(System.getProperty("user.home"), "jobjournaltest");
+
+    @After
+    public void cleanUp() {
+        JobJournal.getFile(folder, "encrypt").delete();
+        folder.delete();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", false)) {
+            assertThat(journal.getNextIndex(), is(0));
+
+            journal.complete(File.separator + "a.txt", File.separator + "0000000000.encr", 1, 42, new byte[]{1, 2, 3});
+            journal.complete(File.separator + "b.txt", File.separator + "0000000001.encr", 2, 7, new byte[0]);
+            journal.sync();
+            // syncing again without any new records does not touch the disk
+            journal.sync();
+        }
+
+        assertThat(JobJournal.isJournal(JobJournal.getFile(folder, "encrypt")), is(true));
+
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", true)) {
+            assertThat(journal.getNextIndex(), is(2));
+            assertThat(journal.isCompleted(File.separator + "a.txt"), is(true));
+            assertThat(journal.isCompleted(File.separator + "b.txt"), is(true));
+            assertThat(journal.isCompleted(File.separator + "c.txt"), is(false));
+
+            JobJournal.Record record = journal.getRecords().get(0);
+            assertThat(record.getOutput(), is(File.separator + "0000000000.encr"));
+            assertThat(record.getLength(), is(42L));
+            assertThat(record.getHash(), is(new byte[]{1, 2, 3}));
+
+            journal.complete(File.separator + "c.txt", File.separator + "0000000002.encr", 3, 0, new byte[0]);
+        }
+
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", true)) {
+            assertThat(journal.getRecords().size(), is(3));
+            assertThat(journal.getNextIndex(), is(3));
+        }
+
+        // without resuming, the previous job is discarded
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", false)) {
+            assertThat(journal.getRecords().isEmpty(), is(true));
+            assertThat(journal.getNextIndex(), is(0));
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        File file = JobJournal.getFile(folder, "encrypt");
+
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", false)) {
+            journal.complete("a", "0", 1, 1, new byte[0]);
+            journal.complete("b", "1", 2, 1, new byte[0]);
+        }
+
+        // the last record is only written partially, as if the job had been interrupted while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        long length;
+
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", true)) {
+            assertThat(journal.getRecords().size(), is(1));
+            assertThat(journal.isCompleted("b"), is(false));
+            assertThat(journal.getNextIndex(), is(1));
+
+            length = file.length();
+            journal.complete("b", "1", 2, 1, new byte[0]);
+        }
+
+        assertThat(length < file.length(), is(true));
+
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", true)) {
+            assertThat(journal.getRecords().size(), is(2));
+            assertThat(journal.getNextIndex(), is(2));
+        }
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        try (JobJournal journal = JobJournal.open(KEY, folder, "encrypt", false)) {
+            journal.complete("a", "0", 1, 1, new byte[0]);
+        }
+
+        try {
+            JobJournal.open(EncryptionService.createPrivateKey("qwertz").getSecretKey(), folder, "encrypt", true).close();
+            throw new AssertionError("A journal must not be opened with another password.");
+        } catch (GeneralSecurityException e) {
+            // expected, whereas the journal is kept
+        }
+
+        assertThat(JobJournal.getFile(folder, "encrypt").exists(), is(true));
+
+        JobJournal journal = JobJournal.open(KEY, folder, "encrypt", true);
+        journal.delete();
+
+        assertThat(JobJournal.getFile(folder, "encrypt").exists(), is(false));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class OutputPlanTest {
+
+    private static File folder = new File(System.getProperty("user.home"), "outputplantest");
+    private static File existing = new File(folder, "existing.encr");
+    private static File blocking = new File(folder, "blocking");
+
+    @Before
+    public void setUp() throws IOException {
+        folder.mkdirs();
+        CommonFileUtilities.writeFile(existing, new byte[]{1, 2, 3});
+        CommonFileUtilities.writeFile(blocking, new byte[]{4, 5});
+    }
+
+    @After
+    public void cleanUp() {
+        existing.delete();
+        blocking.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void testPlan() {
+        OutputPlan plan = new OutputPlan();
+
+        plan.add("a.txt", new File(folder, "0.encr"), 100, false);
+        plan.add("b.txt", new File(folder, "sub" + File.separator + "1.encr"), 200, false);
+        plan.add("c.txt", new File(folder, "sub" + File.separator + "2.encr"), 300, false);
+        plan.skip(400);
+
+        assertThat(plan.getFiles(), is(3));
+        assertThat(plan.getBytes(), is(600L));
+        assertThat(plan.getSkippedFiles(), is(1));
+        // the folder is only counted once
+        assertThat(plan.getMissingFolders(), is(1));
+        assertThat(plan.hasProblems(), is(false));
+
+        assertThat(folder.listFiles().length, is(2));
+    }
+
+    @Test
+    public void testProblems() {
+        OutputPlan plan = new OutputPlan();
+
+        plan.add("a.txt", new File(folder, "0.encr"), 1, false);
+        plan.add("b.txt", new File(folder, "." + File.separator + "0.encr"), 1, false);
+        plan.add("c.txt", existing, 1, false);
+        plan.add("d.txt", new File(blocking, "sub" + File.separator + "3.encr"), 1, false);
+
+        assertThat(plan.getCollisions(), is(1));
+        assertThat(plan.getOverwritten(), is(1));
+        assertThat(plan.getBlockedFolders(), is(1));
+        assertThat(plan.hasProblems(), is(true));
+
+        // an output that is supposed to be replaced is not reported
+        OutputPlan replacing = new OutputPlan();
+        replacing.add("c.txt", existing, 1, true);
+        replacing.fail("e.txt", "The file is not saved in the container format.");
+
+        assertThat(replacing.getOverwritten(), is(0));
+        assertThat(replacing.getFailed(), is(1));
+        assertThat(replacing.hasProblems(), is(true));
+    }
+
+    @Test
+    public void testEstimateAndPrint() {
+        OutputPlan plan = new OutputPlan();
+
+        for (int i = 0; i < OutputPlan.MAX_EXAMPLES + 5; i++) {
+            plan.add("f" + i, new File(folder, "same.encr"), 1024 * 1024, false);
+        }
+
+        assertThat(plan.estimateSeconds(1024 * 1024), is((long) OutputPlan.MAX_EXAMPLES + 5));
+        assertThat(plan.estimateSeconds(10 * 1024 * 1024), is(2L));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        plan.print(new PrintStream(output, true), "encrypted", folder, 1024 * 1024);
+
+        String printed = output.toString();
+        assertThat(printed.contains("14 outputs would be produced for more than one file:"), is(true));
+        assertThat(printed.contains("... and 4 more."), is(true));
+        assertThat(printed.contains("Estimated duration: 0:00:15 at 1.0 MiB/s."), is(true));
+    }
+}
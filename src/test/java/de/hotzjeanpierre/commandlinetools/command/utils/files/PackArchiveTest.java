@@ -0,0 +1,208 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PackArchiveTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final int[] LENGTHS = {100, 0, 5000, 1, 2047, 0, 3000, 9999, 42};
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "pack test folder");
+    private static File extractFolder = new File(System.getProperty("user.home"), "pack test extracted");
+    private static File index = new File(System.getProperty("user.home"), "packtest.encr");
+
+    private File[] files;
+    private byte[][] data;
+
+    @Before
+    public void setUp() throws IOException {
+        files = new File[LENGTHS.length];
+        data = new byte[LENGTHS.length][];
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            files[i] = new File(sourceFolder, "sub" + (i % 3) + "/file" + i + ".bin");
+            files[i].getParentFile().mkdirs();
+
+            data[i] = new byte[LENGTHS[i]];
+            new Random(i).nextBytes(data[i]);
+            CommonFileUtilities.writeFile(files[i], data[i]);
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        for (File f : FileLister.list(sourceFolder, true, FilterMode.None, "", false)) {
+            f.delete();
+        }
+        EmptyFolderDeleter.deleteIfEmpty(sourceFolder);
+
+        if (extractFolder.exists()) {
+            for (File f : FileLister.list(extractFolder, true, FilterMode.None, "", false)) {
+                f.delete();
+            }
+            EmptyFolderDeleter.deleteIfEmpty(extractFolder);
+        }
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            PackArchive.getVolumeFile(index, i).delete();
+        }
+        index.delete();
+    }
+
+    private PackArchive createArchive() throws IOException, GeneralSecurityException {
+        // small volumes and segments, so members span several segments and volumes
+        return PackArchive.create(KEY, files, sourceFolder, index, 8000, 1024, ForkJoinPool.commonPool());
+    }
+
+    @Test
+    public void testExtractAll() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        PackArchive archive = PackArchive.open(index, KEY);
+
+        assertThat(archive.getMembers().size(), is(LENGTHS.length));
+        assertThat(archive.getVolumeFiles().length > 1, is(true));
+
+        archive.extractAll(originalName -> {
+            File out = new File(extractFolder, originalName);
+            out.getParentFile().mkdirs();
+            return out;
+        });
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            File extracted = new File(extractFolder, CommonFileUtilities.extractRelativePath(files[i], sourceFolder));
+            assertThat(CommonFileUtilities.readFile(extracted), is(data[i]));
+        }
+    }
+
+    @Test
+    public void testExtractAllAfterRekey() throws IOException, GeneralSecurityException {
+        SecretKeySpec newKey = EncryptionService.createPrivateKey("qwertz5678").getSecretKey();
+
+        for (File volume : createArchive().getVolumeFiles()) {
+            assertThat(EncryptedFileHeader.rekey(volume, KEY, newKey), is(true));
+        }
+        assertThat(EncryptedFileHeader.rekey(index, KEY, newKey), is(true));
+
+        PackArchive.open(index, newKey).extractAll(originalName -> {
+            File out = new File(extractFolder, originalName);
+            out.getParentFile().mkdirs();
+            return out;
+        });
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            File extracted = new File(extractFolder, CommonFileUtilities.extractRelativePath(files[i], sourceFolder));
+            assertThat(CommonFileUtilities.readFile(extracted), is(data[i]));
+        }
+    }
+
+    @Test
+    public void testExtractSingleMember() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        PackArchive archive = PackArchive.open(index, KEY);
+        File out = new File(System.getProperty("user.home"), "packtest.decr");
+
+        try {
+            for (int i = 0; i < LENGTHS.length; i++) {
+                PackArchive.Member member = archive.getMember("sub" + (i % 3) + File.separator + "file" + i + ".bin");
+
+                assertThat(member.getLength(), is((long) LENGTHS[i]));
+
+                archive.extract(member, out);
+                assertThat(CommonFileUtilities.readFile(out), is(data[i]));
+            }
+
+            assertThat(archive.getMember("doesnotexist.bin") == null, is(true));
+        } finally {
+            out.delete();
+        }
+    }
+
+    @Test
+    public void testIsArchive() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        assertThat(PackArchive.isArchive(index), is(true));
+        assertThat(PackArchive.isVolume(index), is(false));
+        assertThat(PackArchive.isArchive(PackArchive.getVolumeFile(index, 0)), is(false));
+        assertThat(PackArchive.isVolume(PackArchive.getVolumeFile(index, 0)), is(true));
+        assertThat(PackArchive.isArchive(files[0]), is(false));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testOpenWithWrongPassword() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        PackArchive.open(index, EncryptionService.createPrivateKey("notthepassword").getSecretKey());
+    }
+
+    @Test
+    public void testExtractTamperedVolume() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        try (RandomAccessFile file = new RandomAccessFile(PackArchive.getVolumeFile(index, 0), "rw")) {
+            file.seek(file.length() - 100);
+            int value = file.read();
+            file.seek(file.length() - 100);
+            file.write(value ^ 1);
+        }
+
+        PackArchive archive = PackArchive.open(index, KEY);
+        boolean failed = false;
+
+        try {
+            archive.extractAll(originalName -> {
+                File out = new File(extractFolder, originalName);
+                out.getParentFile().mkdirs();
+                return out;
+            });
+        } catch (GeneralSecurityException e) {
+            failed = true;
+        }
+
+        assertThat(failed, is(true));
+        assertThat(FileLister.list(extractFolder, true, FilterMode.None, "", false).length, is(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testExtractSwappedVolume() throws IOException, GeneralSecurityException {
+        createArchive();
+
+        File first = PackArchive.getVolumeFile(index, 0);
+        File second = PackArchive.getVolumeFile(index, 1);
+        CommonFileUtilities.writeFile(first, CommonFileUtilities.readFile(second));
+
+        PackArchive archive = PackArchive.open(index, KEY);
+        archive.extract(archive.getMembers().get(0), new File(System.getProperty("user.home"), "packtest.decr"));
+    }
+}
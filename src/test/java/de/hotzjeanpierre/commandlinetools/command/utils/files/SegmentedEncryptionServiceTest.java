@@ -0,0 +1,409 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SegmentedEncryptionServiceTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File sourceFolder = new File(System.getProperty("user.home"), "segmented test folder");
+    private static File sourceFile = new File(sourceFolder, "some rather long folder name/somefile.txt");
+    private static File encryptedFile = new File(System.getProperty("user.home"), "somefile.encr");
+    private static File decryptedFile = new File(System.getProperty("user.home"), "somefile.decr");
+
+    @After
+    public void cleanUp() {
+        sourceFile.delete();
+        sourceFile.getParentFile().delete();
+        sourceFolder.delete();
+        encryptedFile.delete();
+        decryptedFile.delete();
+    }
+
+    private static byte[] createSourceFile(int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+
+        sourceFile.getParentFile().mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, data);
+
+        return data;
+    }
+
+    @Test
+    public void testRoundTripWithDefaultSegmentSize() throws IOException {
+        byte[] data = createSourceFile(3 * SegmentedEncryptionService.DEFAULT_SEGMENT_SIZE + 321);
+
+        assertThat(
+                SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile).isSuccess(),
+                is(true)
+        );
+
+        String[] resolvedName = new String[1];
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> {
+                    resolvedName[0] = originalName;
+                    return decryptedFile;
+                }).isSuccess(),
+                is(true)
+        );
+        assertThat(
+                resolvedName[0],
+                is(File.separator + "some rather long folder name" + File.separator + "somefile.txt")
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testRoundTripWithNameSpanningSeveralSegments() throws IOException {
+        byte[] data = createSourceFile(1000);
+
+        assertThat(
+                SegmentedEncryptionService.encryptFile(
+                        KEY, sourceFile, sourceFolder, encryptedFile, 16, ForkJoinPool.commonPool()
+                ).isSuccess(),
+                is(true)
+        );
+        assertThat(
+                EncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testRoundTripThroughMappedFiles() throws IOException {
+        // 100 segments are enough to have the files mapped into memory
+        byte[] data = createSourceFile(100 * 1024 + 17);
+
+        assertThat(
+                SegmentedEncryptionService.encryptFile(
+                        KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool()
+                ).isSuccess(),
+                is(true)
+        );
+        assertThat(
+                encryptedFile.length(),
+                is(EncryptedFileHeader.CLEARTEXT_LENGTH + EncryptedFileHeader.KEY_BLOCK_LENGTH + 16L
+                        + 4 + (File.separator + "some rather long folder name" + File.separator + "somefile.txt").length()
+                        + MerkleTree.HASH_LENGTH + 101 * 16 + data.length)
+        );
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testRoundTripOfEmptyFile() throws IOException {
+        byte[] data = createSourceFile(0);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile);
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testIsSegmentedFile() throws IOException {
+        createSourceFile(100);
+
+        assertThat(SegmentedEncryptionService.isSegmentedFile(sourceFile), is(false));
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile);
+
+        assertThat(SegmentedEncryptionService.isSegmentedFile(encryptedFile), is(true));
+    }
+
+    @Test
+    public void testDecryptWithWrongPassword() throws IOException {
+        createSourceFile(100);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile);
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(
+                        EncryptionService.createPrivateKey("notthepassword").getSecretKey(),
+                        encryptedFile,
+                        originalName -> decryptedFile
+                ).isSuccess(),
+                is(false)
+        );
+        assertThat(decryptedFile.exists(), is(false));
+    }
+
+    @Test
+    public void testDecryptTamperedFile() throws IOException {
+        createSourceFile(5000);
+
+        SegmentedEncryptionService.encryptFile(
+                KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool()
+        );
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(3000);
+            int value = file.read();
+            file.seek(3000);
+            file.write(value ^ 1);
+        }
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+        assertThat(decryptedFile.exists(), is(false));
+    }
+
+    @Test
+    public void testDecryptTruncatedFile() throws IOException, GeneralSecurityException {
+        createSourceFile(5000);
+
+        SegmentedEncryptionService.encryptFile(
+                KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool()
+        );
+
+        // cut off the last segment, so the file ends at the border of a segment
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.setLength(EncryptedFileHeader.read(encryptedFile, KEY).getSegmentPosition(4));
+        }
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+    }
+
+    private static byte[] createTextFile(int length) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(length);
+
+        while (builder.length() < length) {
+            builder.append("Line ").append(random.nextInt(100)).append(" of some compressible text.\n");
+        }
+
+        byte[] data = builder.substring(0, length).getBytes();
+
+        sourceFile.getParentFile().mkdirs();
+        CommonFileUtilities.writeFile(sourceFile, data);
+
+        return data;
+    }
+
+    @Test
+    public void testRoundTripWithEveryCipherSuite() throws IOException, GeneralSecurityException {
+        // 100 segments, so the files are mapped into memory
+        byte[] data = createSourceFile(100 * 1024 + 17);
+
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                continue;
+            }
+
+            EncryptionOptions options = new EncryptionOptions.Builder()
+                    .setSegmentSize(1024)
+                    .setCipherSuite(suite)
+                    .build();
+
+            assertThat(
+                    SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, options).isSuccess(),
+                    is(true)
+            );
+            assertThat(EncryptedFileHeader.read(encryptedFile, KEY).getCipherSuite(), is(suite));
+            assertThat(
+                    SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                    is(true)
+            );
+            assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+        }
+    }
+
+    private static EncryptionOptions compressing(int segmentSize) {
+        return new EncryptionOptions.Builder()
+                .setSegmentSize(segmentSize)
+                .setCompression(true)
+                .build();
+    }
+
+    @Test
+    public void testRoundTripWithCompression() throws IOException, GeneralSecurityException {
+        byte[] data = createTextFile(100 * 1024 + 17);
+
+        assertThat(
+                SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024)).isSuccess(),
+                is(true)
+        );
+        assertThat(EncryptedFileHeader.read(encryptedFile, KEY).isCompressed(), is(true));
+        assertThat(encryptedFile.length() < data.length / 2, is(true));
+        assertThat(
+                EncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testCompressionSkipsIncompressibleFile() throws IOException, GeneralSecurityException {
+        byte[] data = createSourceFile(5000);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024));
+
+        assertThat(EncryptedFileHeader.read(encryptedFile, KEY).isCompressed(), is(false));
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(true)
+        );
+        assertThat(CommonFileUtilities.readFile(decryptedFile), is(data));
+    }
+
+    @Test
+    public void testDecryptTamperedCompressedFile() throws IOException {
+        createTextFile(5000);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(file.length() - 20);
+            int value = file.read();
+            file.seek(file.length() - 20);
+            file.write(value ^ 1);
+        }
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+        assertThat(decryptedFile.exists(), is(false));
+    }
+
+    @Test
+    public void testDecryptTruncatedCompressedFile() throws IOException {
+        createTextFile(5000);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+    }
+
+    @Test
+    public void testVerifyFile() throws IOException {
+        createSourceFile(5000);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool());
+
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, ForkJoinPool.commonPool()).isSuccess(), is(true));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(file.length() - 20);
+            int value = file.read();
+            file.seek(file.length() - 20);
+            file.write(value ^ 1);
+        }
+
+        EncryptionService.FileEncryptionResult result = SegmentedEncryptionService.verifyFile(KEY, encryptedFile, ForkJoinPool.commonPool());
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.getErrorMessage(), is("Segment 4 of the encrypted file has been tampered with."));
+    }
+
+    @Test
+    public void testVerifyTruncatedCompressedFile() throws IOException {
+        createTextFile(5000);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024));
+
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, ForkJoinPool.commonPool()).isSuccess(), is(true));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, ForkJoinPool.commonPool()).isSuccess(), is(false));
+    }
+
+    @Test
+    public void testSampledVerifyFile() throws IOException, GeneralSecurityException {
+        // 100 segments are enough to have the files mapped into memory
+        createSourceFile(100 * 1024 + 17);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, 1024, ForkJoinPool.commonPool());
+
+        assertThat(EncryptedFileHeader.read(encryptedFile, KEY).getMerkleRoot().length, is(MerkleTree.HASH_LENGTH));
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, 3, ForkJoinPool.commonPool()).isSuccess(), is(true));
+
+        // a tampered tag is detected through the Merkle root, regardless of the segments that are chosen
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(file.length() - 1);
+            int value = file.read();
+            file.seek(file.length() - 1);
+            file.write(value ^ 1);
+        }
+
+        EncryptionService.FileEncryptionResult result = SegmentedEncryptionService.verifyFile(KEY, encryptedFile, 3, ForkJoinPool.commonPool());
+        assertThat(result.isSuccess(), is(false));
+        assertThat(
+                result.getErrorMessage(),
+                is("The tags of the segments do not match the Merkle root of the encrypted file, so it has been tampered with.")
+        );
+    }
+
+    @Test
+    public void testSampledVerifyCompressedFile() throws IOException {
+        createTextFile(20 * 1024);
+
+        SegmentedEncryptionService.encryptFile(KEY, sourceFile, sourceFolder, encryptedFile, compressing(1024));
+
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, 2, ForkJoinPool.commonPool()).isSuccess(), is(true));
+
+        try (RandomAccessFile file = new RandomAccessFile(encryptedFile, "rw")) {
+            file.seek(file.length() - 1);
+            int value = file.read();
+            file.seek(file.length() - 1);
+            file.write(value ^ 1);
+        }
+
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encryptedFile, 2, ForkJoinPool.commonPool()).isSuccess(), is(false));
+        assertThat(
+                SegmentedEncryptionService.decryptFile(KEY, encryptedFile, originalName -> decryptedFile).isSuccess(),
+                is(false)
+        );
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SourceManifestTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File folder = new File(System.getProperty("user.home"), "manifest test folder");
+    private static File someFile = new File(folder, "somefile.txt");
+    private static File otherFile = new File(folder, "otherfile.txt");
+
+    private String sep = File.separator;
+
+    @Before
+    public void setUp() {
+        folder.mkdirs();
+    }
+
+    @After
+    public void cleanUp() {
+        SourceManifest.getFile(folder).delete();
+        someFile.delete();
+        otherFile.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void testSaveAndOpen() throws IOException, GeneralSecurityException {
+        SourceManifest manifest = SourceManifest.open(KEY, folder);
+        assertThat(manifest.getEntries().isEmpty(), is(true));
+        assertThat(manifest.getNextIndex(), is(0));
+
+        byte[] hash = new byte[Catalog.HASH_LENGTH];
+        hash[0] = 42;
+
+        manifest.record(new File(folder, "0000000000.encr"), sep + "report.pdf", 1234, 5678, hash);
+        manifest.record(new File(folder, "0000000001.encr"), sep + "notes.txt", 56, 78, new byte[0]);
+        manifest.setNextIndex(2);
+        manifest.save(CipherSuite.AesGcm);
+
+        // the manifest is told apart from a catalog by its flags
+        assertThat(SourceManifest.isManifest(SourceManifest.getFile(folder)), is(true));
+        assertThat(Catalog.isCatalog(SourceManifest.getFile(folder)), is(false));
+
+        SourceManifest read = SourceManifest.open(KEY, folder);
+        assertThat(read.getEntries().size(), is(2));
+        assertThat(read.getNextIndex(), is(2));
+
+        SourceManifest.Entry entry = read.get(sep + "report.pdf");
+        assertThat(entry.getLength(), is(1234L));
+        assertThat(entry.getModified(), is(5678L));
+        assertThat(entry.getHash(), is(hash));
+        assertThat(entry.hasHash(hash), is(true));
+        assertThat(entry.isDeleted(), is(false));
+        assertThat(read.getOutputFile(entry), is(new File(folder, "0000000000.encr")));
+
+        assertThat(read.get(sep + "notes.txt").getHash() == null, is(true));
+        assertThat(read.get(sep + "notes.txt").hasHash(hash), is(false));
+        assertThat(read.get(sep + "missing.txt") == null, is(true));
+    }
+
+    @Test
+    public void testChangesAndDeletions() throws IOException, GeneralSecurityException {
+        CommonFileUtilities.writeFile(someFile, new byte[]{1, 2, 3});
+        CommonFileUtilities.writeFile(otherFile, new byte[]{4, 5});
+
+        SourceManifest manifest = SourceManifest.open(KEY, folder);
+        manifest.record(new File(folder, "0.encr"), sep + someFile.getName(), someFile.length(), someFile.lastModified(), new byte[0]);
+        manifest.record(new File(folder, "1.encr"), sep + otherFile.getName(), otherFile.length(), otherFile.lastModified(), new byte[0]);
+
+        assertThat(manifest.isUnchanged(someFile, sep + someFile.getName()), is(true));
+        assertThat(manifest.isUnchanged(someFile, sep + "unknown.txt"), is(false));
+
+        someFile.setLastModified(someFile.lastModified() - 10000);
+        assertThat(manifest.isUnchanged(someFile, sep + someFile.getName()), is(false));
+
+        otherFile.delete();
+        List<SourceManifest.Entry> deleted = manifest.recordDeletions(folder, 1000);
+        assertThat(deleted.size(), is(1));
+        assertThat(deleted.get(0).getName(), is(sep + otherFile.getName()));
+
+        manifest.save(CipherSuite.AesGcm);
+        SourceManifest read = SourceManifest.open(KEY, folder);
+
+        assertThat(read.get(sep + otherFile.getName()).isDeleted(), is(true));
+        assertThat(read.get(sep + otherFile.getName()).getDeleted(), is(1000L));
+        assertThat(read.get(sep + someFile.getName()).isDeleted(), is(false));
+
+        // a deletion is only recorded once
+        assertThat(read.recordDeletions(folder, 2000).isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class StreamEncryptionServiceTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static File encrypted = new File(System.getProperty("user.home"), "streamtest.encr");
+    private static File decrypted = new File(System.getProperty("user.home"), "streamtest.decr");
+
+    @After
+    public void cleanUp() {
+        encrypted.delete();
+        decrypted.delete();
+    }
+
+    private static byte[] encrypt(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        EncryptionService.FileEncryptionResult result = StreamEncryptionService.encryptStream(
+                KEY, new ByteArrayInputStream(data), File.separator + "dump.sql", out,
+                new EncryptionOptions.Builder()
+                        .setSegmentSize(SEGMENT_SIZE)
+                        .setPool(ForkJoinPool.commonPool())
+                        .build()
+        );
+        assertThat(result.isSuccess(), is(true));
+
+        return out.toByteArray();
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testEncryptAndDecryptStream() {
+        // several batches, a full last segment, a short last segment and no data at all
+        for (int length : new int[]{SEGMENT_SIZE * 300 + 17, SEGMENT_SIZE * 3, 5, 0}) {
+            byte[] data = createData(length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            EncryptionService.FileEncryptionResult result = StreamEncryptionService.decryptStream(
+                    KEY, new ByteArrayInputStream(encrypt(data)), out, ForkJoinPool.commonPool()
+            );
+
+            assertThat(result.isSuccess(), is(true));
+            assertThat(result.getOriginalName(), is(File.separator + "dump.sql"));
+            assertThat(out.toByteArray(), is(data));
+        }
+    }
+
+    @Test
+    public void testTruncatedStream() {
+        byte[] stream = encrypt(createData(SEGMENT_SIZE * 3));
+
+        // cutting off the last segment at its border must not go unnoticed
+        byte[] truncated = Arrays.copyOf(stream, stream.length - SEGMENT_SIZE - CipherSuite.TAG_LENGTH);
+
+        EncryptionService.FileEncryptionResult result = StreamEncryptionService.decryptStream(
+                KEY, new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), ForkJoinPool.commonPool()
+        );
+
+        assertThat(result.isSuccess(), is(false));
+    }
+
+    @Test
+    public void testWrongPassword() {
+        EncryptionService.FileEncryptionResult result = StreamEncryptionService.decryptStream(
+                EncryptionService.createPrivateKey("wrong password").getSecretKey(),
+                new ByteArrayInputStream(encrypt(createData(100))),
+                new ByteArrayOutputStream(),
+                ForkJoinPool.commonPool()
+        );
+
+        assertThat(result.isSuccess(), is(false));
+    }
+
+    @Test
+    public void testDecryptStreamedFile() throws IOException {
+        byte[] data = createData(SEGMENT_SIZE * 20 + 1);
+        CommonFileUtilities.writeFile(encrypted, encrypt(data));
+
+        // a stream that has been saved to a file is decrypted and verified just like any other file
+        assertThat(SegmentedEncryptionService.verifyFile(KEY, encrypted, ForkJoinPool.commonPool()).isSuccess(), is(true));
+        assertThat(EncryptionService.decryptFile(KEY, encrypted, name -> decrypted).isSuccess(), is(true));
+        assertThat(CommonFileUtilities.readFile(decrypted), is(data));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(StreamEncryptionService.decryptFile(KEY, encrypted, out, ForkJoinPool.commonPool()).isSuccess(), is(true));
+        assertThat(out.toByteArray(), is(data));
+
+        // ranges cannot be located within a stream
+        assertThat(EncryptionService.decryptFileRange(KEY, encrypted, name -> decrypted, 10, 10).isSuccess(), is(false));
+    }
+
+    @Test
+    public void testDecryptFileIntoStream() throws IOException {
+        byte[] data = createData(SEGMENT_SIZE * 5 + 3);
+        File plain = new File(System.getProperty("user.home"), "streamtest.bin");
+
+        try {
+            CommonFileUtilities.writeFile(plain, data);
+            assertThat(SegmentedEncryptionService.encryptFile(KEY, plain, plain.getParentFile(), encrypted).isSuccess(), is(true));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(StreamEncryptionService.decryptFile(KEY, encrypted, out, ForkJoinPool.commonPool()).isSuccess(), is(true));
+            assertThat(out.toByteArray(), is(data));
+        } finally {
+            plain.delete();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *     Copyright 2018 Jean-Pierre Hotz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hotzjeanpierre.commandlinetools.command.utils.files;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class WriteBehindWriterTest {
+
+    private static final SecretKeySpec KEY = EncryptionService.createPrivateKey("asdf1234").getSecretKey();
+
+    private static File plain = new File(System.getProperty("user.home"), "writebehindtest.bin");
+    private static File encrypted = new File(System.getProperty("user.home"), "writebehindtest.encr");
+    private static File decrypted = new File(System.getProperty("user.home"), "writebehindtest.decr");
+
+    @After
+    public void cleanUp() {
+        plain.delete();
+        encrypted.delete();
+        decrypted.delete();
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testWriteBlocks() throws Exception {
+        byte[] data = createData(10000);
+
+        // the buffer is smaller than the single blocks, which are thus written one after another
+        WriteBehindWriter writer = new WriteBehindWriter(1000, 1, 2);
+        WriteBehindWriter.Target target = writer.open(plain);
+
+        // the blocks are handed in in reverse order, and the buffer is reused right away
+        ByteBuffer buffer = ByteBuffer.allocate(2500);
+        for (int position = 7500; position >= 0; position -= 2500) {
+            buffer.clear();
+            buffer.put(data, position, 2500).flip();
+            target.write(buffer, position);
+        }
+
+        target.finish().get();
+        writer.close();
+
+        assertThat(CommonFileUtilities.readFile(plain), is(data));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        WriteBehindWriter writer = new WriteBehindWriter();
+        WriteBehindWriter.Target target = writer.open(plain);
+
+        target.write(ByteBuffer.wrap(createData(100)), 0);
+
+        try {
+            target.abort().get();
+            throw new AssertionError("An aborted file must not be written successfully.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IOException, is(true));
+        }
+
+        writer.close();
+
+        assertThat(plain.exists(), is(false));
+    }
+
+    @Test
+    public void testEncryptAndDecryptFile() throws IOException {
+        WriteBehindWriter writer = new WriteBehindWriter();
+
+        try {
+            // a file spanning a few segments, and a compressible file
+            for (byte[] data : new byte[][]{createData(4096 * 5 + 7), new byte[4096 * 20]}) {
+                CommonFileUtilities.writeFile(plain, data);
+
+                EncryptionService.FileEncryptionResult result = SegmentedEncryptionService.encryptFile(
+                        KEY, plain, plain.getParentFile(), encrypted,
+                        new EncryptionOptions.Builder()
+                                .setSegmentSize(4096)
+                                .setCompression(true)
+                                .setWriter(writer)
+                                .build()
+                );
+                assertThat(result.isSuccess(), is(true));
+
+                result.awaitWritten();
+                assertThat(result.isWritten(), is(true));
+
+                result = EncryptionService.decryptFile(KEY, encrypted, name -> decrypted, writer);
+                assertThat(result.isSuccess(), is(true));
+
+                result.awaitWritten();
+                assertThat(CommonFileUtilities.readFile(decrypted), is(data));
+                assertThat(SegmentedEncryptionService.verifyFile(KEY, encrypted, ForkJoinPool.commonPool()).isSuccess(), is(true));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}